@@ -40,6 +40,8 @@ public abstract class EmgImuViewModel <T> extends AndroidViewModel {
 
     public boolean getObservePwr() { return false; }
     public boolean getObserveStream() { return false; }
+    /** Receive the EMG stream as raw ADC counts. See {@link #getMicrovolts}. */
+    public boolean getObserveStreamRaw() { return false; }
     public boolean getObserveAccel() { return false; }
     public boolean getObserveGyro() { return false; }
     public boolean getObserveMag() { return false; }
@@ -70,7 +72,7 @@ public abstract class EmgImuViewModel <T> extends AndroidViewModel {
             if (service != null) {
                 service.unregisterDevicesObserver(deviceListObserver);
                 if (getObservePwr()) service.unregisterEmgPwrObserver(null, pwrObserver);
-                if (getObserveStream()) service.unregisterEmgStreamObserver(null, streamObserver);
+                if (getObserveStream()) unregisterEmgStreamObserver();
                 if (getObserveAccel()) service.unregisterImuAccelObserver(null, accelObserver);
                 if (getObserveGyro()) service.unregisterImuGyroObserver(null, gyroObserver);
                 if (getObserveMag()) service.unregisterImuMagObserver(null, magObserver);
@@ -110,7 +112,7 @@ public abstract class EmgImuViewModel <T> extends AndroidViewModel {
             devicesLiveData.setValue(mapDev(devices));
             if (!deviceMap.isEmpty()) {
                 if (getObservePwr()) { service.registerEmgPwrObserver(null, pwrObserver); }
-                if (getObserveStream()) { service.registerEmgStreamObserver(null, streamObserver); }
+                if (getObserveStream()) { registerEmgStreamObserver(); }
                 if (getObserveAccel()) service.registerImuAccelObserver(null, accelObserver);
                 if (getObserveGyro()) service.registerImuGyroObserver(null, gyroObserver);
                 if (getObserveMag()) service.registerImuMagObserver(null, magObserver);
@@ -261,11 +263,28 @@ public abstract class EmgImuViewModel <T> extends AndroidViewModel {
     }
 
     public void registerEmgStreamObserver() throws RemoteException {
-        service.registerEmgStreamObserver(null, streamObserver);
+        if (getObserveStreamRaw())
+            service.registerEmgStreamRawObserver(null, streamObserver);
+        else
+            service.registerEmgStreamObserver(null, streamObserver);
     }
 
     public void unregisterEmgStreamObserver() throws RemoteException {
-        service.unregisterEmgStreamObserver(null, streamObserver);
+        if (getObserveStreamRaw())
+            service.unregisterEmgStreamRawObserver(null, streamObserver);
+        else
+            service.unregisterEmgStreamObserver(null, streamObserver);
+    }
+
+    /**
+     * Access a sample in microvolts regardless of whether the stream was sent
+     * as voltages or as raw counts.
+     */
+    public static double getMicrovolts(EmgStreamData data, int channel, int sample) {
+        int idx = channel * data.samples + sample;
+        if (data.counts != null && data.counts.length > 0)
+            return data.counts[idx] * data.microvoltsPerLsb[channel];
+        return data.voltage[idx];
     }
 
     public void unregisterAccel() throws RemoteException {
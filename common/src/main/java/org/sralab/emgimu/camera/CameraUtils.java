@@ -2,6 +2,7 @@ package org.sralab.emgimu.camera;
 
 import android.graphics.Matrix;
 import android.hardware.camera2.CameraCharacteristics;
+import android.os.SystemClock;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
@@ -20,6 +21,18 @@ public class CameraUtils {
         return ORIENTATIONS.get(callbacks.getDisplayRotation());
     }
 
+    /**
+     * Offset to add to capture timestamps to put them on the session clock, elapsed
+     * realtime. Cameras with an unknown timestamp source count on the monotonic clock,
+     * which stops while the device is in deep sleep.
+     */
+    public static long sessionClockOffset(CameraCharacteristics characteristics) {
+        Integer source = characteristics == null ? null : characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        if (source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME)
+            return 0;
+        return SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+    }
+
     /**
      * Computes rotation required to transform the camera sensor output orientation to the
      * device's current orientation in degrees.
@@ -31,6 +31,9 @@ import android.view.TextureView;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 
+import org.sralab.emgimu.logging.session.SessionFormat;
+import org.sralab.emgimu.logging.session.SessionWriter;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -61,6 +64,10 @@ public class DepthCamera {
     private Long exposureOfFirstFrameTimestamp;
     private ArrayList<Long> recordingTimestamps;
 
+    // Frame times written to the session, if any
+    private volatile SessionWriter.Stream frameStream;
+    private long frameClockOffset;
+
     // Note this is a slightly altered version due to quirk with depth
     // camera
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray() {{
@@ -278,14 +285,34 @@ public class DepthCamera {
         @Override
         public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
             super.onCaptureStarted(session, request, timestamp, frameNumber);
+            long now = new Date().getTime();
             if (exposureOfFirstFrameTimestamp == null) {
-                exposureOfFirstFrameTimestamp = new Date().getTime();
+                exposureOfFirstFrameTimestamp = now;
             }
-            recordingTimestamps.add(new Date().getTime());
+            recordingTimestamps.add(now);
             recordingTimestamps.add(timestamp);
+
+            SessionWriter.Stream frames = frameStream;
+            if (frames != null)
+                frames.addLongs(timestamp + frameClockOffset, frameNumber, now, timestamp);
         }
     };
 
+    /**
+     * Also write the time of every recorded frame to a session stream, on the session
+     * clock, with the frame number, wall clock time and raw capture timestamp. Call with
+     * the camera open, or with null to stop.
+     */
+    public void setSession(SessionWriter session) {
+        if (session == null) {
+            frameStream = null;
+            return;
+        }
+        frameClockOffset = CameraUtils.sessionClockOffset(characteristics);
+        frameStream = session.addStream("depth_frames", SessionFormat.CODEC_INT64, 3,
+                "{\"values\":[\"frame_number\",\"wall_clock_ms\",\"capture_timestamp_ns\"]}");
+    }
+
     private void closePreview() {
         if (cameraCaptureSession != null) {
             cameraCaptureSession.close();
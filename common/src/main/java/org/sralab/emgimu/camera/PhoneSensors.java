@@ -11,17 +11,23 @@ import android.util.Log;
 import com.google.gson.Gson;
 
 import org.sralab.emgimu.logging.FirebaseWriter;
+import org.sralab.emgimu.logging.session.SessionFormat;
+import org.sralab.emgimu.logging.session.SessionWriter;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class PhoneSensors implements SensorEventListener {
     private static final String TAG = PhoneSensors.class.getSimpleName();
 
     private SensorManager sensorManager;
     private FirebaseWriter firebaseWriter;
+    private SessionWriter session;
+    private final Map<Sensor, SessionWriter.Stream> sessionStreams = new HashMap<>();
     Gson gson;
     List<Sensor> sensors = new ArrayList();
 
@@ -37,8 +43,24 @@ public class PhoneSensors implements SensorEventListener {
         gson = new Gson();
     }
 
+    /** Record the sensors to their own JSON log */
     public void startRecording() {
         firebaseWriter = new FirebaseWriter(context, "_phone_sensors", "phone_streams", null);
+        registerSensors();
+    }
+
+    /**
+     * Also record the sensors into a session, a FLOAT32 stream per sensor named by its
+     * type. Event timestamps are already on the session clock. The JSON log is still
+     * written, so {@link #getFirebasePath()} keeps pointing at it for existing readers.
+     */
+    public void startRecording(SessionWriter session) {
+        this.session = session;
+        sessionStreams.clear();
+        startRecording();
+    }
+
+    private void registerSensors() {
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         sensors = new ArrayList();
 
@@ -53,10 +75,15 @@ public class PhoneSensors implements SensorEventListener {
 
     public void stopRecording() {
         sensorManager.unregisterListener(this);
-        firebaseWriter.close();
-        firebaseWriter = null;
+        if (firebaseWriter != null) {
+            firebaseWriter.close();
+            firebaseWriter = null;
+        }
+        // The session belongs to the caller, which closes it
+        session = null;
     }
 
+    /** The JSON log of the sensors, also when recording into a session */
     public String getFirebasePath() {
         return firebaseWriter.getReference();
     }
@@ -102,11 +129,30 @@ public class PhoneSensors implements SensorEventListener {
         Log.d(TAG, gson.toJson(update));
         */
 
+        if (session != null)
+            addToSession(sensorEvent);
+
         SensorUpdate update = new SensorUpdate(sensorEvent.sensor.getStringType(),
                 sensorEvent.timestamp, new Date().getTime(), sensorEvent.values);
         firebaseWriter.addJson(gson.toJson(update));
     }
 
+    /** Streams are declared on the first event, the number of values depends on the sensor */
+    private void addToSession(SensorEvent sensorEvent) {
+        SessionWriter.Stream stream = sessionStreams.get(sensorEvent.sensor);
+        if (stream == null) {
+            Sensor s = sensorEvent.sensor;
+            stream = session.addStream(s.getStringType(), SessionFormat.CODEC_FLOAT32, sensorEvent.values.length,
+                    "{\"name\":" + gson.toJson(s.getName()) + ",\"vendor\":" + gson.toJson(s.getVendor()) + "}");
+            sessionStreams.put(s, stream);
+        }
+        if (sensorEvent.values.length != stream.channels) {
+            Log.w(TAG, "Dropping " + stream.name + " event with " + sensorEvent.values.length + " values");
+            return;
+        }
+        stream.addFloats(sensorEvent.timestamp, sensorEvent.values);
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int i) {
 
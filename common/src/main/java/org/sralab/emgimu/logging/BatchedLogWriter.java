@@ -0,0 +1,324 @@
+package org.sralab.emgimu.logging;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves log messages from any number of producer threads to one writer thread.
+ *
+ * Producers append to a lock free linked queue (one exchange per message, no lock and
+ * no Handler Message). The writer thread sleeps until the pending bytes reach the batch
+ * size or the oldest message reaches the delay, then copies everything pending into one
+ * contiguous batch and writes it to the {@link Target} in a single call. Producers keep
+ * filling the queue while a batch is being written, so the two sides never wait on
+ * each other.
+ *
+ * Tasks submitted with {@link #execute} run on the writer thread in order with the
+ * data, so stream setup and teardown can share the thread with writes.
+ */
+public class BatchedLogWriter {
+    private static final String TAG = BatchedLogWriter.class.getSimpleName();
+
+    public interface Target {
+        void write(byte [] bytes, int offset, int length) throws IOException;
+
+        /**
+         * The span of a message that was appended with one, called when the message is
+         * copied into the batch, so before the write that contains it.
+         */
+        default void span(LogIndex.Span span) {
+        }
+    }
+
+    /** Bytes written between JSON messages */
+    private static final byte [] JSON_SEPARATOR = ",\n".getBytes();
+
+    private static final int IDLE = 0;
+    private static final int WAITING_EMPTY = 1;
+    private static final int WAITING_TIMED = 2;
+
+    private static final class Node {
+        byte [] data;
+        Runnable task;
+        LogIndex.Span span;
+        final boolean json;
+        final long enqueuedNanos;
+        volatile Node next;
+
+        Node(byte [] data, Runnable task, LogIndex.Span span, boolean json) {
+            this.data = data;
+            this.task = task;
+            this.span = span;
+            this.json = json;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    private final String name;
+    private final Target target;
+    private final int batchBytes;
+    private final long maxDelayNanos;
+
+    // Producers swap themselves onto head, the writer follows next links from tail
+    private final AtomicReference<Node> head;
+    private Node tail;
+
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private volatile int writerState = IDLE;
+    private volatile boolean stopping;
+    private Thread thread;
+
+    private byte [] batch;
+    private boolean firstJson = true;
+
+    // Metrics, written by the writer thread only
+    private volatile long batches;
+    private volatile long messages;
+    private volatile long bytes;
+    private volatile int maxBatchBytes;
+    private volatile int maxQueueDepth;
+    private volatile long latencyNanos;
+    private volatile long maxLatencyNanos;
+
+    /**
+     * @param name name of the writer thread
+     * @param target receives each batch on the writer thread
+     * @param batchBytes pending bytes that trigger a write
+     * @param maxDelayMillis longest a message waits before being written
+     */
+    public BatchedLogWriter(String name, Target target, int batchBytes, long maxDelayMillis) {
+        this.name = name;
+        this.target = target;
+        this.batchBytes = batchBytes;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000L;
+        this.batch = new byte[batchBytes * 2];
+
+        Node stub = new Node(null, null, null, false);
+        head = new AtomicReference<>(stub);
+        tail = stub;
+    }
+
+    /** Start writing. Messages appended before this are kept and written first. */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Append raw bytes. The array must not be modified afterwards. */
+    public void append(byte [] data) {
+        append(data, null);
+    }
+
+    /** Append raw bytes holding whole messages covering the span, which may be null */
+    public void append(byte [] data, LogIndex.Span span) {
+        enqueue(new Node(data, null, span, false));
+    }
+
+    /**
+     * Append one JSON message. The writer thread adds the separator, so the array
+     * stays well formed regardless of how producers race.
+     */
+    public void appendJson(byte [] json) {
+        appendJson(json, null);
+    }
+
+    /** Append one JSON message covering the span, which may be null */
+    public void appendJson(byte [] json, LogIndex.Span span) {
+        enqueue(new Node(json, null, span, true));
+    }
+
+    /** Run a task on the writer thread after everything appended before it is written */
+    public void execute(Runnable task) {
+        enqueue(new Node(null, task, null, false));
+    }
+
+    /** Write everything pending, run the final task and stop the writer thread */
+    public void close(Runnable finalTask) {
+        execute(() -> {
+            if (finalTask != null)
+                finalTask.run();
+            stopping = true;
+        });
+    }
+
+    private void enqueue(Node node) {
+        pendingMessages.incrementAndGet();
+        long pending = node.data == null ? 0 : pendingBytes.addAndGet(node.data.length);
+        if (node.task != null)
+            pendingTasks.incrementAndGet();
+
+        Node previous = head.getAndSet(node);
+        previous.next = node;
+
+        int state = writerState;
+        if (state == WAITING_EMPTY || (state == WAITING_TIMED && (pending >= batchBytes || node.task != null))) {
+            Thread t = thread;
+            if (t != null)
+                LockSupport.unpark(t);
+        }
+    }
+
+    private void run() {
+        while (!stopping) {
+            Node first = tail.next;
+            if (first == null) {
+                writerState = WAITING_EMPTY;
+                if (tail.next == null)
+                    LockSupport.park(this);
+                writerState = IDLE;
+                continue;
+            }
+
+            long wait = maxDelayNanos - (System.nanoTime() - first.enqueuedNanos);
+            if (wait > 0 && pendingBytes.get() < batchBytes && pendingTasks.get() == 0) {
+                writerState = WAITING_TIMED;
+                LockSupport.parkNanos(this, wait);
+                writerState = IDLE;
+                continue;
+            }
+
+            drain();
+        }
+        Log.d(TAG, name + " stopped");
+    }
+
+    private void drain() {
+        int depth = pendingMessages.get();
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+
+        int size = 0;
+        int count = 0;
+        long oldest = 0;
+        long enqueuedSum = 0;
+
+        Node node;
+        while ((node = tail.next) != null) {
+            tail = node;
+            pendingMessages.decrementAndGet();
+
+            if (node.task != null) {
+                writeBatch(size, count, oldest, enqueuedSum);
+                size = 0;
+                count = 0;
+                Runnable task = node.task;
+                node.task = null;
+                pendingTasks.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Log task failed", e);
+                }
+                if (stopping)
+                    break;
+                continue;
+            }
+
+            pendingBytes.addAndGet(-node.data.length);
+            int length = node.data.length;
+            boolean separator = node.json && !firstJson;
+            if (node.json)
+                firstJson = false;
+            if (separator)
+                length += JSON_SEPARATOR.length;
+            if (size + length > batch.length) {
+                writeBatch(size, count, oldest, enqueuedSum);
+                size = 0;
+                count = 0;
+                if (length > batch.length)
+                    batch = Arrays.copyOf(batch, length);
+            }
+            if (separator) {
+                System.arraycopy(JSON_SEPARATOR, 0, batch, size, JSON_SEPARATOR.length);
+                size += JSON_SEPARATOR.length;
+            }
+            System.arraycopy(node.data, 0, batch, size, node.data.length);
+            size += node.data.length;
+            if (node.span != null)
+                target.span(node.span);
+            // The consumed node becomes the stub, so drop its payload
+            node.data = null;
+            node.span = null;
+
+            if (count == 0) {
+                oldest = node.enqueuedNanos;
+                enqueuedSum = 0;
+            }
+            enqueuedSum += node.enqueuedNanos;
+            count++;
+        }
+        writeBatch(size, count, oldest, enqueuedSum);
+    }
+
+    private void writeBatch(int size, int count, long oldest, long enqueuedSum) {
+        if (count == 0)
+            return;
+        try {
+            target.write(batch, 0, size);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing log batch", e);
+        }
+
+        long now = System.nanoTime();
+        batches++;
+        messages += count;
+        bytes += size;
+        if (size > maxBatchBytes)
+            maxBatchBytes = size;
+        latencyNanos += now * count - enqueuedSum;
+        if (now - oldest > maxLatencyNanos)
+            maxLatencyNanos = now - oldest;
+    }
+
+    public static class Metrics {
+        public int queueDepth;
+        public long queueBytes;
+        public int maxQueueDepth;
+        public long batches;
+        public long messages;
+        public long bytes;
+        public double meanBatchMessages;
+        public double meanBatchBytes;
+        public int maxBatchBytes;
+        public double meanWriteLatencyMicros;
+        public double maxWriteLatencyMicros;
+
+        @Override
+        public String toString() {
+            return String.format("queue %d (%d B, max %d) batches %d msgs %d bytes %d mean batch %.1f msgs %.0f B (max %d B) latency mean %.0f us max %.0f us",
+                    queueDepth, queueBytes, maxQueueDepth, batches, messages, bytes,
+                    meanBatchMessages, meanBatchBytes, maxBatchBytes,
+                    meanWriteLatencyMicros, maxWriteLatencyMicros);
+        }
+    }
+
+    /** Snapshot from any thread. Not atomic across fields, which is fine for monitoring. */
+    public Metrics getMetrics() {
+        Metrics m = new Metrics();
+        long b = batches;
+        long n = messages;
+        m.queueDepth = pendingMessages.get();
+        m.queueBytes = pendingBytes.get();
+        m.maxQueueDepth = maxQueueDepth;
+        m.batches = b;
+        m.messages = n;
+        m.bytes = bytes;
+        m.meanBatchMessages = b == 0 ? 0 : (double) n / b;
+        m.meanBatchBytes = b == 0 ? 0 : (double) bytes / b;
+        m.maxBatchBytes = maxBatchBytes;
+        m.meanWriteLatencyMicros = n == 0 ? 0 : latencyNanos / 1000.0 / n;
+        m.maxWriteLatencyMicros = maxLatencyNanos / 1000.0;
+        return m;
+    }
+}
@@ -1,31 +1,25 @@
 package org.sralab.emgimu.logging;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.StorageReference;
-import com.google.firebase.storage.UploadTask;
+
+import org.sralab.emgimu.logging.upload.UploadQueue;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Observable;
 import java.util.TimeZone;
 import java.util.zip.GZIPOutputStream;
@@ -33,8 +27,23 @@ import java.util.zip.GZIPOutputStream;
 public class FirebaseWriter extends Observable {
     private static final String TAG = FirebaseWriter.class.getSimpleName();
 
+    /**
+     * JSON logs are a single array of messages added with {@link #addJson}. BINARY logs
+     * are an opaque byte stream added with {@link #addBytes} with no framing.
+     */
+    public enum Format {
+        JSON(".json.gz"),
+        BINARY(".bin.gz");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
     private Context context;
-    private Handler handler;
+    private final BatchedLogWriter writer;
     private FirebaseUser user;
     private StorageReference storageRef;
 
@@ -42,19 +51,79 @@ public class FirebaseWriter extends Observable {
     private String dateName;
     private String subpath;
     private String basepath;
-
-    private OutputStream localWriter;
-    private OutputStream dataStream;
-    private boolean firstEntry = false;
+    private Format format;
+
+    // Log bytes are compressed straight into the local file, which is uploaded from disk
+    private OutputStream compressor;
+    private File localFile;
+    private FileOutputStream localWriter;
+    /** Set on the logging thread when the local file can no longer be written */
+    private boolean failed;
+
+    // Upload segments, written on the logging thread only
+    private final UploadQueue uploadQueue;
+    private UploadQueue.Listener uploadListener;
+    private int segmentIndex;
+    private long segmentStart;
+    private long lastSyncMillis;
+
+    // Index blocks, written on the logging thread only
+    private LogIndex.Appender index;
+    private long blockStart;
+    private long blockBytes;
+
+    /** Pending bytes that trigger a write to the compressor */
+    private static final int BATCH_BYTES = 32 * 1024;
+    /** Longest a message is held before being written */
+    private static final long BATCH_DELAY_MILLIS = 200;
+    /** Compressed bytes per uploaded segment */
+    private static final long SEGMENT_BYTES = 8 * 1024 * 1024;
+    /** Log bytes per independently decompressible block, see {@link LogIndex} */
+    private static final long INDEX_BLOCK_BYTES = 256 * 1024;
+    /** How often the compressor is sync flushed and the file synced, bounding loss on a crash */
+    private static final long SYNC_INTERVAL_MILLIS = 2000;
 
     public FirebaseWriter(Context context, String suffix, String basepath, String subpath) {
+        this(context, suffix, basepath, subpath, Format.JSON);
+    }
+
+    public FirebaseWriter(Context context, String suffix, String basepath, String subpath, Format format) {
 
         this.context = context;
+        this.format = format;
         this.suffix = suffix;
         if (suffix == null)
             this.suffix = "";
         this.basepath = basepath;
         this.subpath = subpath;
+        this.uploadQueue = UploadQueue.getInstance(context);
+
+        // Messages added before the log is created wait in the writer until it starts
+        writer = new BatchedLogWriter("Logging", new BatchedLogWriter.Target() {
+            @Override
+            public void write(byte [] bytes, int offset, int length) {
+                if (compressor == null)
+                    return;
+                try {
+                    compressor.write(bytes, offset, length);
+                    blockBytes += length;
+                    if (localWriter.getChannel().position() - segmentStart >= SEGMENT_BYTES)
+                        nextBlock(true);
+                    else if (blockBytes >= INDEX_BLOCK_BYTES)
+                        nextBlock(false);
+                    else if (System.currentTimeMillis() - lastSyncMillis >= SYNC_INTERVAL_MILLIS)
+                        syncFlush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            @Override
+            public void span(LogIndex.Span span) {
+                if (index != null)
+                    index.add(span);
+            }
+        }, BATCH_BYTES, BATCH_DELAY_MILLIS);
 
         FirebaseAuth mAuth = FirebaseAuth.getInstance();
         user = mAuth.getCurrentUser(); // Log in performed by main service
@@ -68,12 +137,6 @@ public class FirebaseWriter extends Observable {
             createLog(user);
     }
 
-    private boolean isNetworkAvailable() {
-        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-        return activeNetworkInfo != null && activeNetworkInfo.isConnected();
-    }
-
     void createLog(FirebaseUser user) {
         if (user == null)
             throw new RuntimeException("No firebase user");
@@ -87,100 +150,193 @@ public class FirebaseWriter extends Observable {
         FirebaseStorage storage = FirebaseStorage.getInstance();
         storageRef = storage.getReference().child(getFilename());
 
-        // Create stream objects and use buffers to prevent deadlocks
-        PipedOutputStream pos = new PipedOutputStream();
-        PipedInputStream pis = new PipedInputStream();
-
         try {
-            // Connect streams
-            pis.connect(pos);
-
-            // Use in stream compression
-            dataStream = new GZIPOutputStream(pos);
-            dataStream.write("[".getBytes());
-            firstEntry = true;
-        } catch (IOException e) {
-            e.printStackTrace();
+            localFile = new File(context.getExternalFilesDir("stream_logs"), getLocalFilename());
+            localWriter = new FileOutputStream(localFile);
+            LogRecovery.writeMarker(localFile, format, 0, 0, 0, getFilename());
+            Log.d(TAG, "Opened: " + localFile.getAbsolutePath());
+        } catch (FileNotFoundException e) {
+            // Nothing is uploaded that was not written here first, so there is no log and
+            // the writer only drains the messages
+            Log.e(TAG, "Unable to open log " + getReference(), e);
+            failed = true;
+            writer.start();
             return;
         }
 
-        HandlerThread t = new HandlerThread("Logging") {};
-        t.start();
-        handler = new Handler(t.getLooper());
-
-        InputStream logStream = pis;
+        try {
+            index = new LogIndex.Appender(localFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create log index", e);
+        }
 
-        // only create upload task if online
-        if (isNetworkAvailable()) {
-            Log.d(TAG, "Creating upload task for " + getReference());
+        uploadListener = new UploadQueue.Listener() {
+            @Override
+            public void onSegmentChanged(UploadQueue.Segment segment) {
+            }
 
-            UploadTask uploadTask = storageRef.putStream(logStream);
-            uploadTask.addOnFailureListener(exception -> {
-                Log.e(TAG, "Failed to upload: " + getReference(), exception);
-                synchronized (this) {
-                    this.notify();
-                }
-            }).addOnSuccessListener(taskSnapshot -> {
-                Log.d(TAG, "Upload of log succeeded " + getReference() + " " + taskSnapshot.toString());
-                synchronized (this) {
-                    this.notify();
+            @Override
+            public void onLogUploaded(String localPath) {
+                if (localFile == null || !localFile.getAbsolutePath().equals(localPath))
+                    return;
+                Log.d(TAG, "Upload of log succeeded " + getReference());
+                uploadQueue.removeListener(this);
+                synchronized (FirebaseWriter.this) {
+                    FirebaseWriter.this.notify();
                 }
                 setChanged();
                 notifyObservers();
-            });
-        }
+            }
+
+            @Override
+            public void onLogFailed(String localPath) {
+                if (localFile == null || !localFile.getAbsolutePath().equals(localPath))
+                    return;
+                Log.e(TAG, "Upload of log failed " + getReference());
+                uploadQueue.removeListener(this);
+            }
+        };
+        uploadQueue.addListener(uploadListener);
 
         try {
-            File file = new File(context.getExternalFilesDir("stream_logs"), getLocalFilename());
-            String fileName = file.getAbsolutePath();
-            localWriter = new FileOutputStream(fileName);
-            Log.d(TAG, "Opened: " + fileName);
+            // Use in stream compression, sync flushable so a crash leaves a readable log
+            compressor = new GZIPOutputStream(localWriter, 8192, true);
+            if (format == Format.JSON)
+                compressor.write("[".getBytes());
+        } catch (IOException e) {
+            fail(e);
+        }
 
-            localWriter = new GZIPOutputStream(localWriter);
-            localWriter.write("[".getBytes());
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        writer.start();
+    }
+
+    /**
+     * End the current gzip member, so the block decompresses on its own, index it and
+     * start a new member. With newSegment the members since the last segment are also
+     * queued for upload as one segment. The local file is the concatenation of the
+     * members, which is itself a valid gzip file, and so is the concatenation of the
+     * uploaded segments.
+     */
+    private void nextBlock(boolean newSegment) throws IOException {
+        ((GZIPOutputStream) compressor).finish();
+        long end = localWriter.getChannel().position();
+        finishBlock(end);
+        if (newSegment)
+            queueSegment(end, false);
+        compressor = new GZIPOutputStream(localWriter, 8192, true);
+        LogRecovery.writeMarker(localFile, format, segmentIndex, segmentStart, blockStart, getFilename());
+        syncFlush();
+    }
+
+    private void finishBlock(long end) {
+        if (index != null) {
+            try {
+                index.finishBlock(blockStart, end - blockStart);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write log index", e);
+            }
+        }
+        blockStart = end;
+        blockBytes = 0;
+    }
+
+    /** Close the index and queue it for upload next to the log */
+    private void closeIndex() {
+        if (index == null)
+            return;
+        try {
+            index.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e(TAG, "Unable to close log index", e);
+        }
+        index = null;
+
+        File indexFile = LogIndex.indexFile(localFile);
+        uploadQueue.enqueue(indexFile, 0, 0, indexFile.length(), getFilename() + LogIndex.SUFFIX, true);
+    }
+
+    /** Make everything written so far decompressible from the file, see {@link LogRecovery} */
+    private void syncFlush() throws IOException {
+        compressor.flush();
+        localWriter.getFD().sync();
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * The local file could not be written, so it is missing messages from here on. Stop
+     * logging and leave its marker, so {@link LogRecovery} cuts it back to the last sync
+     * flush and uploads that, rather than uploading a file with a hole in it now.
+     */
+    private void fail(IOException e) {
+        Log.e(TAG, "Unable to write log " + getReference() + ", stopping it", e);
+        failed = true;
+        compressor = null;
+        try {
+            localWriter.close();
+        } catch (IOException ignored) {
+        }
+        // Blocks already finished stay in the index, recovery uploads it with the log
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException ignored) {
+            }
+            index = null;
+        }
+    }
+
+    private void queueSegment(long end, boolean last) {
+        if (localFile == null)
+            return;
+        if (last) {
+            queueLastSegment(uploadQueue, localFile, segmentIndex, segmentStart, end, getFilename());
+        } else {
+            String remotePath = UploadQueue.partPath(getFilename(), segmentIndex);
+            uploadQueue.enqueue(localFile, segmentIndex, segmentStart, end - segmentStart, remotePath, false);
+        }
+        segmentIndex++;
+        segmentStart = end;
+    }
+
+    /**
+     * Queue the end of a finished log so that the whole log ends up at remotePath. A log
+     * that fit in one segment is uploaded there directly, otherwise the last part is
+     * queued and then the whole file, composed from the parts.
+     */
+    static void queueLastSegment(UploadQueue queue, File log, int segmentIndex, long segmentStart, long end, String remotePath) {
+        if (segmentIndex == 0) {
+            queue.enqueue(log, 0, 0, end, remotePath, true);
+            return;
         }
+        queue.enqueue(log, segmentIndex, segmentStart, end - segmentStart, UploadQueue.partPath(remotePath, segmentIndex), false);
+        queue.enqueueComposed(log, end, segmentIndex + 1, remotePath);
     }
 
     public void close() {
-        Log.d(TAG, "Closing PipedOutputStream");
-        handler.post(() -> {
+        Log.d(TAG, "Closing log");
+        writer.close(() -> {
             try {
-                Log.d(TAG, "Close started");
+                Log.d(TAG, "Close started, " + writer.getMetrics());
 
-                if (dataStream != null) {
+                if (compressor != null) {
                     try {
-                        dataStream.write("]".getBytes());
-                        dataStream.flush();
+                        if (format == Format.JSON)
+                            compressor.write("]".getBytes());
+                        // Finishes the gzip trailer and closes the file
+                        compressor.close();
+                        Log.d(TAG, "log closed");
                     } catch (IOException e) {
-                        Log.e(TAG, "Error flushing dataStream", e);
-                    } finally {
-                        try {
-                            dataStream.close();
-                            Log.d(TAG, "dataStream closed");
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error closing dataStream", e);
-                        }
+                        fail(e);
                     }
                 }
-
-                if (localWriter != null) {
-                    try {
-                        localWriter.write("]".getBytes());
-                        localWriter.flush();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error flushing localWriter", e);
-                    } finally {
-                        try {
-                            localWriter.close();
-                            Log.d(TAG, "localWriter closed");
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error closing localWriter", e);
-                        }
-                    }
+                if (compressor != null) {
+                    long end = localFile.length();
+                    finishBlock(end);
+                    closeIndex();
+                    queueSegment(end, true);
+                    LogRecovery.deleteMarker(localFile);
+                } else if (failed) {
+                    Log.e(TAG, "Not uploading failed log " + getReference() + ", it is recovered on the next start");
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Unexpected error during close", e);
@@ -188,51 +344,68 @@ public class FirebaseWriter extends Observable {
         });
     }
 
-    public class MsgWriteRunnable implements Runnable {
+    public void addJson(String json) {
+        writer.appendJson(json.getBytes());
+    }
 
-        private String msg;
+    /** Append one already encoded JSON message. The array must not be modified afterwards. */
+    public void addJson(byte [] json) {
+        writer.appendJson(json);
+    }
 
-        public MsgWriteRunnable(String msg) {
-            this.msg = msg;
-        }
+    /** Append one JSON message covering the span, which is added to the log's index */
+    public void addJson(byte [] json, LogIndex.Span span) {
+        writer.appendJson(json, span);
+    }
 
-        @Override
-        public void run() {
-            try {
-                if (isNetworkAvailable()) {
-                dataStream.write(msg.getBytes());
-                }
-                localWriter.write(msg.getBytes());
-            } catch (IOException e) {
-                Log.e(TAG, "Error writing to stream.", e);
-            }
-        }
+    /** Append raw bytes to a BINARY log. The array must not be modified afterwards. */
+    public void addBytes(byte [] bytes) {
+        writer.append(bytes);
     }
 
-    synchronized
-    public void addJson(String json) {
-        if (firstEntry) {
-            handler.post(new MsgWriteRunnable(json));
-            firstEntry = false;
-        } else
-            handler.post(new MsgWriteRunnable(",\n" + json));
+    /**
+     * Append whole messages to a BINARY log, covering the span, which is added to the
+     * log's index. May be null for messages without a time.
+     */
+    public void addBytes(byte [] bytes, LogIndex.Span span) {
+        writer.append(bytes, span);
+    }
+
+    /**
+     * Upload status of each segment of this log queued so far. While recording, parts
+     * are stored at {@link #getReference()} followed by ".000", ".001" and so on. The
+     * last entry uploads the whole log to the reference itself, resuming its session
+     * after a failure, which is all that remains once it is done.
+     */
+    public List<UploadQueue.Segment> getUploadStatus() {
+        File file = localFile;
+        return file == null ? new ArrayList<>() : uploadQueue.getSegments(file);
+    }
+
+    /** Queue depth, batch size and write latency of the logging thread */
+    public BatchedLogWriter.Metrics getWriterMetrics() {
+        return writer.getMetrics();
     }
 
     private String getFilename() {
         if (subpath == null) {
             Log.d(TAG, "No subpath");
-            return basepath + "/" + user.getUid() + "/" + dateName + suffix + ".json.gz";
+            return basepath + "/" + user.getUid() + "/" + dateName + suffix + format.extension;
         } else
-            return basepath + "/" + user.getUid() + "/" + subpath + "/" + dateName + suffix + ".json.gz";
+            return basepath + "/" + user.getUid() + "/" + subpath + "/" + dateName + suffix + format.extension;
     }
 
     private String getLocalFilename() {
         if (subpath == null)
-            return dateName + suffix + ".json.gz";
+            return dateName + suffix + format.extension;
         else
-            return subpath + "_" + dateName + suffix + ".json.gz";
+            return subpath + "_" + dateName + suffix + format.extension;
     }
 
+    /**
+     * Where the whole log is stored once it is uploaded, which may be well after
+     * {@link #close()}. Observers are notified when it is there.
+     */
     public String getReference() {
         return storageRef.getPath();
     }
@@ -0,0 +1,226 @@
+package org.sralab.emgimu.logging;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.sralab.emgimu.logging.upload.FileRangeInputStream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Time index of a log, kept in a "&lt;log&gt;.idx" sidecar so a window of a long
+ * recording can be read without decompressing everything before it.
+ *
+ * FirebaseWriter ends the gzip member every {@code INDEX_BLOCK_BYTES} of log data, so
+ * each block of the file decompresses on its own, and appends one JSON line per block
+ * with its compressed offset and length and, for each stream in it, the message count
+ * and the range of wall clock and sensor times. Blocks start on message boundaries.
+ * Data after the last indexed block (the log is still open, or was recovered after a
+ * crash) is the tail, which is also a gzip member boundary.
+ */
+public class LogIndex {
+    private static final String TAG = LogIndex.class.getSimpleName();
+
+    public static final String SUFFIX = ".idx";
+
+    /** The time covered by one logged message, which may hold several packets */
+    public static class Span {
+        public final String stream;
+        public final int messages;
+        public final long minTime;
+        public final long maxTime;
+        public final long minSensorTime;
+        public final long maxSensorTime;
+
+        public Span(String stream, int messages, long minTime, long maxTime, long minSensorTime, long maxSensorTime) {
+            this.stream = stream;
+            this.messages = messages;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.minSensorTime = minSensorTime;
+            this.maxSensorTime = maxSensorTime;
+        }
+
+        /** A single packet */
+        public Span(String stream, long time, long sensorTime) {
+            this(stream, 1, time, time, sensorTime, sensorTime);
+        }
+    }
+
+    public static class StreamRange {
+        public int messages;
+        public long minTime = Long.MAX_VALUE;
+        public long maxTime = Long.MIN_VALUE;
+        public long minSensorTime = Long.MAX_VALUE;
+        public long maxSensorTime = Long.MIN_VALUE;
+
+        void add(Span span) {
+            messages += span.messages;
+            minTime = Math.min(minTime, span.minTime);
+            maxTime = Math.max(maxTime, span.maxTime);
+            minSensorTime = Math.min(minSensorTime, span.minSensorTime);
+            maxSensorTime = Math.max(maxSensorTime, span.maxSensorTime);
+        }
+    }
+
+    public static class Block {
+        public long offset;
+        public long length;
+        public Map<String, StreamRange> streams = new LinkedHashMap<>();
+
+        public boolean overlapsTime(long from, long to) {
+            for (StreamRange r : streams.values())
+                if (r.minTime <= to && r.maxTime >= from)
+                    return true;
+            return false;
+        }
+
+        public boolean overlapsSensorTime(String stream, long from, long to) {
+            StreamRange r = streams.get(stream);
+            return r != null && r.minSensorTime <= to && r.maxSensorTime >= from;
+        }
+    }
+
+    // region Writing
+
+    /** Collects spans for the current block and appends finished blocks to the sidecar */
+    static class Appender {
+        private final Gson gson = new Gson();
+        private final Writer out;
+        private Block block = new Block();
+
+        Appender(File log) throws IOException {
+            out = new FileWriter(indexFile(log));
+        }
+
+        void add(Span span) {
+            StreamRange r = block.streams.get(span.stream);
+            if (r == null) {
+                r = new StreamRange();
+                block.streams.put(span.stream, r);
+            }
+            r.add(span);
+        }
+
+        void finishBlock(long offset, long length) throws IOException {
+            if (length <= 0)
+                return;
+            block.offset = offset;
+            block.length = length;
+            out.write(gson.toJson(block));
+            out.write('\n');
+            out.flush();
+            block = new Block();
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // endregion
+
+    public static File indexFile(File log) {
+        return new File(log.getPath() + SUFFIX);
+    }
+
+    private final File log;
+    private final List<Block> blocks;
+
+    private LogIndex(File log, List<Block> blocks) {
+        this.log = log;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Load the index of a log. A log without a sidecar gets an empty index, so all of it
+     * is the tail.
+     */
+    public static LogIndex load(File log) {
+        List<Block> blocks = new ArrayList<>();
+        File file = indexFile(log);
+        if (file.exists()) {
+            Gson gson = new Gson();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Block b = gson.fromJson(line, Block.class);
+                    if (b != null)
+                        blocks.add(b);
+                }
+            } catch (IOException | JsonParseException e) {
+                // A partly written last line is expected after a crash
+                Log.w(TAG, "Index of " + log.getName() + " ends early: " + e.getMessage());
+            }
+        }
+
+        // Ignore blocks past the end of the log, they can not be decompressed
+        long length = log.length();
+        while (!blocks.isEmpty() && blocks.get(blocks.size() - 1).offset + blocks.get(blocks.size() - 1).length > length)
+            blocks.remove(blocks.size() - 1);
+        return new LogIndex(log, blocks);
+    }
+
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /** Blocks holding any message with a wall clock time in [from, to] */
+    public List<Block> findTime(long from, long to) {
+        List<Block> found = new ArrayList<>();
+        for (Block b : blocks)
+            if (b.overlapsTime(from, to))
+                found.add(b);
+        return found;
+    }
+
+    /** Blocks holding a message of the stream with a sensor time in [from, to] */
+    public List<Block> findSensorTime(String stream, long from, long to) {
+        List<Block> found = new ArrayList<>();
+        for (Block b : blocks)
+            if (b.overlapsSensorTime(stream, from, to))
+                found.add(b);
+        return found;
+    }
+
+    /** Where the tail starts, the end of the last indexed block */
+    public long getTailOffset() {
+        if (blocks.isEmpty())
+            return 0;
+        Block last = blocks.get(blocks.size() - 1);
+        return last.offset + last.length;
+    }
+
+    public boolean hasTail() {
+        return log.length() > getTailOffset();
+    }
+
+    /** Decompressed contents of one block */
+    public InputStream openBlock(Block block) throws IOException {
+        return new GZIPInputStream(new FileRangeInputStream(log, block.offset, block.length));
+    }
+
+    /**
+     * Decompressed contents of the tail. The tail of an open or crashed log may end part
+     * way through a message, or without a gzip trailer, and reading it then ends with an
+     * EOFException.
+     */
+    public InputStream openTail() throws IOException {
+        long offset = getTailOffset();
+        return new GZIPInputStream(new FileRangeInputStream(log, offset, log.length() - offset));
+    }
+}
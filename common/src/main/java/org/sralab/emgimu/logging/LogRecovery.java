@@ -0,0 +1,216 @@
+package org.sralab.emgimu.logging;
+
+import android.util.Log;
+
+import org.sralab.emgimu.logging.upload.UploadQueue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Repairs logs that were never closed because the process died.
+ *
+ * While a log is open FirebaseWriter keeps a "&lt;log&gt;.open" marker next to it recording
+ * where the current upload segment and the current gzip member start. Members before it
+ * are complete. The current member is sync flushed periodically, so everything up to the
+ * last flush can be decompressed even though the gzip trailer is missing. Recovery
+ * decompresses that tail, cuts it back to the last complete message, rewrites it as a
+ * finished gzip member (closing the JSON array if needed) and queues the segment as the
+ * log's last, along with the log's index. The rewritten member is left out of the index,
+ * {@link LogIndex} reads it as the tail.
+ */
+public class LogRecovery {
+    private static final String TAG = LogRecovery.class.getSimpleName();
+
+    public static final String MARKER_SUFFIX = ".open";
+
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_SEGMENT_INDEX = "segmentIndex";
+    private static final String KEY_SEGMENT_START = "segmentStart";
+    private static final String KEY_BLOCK_START = "blockStart";
+    private static final String KEY_REMOTE_PATH = "remotePath";
+
+    /** Finds where the last complete message ends in a decompressed log tail */
+    public interface Trimmer {
+        void update(byte [] b, int off, int len);
+        /** Bytes, from the start of the tail, that hold complete messages */
+        long completeLength();
+        /** Bytes appended after the complete messages to finish the log */
+        byte [] closing();
+    }
+
+    public interface TrimmerFactory {
+        /** @param startOfLog the tail is the start of the log, including any file header */
+        Trimmer create(boolean startOfLog);
+    }
+
+    /** JSON logs are an array of objects that contain no nested objects */
+    public static final TrimmerFactory JSON = startOfLog -> new Trimmer() {
+        private long length;
+        private long complete;
+        private boolean open = !startOfLog;
+
+        @Override
+        public void update(byte [] b, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                byte c = b[off + i];
+                if (c == '[' && !open) {
+                    open = true;
+                    complete = length + i + 1;
+                } else if (c == '}')
+                    complete = length + i + 1;
+            }
+            length += len;
+        }
+
+        @Override
+        public long completeLength() {
+            return complete;
+        }
+
+        @Override
+        public byte [] closing() {
+            return (open ? "]" : "[]").getBytes();
+        }
+    };
+
+    // region Marker
+
+    static void writeMarker(File log, FirebaseWriter.Format format, int segmentIndex, long segmentStart, long blockStart, String remotePath) {
+        Properties p = new Properties();
+        p.setProperty(KEY_FORMAT, format.name());
+        p.setProperty(KEY_SEGMENT_INDEX, Integer.toString(segmentIndex));
+        p.setProperty(KEY_SEGMENT_START, Long.toString(segmentStart));
+        p.setProperty(KEY_BLOCK_START, Long.toString(blockStart));
+        p.setProperty(KEY_REMOTE_PATH, remotePath);
+
+        File marker = new File(log.getPath() + MARKER_SUFFIX);
+        File tmp = new File(marker.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + marker, e);
+            return;
+        }
+        if (!tmp.renameTo(marker))
+            Log.e(TAG, "Unable to replace " + marker);
+    }
+
+    static void deleteMarker(File log) {
+        new File(log.getPath() + MARKER_SUFFIX).delete();
+    }
+
+    // endregion
+
+    /**
+     * Markers of the logs in a directory that were not closed. Call this before any new
+     * log is opened in the directory, the repair itself can then run in the background.
+     */
+    public static File [] findOpenLogs(File dir) {
+        File [] markers = dir == null ? null : dir.listFiles((d, name) -> name.endsWith(MARKER_SUFFIX));
+        return markers == null ? new File[0] : markers;
+    }
+
+    /**
+     * Repair the logs found by {@link #findOpenLogs} and queue their last segment.
+     * @param binary trimmer for BINARY logs, or null to leave them for later
+     * @return number of logs repaired
+     */
+    public static int recoverAll(File [] markers, UploadQueue queue, TrimmerFactory binary) {
+        int recovered = 0;
+        for (File marker : markers) {
+            try {
+                if (recover(marker, queue, binary))
+                    recovered++;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Unable to recover " + marker, e);
+            }
+        }
+        return recovered;
+    }
+
+    private static boolean recover(File marker, UploadQueue queue, TrimmerFactory binary) throws IOException {
+        String path = marker.getPath();
+        File log = new File(path.substring(0, path.length() - MARKER_SUFFIX.length()));
+        if (!log.exists()) {
+            marker.delete();
+            return false;
+        }
+
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(marker)) {
+            p.load(in);
+        }
+        FirebaseWriter.Format format = FirebaseWriter.Format.valueOf(p.getProperty(KEY_FORMAT));
+        int segmentIndex = Integer.parseInt(p.getProperty(KEY_SEGMENT_INDEX));
+        long segmentStart = Long.parseLong(p.getProperty(KEY_SEGMENT_START));
+        long blockStart = Long.parseLong(p.getProperty(KEY_BLOCK_START, Long.toString(segmentStart)));
+        String remotePath = p.getProperty(KEY_REMOTE_PATH);
+
+        TrimmerFactory factory = format == FirebaseWriter.Format.JSON ? JSON : binary;
+        if (factory == null)
+            return false;
+        Trimmer trimmer = factory.create(blockStart == 0);
+
+        // Decompress the unfinished member to a scratch file, up to where the data ends
+        File tail = new File(log.getPath() + ".tail");
+        try (OutputStream out = new FileOutputStream(tail)) {
+            try (InputStream raw = new FileInputStream(log)) {
+                long skipped = 0;
+                while (skipped < blockStart) {
+                    long n = raw.skip(blockStart - skipped);
+                    if (n <= 0)
+                        throw new IOException("Log shorter than marker");
+                    skipped += n;
+                }
+                InputStream in = new GZIPInputStream(raw);
+                byte [] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                    trimmer.update(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                // Expected, the member has no trailer
+                Log.d(TAG, log.getName() + " truncated: " + e.getMessage());
+            }
+        }
+
+        // Replace the unfinished member with a complete one holding the complete messages
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(blockStart);
+        }
+        long complete = trimmer.completeLength();
+        try (InputStream in = new FileInputStream(tail);
+             GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(log, true))) {
+            byte [] buffer = new byte[64 * 1024];
+            long remaining = complete;
+            int n;
+            while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+            out.write(trimmer.closing());
+        }
+        tail.delete();
+
+        long length = log.length();
+        Log.i(TAG, "Recovered " + log.getName() + ": kept " + complete + " bytes of the last block");
+        if (queue != null) {
+            FirebaseWriter.queueLastSegment(queue, log, segmentIndex, segmentStart, length, remotePath);
+            File index = LogIndex.indexFile(log);
+            if (index.exists())
+                queue.enqueue(index, 0, 0, index.length(), remotePath + LogIndex.SUFFIX, true);
+        }
+        marker.delete();
+        return true;
+    }
+}
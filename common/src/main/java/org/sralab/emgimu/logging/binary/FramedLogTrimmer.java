@@ -0,0 +1,111 @@
+package org.sralab.emgimu.logging.binary;
+
+import org.sralab.emgimu.logging.LogRecovery;
+
+/**
+ * Finds the end of the last complete record in the decompressed tail of a binary log,
+ * for {@link LogRecovery}. Binary stream logs and sessions share the framing: a magic,
+ * a varint version and a string, then records that are a type byte, a varint payload
+ * length and the payload. Parses the framing only, so memory use does not depend on
+ * the tail length.
+ */
+public class FramedLogTrimmer implements LogRecovery.Trimmer {
+
+    private enum State { MAGIC, VERSION, MAC_LENGTH, MAC, TYPE, LENGTH, PAYLOAD }
+
+    private State state;
+    private long position;
+    private long complete;
+
+    private long varint;
+    private int varintShift;
+    private long remaining;
+
+    public FramedLogTrimmer(int magicLength, boolean startOfLog) {
+        if (startOfLog) {
+            state = State.MAGIC;
+            remaining = magicLength;
+        } else
+            state = State.TYPE;
+    }
+
+    @Override
+    public void update(byte [] b, int off, int len) {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            switch (state) {
+                case MAGIC:
+                case MAC:
+                case PAYLOAD: {
+                    int n = (int) Math.min(remaining, end - i);
+                    i += n;
+                    remaining -= n;
+                    if (remaining == 0)
+                        finished(i - off);
+                    break;
+                }
+                case TYPE:
+                    i++;
+                    startVarint(State.LENGTH);
+                    break;
+                case VERSION:
+                case MAC_LENGTH:
+                case LENGTH: {
+                    int c = b[i++] & 0xFF;
+                    varint |= (long) (c & 0x7F) << varintShift;
+                    varintShift += 7;
+                    if ((c & 0x80) == 0)
+                        finished(i - off);
+                    break;
+                }
+            }
+        }
+        position += len;
+    }
+
+    private void startVarint(State next) {
+        state = next;
+        varint = 0;
+        varintShift = 0;
+    }
+
+    /** The current field ended at {@code consumed} bytes into this update */
+    private void finished(int consumed) {
+        switch (state) {
+            case MAGIC:
+                startVarint(State.VERSION);
+                break;
+            case VERSION:
+                startVarint(State.MAC_LENGTH);
+                break;
+            case MAC_LENGTH:
+                remaining = varint;
+                state = State.MAC;
+                if (remaining == 0)
+                    finished(consumed);
+                break;
+            case LENGTH:
+                remaining = varint;
+                state = State.PAYLOAD;
+                if (remaining == 0)
+                    finished(consumed);
+                break;
+            case MAC:
+            case PAYLOAD:
+                complete = position + consumed;
+                state = State.TYPE;
+                break;
+        }
+    }
+
+    @Override
+    public long completeLength() {
+        return complete;
+    }
+
+    @Override
+    public byte [] closing() {
+        return new byte[0];
+    }
+}
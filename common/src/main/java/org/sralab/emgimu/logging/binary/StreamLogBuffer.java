@@ -0,0 +1,97 @@
+package org.sralab.emgimu.logging.binary;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte array used to build stream log and session records. Reused between
+ * records so steady state encoding does not allocate.
+ */
+public class StreamLogBuffer {
+
+    private byte [] data;
+    private int size;
+
+    public StreamLogBuffer(int capacity) {
+        data = new byte[capacity];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte [] array() {
+        return data;
+    }
+
+    public byte [] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+    }
+
+    public void putByte(int v) {
+        ensure(1);
+        data[size++] = (byte) v;
+    }
+
+    public void putBytes(byte [] src, int offset, int length) {
+        ensure(length);
+        System.arraycopy(src, offset, data, size, length);
+        size += length;
+    }
+
+    public void putVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            data[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        data[size++] = (byte) v;
+    }
+
+    public void putZigZag(long v) {
+        putVarLong((v << 1) ^ (v >> 63));
+    }
+
+    public void putInt(int v) {
+        ensure(4);
+        data[size++] = (byte) v;
+        data[size++] = (byte) (v >> 8);
+        data[size++] = (byte) (v >> 16);
+        data[size++] = (byte) (v >> 24);
+    }
+
+    public void putLong(long v) {
+        putInt((int) v);
+        putInt((int) (v >>> 32));
+    }
+
+    public void putFloat(float v) {
+        putInt(Float.floatToRawIntBits(v));
+    }
+
+    public void putDouble(double v) {
+        putLong(Double.doubleToRawLongBits(v));
+    }
+
+    public void putString(String s) {
+        byte [] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        putVarLong(bytes.length);
+        putBytes(bytes, 0, bytes.length);
+    }
+
+    /** Append another buffer as a record: type, varint length and payload */
+    public void putRecord(int type, StreamLogBuffer payload) {
+        putByte(type);
+        putVarLong(payload.size);
+        putBytes(payload.data, 0, payload.size);
+    }
+}
@@ -0,0 +1,67 @@
+package org.sralab.emgimu.logging.session;
+
+import org.sralab.emgimu.logging.LogRecovery;
+import org.sralab.emgimu.logging.binary.FramedLogTrimmer;
+
+/**
+ * Session container, file version 1. Holds every stream of a recording session (phone
+ * sensors, video frame times and anything else added) in one log, on one clock.
+ *
+ * The file (before the gzip applied by FirebaseWriter) is:
+ *  - magic "EIMS"
+ *  - varint file version
+ *  - string session name
+ *  - records until the end of the file, each a type byte, a varint payload length and
+ *    the payload, the same framing as the binary stream log. Readers skip record types
+ *    they do not know.
+ *
+ * Records are:
+ *  - clock: varint elapsed realtime ns and varint wall clock ms read together, relating
+ *    the session clock to wall time. Written at the start and periodically after.
+ *  - stream: varint stream id, string name, varint codec, varint channels and string
+ *    metadata (JSON, may be empty). Entries of the stream table, each written before
+ *    the first samples of its stream.
+ *  - samples: varint stream id, varint sample count, a column of zigzag varint sample
+ *    times, then the values of each sample in turn as set by the stream's codec.
+ *
+ * All sample times are elapsed realtime nanoseconds (SystemClock.elapsedRealtimeNanos,
+ * which keeps counting in deep sleep), the clock SensorEvent timestamps and realtime
+ * camera timestamps already use. In columns the first value is absolute and the rest
+ * are deltas from the previous sample.
+ *
+ * Strings are a varint byte length followed by UTF-8. Varints are unsigned LEB128.
+ */
+public final class SessionFormat {
+
+    public static final byte [] MAGIC = {'E', 'I', 'M', 'S'};
+    public static final int FILE_VERSION = 1;
+
+    public static final int RECORD_CLOCK = 0x01;
+    public static final int RECORD_STREAM = 0x02;
+    public static final int RECORD_SAMPLES = 0x10;
+
+    /** Each sample is channels little endian float32 */
+    public static final int CODEC_FLOAT32 = 1;
+    /** Each sample is channels zigzag varints, delta coded per channel like the times */
+    public static final int CODEC_INT64 = 2;
+    /** Each sample is a varint length and that many opaque bytes */
+    public static final int CODEC_BYTES = 3;
+    /** As {@link #CODEC_BYTES}, holding one UTF-8 JSON value */
+    public static final int CODEC_JSON = 4;
+
+    /** Index entry of the blocks holding stream table records, see {@link SessionReader} */
+    public static final String INDEX_STREAM_TABLE = "$streams";
+
+    /** Repairs session logs that were not closed */
+    public static final LogRecovery.TrimmerFactory TRIMMER = startOfLog -> new FramedLogTrimmer(MAGIC.length, startOfLog);
+
+    private SessionFormat() {}
+
+    public static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    public static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
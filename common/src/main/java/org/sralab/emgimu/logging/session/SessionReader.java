@@ -0,0 +1,418 @@
+package org.sralab.emgimu.logging.session;
+
+import org.sralab.emgimu.logging.LogIndex;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a session log written by {@link SessionWriter}.
+ *
+ * {@link #read} visits everything in file order. {@link #readAligned} visits the
+ * samples of the chosen streams in a window of session time, merged across streams
+ * into time order, so streams can be lined up sample by sample from the one file. Only
+ * the blocks the log's {@link LogIndex} places in the window (or that hold stream table
+ * entries) are decompressed, plus the unindexed tail of a log that is still open or was
+ * recovered.
+ *
+ * Blocks of one stream are in time order, but a block is written when it fills, so
+ * the streams are interleaved in the file only to within {@link SessionWriter#BLOCK_NANOS}.
+ * Samples are held for {@link #REORDER_NANOS} of session time to merge them; a sample
+ * that arrives later than that (a source that delivered it very late) is passed on as
+ * soon as it is read, out of order.
+ */
+public class SessionReader {
+
+    /** Session time samples are held for to put the streams back into time order */
+    public static final long REORDER_NANOS = 4 * SessionWriter.BLOCK_NANOS;
+
+    public static class Stream {
+        public final int id;
+        public final String name;
+        public final int codec;
+        public final int channels;
+        /** JSON set by the writer, empty if none */
+        public final String metadata;
+
+        Stream(int id, String name, int codec, int channels, String metadata) {
+            this.id = id;
+            this.name = name;
+            this.codec = codec;
+            this.channels = channels;
+            this.metadata = metadata;
+        }
+    }
+
+    public interface Visitor {
+        void onHeader(int fileVersion, String name);
+        /** Session clock time and the wall clock time read with it */
+        void onClock(long elapsedNanos, long wallMillis);
+        /** A stream table entry, always before the stream's first sample */
+        void onStream(Stream stream);
+        /** A sample of a FLOAT32 stream, times are session clock nanoseconds */
+        void onFloats(Stream stream, long time, float [] values);
+        /** A sample of an INT64 stream */
+        void onLongs(Stream stream, long time, long [] values);
+        /** A sample of a BYTES or JSON stream */
+        void onBytes(Stream stream, long time, byte [] bytes);
+    }
+
+    private final File log;
+    private final LogIndex index;
+    private final Map<Integer, Stream> streams = new HashMap<>();
+
+    public SessionReader(File log) {
+        this.log = log;
+        index = LogIndex.load(log);
+    }
+
+    public LogIndex getIndex() {
+        return index;
+    }
+
+    /** Visit the whole log in file order */
+    public void read(Visitor visitor) throws IOException {
+        streams.clear();
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(log), 64 * 1024), 64 * 1024)) {
+            new Decoder(in, visitor, null, Long.MIN_VALUE, Long.MAX_VALUE).read();
+        } catch (EOFException e) {
+            // Log was not closed, stop at the last complete record
+        }
+    }
+
+    /** Visit every sample of every stream in time order */
+    public void readAligned(Visitor visitor) throws IOException {
+        readAligned(Long.MIN_VALUE, Long.MAX_VALUE, null, visitor);
+    }
+
+    /**
+     * Visit the samples with a session time in [from, to] in time order.
+     * @param names streams to read, or null for all of them
+     */
+    public void readAligned(long from, long to, Set<String> names, Visitor visitor) throws IOException {
+        streams.clear();
+        Merger merger = new Merger(visitor);
+
+        for (LogIndex.Block block : index.getBlocks()) {
+            if (!block.streams.containsKey(SessionFormat.INDEX_STREAM_TABLE) && !overlaps(block, from, to, names))
+                continue;
+            try (InputStream in = index.openBlock(block)) {
+                new Decoder(new BufferedInputStream(in, 64 * 1024), merger, names, from, to).read();
+            }
+        }
+
+        if (index.hasTail()) {
+            try (InputStream in = index.openTail()) {
+                new Decoder(new BufferedInputStream(in, 64 * 1024), merger, names, from, to).read();
+            } catch (EOFException e) {
+                // The tail of an open log ends part way through
+            }
+        }
+        merger.drain();
+    }
+
+    private static boolean overlaps(LogIndex.Block block, long from, long to, Set<String> names) {
+        for (Map.Entry<String, LogIndex.StreamRange> e : block.streams.entrySet()) {
+            LogIndex.StreamRange r = e.getValue();
+            if ((names == null || names.contains(e.getKey())) && r.minSensorTime <= to && r.maxSensorTime >= from)
+                return true;
+        }
+        return false;
+    }
+
+    /** The stream table, read from the blocks that hold it */
+    public List<Stream> getStreams() throws IOException {
+        final List<Stream> found = new ArrayList<>();
+        readAligned(Long.MAX_VALUE, Long.MAX_VALUE, null, new Visitor() {
+            @Override public void onHeader(int fileVersion, String name) { }
+            @Override public void onClock(long elapsedNanos, long wallMillis) { }
+            @Override public void onStream(Stream stream) { found.add(stream); }
+            @Override public void onFloats(Stream stream, long time, float [] values) { }
+            @Override public void onLongs(Stream stream, long time, long [] values) { }
+            @Override public void onBytes(Stream stream, long time, byte [] bytes) { }
+        });
+        return found;
+    }
+
+    // region Merging
+
+    private static final class Sample {
+        final Stream stream;
+        final long time;
+        final long sequence;
+        final Object values;
+
+        Sample(Stream stream, long time, long sequence, Object values) {
+            this.stream = stream;
+            this.time = time;
+            this.sequence = sequence;
+            this.values = values;
+        }
+    }
+
+    /** Holds samples back until every stream has been read past them */
+    private static class Merger implements Visitor {
+        private final Visitor visitor;
+        private final PriorityQueue<Sample> window = new PriorityQueue<>(1024, (a, b) ->
+                a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.sequence, b.sequence));
+        private long sequence;
+        private long latest = Long.MIN_VALUE;
+
+        Merger(Visitor visitor) {
+            this.visitor = visitor;
+        }
+
+        private void offer(Stream stream, long time, Object values) {
+            window.add(new Sample(stream, time, sequence++, values));
+            latest = Math.max(latest, time);
+            while (!window.isEmpty() && window.peek().time < latest - REORDER_NANOS)
+                release(window.poll());
+        }
+
+        void drain() {
+            while (!window.isEmpty())
+                release(window.poll());
+        }
+
+        private void release(Sample s) {
+            if (s.values instanceof float [])
+                visitor.onFloats(s.stream, s.time, (float []) s.values);
+            else if (s.values instanceof long [])
+                visitor.onLongs(s.stream, s.time, (long []) s.values);
+            else
+                visitor.onBytes(s.stream, s.time, (byte []) s.values);
+        }
+
+        @Override
+        public void onHeader(int fileVersion, String name) {
+            visitor.onHeader(fileVersion, name);
+        }
+
+        @Override
+        public void onClock(long elapsedNanos, long wallMillis) {
+            visitor.onClock(elapsedNanos, wallMillis);
+        }
+
+        @Override
+        public void onStream(Stream stream) {
+            visitor.onStream(stream);
+        }
+
+        @Override
+        public void onFloats(Stream stream, long time, float [] values) {
+            offer(stream, time, values);
+        }
+
+        @Override
+        public void onLongs(Stream stream, long time, long [] values) {
+            offer(stream, time, values);
+        }
+
+        @Override
+        public void onBytes(Stream stream, long time, byte [] bytes) {
+            offer(stream, time, bytes);
+        }
+    }
+
+    // endregion
+
+    // region Decoding
+
+    /** Decodes one block, which may start with the file header or part way through */
+    private class Decoder {
+        private final InputStream in;
+        private final Visitor visitor;
+        private final Set<String> names;
+        private final long from;
+        private final long to;
+
+        private byte [] record = new byte[4096];
+        private int position;
+        private int limit;
+
+        Decoder(InputStream in, Visitor visitor, Set<String> names, long from, long to) {
+            this.in = in;
+            this.visitor = visitor;
+            this.names = names;
+            this.from = from;
+            this.to = to;
+        }
+
+        void read() throws IOException {
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first < 0)
+                return;
+            if (first == SessionFormat.MAGIC[0])
+                readHeader();
+
+            int type;
+            while ((type = in.read()) >= 0) {
+                int length = (int) readStreamVarLong();
+                if (record.length < length)
+                    record = new byte[length];
+                readFully(record, length);
+                position = 0;
+                limit = length;
+
+                if (type == SessionFormat.RECORD_CLOCK)
+                    visitor.onClock(getVarLong(), getVarLong());
+                else if (type == SessionFormat.RECORD_STREAM)
+                    readStream();
+                else if (type == SessionFormat.RECORD_SAMPLES)
+                    readSamples();
+            }
+        }
+
+        private void readHeader() throws IOException {
+            byte [] magic = new byte[SessionFormat.MAGIC.length];
+            readFully(magic, magic.length);
+            if (!Arrays.equals(magic, SessionFormat.MAGIC))
+                throw new IOException("Not a session log");
+
+            int version = (int) readStreamVarLong();
+            if (version != SessionFormat.FILE_VERSION)
+                throw new IOException("Unsupported session version " + version);
+            int nameLength = (int) readStreamVarLong();
+            byte [] name = new byte[nameLength];
+            readFully(name, nameLength);
+            visitor.onHeader(version, new String(name, StandardCharsets.UTF_8));
+        }
+
+        private void readStream() throws IOException {
+            int id = (int) getVarLong();
+            String name = getString();
+            int codec = (int) getVarLong();
+            int channels = (int) getVarLong();
+            String metadata = getString();
+            if (streams.containsKey(id))
+                return;
+            Stream stream = new Stream(id, name, codec, channels, metadata);
+            streams.put(id, stream);
+            if (names == null || names.contains(name))
+                visitor.onStream(stream);
+        }
+
+        private void readSamples() throws IOException {
+            Stream stream = streams.get((int) getVarLong());
+            if (stream == null || (names != null && !names.contains(stream.name)))
+                return;
+
+            int count = (int) getVarLong();
+            long [] times = new long[count];
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                previous += SessionFormat.unzigzag(getVarLong());
+                times[i] = previous;
+            }
+
+            switch (stream.codec) {
+                case SessionFormat.CODEC_FLOAT32:
+                    for (int i = 0; i < count; i++) {
+                        float [] values = new float[stream.channels];
+                        for (int c = 0; c < stream.channels; c++)
+                            values[c] = Float.intBitsToFloat(getInt());
+                        if (times[i] >= from && times[i] <= to)
+                            visitor.onFloats(stream, times[i], values);
+                    }
+                    break;
+                case SessionFormat.CODEC_INT64: {
+                    long [][] values = new long[count][stream.channels];
+                    for (int c = 0; c < stream.channels; c++) {
+                        previous = 0;
+                        for (int i = 0; i < count; i++) {
+                            previous += SessionFormat.unzigzag(getVarLong());
+                            values[i][c] = previous;
+                        }
+                    }
+                    for (int i = 0; i < count; i++)
+                        if (times[i] >= from && times[i] <= to)
+                            visitor.onLongs(stream, times[i], values[i]);
+                    break;
+                }
+                case SessionFormat.CODEC_BYTES:
+                case SessionFormat.CODEC_JSON:
+                    for (int i = 0; i < count; i++) {
+                        byte [] bytes = new byte[(int) getVarLong()];
+                        if (position + bytes.length > limit)
+                            throw new IOException("Sample runs past its record");
+                        System.arraycopy(record, position, bytes, 0, bytes.length);
+                        position += bytes.length;
+                        if (times[i] >= from && times[i] <= to)
+                            visitor.onBytes(stream, times[i], bytes);
+                    }
+                    break;
+            }
+        }
+
+        private void readFully(byte [] b, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(b, read, length - read);
+                if (n < 0)
+                    throw new EOFException();
+                read += n;
+            }
+        }
+
+        private long readStreamVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int c = in.read();
+                if (c < 0)
+                    throw new EOFException();
+                v |= (long) (c & 0x7F) << shift;
+                if ((c & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private long getVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= limit)
+                    throw new IOException("Record ends part way through a varint");
+                int c = record[position++] & 0xFF;
+                v |= (long) (c & 0x7F) << shift;
+                if ((c & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private int getInt() throws IOException {
+            if (position + 4 > limit)
+                throw new IOException("Record ends part way through a value");
+            int v = (record[position] & 0xFF) | (record[position + 1] & 0xFF) << 8
+                    | (record[position + 2] & 0xFF) << 16 | (record[position + 3] & 0xFF) << 24;
+            position += 4;
+            return v;
+        }
+
+        private String getString() throws IOException {
+            int length = (int) getVarLong();
+            if (position + length > limit)
+                throw new IOException("Record ends part way through a string");
+            String s = new String(record, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+    }
+
+    // endregion
+}
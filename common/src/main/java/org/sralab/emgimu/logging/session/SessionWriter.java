@@ -0,0 +1,252 @@
+package org.sralab.emgimu.logging.session;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.sralab.emgimu.logging.BatchedLogWriter;
+import org.sralab.emgimu.logging.FirebaseWriter;
+import org.sralab.emgimu.logging.LogIndex;
+import org.sralab.emgimu.logging.binary.StreamLogBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes every stream of a recording session into one session log, described in
+ * {@link SessionFormat}, instead of a file per source.
+ *
+ * Sources declare a stream with {@link #addStream} and add samples to it from any
+ * thread, timed on the session clock ({@link #clock()}). Samples are held per stream in
+ * a small column block and the finished records go to a single FirebaseWriter, so one
+ * logging thread does all the compression and file I/O for the session, and the log
+ * gets the same segmented upload, crash recovery ({@link SessionFormat#TRIMMER}) and
+ * time index as the stream logs. A block is written once it has {@link #BLOCK_SAMPLES}
+ * samples or its first sample is {@link #BLOCK_NANOS} older than a newer sample of any
+ * stream, which bounds how far out of time order the streams are in the file, see
+ * {@link SessionReader}.
+ */
+public class SessionWriter {
+    private static final String TAG = SessionWriter.class.getSimpleName();
+
+    /** Samples per column block before it is written */
+    public static final int BLOCK_SAMPLES = 64;
+    /** Longest span of session time a block is held for */
+    public static final long BLOCK_NANOS = 500_000_000L;
+    /** How often the relation of the session clock to wall time is recorded */
+    private static final long CLOCK_INTERVAL_NANOS = 60_000_000_000L;
+
+    private final FirebaseWriter writer;
+    private final List<Stream> streams = new ArrayList<>();
+
+    // Guarded by this
+    private final StreamLogBuffer payload = new StreamLogBuffer(4096);
+    private final StreamLogBuffer record = new StreamLogBuffer(4096);
+    private long clockElapsedNanos;
+    private long clockWallMillis;
+    private boolean closed;
+
+    /** The session clock, elapsed realtime in nanoseconds */
+    public static long clock() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @param suffix added to the log file name, which also names the session
+     * @param basepath storage path under which the log is uploaded, see FirebaseWriter
+     */
+    public SessionWriter(Context context, String suffix, String basepath, String subpath) {
+        writer = new FirebaseWriter(context, suffix, basepath, subpath, FirebaseWriter.Format.BINARY);
+
+        synchronized (this) {
+            record.clear();
+            record.putBytes(SessionFormat.MAGIC, 0, SessionFormat.MAGIC.length);
+            record.putVarLong(SessionFormat.FILE_VERSION);
+            record.putString(suffix);
+            writer.addBytes(record.toByteArray(), null);
+            writeClock(clock());
+        }
+    }
+
+    /** One stream of the session. Samples must match the codec and channels it was declared with. */
+    public class Stream {
+        public final int id;
+        public final String name;
+        public final int codec;
+        public final int channels;
+
+        private final long [] times = new long[BLOCK_SAMPLES];
+        private final long [] longs;
+        private final StreamLogBuffer data = new StreamLogBuffer(1024);
+        private int count;
+
+        private Stream(int id, String name, int codec, int channels) {
+            this.id = id;
+            this.name = name;
+            this.codec = codec;
+            this.channels = channels;
+            longs = codec == SessionFormat.CODEC_INT64 ? new long[BLOCK_SAMPLES * channels] : null;
+        }
+
+        public void addFloats(long time, float [] values) {
+            check(SessionFormat.CODEC_FLOAT32, values.length);
+            synchronized (SessionWriter.this) {
+                if (closed)
+                    return;
+                for (float v : values)
+                    data.putFloat(v);
+                added(time);
+            }
+        }
+
+        public void addLongs(long time, long... values) {
+            check(SessionFormat.CODEC_INT64, values.length);
+            synchronized (SessionWriter.this) {
+                if (closed)
+                    return;
+                System.arraycopy(values, 0, longs, count * channels, channels);
+                added(time);
+            }
+        }
+
+        public void addBytes(long time, byte [] bytes) {
+            if (codec != SessionFormat.CODEC_BYTES && codec != SessionFormat.CODEC_JSON)
+                throw new IllegalArgumentException("Stream " + name + " does not hold bytes");
+            synchronized (SessionWriter.this) {
+                if (closed)
+                    return;
+                data.putVarLong(bytes.length);
+                data.putBytes(bytes, 0, bytes.length);
+                added(time);
+            }
+        }
+
+        public void addJson(long time, String json) {
+            addBytes(time, json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void check(int expected, int length) {
+            if (codec != expected)
+                throw new IllegalArgumentException("Stream " + name + " has codec " + codec);
+            if (length != channels)
+                throw new IllegalArgumentException("Stream " + name + " has " + channels + " channels, not " + length);
+        }
+
+        /** Called with the sample's values already stored */
+        private void added(long time) {
+            times[count++] = time;
+            if (count == BLOCK_SAMPLES)
+                flush();
+            flushStale(time);
+        }
+
+        private void flush() {
+            if (count == 0)
+                return;
+
+            long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+            payload.clear();
+            payload.putVarLong(id);
+            payload.putVarLong(count);
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                payload.putZigZag(times[i] - previous);
+                previous = times[i];
+                minTime = Math.min(minTime, times[i]);
+                maxTime = Math.max(maxTime, times[i]);
+            }
+            if (longs != null) {
+                for (int c = 0; c < channels; c++) {
+                    previous = 0;
+                    for (int i = 0; i < count; i++) {
+                        long v = longs[i * channels + c];
+                        payload.putZigZag(v - previous);
+                        previous = v;
+                    }
+                }
+            } else
+                payload.putBytes(data.array(), 0, data.size());
+
+            emit(SessionFormat.RECORD_SAMPLES, new LogIndex.Span(name, count,
+                    wallMillis(minTime), wallMillis(maxTime), minTime, maxTime));
+
+            count = 0;
+            data.clear();
+
+            long now = clock();
+            if (now - clockElapsedNanos >= CLOCK_INTERVAL_NANOS)
+                writeClock(now);
+        }
+    }
+
+    /**
+     * Declare a stream. Streams are best declared when the session starts, as readers of
+     * part of the session find the stream table through the log index.
+     * @param codec one of the SessionFormat codecs
+     * @param channels values per sample, for FLOAT32 and INT64 streams
+     * @param metadata JSON describing the stream (units, sample rate, device), may be null
+     */
+    public synchronized Stream addStream(String name, int codec, int channels, String metadata) {
+        Stream stream = new Stream(streams.size(), name, codec, channels);
+        streams.add(stream);
+
+        payload.clear();
+        payload.putVarLong(stream.id);
+        payload.putString(name);
+        payload.putVarLong(codec);
+        payload.putVarLong(channels);
+        payload.putString(metadata);
+        long now = clock();
+        emit(SessionFormat.RECORD_STREAM, new LogIndex.Span(SessionFormat.INDEX_STREAM_TABLE, wallMillis(now), now));
+        return stream;
+    }
+
+    /** Write every block held back, bounding how late the samples of any stream can be */
+    private void flushStale(long time) {
+        for (Stream s : streams)
+            if (s.count > 0 && time - s.times[0] >= BLOCK_NANOS)
+                s.flush();
+    }
+
+    private void writeClock(long elapsedNanos) {
+        clockElapsedNanos = elapsedNanos;
+        clockWallMillis = System.currentTimeMillis();
+        payload.clear();
+        payload.putVarLong(clockElapsedNanos);
+        payload.putVarLong(clockWallMillis);
+        emit(SessionFormat.RECORD_CLOCK, null);
+    }
+
+    private long wallMillis(long elapsedNanos) {
+        return clockWallMillis + Math.floorDiv(elapsedNanos - clockElapsedNanos, 1_000_000L);
+    }
+
+    private void emit(int type, LogIndex.Span span) {
+        record.clear();
+        record.putRecord(type, payload);
+        writer.addBytes(record.toByteArray(), span);
+    }
+
+    /** Write the held back samples and close the log, which is then uploaded */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            for (Stream s : streams)
+                s.flush();
+            closed = true;
+        }
+        Log.d(TAG, "Closing session with " + streams.size() + " streams");
+        writer.close();
+    }
+
+    public String getReference() {
+        return writer.getReference();
+    }
+
+    /** Queue depth, batch size and write latency of the session's logging thread */
+    public BatchedLogWriter.Metrics getWriterMetrics() {
+        return writer.getWriterMetrics();
+    }
+}
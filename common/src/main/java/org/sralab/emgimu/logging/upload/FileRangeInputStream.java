@@ -0,0 +1,53 @@
+package org.sralab.emgimu.logging.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/** Reads one byte range of a file */
+public class FileRangeInputStream extends InputStream {
+
+    private final RandomAccessFile file;
+    private long remaining;
+
+    public FileRangeInputStream(File file, long offset, long length) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        if (this.file.length() < offset + length) {
+            this.file.close();
+            throw new IOException(file + " is shorter than segment end " + (offset + length));
+        }
+        this.file.seek(offset);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int b = file.read();
+        if (b >= 0)
+            remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte [] b, int off, int len) throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int n = file.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0)
+            remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
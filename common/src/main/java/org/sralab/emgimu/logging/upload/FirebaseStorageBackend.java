@@ -0,0 +1,68 @@
+package org.sralab.emgimu.logging.upload;
+
+import android.net.Uri;
+
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Uploads segments to Firebase Storage as the signed in user */
+public class FirebaseStorageBackend implements StorageBackend {
+
+    @Override
+    public void upload(File file, long offset, long length, String remotePath, Callback callback) {
+        InputStream in;
+        try {
+            in = new FileRangeInputStream(file, offset, length);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+
+        StorageReference ref = FirebaseStorage.getInstance().getReference().child(remotePath);
+        ref.putStream(in).addOnSuccessListener(taskSnapshot -> {
+            close(in);
+            callback.onSuccess();
+        }).addOnFailureListener(exception -> {
+            close(in);
+            callback.onFailure(exception);
+        });
+    }
+
+    @Override
+    public void uploadResumable(File file, String remotePath, String sessionUri, Callback callback) {
+        StorageReference ref = FirebaseStorage.getInstance().getReference().child(remotePath);
+        UploadTask task = sessionUri == null
+                ? ref.putFile(Uri.fromFile(file))
+                : ref.putFile(Uri.fromFile(file), new StorageMetadata.Builder().build(), Uri.parse(sessionUri));
+
+        AtomicBoolean reported = new AtomicBoolean(sessionUri != null);
+        task.addOnProgressListener(taskSnapshot -> {
+            Uri session = taskSnapshot.getUploadSessionUri();
+            if (session != null && !reported.getAndSet(true))
+                callback.onSession(session.toString());
+        }).addOnSuccessListener(taskSnapshot -> callback.onSuccess())
+                .addOnFailureListener(callback::onFailure);
+    }
+
+    @Override
+    public void delete(String remotePath, Callback callback) {
+        FirebaseStorage.getInstance().getReference().child(remotePath).delete()
+                .addOnSuccessListener(result -> callback.onSuccess())
+                .addOnFailureListener(callback::onFailure);
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
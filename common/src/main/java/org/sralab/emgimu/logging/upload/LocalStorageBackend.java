@@ -0,0 +1,101 @@
+package org.sralab.emgimu.logging.upload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * Stand-in backend that copies segments under a local directory, for running the
+ * upload queue without Firebase.
+ *
+ * A resumable upload is copied to "&lt;object&gt;.session" first, whose URI is the
+ * session, and renamed into place once complete. To see how the queue copes with a
+ * poor connection an upload can be made to fail after copying a number of bytes.
+ */
+public class LocalStorageBackend implements StorageBackend {
+
+    private static final String SESSION_SUFFIX = ".session";
+
+    private final File root;
+    private final long bytesPerAttempt;
+
+    public LocalStorageBackend(File root) {
+        this(root, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param bytesPerAttempt bytes each upload copies before failing, like a connection
+     *                        that drops, so only resumable uploads longer than this finish
+     */
+    public LocalStorageBackend(File root, long bytesPerAttempt) {
+        this.root = root;
+        this.bytesPerAttempt = bytesPerAttempt;
+    }
+
+    @Override
+    public void upload(File file, long offset, long length, String remotePath, Callback callback) {
+        File target = new File(root, remotePath);
+        try (InputStream in = new FileRangeInputStream(file, offset, length);
+             OutputStream out = open(target, false)) {
+            copy(in, out);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess();
+    }
+
+    @Override
+    public void uploadResumable(File file, String remotePath, String sessionUri, Callback callback) {
+        File target = new File(root, remotePath);
+        File session = sessionUri == null ? new File(target.getPath() + SESSION_SUFFIX) : new File(URI.create(sessionUri));
+        if (sessionUri == null)
+            callback.onSession(session.toURI().toString());
+
+        long done = sessionUri == null ? 0 : session.length();
+        try (InputStream in = new FileRangeInputStream(file, done, file.length() - done);
+             OutputStream out = open(session, sessionUri != null)) {
+            copy(in, out);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+
+        if (target.exists() && !target.delete() || !session.renameTo(target)) {
+            callback.onFailure(new IOException("Unable to move " + session + " to " + target));
+            return;
+        }
+        callback.onSuccess();
+    }
+
+    @Override
+    public void delete(String remotePath, Callback callback) {
+        File target = new File(root, remotePath);
+        if (target.delete() || !target.exists())
+            callback.onSuccess();
+        else
+            callback.onFailure(new IOException("Unable to delete " + target));
+    }
+
+    private static OutputStream open(File target, boolean append) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        return new FileOutputStream(target, append);
+    }
+
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        byte [] buffer = new byte[64 * 1024];
+        long copied = 0;
+        int n;
+        while ((n = in.read(buffer, 0, (int) Math.min(buffer.length, bytesPerAttempt - copied))) > 0) {
+            out.write(buffer, 0, n);
+            copied += n;
+        }
+        if (copied == bytesPerAttempt && in.read() >= 0)
+            throw new IOException("Connection dropped after " + copied + " bytes");
+    }
+}
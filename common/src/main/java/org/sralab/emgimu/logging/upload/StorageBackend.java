@@ -0,0 +1,40 @@
+package org.sralab.emgimu.logging.upload;
+
+import java.io.File;
+
+/**
+ * Where log segments are uploaded. Implementations may complete on any thread.
+ */
+public interface StorageBackend {
+
+    interface Callback {
+        void onSuccess();
+        void onFailure(Exception e);
+
+        /**
+         * A resumable upload started a session, which can be passed back to continue the
+         * upload from where it stopped after a failure or a restart.
+         */
+        default void onSession(String sessionUri) {
+        }
+    }
+
+    /**
+     * Upload a byte range of a local file as one object.
+     * @param file local log file
+     * @param offset first byte of the segment
+     * @param length segment length in bytes
+     * @param remotePath object path on the backend
+     */
+    void upload(File file, long offset, long length, String remotePath, Callback callback);
+
+    /**
+     * Upload a whole local file as one object, in a session that survives failures. The
+     * file must not change while the session is in use.
+     * @param sessionUri session from an earlier attempt to continue, or null to start one
+     */
+    void uploadResumable(File file, String remotePath, String sessionUri, Callback callback);
+
+    /** Remove an object, such as a part no longer needed once the whole log is uploaded */
+    void delete(String remotePath, Callback callback);
+}
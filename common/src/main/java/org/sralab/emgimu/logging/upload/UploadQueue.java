@@ -0,0 +1,446 @@
+package org.sralab.emgimu.logging.upload;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent queue of log segments waiting to be uploaded.
+ *
+ * Segments are byte ranges of local log files. The queue is saved to disk on every
+ * change, so segments written while offline, or not yet uploaded when the process
+ * died, are picked up again the next time the queue is created. Segments upload one at
+ * a time. A failed upload is retried with exponential backoff, and a new network
+ * retries everything at once. Once every segment of a log is uploaded the log's
+ * entries are removed and listeners are told.
+ *
+ * A log longer than one segment is uploaded in parts, at {@link #partPath}, while it is
+ * recorded, and then composed: the whole file is uploaded to the log's own path once
+ * every part is up, and the parts are deleted. Firebase Storage has no server side
+ * compose for clients, so the parts only bound what is lost if recording stops early.
+ * The whole file goes up as a resumable upload, whose session is saved with the queue,
+ * so a failure or restart part way through a long log continues rather than starting
+ * again.
+ *
+ * A segment whose local file is gone is marked FAILED. It no longer holds back the
+ * composed log, which then fails too, and a log whose segments have all either
+ * uploaded or failed is removed and reported to {@link Listener#onLogFailed}.
+ */
+public class UploadQueue {
+    private static final String TAG = UploadQueue.class.getSimpleName();
+
+    private static final String STATE_FILE = "upload_queue.json";
+    private static final long BACKOFF_BASE_MILLIS = 5_000;
+    private static final long BACKOFF_MAX_MILLIS = 15 * 60_000;
+    /** Firebase keeps an upload session for about a week, start a new one before then */
+    private static final long SESSION_MAX_AGE_MILLIS = 6 * 24 * 60 * 60_000L;
+
+    public enum Status {
+        PENDING,
+        UPLOADING,
+        UPLOADED,
+        /** The local file is gone, the segment can never be uploaded */
+        FAILED
+    }
+
+    public static class Segment {
+        public String localPath;
+        public int index;
+        public long offset;
+        public long length;
+        public String remotePath;
+        public boolean last;
+        public Status status = Status.PENDING;
+        public int attempts;
+        public long nextAttemptMillis;
+        public String lastError;
+        /** For the whole log composed from parts, how many parts to wait for and then delete */
+        public int parts;
+        /** Resumable upload session of the composed log, null until one is started */
+        public String sessionUri;
+        public long sessionStartMillis;
+
+        Segment copy() {
+            Segment s = new Segment();
+            s.localPath = localPath;
+            s.index = index;
+            s.offset = offset;
+            s.length = length;
+            s.remotePath = remotePath;
+            s.last = last;
+            s.status = status;
+            s.attempts = attempts;
+            s.nextAttemptMillis = nextAttemptMillis;
+            s.lastError = lastError;
+            s.parts = parts;
+            s.sessionUri = sessionUri;
+            s.sessionStartMillis = sessionStartMillis;
+            return s;
+        }
+    }
+
+    public interface Listener {
+        void onSegmentChanged(Segment segment);
+        /** Every segment of the log, including the last, is uploaded */
+        void onLogUploaded(String localPath);
+
+        /** Every segment of the log is uploaded or failed, and at least one failed */
+        default void onLogFailed(String localPath) {
+        }
+    }
+
+    private static UploadQueue instance;
+
+    /** The queue shared by the app, uploading to Firebase Storage */
+    public static synchronized UploadQueue getInstance(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            ConnectivityManager cm = (ConnectivityManager) app.getSystemService(Context.CONNECTIVITY_SERVICE);
+            instance = new UploadQueue(new File(app.getFilesDir(), STATE_FILE), new FirebaseStorageBackend(), cm);
+        }
+        return instance;
+    }
+
+    private final File stateFile;
+    private final StorageBackend backend;
+    private final ConnectivityManager connectivityManager;
+    private final Gson gson = new Gson();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "UploadQueue");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Only touched on the executor thread
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment inFlight;
+    private ScheduledFuture<?> wakeup;
+
+    /**
+     * @param stateFile where the queue is persisted
+     * @param backend where segments are uploaded
+     * @param connectivityManager used to wait for a network, or null to always try
+     */
+    public UploadQueue(File stateFile, StorageBackend backend, ConnectivityManager connectivityManager) {
+        this.stateFile = stateFile;
+        this.backend = backend;
+        this.connectivityManager = connectivityManager;
+
+        executor.execute(() -> {
+            load();
+            schedule();
+        });
+
+        if (connectivityManager != null) {
+            connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(@NonNull Network network) {
+                    retryNow();
+                }
+            });
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Queue a segment of a local log. Segments of one log must be added in order. */
+    public void enqueue(File log, int index, long offset, long length, String remotePath, boolean last) {
+        Segment s = new Segment();
+        s.localPath = log.getAbsolutePath();
+        s.index = index;
+        s.offset = offset;
+        s.length = length;
+        s.remotePath = remotePath;
+        s.last = last;
+        executor.execute(() -> {
+            Log.d(TAG, "Queued " + remotePath + " (" + length + " B)");
+            segments.add(s);
+            save();
+            notifyChanged(s);
+            schedule();
+        });
+    }
+
+    /**
+     * Queue the whole of a finished log, uploaded to remotePath once the parts before it
+     * are, after which the parts are deleted.
+     * @param length length of the finished log
+     * @param parts number of parts already queued, at {@link #partPath}
+     */
+    public void enqueueComposed(File log, long length, int parts, String remotePath) {
+        Segment s = new Segment();
+        s.localPath = log.getAbsolutePath();
+        s.index = parts;
+        s.offset = 0;
+        s.length = length;
+        s.remotePath = remotePath;
+        s.last = true;
+        s.parts = parts;
+        executor.execute(() -> {
+            Log.d(TAG, "Queued " + remotePath + " composed from " + parts + " parts (" + length + " B)");
+            segments.add(s);
+            save();
+            notifyChanged(s);
+            schedule();
+        });
+    }
+
+    /** Where part index of a log stored at remotePath is uploaded */
+    public static String partPath(String remotePath, int index) {
+        return remotePath + String.format(Locale.US, ".%03d", index);
+    }
+
+    /** Retry every waiting segment now instead of after its backoff */
+    public void retryNow() {
+        executor.execute(() -> {
+            for (Segment s : segments)
+                if (s.status == Status.PENDING)
+                    s.nextAttemptMillis = 0;
+            schedule();
+        });
+    }
+
+    /** Copies of the queued segments, optionally for one log only */
+    public List<Segment> getSegments(File log) {
+        String path = log == null ? null : log.getAbsolutePath();
+        try {
+            return executor.submit(() -> {
+                List<Segment> copy = new ArrayList<>();
+                for (Segment s : segments)
+                    if (path == null || path.equals(s.localPath))
+                        copy.add(s.copy());
+                return copy;
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    private boolean isNetworkAvailable() {
+        return connectivityManager == null || connectivityManager.getActiveNetwork() != null;
+    }
+
+    /** Start the next due upload, or arrange to be woken when one is due */
+    private void schedule() {
+        if (inFlight != null)
+            return;
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        for (Segment s : segments) {
+            if (s.status != Status.PENDING || waitingForParts(s))
+                continue;
+            if (s.nextAttemptMillis <= now) {
+                if (isNetworkAvailable())
+                    start(s);
+                // Without a network the callback retries when one appears
+                return;
+            }
+            nextDue = Math.min(nextDue, s.nextAttemptMillis);
+        }
+
+        if (nextDue != Long.MAX_VALUE)
+            wakeup = executor.schedule(this::schedule, nextDue - now, TimeUnit.MILLISECONDS);
+    }
+
+    /** A composed log waits until every part of it is uploaded or has failed */
+    private boolean waitingForParts(Segment composed) {
+        if (composed.parts == 0)
+            return false;
+        for (Segment s : segments)
+            if (s != composed && s.localPath.equals(composed.localPath) && !isDone(s))
+                return true;
+        return false;
+    }
+
+    private static boolean isDone(Segment s) {
+        return s.status == Status.UPLOADED || s.status == Status.FAILED;
+    }
+
+    private void start(Segment s) {
+        File file = new File(s.localPath);
+        if (!file.exists()) {
+            s.status = Status.FAILED;
+            s.lastError = "Local file missing";
+            notifyChanged(s);
+            pruneIfComplete(s.localPath);
+            save();
+            schedule();
+            return;
+        }
+
+        inFlight = s;
+        s.status = Status.UPLOADING;
+        s.attempts++;
+        save();
+        notifyChanged(s);
+
+        StorageBackend.Callback callback = new StorageBackend.Callback() {
+            @Override
+            public void onSuccess() {
+                executor.execute(() -> finished(s, null));
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                executor.execute(() -> finished(s, e));
+            }
+
+            @Override
+            public void onSession(String sessionUri) {
+                executor.execute(() -> {
+                    if (s.status != Status.UPLOADING)
+                        return;
+                    s.sessionUri = sessionUri;
+                    s.sessionStartMillis = System.currentTimeMillis();
+                    save();
+                });
+            }
+        };
+
+        if (s.parts > 0) {
+            if (s.sessionUri != null && System.currentTimeMillis() - s.sessionStartMillis > SESSION_MAX_AGE_MILLIS)
+                s.sessionUri = null;
+            backend.uploadResumable(file, s.remotePath, s.sessionUri, callback);
+        } else
+            backend.upload(file, s.offset, s.length, s.remotePath, callback);
+    }
+
+    private void finished(Segment s, Exception e) {
+        inFlight = null;
+        if (e == null) {
+            Log.d(TAG, "Uploaded " + s.remotePath);
+            s.status = Status.UPLOADED;
+            s.lastError = null;
+            s.sessionUri = null;
+            if (s.parts > 0)
+                deleteParts(s);
+        } else {
+            long backoff = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(s.attempts - 1, 20));
+            Log.w(TAG, "Upload of " + s.remotePath + " failed, retrying in " + backoff + " ms", e);
+            s.status = Status.PENDING;
+            s.lastError = e.toString();
+            s.nextAttemptMillis = System.currentTimeMillis() + backoff;
+        }
+        notifyChanged(s);
+        pruneIfComplete(s.localPath);
+        save();
+        schedule();
+    }
+
+    /** Best effort, a part left behind is only a copy of a range of the composed log */
+    private void deleteParts(Segment composed) {
+        for (int i = 0; i < composed.parts; i++) {
+            String path = partPath(composed.remotePath, i);
+            backend.delete(path, new StorageBackend.Callback() {
+                @Override
+                public void onSuccess() {
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    Log.w(TAG, "Unable to delete " + path, e);
+                }
+            });
+        }
+    }
+
+    private void pruneIfComplete(String localPath) {
+        boolean sawLast = false;
+        boolean failed = false;
+        for (Segment s : segments) {
+            if (!s.localPath.equals(localPath))
+                continue;
+            if (!isDone(s))
+                return;
+            sawLast |= s.last;
+            failed |= s.status == Status.FAILED;
+        }
+        if (!sawLast)
+            return;
+
+        segments.removeIf(s -> s.localPath.equals(localPath));
+        if (failed) {
+            Log.e(TAG, "Giving up on " + localPath + ", its local file is gone");
+            for (Listener l : listeners)
+                l.onLogFailed(localPath);
+        } else {
+            for (Listener l : listeners)
+                l.onLogUploaded(localPath);
+        }
+    }
+
+    private void notifyChanged(Segment s) {
+        Segment copy = s.copy();
+        for (Listener l : listeners)
+            l.onSegmentChanged(copy);
+    }
+
+    private void load() {
+        if (!stateFile.exists())
+            return;
+        try (Reader reader = new FileReader(stateFile)) {
+            List<Segment> saved = gson.fromJson(reader, new TypeToken<List<Segment>>() {}.getType());
+            if (saved == null)
+                return;
+            for (Segment s : saved) {
+                // Uploads in flight when the process died start again
+                if (s.status == Status.UPLOADING)
+                    s.status = Status.PENDING;
+                s.nextAttemptMillis = 0;
+                segments.add(s);
+            }
+            Log.d(TAG, "Resumed " + segments.size() + " queued segments");
+            // Logs held back by a failed segment before failures were pruned
+            for (Segment s : new ArrayList<>(segments))
+                pruneIfComplete(s.localPath);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to read upload queue", e);
+        }
+    }
+
+    private void save() {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(tmp)) {
+            gson.toJson(segments, writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save upload queue", e);
+            return;
+        }
+        if (!tmp.renameTo(stateFile))
+            Log.e(TAG, "Unable to replace " + stateFile);
+    }
+}
@@ -0,0 +1,66 @@
+package org.sralab.emgimu.sharedmemory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encoding of an EMG stream packet as raw ADC counts in a shared ring record.
+ *
+ *  - 0: timestamp in milliseconds (long)
+ *  - 8: channels (int)
+ *  - 12: samples per channel (int)
+ *  - 16: microvolts per LSB (double)
+ *  - 24-onward: counts (int), packed by channel (channel * samples + sample)
+ *
+ * Instances are reused by the reader and writer to avoid allocating per packet.
+ */
+public class EmgStreamRecord {
+
+    public static final int TYPE = 1;
+    public static final int HEADER_SIZE = 24;
+
+    /** Record size for the largest EMG packet (8 channels, up to 32 samples each) */
+    public static final int MAX_SIZE = HEADER_SIZE + 8 * 32 * 4;
+
+    public long ts;
+    public int channels;
+    public int samples;
+    public double microvoltsPerLsb;
+    public int [] counts = new int[0];
+
+    public double getMicrovolts(int channel, int sample) {
+        return counts[channel * samples + sample] * microvoltsPerLsb;
+    }
+
+    /** @return number of bytes written */
+    public int encode(byte [] dst) {
+        ByteBuffer b = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+        b.putLong(ts);
+        b.putInt(channels);
+        b.putInt(samples);
+        b.putDouble(microvoltsPerLsb);
+        final int n = channels * samples;
+        for (int i = 0; i < n; i++)
+            b.putInt(counts[i]);
+        return b.position();
+    }
+
+    /** @return false if the record is malformed */
+    public boolean decode(byte [] src, int length) {
+        if (length < HEADER_SIZE)
+            return false;
+        ByteBuffer b = ByteBuffer.wrap(src, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        ts = b.getLong();
+        channels = b.getInt();
+        samples = b.getInt();
+        microvoltsPerLsb = b.getDouble();
+        final int n = channels * samples;
+        if (channels < 0 || samples < 0 || n * 4 > b.remaining())
+            return false;
+        if (counts.length != n)
+            counts = new int[n];
+        for (int i = 0; i < n; i++)
+            counts[i] = b.getInt();
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package org.sralab.emgimu.sharedmemory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for accesses that do not go through Java fields, such as a mapped
+ * region shared with another process. Volatile fields only order other Java memory
+ * accesses, so these use {@code VarHandle} fences (API 33 and Java 9) where they exist
+ * and the equivalent {@code sun.misc.Unsafe} fences (API 24 and Java 8) otherwise.
+ * The handles are looked up reflectively since the project still compiles as Java 8.
+ */
+final class Fences {
+
+    private static final MethodHandle ACQUIRE;
+    private static final MethodHandle RELEASE;
+    private static final MethodHandle STORE_STORE;
+    private static final MethodHandle LOAD_LOAD;
+
+    static {
+        MethodHandle[] fences = varHandleFences();
+        if (fences == null)
+            fences = unsafeFences();
+        if (fences == null)
+            throw new ExceptionInInitializerError("No memory fences available");
+        ACQUIRE = fences[0];
+        RELEASE = fences[1];
+        STORE_STORE = fences[2];
+        LOAD_LOAD = fences[3];
+    }
+
+    private Fences() {}
+
+    private static MethodHandle[] varHandleFences() {
+        try {
+            Class<?> c = Class.forName("java.lang.invoke.VarHandle");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodType type = MethodType.methodType(void.class);
+            return new MethodHandle[] {
+                    lookup.findStatic(c, "acquireFence", type),
+                    lookup.findStatic(c, "releaseFence", type),
+                    lookup.findStatic(c, "storeStoreFence", type),
+                    lookup.findStatic(c, "loadLoadFence", type),
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Unsafe has no StoreStore or LoadLoad fence, so those use the stronger store and load fences */
+    private static MethodHandle[] unsafeFences() {
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodType type = MethodType.methodType(void.class);
+            MethodHandle load = lookup.findVirtual(c, "loadFence", type).bindTo(unsafe);
+            MethodHandle store = lookup.findVirtual(c, "storeFence", type).bindTo(unsafe);
+            return new MethodHandle[] { load, store, store, load };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Loads and stores after the fence are not reordered before loads before it */
+    static void acquire() {
+        try {
+            ACQUIRE.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    /** Loads and stores before the fence are not reordered after stores after it */
+    static void release() {
+        try {
+            RELEASE.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    /** Stores before the fence are not reordered after stores after it */
+    static void storeStore() {
+        try {
+            STORE_STORE.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    /** Loads before the fence are not reordered after loads after it */
+    static void loadLoad() {
+        try {
+            LOAD_LOAD.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+}
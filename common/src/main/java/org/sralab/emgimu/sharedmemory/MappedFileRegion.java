@@ -0,0 +1,118 @@
+package org.sralab.emgimu.sharedmemory;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link SharedRegion} backed by a memory mapped file. The service maps the file read
+ * write and hands clients a descriptor they map read only, so both sides see the same
+ * pages without any copying through Binder.
+ */
+public class MappedFileRegion implements SharedRegion {
+
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer view;
+    private final Owner owner;
+    private final boolean readOnly;
+
+    /** Keeps the file open for as long as the mapping is in use */
+    private interface Owner {
+        void close() throws IOException;
+    }
+
+    private MappedFileRegion(MappedByteBuffer buffer, Owner owner, boolean readOnly) {
+        this.buffer = buffer;
+        this.owner = owner;
+        this.readOnly = readOnly;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        view = buffer.duplicate();
+    }
+
+    /** Create (or truncate) a file of the given size and map it for writing */
+    public static MappedFileRegion create(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new MappedFileRegion(buffer, raf::close, false);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** Map a file created by {@link #create} for reading, e.g. from a ParcelFileDescriptor */
+    public static MappedFileRegion openReadOnly(FileDescriptor fd) throws IOException {
+        FileInputStream stream = new FileInputStream(fd);
+        try {
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedFileRegion(buffer, stream::close, true);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int size() { return buffer.capacity(); }
+
+    @Override
+    public int getInt(int offset) { return buffer.getInt(offset); }
+
+    @Override
+    public void putInt(int offset, int value) { buffer.putInt(offset, value); }
+
+    @Override
+    public long getLong(int offset) { return buffer.getLong(offset); }
+
+    @Override
+    public void putLong(int offset, long value) { buffer.putLong(offset, value); }
+
+    @Override
+    public long getLongAcquire(int offset) {
+        long value = buffer.getLong(offset);
+        Fences.acquire();
+        return value;
+    }
+
+    @Override
+    public void putLongRelease(int offset, long value) {
+        Fences.release();
+        buffer.putLong(offset, value);
+    }
+
+    @Override
+    public void storeStoreFence() { Fences.storeStore(); }
+
+    @Override
+    public void loadLoadFence() { Fences.loadLoad(); }
+
+    @Override
+    public void get(int offset, byte[] dst, int dstOffset, int length) {
+        view.position(offset);
+        view.get(dst, dstOffset, length);
+    }
+
+    @Override
+    public void put(int offset, byte[] src, int srcOffset, int length) {
+        view.position(offset);
+        view.put(src, srcOffset, length);
+    }
+
+    @Override
+    public boolean isReadOnly() { return readOnly; }
+
+    @Override
+    public void close() throws IOException {
+        owner.close();
+    }
+}
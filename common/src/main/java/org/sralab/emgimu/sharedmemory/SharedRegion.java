@@ -0,0 +1,38 @@
+package org.sralab.emgimu.sharedmemory;
+
+import java.io.Closeable;
+
+/**
+ * A block of memory that may be shared with another process. Offsets are in bytes
+ * from the start of the region and values are little endian.
+ *
+ * Plain accessors have no ordering guarantees. {@link #putLongRelease} makes all
+ * earlier writes visible before the value, and {@link #getLongAcquire} makes all
+ * later reads happen after the value is read. A sequence lock also needs
+ * {@link #storeStoreFence} after marking a slot as being written, so the mark is
+ * visible before the new contents, and {@link #loadLoadFence} before re-checking the
+ * slot, so the contents are read before the check.
+ *
+ * A region is not thread safe. Each process should access it from one thread.
+ */
+public interface SharedRegion extends Closeable {
+
+    int size();
+
+    int getInt(int offset);
+    void putInt(int offset, int value);
+
+    long getLong(int offset);
+    void putLong(int offset, long value);
+
+    long getLongAcquire(int offset);
+    void putLongRelease(int offset, long value);
+
+    void storeStoreFence();
+    void loadLoadFence();
+
+    void get(int offset, byte [] dst, int dstOffset, int length);
+    void put(int offset, byte [] src, int srcOffset, int length);
+
+    boolean isReadOnly();
+}
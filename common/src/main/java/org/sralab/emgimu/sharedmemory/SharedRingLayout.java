@@ -0,0 +1,49 @@
+package org.sralab.emgimu.sharedmemory;
+
+/**
+ * Layout of a record ring in a {@link SharedRegion}.
+ *
+ * Header:
+ *  - 0: magic
+ *  - 4: layout version
+ *  - 8: number of slots (power of two)
+ *  - 12: largest record in bytes
+ *  - 16: sequence of the next record to be written
+ *  - 24-63: reserved
+ *
+ * Each slot is a 16 byte header followed by the record:
+ *  - 0: sequence of the record held, or -1 while it is being written
+ *  - 8: record type
+ *  - 12: record length in bytes
+ */
+public final class SharedRingLayout {
+
+    public static final int MAGIC = 0x524d4745; // "EGMR" little endian
+    public static final int VERSION = 1;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int SLOT_COUNT_OFFSET = 8;
+    static final int RECORD_SIZE_OFFSET = 12;
+    static final int WRITE_SEQUENCE_OFFSET = 16;
+    static final int HEADER_SIZE = 64;
+
+    static final int SLOT_SEQUENCE_OFFSET = 0;
+    static final int SLOT_TYPE_OFFSET = 8;
+    static final int SLOT_LENGTH_OFFSET = 12;
+    static final int SLOT_HEADER_SIZE = 16;
+
+    static final long WRITING = -1;
+
+    private SharedRingLayout() {}
+
+    /** Bytes needed for a ring with the given geometry */
+    public static int regionSize(int slots, int recordSize) {
+        return HEADER_SIZE + slots * slotSize(recordSize);
+    }
+
+    static int slotSize(int recordSize) {
+        // Keep the sequence numbers 8 byte aligned
+        return SLOT_HEADER_SIZE + ((recordSize + 7) & ~7);
+    }
+}
@@ -0,0 +1,106 @@
+package org.sralab.emgimu.sharedmemory;
+
+import static org.sralab.emgimu.sharedmemory.SharedRingLayout.*;
+
+/**
+ * Reads records published by a {@link SharedRingWriter}, possibly in another process.
+ *
+ * The reader keeps a cursor, the sequence of the next record it expects. If the writer
+ * laps the reader the cursor skips to the oldest record still in the ring and the
+ * skipped records are counted in {@link #getLost()}. Records are validated against
+ * their slot sequence before and after copying, so a record overwritten while being
+ * read is never returned.
+ */
+public class SharedRingReader {
+
+    private final SharedRegion region;
+    private final int slots;
+    private final int recordSize;
+    private final int slotSize;
+
+    private long cursor;
+    private long lost;
+    private int lastType;
+
+    /** Attach to a ring and start at the next record written */
+    public SharedRingReader(SharedRegion region) {
+        if (region.getInt(MAGIC_OFFSET) != MAGIC)
+            throw new IllegalArgumentException("Region does not contain a ring");
+        if (region.getInt(VERSION_OFFSET) != VERSION)
+            throw new IllegalArgumentException("Unsupported ring version " + region.getInt(VERSION_OFFSET));
+
+        this.region = region;
+        slots = region.getInt(SLOT_COUNT_OFFSET);
+        recordSize = region.getInt(RECORD_SIZE_OFFSET);
+        slotSize = slotSize(recordSize);
+        cursor = region.getLongAcquire(WRITE_SEQUENCE_OFFSET);
+    }
+
+    /** Buffer size needed to receive any record */
+    public int getRecordSize() { return recordSize; }
+
+    /** Sequence of the next record to be read */
+    public long getCursor() { return cursor; }
+
+    /** Move the cursor, e.g. back to re-read records still in the ring */
+    public void seek(long sequence) { cursor = sequence; }
+
+    /** Records published but not yet read */
+    public long available() {
+        return region.getLongAcquire(WRITE_SEQUENCE_OFFSET) - cursor;
+    }
+
+    /** Records overwritten before this reader could read them */
+    public long getLost() { return lost; }
+
+    /** Type of the last record returned by {@link #read} */
+    public int getLastType() { return lastType; }
+
+    /**
+     * Copy the next record into dst.
+     * @param dst must hold at least {@link #getRecordSize()} bytes
+     * @return record length, or -1 if no record is available
+     */
+    public int read(byte [] dst) {
+        while (true) {
+            final long written = region.getLongAcquire(WRITE_SEQUENCE_OFFSET);
+            if (cursor >= written)
+                return -1;
+
+            if (written - cursor > slots) {
+                long oldest = written - slots;
+                lost += oldest - cursor;
+                cursor = oldest;
+            }
+
+            final int base = HEADER_SIZE + (int) (cursor & (slots - 1)) * slotSize;
+            if (region.getLongAcquire(base + SLOT_SEQUENCE_OFFSET) != cursor) {
+                // Being overwritten by a newer record. Resynchronize with the writer.
+                lost++;
+                cursor++;
+                continue;
+            }
+
+            final int type = region.getInt(base + SLOT_TYPE_OFFSET);
+            final int length = region.getInt(base + SLOT_LENGTH_OFFSET);
+            if (length < 0 || length > recordSize) {
+                lost++;
+                cursor++;
+                continue;
+            }
+            region.get(base + SLOT_HEADER_SIZE, dst, 0, length);
+
+            // An acquire only orders the loads after it, the record must also be read before the check
+            region.loadLoadFence();
+            if (region.getLong(base + SLOT_SEQUENCE_OFFSET) != cursor) {
+                lost++;
+                cursor++;
+                continue;
+            }
+
+            lastType = type;
+            cursor++;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.sralab.emgimu.sharedmemory;
+
+import static org.sralab.emgimu.sharedmemory.SharedRingLayout.*;
+
+/**
+ * Publishes records into a ring in a {@link SharedRegion}. The writer never waits for
+ * readers: once the ring is full the oldest records are overwritten and readers that
+ * fall behind detect it from the sequence numbers.
+ *
+ * Only one writer may use a region.
+ */
+public class SharedRingWriter {
+
+    private final SharedRegion region;
+    private final int slots;
+    private final int recordSize;
+    private final int slotSize;
+
+    private long sequence;
+
+    /**
+     * Initialize the ring in the region.
+     * @param slots number of records retained, rounded up to a power of two
+     * @param recordSize largest record in bytes
+     */
+    public SharedRingWriter(SharedRegion region, int slots, int recordSize) {
+        int n = 1;
+        while (n < slots)
+            n <<= 1;
+        if (regionSize(n, recordSize) > region.size())
+            throw new IllegalArgumentException("Region too small for " + n + " records of " + recordSize + " bytes");
+
+        this.region = region;
+        this.slots = n;
+        this.recordSize = recordSize;
+        slotSize = slotSize(recordSize);
+
+        for (int i = 0; i < n; i++)
+            region.putLong(slotOffset(i) + SLOT_SEQUENCE_OFFSET, WRITING);
+        region.putInt(SLOT_COUNT_OFFSET, n);
+        region.putInt(RECORD_SIZE_OFFSET, recordSize);
+        region.putInt(VERSION_OFFSET, VERSION);
+        region.putLongRelease(WRITE_SEQUENCE_OFFSET, 0);
+        region.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    /**
+     * Publish a record.
+     * @return sequence number of the record
+     */
+    public long write(int type, byte [] record, int offset, int length) {
+        if (length > recordSize)
+            throw new IllegalArgumentException("Record of " + length + " bytes exceeds " + recordSize);
+
+        final long seq = sequence;
+        final int base = slotOffset((int) (seq & (slots - 1)));
+
+        region.putLong(base + SLOT_SEQUENCE_OFFSET, WRITING);
+        // A release only orders the stores before it, the mark must also precede the record
+        region.storeStoreFence();
+        region.putInt(base + SLOT_TYPE_OFFSET, type);
+        region.putInt(base + SLOT_LENGTH_OFFSET, length);
+        region.put(base + SLOT_HEADER_SIZE, record, offset, length);
+        region.putLongRelease(base + SLOT_SEQUENCE_OFFSET, seq);
+
+        sequence = seq + 1;
+        region.putLongRelease(WRITE_SEQUENCE_OFFSET, sequence);
+        return seq;
+    }
+
+    /** Sequence of the next record to be written */
+    public long getSequence() { return sequence; }
+
+    public int getSlots() { return slots; }
+
+    public int getRecordSize() { return recordSize; }
+}
@@ -0,0 +1,225 @@
+package org.sralab.emgimu.logging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the writer from several producer threads at once. Every message carries its
+ * producer and a per producer sequence number, so a lost, repeated or reordered message
+ * shows up when the written bytes are parsed back.
+ */
+public class BatchedLogWriterTest {
+
+    private static final int PRODUCERS = 8;
+    private static final int MESSAGES = 50_000;
+
+    /** Collects every write, and the time of each, on the writer thread */
+    private static class Recorder implements BatchedLogWriter.Target {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final List<Long> writeNanos = new ArrayList<>();
+
+        @Override
+        public synchronized void write(byte [] bytes, int offset, int length) {
+            written.write(bytes, offset, length);
+            writeNanos.add(System.nanoTime());
+        }
+
+        synchronized int writes() {
+            return writeNanos.size();
+        }
+
+        synchronized long firstWriteNanos() {
+            return writeNanos.get(0);
+        }
+
+        synchronized byte [] bytes() {
+            return written.toByteArray();
+        }
+    }
+
+    /** Run the producers together and close the writer once they are done */
+    private static void produce(BatchedLogWriter writer, Producer producer) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(PRODUCERS);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread [] threads = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int id = p;
+            threads[p] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int seq = 0; seq < MESSAGES; seq++)
+                    producer.append(id, seq);
+            });
+            threads[p].start();
+        }
+        ready.await();
+        go.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        CountDownLatch closed = new CountDownLatch(1);
+        writer.close(closed::countDown);
+        assertTrue("closed", closed.await(30, TimeUnit.SECONDS));
+    }
+
+    private interface Producer {
+        void append(int producer, int seq);
+    }
+
+    private static void assertInOrder(int [] next) {
+        for (int p = 0; p < PRODUCERS; p++)
+            assertEquals("messages from producer " + p, MESSAGES, next[p]);
+    }
+
+    @Test
+    public void binaryMessagesAreNeitherLostNorReordered() throws Exception {
+        Recorder recorder = new Recorder();
+        BatchedLogWriter writer = new BatchedLogWriter("test", recorder, 4096, 5);
+        writer.start();
+
+        // Lengths vary so that messages straddle the batch boundaries
+        produce(writer, (producer, seq) -> {
+            ByteBuffer b = ByteBuffer.allocate(9 + seq % 23);
+            b.put((byte) b.capacity());
+            b.putInt(producer);
+            b.putInt(seq);
+            writer.append(b.array());
+        });
+
+        ByteBuffer written = ByteBuffer.wrap(recorder.bytes());
+        int [] next = new int[PRODUCERS];
+        while (written.hasRemaining()) {
+            int start = written.position();
+            int length = written.get();
+            int producer = written.getInt();
+            int seq = written.getInt();
+            assertEquals("sequence from producer " + producer, next[producer], seq);
+            next[producer]++;
+            written.position(start + length);
+        }
+        assertInOrder(next);
+        assertTrue("batched " + recorder.writes() + " writes", recorder.writes() < PRODUCERS * MESSAGES / 10);
+        assertEquals(PRODUCERS * MESSAGES, writer.getMetrics().messages);
+        assertEquals(0, writer.getMetrics().queueDepth);
+    }
+
+    @Test
+    public void jsonMessagesAreSeparatedAndInOrder() throws Exception {
+        Recorder recorder = new Recorder();
+        BatchedLogWriter writer = new BatchedLogWriter("test", recorder, 4096, 5);
+        writer.start();
+
+        produce(writer, (producer, seq) -> writer.appendJson(
+                ("{\"p\":" + producer + ",\"s\":" + seq + "}").getBytes(StandardCharsets.UTF_8)));
+
+        String [] messages = new String(recorder.bytes(), StandardCharsets.UTF_8).split(",\n");
+        assertEquals(PRODUCERS * MESSAGES, messages.length);
+        int [] next = new int[PRODUCERS];
+        for (String msg : messages) {
+            assertTrue(msg, msg.startsWith("{\"p\":") && msg.endsWith("}"));
+            int comma = msg.indexOf(',');
+            int producer = Integer.parseInt(msg.substring(5, comma));
+            int seq = Integer.parseInt(msg.substring(comma + 5, msg.length() - 1));
+            assertEquals("sequence from producer " + producer, next[producer], seq);
+            next[producer]++;
+        }
+        assertInOrder(next);
+    }
+
+    @Test
+    public void writesOnceTheBatchSizeIsPending() throws Exception {
+        Recorder recorder = new Recorder();
+        // A delay far longer than the test, so only the size can trigger a write
+        BatchedLogWriter writer = new BatchedLogWriter("test", recorder, 1000, 60_000);
+        writer.start();
+
+        for (int i = 0; i < 9; i++)
+            writer.append(new byte[100]);
+        Thread.sleep(200);
+        assertEquals("written below the batch size", 0, recorder.writes());
+
+        long start = System.nanoTime();
+        writer.append(new byte[100]);
+        while (recorder.writes() == 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5))
+            Thread.sleep(1);
+        assertEquals(1, recorder.writes());
+        assertEquals(1000, recorder.bytes().length);
+        writer.close(null);
+    }
+
+    @Test
+    public void writesOnceTheOldestMessageReachesTheDelay() throws Exception {
+        Recorder recorder = new Recorder();
+        // A batch size never reached, so only the delay can trigger a write
+        BatchedLogWriter writer = new BatchedLogWriter("test", recorder, 1 << 20, 100);
+        writer.start();
+
+        long start = System.nanoTime();
+        writer.append(new byte[10]);
+        Thread.sleep(20);
+        writer.append(new byte[10]);
+        while (recorder.writes() == 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5))
+            Thread.sleep(1);
+        long millis = TimeUnit.NANOSECONDS.toMillis(recorder.firstWriteNanos() - start);
+
+        assertTrue("written after " + millis + " ms", millis >= 100 && millis < 1000);
+        // Both went in the one write, timed from the first
+        assertEquals(1, recorder.writes());
+        assertEquals(20, recorder.bytes().length);
+        writer.close(null);
+    }
+
+    @Test
+    public void closeWritesEverythingBeforeTheFinalTask() throws Exception {
+        Recorder recorder = new Recorder();
+        // Neither the size nor the delay is reached, only close writes
+        BatchedLogWriter writer = new BatchedLogWriter("test", recorder, 1 << 20, 60_000);
+        writer.start();
+
+        int [] writtenAtClose = new int[1];
+        int expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            writer.append(new byte[i % 50 + 1]);
+            expected += i % 50 + 1;
+        }
+        CountDownLatch closed = new CountDownLatch(1);
+        writer.close(() -> {
+            writtenAtClose[0] = recorder.bytes().length;
+            closed.countDown();
+        });
+
+        assertTrue("closed", closed.await(5, TimeUnit.SECONDS));
+        assertEquals(expected, writtenAtClose[0]);
+        assertEquals(0, writer.getMetrics().queueDepth);
+        assertEquals(0, writer.getMetrics().queueBytes);
+    }
+
+    @Test
+    public void closeBeforeStartWritesWhatWasAppended() throws Exception {
+        Recorder recorder = new Recorder();
+        BatchedLogWriter writer = new BatchedLogWriter("test", recorder, 1 << 20, 60_000);
+
+        writer.appendJson("{}".getBytes(StandardCharsets.UTF_8));
+        writer.appendJson("{}".getBytes(StandardCharsets.UTF_8));
+        CountDownLatch closed = new CountDownLatch(1);
+        writer.close(closed::countDown);
+        writer.start();
+
+        assertTrue("closed", closed.await(5, TimeUnit.SECONDS));
+        assertEquals("{},\n{}", new String(recorder.bytes(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,226 @@
+package org.sralab.emgimu.logging.upload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the queue against {@link LocalStorageBackend} in a temporary directory, with the
+ * queue state saved next to it so a second queue can pick up where the first stopped.
+ */
+public class UploadQueueTest {
+
+    private static final int PART = 100 * 1024;
+
+    private File dir;
+    private File state;
+    private File remote;
+    private File log;
+    private byte [] data;
+
+    /** Records what the listener is told */
+    private static class Events implements UploadQueue.Listener {
+        final List<UploadQueue.Segment> changes = new ArrayList<>();
+        final List<Long> changeMillis = new ArrayList<>();
+        final CountDownLatch uploaded = new CountDownLatch(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onSegmentChanged(UploadQueue.Segment segment) {
+            changes.add(segment);
+            changeMillis.add(System.currentTimeMillis());
+        }
+
+        @Override
+        public void onLogUploaded(String localPath) {
+            uploaded.countDown();
+        }
+
+        @Override
+        public void onLogFailed(String localPath) {
+            failed.countDown();
+        }
+
+        synchronized List<UploadQueue.Segment> changes() {
+            return new ArrayList<>(changes);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("upload").toFile();
+        state = new File(dir, "queue.json");
+        remote = new File(dir, "remote");
+        log = new File(dir, "log.bin.gz");
+        data = new byte[3 * PART];
+        new Random(16).nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(log)) {
+            out.write(data);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private byte [] remote(String path) throws IOException {
+        return Files.readAllBytes(new File(remote, path).toPath());
+    }
+
+    /** Queue the log as its three parts and the whole log composed from them */
+    private void enqueueInParts(UploadQueue queue) {
+        queue.enqueue(log, 0, 0, PART, UploadQueue.partPath("u/log", 0), false);
+        queue.enqueue(log, 1, PART, PART, UploadQueue.partPath("u/log", 1), false);
+        queue.enqueue(log, 2, 2 * PART, PART, UploadQueue.partPath("u/log", 2), false);
+        queue.enqueueComposed(log, 3 * PART, 3, "u/log");
+    }
+
+    /** Retry without waiting out the backoff until the latch is released */
+    private static void retryUntil(UploadQueue queue, CountDownLatch latch) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!latch.await(20, TimeUnit.MILLISECONDS)) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            queue.retryNow();
+        }
+    }
+
+    @Test
+    public void failedUploadBacksOffExponentially() throws Exception {
+        LocalStorageBackend local = new LocalStorageBackend(remote);
+        AtomicInteger failures = new AtomicInteger(2);
+        StorageBackend flaky = new StorageBackend() {
+            @Override
+            public void upload(File file, long offset, long length, String remotePath, Callback callback) {
+                if (failures.getAndDecrement() > 0)
+                    callback.onFailure(new IOException("offline"));
+                else
+                    local.upload(file, offset, length, remotePath, callback);
+            }
+
+            @Override
+            public void uploadResumable(File file, String remotePath, String sessionUri, Callback callback) {
+                local.uploadResumable(file, remotePath, sessionUri, callback);
+            }
+
+            @Override
+            public void delete(String remotePath, Callback callback) {
+                local.delete(remotePath, callback);
+            }
+        };
+
+        UploadQueue queue = new UploadQueue(state, flaky, null);
+        Events events = new Events();
+        queue.addListener(events);
+        queue.enqueue(log, 0, 0, data.length, "u/log", true);
+        retryUntil(queue, events.uploaded);
+
+        List<UploadQueue.Segment> changes = events.changes();
+        List<Long> backoffs = new ArrayList<>();
+        for (int i = 0; i < changes.size(); i++) {
+            UploadQueue.Segment s = changes.get(i);
+            if (s.status == UploadQueue.Status.PENDING && s.lastError != null)
+                backoffs.add(s.nextAttemptMillis - events.changeMillis.get(i));
+        }
+        assertEquals(2, backoffs.size());
+        assertTrue("first backoff " + backoffs.get(0), backoffs.get(0) > 4_900 && backoffs.get(0) <= 5_000);
+        assertTrue("second backoff " + backoffs.get(1), backoffs.get(1) > 9_900 && backoffs.get(1) <= 10_000);
+        assertEquals(3, changes.get(changes.size() - 1).attempts);
+        assertArrayEquals(data, remote("u/log"));
+        assertTrue(queue.getSegments(null).isEmpty());
+    }
+
+    @Test
+    public void composedLogWaitsForItsPartsAndReplacesThem() throws Exception {
+        UploadQueue queue = new UploadQueue(state, new LocalStorageBackend(remote), null);
+        Events events = new Events();
+        queue.addListener(events);
+        enqueueInParts(queue);
+        assertTrue(events.uploaded.await(10, TimeUnit.SECONDS));
+
+        // Segments go up one at a time, so the whole log starts after every part is done
+        List<Integer> started = new ArrayList<>();
+        for (UploadQueue.Segment s : events.changes())
+            if (s.status == UploadQueue.Status.UPLOADING)
+                started.add(s.index);
+        assertEquals(4, started.size());
+        assertEquals(3, (int) started.get(3));
+
+        assertArrayEquals(data, remote("u/log"));
+        for (int i = 0; i < 3; i++)
+            assertFalse("part " + i, new File(remote, UploadQueue.partPath("u/log", i)).exists());
+        assertTrue(queue.getSegments(null).isEmpty());
+    }
+
+    @Test
+    public void restartedQueueResumesTheComposedUpload() throws Exception {
+        // Each attempt moves one part's worth, so the whole log needs three attempts and
+        // only finishes if each attempt continues the session rather than starting over
+        UploadQueue first = new UploadQueue(state, new LocalStorageBackend(remote, PART), null);
+        Events before = new Events();
+        first.addListener(before);
+        enqueueInParts(first);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        UploadQueue.Segment composed;
+        do {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            composed = first.getSegments(log).get(3);
+        } while (composed.attempts == 0 || composed.status != UploadQueue.Status.PENDING);
+        assertTrue(composed.sessionUri != null);
+
+        // The process dies while the first queue waits out its backoff
+        UploadQueue second = new UploadQueue(state, new LocalStorageBackend(remote, PART), null);
+        Events after = new Events();
+        second.addListener(after);
+        retryUntil(second, after.uploaded);
+
+        List<UploadQueue.Segment> changes = after.changes();
+        UploadQueue.Segment last = changes.get(changes.size() - 1);
+        assertEquals(UploadQueue.Status.UPLOADED, last.status);
+        assertEquals(3, last.attempts);
+        assertArrayEquals(data, remote("u/log"));
+        assertFalse(new File(remote, "u/log.session").exists());
+    }
+
+    @Test
+    public void missingFileFailsTheLogInsteadOfBlockingIt() throws Exception {
+        UploadQueue queue = new UploadQueue(state, new LocalStorageBackend(remote), null);
+        Events events = new Events();
+        queue.addListener(events);
+
+        File gone = new File(dir, "gone.bin.gz");
+        queue.enqueue(gone, 0, 0, PART, UploadQueue.partPath("u/gone", 0), false);
+        queue.enqueueComposed(gone, PART, 1, "u/gone");
+        assertTrue(events.failed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, events.uploaded.getCount());
+
+        // A log queued after it still uploads
+        queue.enqueue(log, 0, 0, data.length, "u/log", true);
+        assertTrue(events.uploaded.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(data, remote("u/log"));
+        assertTrue(queue.getSegments(null).isEmpty());
+    }
+}
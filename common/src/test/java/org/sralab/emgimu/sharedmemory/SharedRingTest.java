@@ -0,0 +1,168 @@
+package org.sralab.emgimu.sharedmemory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the ring the way the service and a client use it: the writer maps the file read
+ * write, the reader maps it again read only, and each runs on its own thread. Every
+ * record carries its sequence number and a pattern derived from it, so a record torn
+ * by the writer lapping the reader shows up as a mismatch.
+ */
+public class SharedRingTest {
+
+    private static final int RECORD_SIZE = 64;
+    private static final int MIN_LENGTH = 12;
+
+    private File file;
+    private MappedFileRegion writeRegion;
+    private MappedFileRegion readRegion;
+    private FileInputStream readStream;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("ring", ".shm");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (readRegion != null)
+            readRegion.close();
+        if (readStream != null)
+            readStream.close();
+        if (writeRegion != null)
+            writeRegion.close();
+        file.delete();
+    }
+
+    private SharedRingWriter createWriter(int slots) throws IOException {
+        writeRegion = MappedFileRegion.create(file, SharedRingLayout.regionSize(slots, RECORD_SIZE));
+        return new SharedRingWriter(writeRegion, slots, RECORD_SIZE);
+    }
+
+    private SharedRingReader openReader() throws IOException {
+        readStream = new FileInputStream(file);
+        readRegion = MappedFileRegion.openReadOnly(readStream.getFD());
+        return new SharedRingReader(readRegion);
+    }
+
+    private static int length(long seq) {
+        return MIN_LENGTH + (int) (seq % (RECORD_SIZE - MIN_LENGTH + 1));
+    }
+
+    private static byte pattern(long seq, int i) {
+        return (byte) (seq * 31 + i);
+    }
+
+    private static void fill(byte [] record, long seq) {
+        for (int i = 0; i < 8; i++)
+            record[i] = (byte) (seq >>> (8 * i));
+        for (int i = 8; i < length(seq); i++)
+            record[i] = pattern(seq, i);
+    }
+
+    /** @return the sequence the record was written with, after checking it is intact */
+    private static long check(byte [] record, int length, int type) {
+        long seq = 0;
+        for (int i = 0; i < 8; i++)
+            seq |= (record[i] & 0xffL) << (8 * i);
+        assertEquals("length of " + seq, length(seq), length);
+        assertEquals("type of " + seq, (int) (seq % 3), type);
+        for (int i = 8; i < length; i++)
+            assertEquals("byte " + i + " of " + seq, pattern(seq, i), record[i]);
+        return seq;
+    }
+
+    @Test
+    public void readsRecordsInOrder() throws IOException {
+        SharedRingWriter writer = createWriter(16);
+        SharedRingReader reader = openReader();
+        byte [] record = new byte[RECORD_SIZE];
+        byte [] dst = new byte[reader.getRecordSize()];
+
+        assertEquals(-1, reader.read(dst));
+        for (long seq = 0; seq < 10; seq++) {
+            fill(record, seq);
+            assertEquals(seq, writer.write((int) (seq % 3), record, 0, length(seq)));
+        }
+        assertEquals(10, reader.available());
+        for (long seq = 0; seq < 10; seq++)
+            assertEquals(seq, check(dst, reader.read(dst), reader.getLastType()));
+        assertEquals(-1, reader.read(dst));
+        assertEquals(0, reader.getLost());
+    }
+
+    @Test
+    public void lappedReaderSkipsToTheOldestRecord() throws IOException {
+        SharedRingWriter writer = createWriter(16);
+        SharedRingReader reader = openReader();
+        byte [] record = new byte[RECORD_SIZE];
+        byte [] dst = new byte[reader.getRecordSize()];
+
+        for (long seq = 0; seq < 40; seq++) {
+            fill(record, seq);
+            writer.write((int) (seq % 3), record, 0, length(seq));
+        }
+        assertEquals(24, check(dst, reader.read(dst), reader.getLastType()));
+        assertEquals(24, reader.getLost());
+    }
+
+    @Test
+    public void concurrentReaderNeverSeesATornRecord() throws Exception {
+        final long records = 2_000_000;
+        // Small enough that the writer laps the reader often
+        final SharedRingWriter writer = createWriter(8);
+        final SharedRingReader reader = openReader();
+        final AtomicBoolean done = new AtomicBoolean();
+        final Throwable [] failure = new Throwable[1];
+        final long [] read = new long[1];
+
+        Thread consumer = new Thread(() -> {
+            byte [] dst = new byte[reader.getRecordSize()];
+            long last = -1;
+            try {
+                while (true) {
+                    // Check done before reading so the final records are drained
+                    boolean finished = done.get();
+                    int length;
+                    while ((length = reader.read(dst)) >= 0) {
+                        long seq = check(dst, length, reader.getLastType());
+                        assertTrue("record " + seq + " after " + last, seq > last);
+                        last = seq;
+                        read[0]++;
+                    }
+                    if (finished)
+                        break;
+                }
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "ring reader");
+        consumer.start();
+
+        byte [] record = new byte[RECORD_SIZE];
+        for (long seq = 0; seq < records; seq++) {
+            fill(record, seq);
+            writer.write((int) (seq % 3), record, 0, length(seq));
+            // Let the reader catch up now and then, so it both reads whole runs and gets lapped
+            if (seq % 64 == 0)
+                Thread.yield();
+        }
+        done.set(true);
+        consumer.join();
+
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+        assertEquals(records, read[0] + reader.getLost());
+        assertTrue("reader kept up with " + read[0] + " records", read[0] > 0);
+    }
+}
@@ -93,22 +93,54 @@ public class EmgDecoder implements IEmgDecoder {
     }
 
     private NetworkStreaming modelStream;
+
+    /** Install models sent by the server, received off the decoding thread */
     void setNewModelStream(NetworkStreaming stream) {
+        if (modelStream != null)
+            modelStream.removeMessageReceiver(modelReceiver);
         this.modelStream = stream;
+        if (modelStream != null)
+            modelStream.addMessageReceiver(modelReceiver);
     }
 
-    NetworkStreaming.MessageReceiver modelReceiver = msg -> {
-        Log.d(TAG, "Received model message. Creating a new interpreter");
+    NetworkStreaming.MessageReceiver modelReceiver = new NetworkStreaming.MessageReceiver() {
+        @Override
+        public void receiveMessage(byte[] msg) {
+            Log.d(TAG, "Received model message. Creating a new interpreter");
 
-        MappedByteBuffer newModel;
-        try {
-            FileOutputStream fos = context.openFileOutput(modelSaveFile, context.MODE_PRIVATE);
-            fos.write(msg);
+            try (FileOutputStream fos = context.openFileOutput(modelSaveFile, context.MODE_PRIVATE)) {
+                fos.write(msg);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            installSavedModel();
+        }
+
+        @Override
+        public void receiveLargeMessage(File file) throws IOException {
+            Log.d(TAG, "Received model file. Creating a new interpreter");
+
+            // Move the spooled model into place rather than copying it through memory
+            if (!file.renameTo(new File(context.getFilesDir(), modelSaveFile))) {
+                NetworkStreaming.MessageReceiver.super.receiveLargeMessage(file);
+                return;
+            }
+            installSavedModel();
+        }
+    };
 
-            newModel = loadFileModel(modelSaveFile);
+    private void installSavedModel() {
+        try {
+            MappedByteBuffer newModel = loadFileModel(modelSaveFile);
             Interpreter newInterpreter = new Interpreter(newModel, options);
 
             synchronized (this) {
+                if (interpreter == null) {
+                    // Closed while the model was loading
+                    newInterpreter.close();
+                    return;
+                }
                 interpreter.close();
                 model = newModel;
                 interpreter = newInterpreter;
@@ -119,16 +151,10 @@ public class EmgDecoder implements IEmgDecoder {
         } catch (IOException e) {
             e.printStackTrace();
         }
-    };
-
-    private void updateModel() {
-        if (modelStream == null)
-            return;
-
-        modelStream.checkForMessage(modelReceiver); // modelReceiver
     }
 
-    public void close() {
+    public synchronized void close() {
+        setNewModelStream(null);
         if (interpreter != null) {
             interpreter.close();
             interpreter = null;
@@ -194,8 +220,6 @@ public class EmgDecoder implements IEmgDecoder {
             } else {
                 return false;
             }
-        } else if (sample_counter % 50 == 2) {
-            updateModel();
         }
 
         return false;
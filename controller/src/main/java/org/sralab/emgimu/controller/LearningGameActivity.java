@@ -102,7 +102,8 @@ public class LearningGameActivity extends EmgImuBaseActivity {
                     gameView.setGoalCoordinate(gameController.getGoalX(), gameController.getGoalY());
                 });
 
-                if (networkStreaming != null && networkStreaming.isConnected()) {
+                // Kept while the connection is down and sent once it is back
+                if (networkStreaming != null) {
                     String mode = gameController.getMode().name();
                     networkStreaming.streamTrackingXY(gameController.getGoalX(),
                                     gameController.getGoalY(),
@@ -126,6 +127,7 @@ public class LearningGameActivity extends EmgImuBaseActivity {
         getService().streamBuffered(device);
 
         networkStreaming = getService().getNetworkStreaming();
+        networkStreaming.setSpoolDirectory(getCacheDir());
         networkStreaming.start(ip_address,port);
         emgDecoder.setNewModelStream(networkStreaming);
     }
@@ -5,19 +5,8 @@ import static android.content.Context.MODE_PRIVATE;
 import android.content.Context;
 import android.util.Log;
 
-import com.google.gson.Gson;
-
+import org.sralab.emgimu.logging.binary.StreamLogEncoder;
 import org.sralab.emgimu.service.EmgImuManager;
-import org.sralab.emgimu.streaming.messages.EmgPwrMessage;
-import org.sralab.emgimu.streaming.messages.EmgRawMessage;
-import org.sralab.emgimu.streaming.messages.ImuAccelMessage;
-import org.sralab.emgimu.streaming.messages.BatteryMessage;
-import org.sralab.emgimu.streaming.messages.ImuAttitudeMessage;
-import org.sralab.emgimu.streaming.messages.ImuGyroMessage;
-import org.sralab.emgimu.streaming.messages.ImuMagMessage;
-import org.sralab.emgimu.streaming.messages.ForceMessage;
-import org.sralab.emgimu.streaming.messages.TimestampSyncMessage;
-import org.sralab.emgimu.streaming.messages.FileVersionMessage;
 
 import java.util.Observable;
 import java.util.Observer;
@@ -32,21 +21,47 @@ public class FirebaseStreamLogger extends Observable {
     private String mDeviceMac;
     private FirebaseWriter firebaseWriter;
 
+    // Exactly one is set: binary (version 3) logs use the encoder, JSON logs the writer
+    private StreamLogEncoder encoder;
+    private StreamJsonWriter json;
+
     public FirebaseStreamLogger(EmgImuManager manager, Context context) {
+        this(manager, context, FirebaseWriter.Format.JSON);
+    }
+
+    public FirebaseStreamLogger(EmgImuManager manager, Context context, FirebaseWriter.Format format) {
         mManager = manager;
         mDeviceMac = manager.getAddress();
 
-        firebaseWriter = new FirebaseWriter(context, "", "streams", mDeviceMac);
+        firebaseWriter = new FirebaseWriter(context, "", "streams", mDeviceMac, format);
+
+        if (format == FirebaseWriter.Format.BINARY)
+            encoder = new StreamLogEncoder(mDeviceMac, firebaseWriter::addBytes);
+        else {
+            json = new StreamJsonWriter(mDeviceMac, firebaseWriter::addJson);
+            AddFileVersion(fileVersion);
+        }
+    }
 
-        AddFileVersion(fileVersion);
+    /** Whether this writes the binary (version 3) log rather than JSON */
+    public boolean isBinary() {
+        return encoder != null;
     }
 
     public String getReference() {
         return firebaseWriter.getReference();
     }
 
+    public BatchedLogWriter.Metrics getWriterMetrics() {
+        return firebaseWriter.getWriterMetrics();
+    }
+
     public void close() {
         Log.d(TAG, "close");
+        synchronized (this) {
+            if (encoder != null)
+                encoder.flush();
+        }
         firebaseWriter.addObserver((observable, o) -> {
             Log.d(TAG, "notified");
             synchronized (FirebaseStreamLogger.this) {
@@ -58,69 +73,81 @@ public class FirebaseStreamLogger extends Observable {
         firebaseWriter.close();
     }
 
-    private void addJson(String json) {
-        firebaseWriter.addJson(json);
-    }
-
+    synchronized
     public void addStreamSample(long time, long androidElapsedNanos, long sensor_timestamp, long raw_sensor_timestamp, int sensor_counter, int channels, int samples, double[][] data) {
-        Gson gson = new Gson();
-        EmgRawMessage msg = new EmgRawMessage(mDeviceMac, time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, channels, samples, data);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addEmgRaw(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, channels, samples, data);
+        else
+            json.addEmgRaw(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, channels, samples, data);
     }
 
+    synchronized
     public void addPwrSample(long time, long androidElapsedNanos, long sensor_timestamp, long raw_sensor_timestamp, int sensor_counter, int[] data) {
-        Gson gson = new Gson();
-        EmgPwrMessage msg = new EmgPwrMessage(mDeviceMac, time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addEmgPwr(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
+        else
+            json.addEmgPwr(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
     }
 
+    synchronized
     public void addAttitudeSample(long time, long androidElapsedNanos, long sensor_timestamp, long raw_sensor_timestamp, int sensor_counter, float[] data) {
-        Gson gson = new Gson();
-        ImuAttitudeMessage msg = new ImuAttitudeMessage(mDeviceMac, time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addAttitude(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
+        else
+            json.addAttitude(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
     }
 
+    synchronized
     public void addAccelSample(long time, long androidElapsedNanos, long sensor_timestamp, long raw_sensor_timestamp, int sensor_counter, float[][] data) {
-        Gson gson = new Gson();
-        ImuAccelMessage msg = new ImuAccelMessage(mDeviceMac, time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addAccel(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
+        else
+            json.addAccel(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
     }
 
+    synchronized
     public void addBatterySample(long time, double data) {
-        // method to add battery message
-        Gson gson = new Gson();
-        BatteryMessage msg = new BatteryMessage(mDeviceMac, time, data);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addBattery(time, data);
+        else
+            json.addBattery(time, data);
     }
 
+    synchronized
     public void addGyroSample(long time, long androidElapsedNanos, long sensor_timestamp, long raw_sensor_timestamp, int sensor_counter, float[][] data) {
-        Gson gson = new Gson();
-        ImuGyroMessage msg = new ImuGyroMessage(mDeviceMac, time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addGyro(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
+        else
+            json.addGyro(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
     }
 
+    synchronized
     public void addMagSample(long time, long androidElapsedNanos, long sensor_timestamp, long raw_sensor_timestamp, int sensor_counter, float[][] data) {
-        Gson gson = new Gson();
-        ImuMagMessage msg = new ImuMagMessage(mDeviceMac, time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addMag(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
+        else
+            json.addMag(time, androidElapsedNanos, sensor_timestamp, raw_sensor_timestamp, sensor_counter, data);
     }
 
+    synchronized
     public void addForceSample(long time, double[] data) {
-        Gson gson = new Gson();
-        ForceMessage msg = new ForceMessage(mDeviceMac, time, data);
-        addJson(gson.toJson(msg));
-        Log.d(TAG, gson.toJson(msg));
+        if (encoder != null)
+            encoder.addForce(time, data);
+        else
+            json.addForce(time, data);
     }
 
+    synchronized
     public void addTimestampSync(long android_time, long timestamp_sync_milliseconds) {
-        Gson gson = new Gson();
-        TimestampSyncMessage msg = new TimestampSyncMessage(mDeviceMac, android_time, timestamp_sync_milliseconds);
-        addJson(gson.toJson(msg));
+        if (encoder != null)
+            encoder.addTimestampSync(android_time, timestamp_sync_milliseconds);
+        else
+            json.addTimestampSync(android_time, timestamp_sync_milliseconds);
     }
 
+    synchronized
     public void AddFileVersion(String version) {
-        Gson gson = new Gson();
-        FileVersionMessage msg = new FileVersionMessage(version);
-        addJson(gson.toJson(msg));
+        if (json != null)
+            json.addFileVersion(version);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,362 @@
+package org.sralab.emgimu.logging;
+
+import org.sralab.emgimu.logging.binary.StreamLogFormat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the version 2 JSON stream log messages straight into a reused byte buffer.
+ *
+ * The output is byte for byte what {@code new Gson().toJson()} produces for the message
+ * classes in {@code org.sralab.emgimu.streaming.messages}: declared field order, null
+ * fields omitted, HTML safe string escaping and Java's shortest float formatting. Only
+ * the finished message is copied out for the {@link Sink}, with the small span the log
+ * index needs; no message objects, Strings or Base64 intermediates are created. Not
+ * thread safe, the caller serializes access.
+ */
+class StreamJsonWriter {
+
+    interface Sink {
+        /** @param span time covered by the message for the log index, null if it has none */
+        void write(byte [] json, LogIndex.Span span);
+    }
+
+    private static final byte [] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes(StandardCharsets.US_ASCII);
+    // Gson escapes '=' for HTML safety
+    private static final byte [] BASE64_PAD = "\\u003d".getBytes(StandardCharsets.US_ASCII);
+
+    private final Sink sink;
+    private final String bluetoothMac;
+
+    private byte [] buf = new byte[4096];
+    private int size;
+    private byte [] raw = new byte[1024];
+    private final StringBuilder number = new StringBuilder(32);
+    private LogIndex.Span span;
+
+    // Constant message openings up to the first field after bluetoothMac
+    private final byte [] emgRawStart;
+    private final byte [] emgPwrStart;
+    private final byte [] accelStart;
+    private final byte [] gyroStart;
+    private final byte [] magStart;
+    private final byte [] attitudeStart;
+    private final byte [] batteryStart;
+    private final byte [] forceStart;
+    private final byte [] timestampSyncStart;
+
+    StreamJsonWriter(String bluetoothMac, Sink sink) {
+        this.sink = sink;
+        this.bluetoothMac = bluetoothMac;
+
+        emgRawStart = start("EmgRaw", "timestamp");
+        emgPwrStart = start("EmgPwr", "timestamp");
+        accelStart = start("ImuAccel", "timestamp");
+        gyroStart = start("ImuGyro", "timestamp");
+        magStart = start("ImuMag", "timestamp");
+        attitudeStart = start("ImuAttitude", "timestamp");
+        batteryStart = start("Battery", "timestamp");
+        forceStart = start("DynamometerForce", "timestamp");
+        timestampSyncStart = start("TimestampSync", "android_elapsed_nanos");
+    }
+
+    private byte [] start(String msg, String firstField) {
+        size = 0;
+        putAscii("{\"MSG\":");
+        putString(msg);
+        if (bluetoothMac != null) {
+            putAscii(",\"bluetoothMac\":");
+            putString(bluetoothMac);
+        }
+        putAscii(",\"" + firstField + "\":");
+        return Arrays.copyOf(buf, size);
+    }
+
+    // region Messages
+
+    void addFileVersion(String version) {
+        size = 0;
+        putAscii("{\"MSG\":\"FileVersion\"");
+        if (version != null) {
+            putAscii(",\"version\":");
+            putString(version);
+        }
+        end();
+    }
+
+    void addEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, double [][] data) {
+        begin(emgRawStart, StreamLogFormat.STREAM_EMG_RAW, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter);
+        putAscii(",\"channels\":");
+        putLong(channels);
+        putAscii(",\"samples\":");
+        putLong(samples);
+        putAscii(",\"data\":\"");
+
+        // Big endian float32 samples, Base64 encoded, as EmgRawMessage does
+        int length = channels * samples * 4;
+        if (raw.length < length)
+            raw = new byte[length];
+        int p = 0;
+        for (int i = 0; i < channels; i++) {
+            for (int j = 0; j < samples; j++) {
+                int bits = Float.floatToRawIntBits((float) data[i][j]);
+                raw[p++] = (byte) (bits >> 24);
+                raw[p++] = (byte) (bits >> 16);
+                raw[p++] = (byte) (bits >> 8);
+                raw[p++] = (byte) bits;
+            }
+        }
+        putBase64(raw, length);
+        putByte('"');
+        end();
+    }
+
+    void addEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int [] data) {
+        begin(emgPwrStart, StreamLogFormat.STREAM_EMG_PWR, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter);
+        if (data != null) {
+            putAscii(",\"data\":[");
+            for (int i = 0; i < data.length; i++) {
+                if (i > 0)
+                    putByte(',');
+                putLong(data[i]);
+            }
+            putByte(']');
+        }
+        end();
+    }
+
+    void addAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        addImu(accelStart, StreamLogFormat.STREAM_ACCEL, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+    }
+
+    void addGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        addImu(gyroStart, StreamLogFormat.STREAM_GYRO, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+    }
+
+    void addMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        addImu(magStart, StreamLogFormat.STREAM_MAG, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+    }
+
+    private void addImu(byte [] start, String stream, long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        begin(start, stream, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter);
+        if (data != null) {
+            putAscii(",\"data\":[");
+            for (int i = 0; i < data.length; i++) {
+                if (i > 0)
+                    putByte(',');
+                putFloats(data[i]);
+            }
+            putByte(']');
+        }
+        end();
+    }
+
+    void addAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [] data) {
+        begin(attitudeStart, StreamLogFormat.STREAM_ATTITUDE, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter);
+        if (data != null) {
+            putAscii(",\"data\":");
+            putFloats(data);
+        }
+        end();
+    }
+
+    void addBattery(long time, double voltage) {
+        size = 0;
+        span = new LogIndex.Span(StreamLogFormat.STREAM_BATTERY, time, time);
+        putBytes(batteryStart);
+        putLong(time);
+        putAscii(",\"data\":");
+        putDouble(voltage);
+        end();
+    }
+
+    void addForce(long time, double [] data) {
+        size = 0;
+        span = new LogIndex.Span(StreamLogFormat.STREAM_FORCE, time, time);
+        putBytes(forceStart);
+        putLong(time);
+        if (data != null) {
+            putAscii(",\"data\":[");
+            for (int i = 0; i < data.length; i++) {
+                if (i > 0)
+                    putByte(',');
+                putDouble(data[i]);
+            }
+            putByte(']');
+        }
+        end();
+    }
+
+    void addTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds) {
+        size = 0;
+        putBytes(timestampSyncStart);
+        putLong(androidElapsedNanos);
+        putAscii(",\"timestamp_sync_milliseconds\":");
+        putLong(timestampSyncMilliseconds);
+        end();
+    }
+
+    // endregion
+
+    private void begin(byte [] start, String stream, long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter) {
+        size = 0;
+        span = new LogIndex.Span(stream, time, sensorTimestamp);
+        putBytes(start);
+        putLong(time);
+        putAscii(",\"android_elapsed_nanos\":");
+        putLong(androidElapsedNanos);
+        putAscii(",\"sensor_timestamp\":");
+        putLong(sensorTimestamp);
+        putAscii(",\"raw_sensor_timestamp\":");
+        putLong(rawSensorTimestamp);
+        putAscii(",\"sensor_counter\":");
+        putLong(counter);
+    }
+
+    private void end() {
+        putByte('}');
+        sink.write(Arrays.copyOf(buf, size), span);
+        span = null;
+    }
+
+    // region Encoding
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    private void putBytes(byte [] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /** Only for constant ASCII text that needs no escaping */
+    private void putAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++)
+            buf[size++] = (byte) s.charAt(i);
+    }
+
+    private void putLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            putAscii(Long.toString(v));
+            return;
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[size++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10)
+            digits++;
+        for (int i = size + digits - 1; i >= size; i--) {
+            buf[i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        size += digits;
+    }
+
+    private void putFloats(float [] values) {
+        if (values == null) {
+            putAscii("null");
+            return;
+        }
+        putByte('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                putByte(',');
+            checkFinite(values[i]);
+            number.setLength(0);
+            number.append(values[i]);
+            putNumber();
+        }
+        putByte(']');
+    }
+
+    private void putDouble(double v) {
+        checkFinite(v);
+        number.setLength(0);
+        number.append(v);
+        putNumber();
+    }
+
+    private void putNumber() {
+        int n = number.length();
+        ensure(n);
+        for (int i = 0; i < n; i++)
+            buf[size++] = (byte) number.charAt(i);
+    }
+
+    private static void checkFinite(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v))
+            throw new IllegalArgumentException(v + " is not a valid double value as per JSON specification.");
+    }
+
+    private void putBase64(byte [] src, int length) {
+        ensure((length + 2) / 3 * 4 + 2 * BASE64_PAD.length);
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            int v = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            buf[size++] = BASE64[v >>> 18];
+            buf[size++] = BASE64[(v >>> 12) & 0x3F];
+            buf[size++] = BASE64[(v >>> 6) & 0x3F];
+            buf[size++] = BASE64[v & 0x3F];
+        }
+        int remaining = length - i;
+        if (remaining > 0) {
+            int v = (src[i] & 0xFF) << 16 | (remaining == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+            buf[size++] = BASE64[v >>> 18];
+            buf[size++] = BASE64[(v >>> 12) & 0x3F];
+            if (remaining == 2)
+                buf[size++] = BASE64[(v >>> 6) & 0x3F];
+            else
+                putBytes(BASE64_PAD);
+            putBytes(BASE64_PAD);
+        }
+    }
+
+    /** Quoted string with Gson's default (HTML safe) escaping, UTF-8 encoded */
+    private void putString(String s) {
+        putByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': putAscii("\\\""); break;
+                case '\\': putAscii("\\\\"); break;
+                case '\t': putAscii("\\t"); break;
+                case '\b': putAscii("\\b"); break;
+                case '\n': putAscii("\\n"); break;
+                case '\r': putAscii("\\r"); break;
+                case '\f': putAscii("\\f"); break;
+                case '<': case '>': case '&': case '=': case '\'':
+                case (char) 0x2028: case (char) 0x2029:
+                    putAscii(String.format("\\u%04x", (int) c));
+                    break;
+                default:
+                    if (c < 0x20)
+                        putAscii(String.format("\\u%04x", (int) c));
+                    else if (c < 0x80)
+                        putByte(c);
+                    else {
+                        int end = Character.isHighSurrogate(c) && i + 1 < s.length() ? i + 2 : i + 1;
+                        byte [] utf8 = s.substring(i, end).getBytes(StandardCharsets.UTF_8);
+                        putBytes(utf8);
+                        i = end - 1;
+                    }
+            }
+        }
+        putByte('"');
+    }
+
+    // endregion
+}
@@ -0,0 +1,378 @@
+package org.sralab.emgimu.logging;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import org.sralab.emgimu.logging.binary.StreamLogFormat;
+import org.sralab.emgimu.logging.binary.StreamLogJsonReader;
+import org.sralab.emgimu.logging.binary.StreamLogReader;
+import org.sralab.emgimu.service.EmgImuManager;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Plays a stream log recorded by {@link FirebaseStreamLogger} back through an
+ * {@link EmgImuManager}, so everything subscribed to the manager sees the session as if
+ * the sensor were connected.
+ *
+ * Both binary and JSON logs are read as a stream, so memory use does not depend on the
+ * log length. Binary logs store each stream in blocks, so packets are held in a small
+ * window and released in recorded time order. Packets are paced by their recorded
+ * wall clock time, scaled by the speed: {@link #REAL_TIME}, any multiple of it, or
+ * {@link #AS_FAST_AS_POSSIBLE}. Throughput is logged periodically and at the end.
+ *
+ * The manager does not need a connected sensor. The packets are passed on as coming
+ * from the given device, which for a log played back on its own is usually made from
+ * the address in the log, see {@link #readBluetoothMac}.
+ *
+ * Raw ADC counts are not recorded and dynamometer force has no manager callback, so
+ * neither is replayed.
+ */
+public class StreamLogReplay {
+    private static final String TAG = StreamLogReplay.class.getSimpleName();
+
+    public static final double REAL_TIME = 1.0;
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /** Packets held back to merge the streams of a binary log back into time order */
+    private static final int REORDER_PACKETS = 4096;
+    private static final long REPORT_INTERVAL_NANOS = 5_000_000_000L;
+    /** Longest {@link #stop()} waits for the packet being dispatched */
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+
+    public interface Listener {
+        void onProgress(Stats stats);
+        /** @param error why the replay stopped early, or null */
+        void onFinished(Stats stats, Exception error);
+    }
+
+    public static class Stats {
+        public long packets;
+        /** Compressed bytes read from the log */
+        public long bytes;
+        /** Recorded time covered so far */
+        public long recordedMillis;
+        public long wallNanos;
+        /** Furthest a packet fell behind its scheduled time */
+        public long maxLagMillis;
+
+        public double packetsPerSecond() {
+            return wallNanos == 0 ? 0 : packets * 1e9 / wallNanos;
+        }
+
+        public double megabytesPerSecond() {
+            return wallNanos == 0 ? 0 : bytes * 1e3 / wallNanos;
+        }
+
+        /** Achieved speed relative to real time */
+        public double speed() {
+            return wallNanos == 0 ? 0 : recordedMillis * 1e6 / wallNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d packets in %.1f s: %.0f packets/s, %.2f MB/s, %.1fx real time, max lag %d ms",
+                    packets, wallNanos / 1e9, packetsPerSecond(), megabytesPerSecond(), speed(), maxLagMillis);
+        }
+
+        Stats copy() {
+            Stats s = new Stats();
+            s.packets = packets;
+            s.bytes = bytes;
+            s.recordedMillis = recordedMillis;
+            s.wallNanos = wallNanos;
+            s.maxLagMillis = maxLagMillis;
+            return s;
+        }
+    }
+
+    private static final class Packet {
+        final long time;
+        final long sequence;
+        final Runnable dispatch;
+
+        Packet(long time, long sequence, Runnable dispatch) {
+            this.time = time;
+            this.sequence = sequence;
+            this.dispatch = dispatch;
+        }
+    }
+
+    /** Unwinds the log reader when the replay is stopped */
+    private static class Stopped extends RuntimeException {
+    }
+
+    private final EmgImuManager manager;
+    private final BluetoothDevice device;
+    private final File log;
+    private final double speed;
+    private final Listener listener;
+
+    private final PriorityQueue<Packet> window = new PriorityQueue<>(REORDER_PACKETS + 1, (a, b) ->
+            a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.sequence, b.sequence));
+
+    private volatile boolean stopped;
+    private Thread thread;
+
+    // Only touched on the replay thread
+    private final Stats stats = new Stats();
+    private CountingInputStream counter;
+    private long sequence;
+    private long firstTime = Long.MIN_VALUE;
+    private long firstNanos;
+    private long startNanos;
+    private long lastReportNanos;
+
+    /**
+     * @param device the packets are passed to the manager as coming from
+     * @param speed multiple of real time to play at, or {@link #AS_FAST_AS_POSSIBLE}
+     * @param listener told about progress and completion on the replay thread, may be null
+     */
+    public StreamLogReplay(EmgImuManager manager, BluetoothDevice device, File log, double speed, Listener listener) {
+        this.manager = manager;
+        this.device = device;
+        this.log = log;
+        this.speed = speed;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        thread = new Thread(this::run, "StreamLogReplay");
+        thread.start();
+    }
+
+    /**
+     * Stop the replay and wait for the packet being dispatched, so the manager can be
+     * closed afterwards. From the listener the replay is only told to stop.
+     * @return false if the replay thread was still running after the timeout
+     */
+    public boolean stop() {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            t = thread;
+        }
+        if (t == null)
+            return true;
+        if (t == Thread.currentThread())
+            return false;
+        LockSupport.unpark(t);
+        try {
+            t.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !t.isAlive();
+    }
+
+    public boolean isRunning() {
+        Thread t = thread;
+        return t != null && t.isAlive();
+    }
+
+    private void run() {
+        Log.i(TAG, "Replaying " + log.getName() + " as " + device.getAddress() + " at " + (speed > 0 ? speed + "x" : "full speed"));
+        startNanos = System.nanoTime();
+        lastReportNanos = startNanos;
+
+        Exception error = null;
+        try (InputStream in = open()) {
+            Visitor visitor = new Visitor();
+            if (isBinary(in))
+                new StreamLogReader(in).read(visitor);
+            else
+                new StreamLogJsonReader(in).read(visitor);
+        } catch (EOFException e) {
+            Log.w(TAG, log.getName() + " ends early, it was not closed");
+        } catch (Stopped e) {
+            // Handled below
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Replay of " + log.getName() + " failed", e);
+            error = e;
+        }
+
+        // Play what is still held back in the window
+        try {
+            while (error == null && !window.isEmpty())
+                release(window.poll());
+        } catch (Stopped e) {
+            // Handled below
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Replay of " + log.getName() + " failed", e);
+            error = e;
+        }
+        if (stopped)
+            Log.i(TAG, "Replay stopped");
+
+        updateStats();
+        Log.i(TAG, "Replay finished, " + stats);
+        if (listener != null)
+            listener.onFinished(stats.copy(), error);
+    }
+
+    private InputStream open() throws IOException {
+        counter = new CountingInputStream(new FileInputStream(log));
+        return new BufferedInputStream(new GZIPInputStream(counter, 64 * 1024), 64 * 1024);
+    }
+
+    /**
+     * Address of the device a log was recorded from.
+     * @return null for JSON logs, which do not record it once for the whole log
+     */
+    public static String readBluetoothMac(File log) throws IOException {
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(log)))) {
+            if (!isBinary(in))
+                return null;
+            return new StreamLogReader(in).readHeader();
+        }
+    }
+
+    private static boolean isBinary(InputStream in) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        return first == StreamLogFormat.MAGIC[0];
+    }
+
+    // region Pacing
+
+    private void offer(long time, Runnable dispatch) {
+        window.add(new Packet(time, sequence++, dispatch));
+        if (window.size() > REORDER_PACKETS)
+            release(window.poll());
+    }
+
+    private void release(Packet p) {
+        if (stopped)
+            throw new Stopped();
+
+        if (firstTime == Long.MIN_VALUE) {
+            firstTime = p.time;
+            firstNanos = System.nanoTime();
+        }
+
+        if (speed > 0) {
+            long due = firstNanos + (long) ((p.time - firstTime) * 1e6 / speed);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+                if (stopped)
+                    throw new Stopped();
+            }
+            stats.maxLagMillis = Math.max(stats.maxLagMillis, -wait / 1_000_000);
+        }
+
+        p.dispatch.run();
+        stats.packets++;
+        stats.recordedMillis = Math.max(stats.recordedMillis, p.time - firstTime);
+
+        long now = System.nanoTime();
+        if (now - lastReportNanos >= REPORT_INTERVAL_NANOS) {
+            lastReportNanos = now;
+            updateStats();
+            Log.i(TAG, "Replaying, " + stats);
+            if (listener != null)
+                listener.onProgress(stats.copy());
+        }
+    }
+
+    private void updateStats() {
+        stats.bytes = counter == null ? 0 : counter.count;
+        stats.wallNanos = System.nanoTime() - startNanos;
+    }
+
+    // endregion
+
+    private class Visitor implements StreamLogReader.Visitor {
+
+        @Override
+        public void onHeader(int fileVersion, String bluetoothMac) {
+            Log.d(TAG, "Log version " + fileVersion + (bluetoothMac != null ? " from " + bluetoothMac : ""));
+        }
+
+        @Override
+        public void onEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, float[][] data) {
+            offer(time, () -> {
+                double [][] values = new double[channels][samples];
+                for (int i = 0; i < channels; i++)
+                    for (int j = 0; j < samples; j++)
+                        values[i][j] = data[i][j];
+                manager.onEmgStreamReceived(device, time, values);
+            });
+        }
+
+        @Override
+        public void onEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int[] data) {
+            offer(time, () -> manager.onEmgPwrReceived(device, time, data.length, data));
+        }
+
+        @Override
+        public void onAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+            offer(time, () -> manager.onImuAccelReceived(device, data));
+        }
+
+        @Override
+        public void onGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+            offer(time, () -> manager.onImuGyroReceived(device, data));
+        }
+
+        @Override
+        public void onMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+            offer(time, () -> manager.onImuMagReceived(device, data));
+        }
+
+        @Override
+        public void onAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[] data) {
+            offer(time, () -> manager.onImuAttitudeReceived(device, data));
+        }
+
+        @Override
+        public void onBattery(long time, double voltage) {
+            offer(time, () -> manager.onBatteryReceived(device, (float) voltage));
+        }
+
+        @Override
+        public void onForce(long time, double[] data) {
+        }
+
+        @Override
+        public void onTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds) {
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.sralab.emgimu.logging.binary;
+
+import static org.sralab.emgimu.logging.binary.StreamLogFormat.BLOCK_PACKETS;
+
+import org.sralab.emgimu.logging.LogIndex;
+
+/**
+ * Encodes stream samples into the version 3 binary log described in {@link StreamLogFormat}.
+ *
+ * Samples from each high rate stream are held in a column block until it has
+ * {@link StreamLogFormat#BLOCK_PACKETS} packets, the packet shape changes or the encoder
+ * is flushed, and the finished record is handed to the {@link Sink} with the span of
+ * wall clock and sensor time it covers, for the log index. Not thread safe, the caller
+ * serializes access.
+ */
+public class StreamLogEncoder {
+
+    public interface Sink {
+        /** @param span time covered by the record, null for the header and timestamp syncs */
+        void write(byte [] bytes, LogIndex.Span span);
+    }
+
+    private static final int COLUMNS = 5;
+
+    private final Sink sink;
+    private final StreamLogBuffer payload = new StreamLogBuffer(4096);
+    private final StreamLogBuffer record = new StreamLogBuffer(4096);
+
+    private final Block emgRaw = new Block(StreamLogFormat.RECORD_EMG_RAW);
+    private final Block emgPwr = new Block(StreamLogFormat.RECORD_EMG_PWR);
+    private final Block accel = new Block(StreamLogFormat.RECORD_ACCEL);
+    private final Block gyro = new Block(StreamLogFormat.RECORD_GYRO);
+    private final Block mag = new Block(StreamLogFormat.RECORD_MAG);
+    private final Block attitude = new Block(StreamLogFormat.RECORD_ATTITUDE);
+    private final Block [] blocks = {emgRaw, emgPwr, accel, gyro, mag, attitude};
+
+    public StreamLogEncoder(String bluetoothMac, Sink sink) {
+        this.sink = sink;
+
+        record.clear();
+        record.putBytes(StreamLogFormat.MAGIC, 0, StreamLogFormat.MAGIC.length);
+        record.putVarLong(StreamLogFormat.FILE_VERSION);
+        record.putString(bluetoothMac);
+        sink.write(record.toByteArray(), null);
+    }
+
+    /** One stream's pending packets, stored column wise */
+    private class Block {
+        final int type;
+        final long [][] columns = new long[COLUMNS][BLOCK_PACKETS];
+        final StreamLogBuffer data = new StreamLogBuffer(1024);
+        int count;
+        int shapeA;
+        int shapeB;
+
+        Block(int type) {
+            this.type = type;
+        }
+
+        /** Start a packet, flushing first if the shape differs from the pending ones */
+        void begin(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int a, int b) {
+            if (count > 0 && (a != shapeA || b != shapeB))
+                flush();
+            shapeA = a;
+            shapeB = b;
+            columns[0][count] = time;
+            columns[1][count] = androidElapsedNanos;
+            columns[2][count] = sensorTimestamp;
+            columns[3][count] = rawSensorTimestamp;
+            columns[4][count] = counter;
+        }
+
+        void end() {
+            if (++count == BLOCK_PACKETS)
+                flush();
+        }
+
+        void flush() {
+            if (count == 0)
+                return;
+
+            payload.clear();
+            payload.putVarLong(count);
+            payload.putVarLong(shapeA);
+            payload.putVarLong(shapeB);
+            for (long [] column : columns) {
+                long previous = 0;
+                for (int i = 0; i < count; i++) {
+                    payload.putZigZag(column[i] - previous);
+                    previous = column[i];
+                }
+            }
+            payload.putBytes(data.array(), 0, data.size());
+            emit(type, span());
+
+            count = 0;
+            data.clear();
+        }
+
+        LogIndex.Span span() {
+            long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+            long minSensor = Long.MAX_VALUE, maxSensor = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                minTime = Math.min(minTime, columns[0][i]);
+                maxTime = Math.max(maxTime, columns[0][i]);
+                minSensor = Math.min(minSensor, columns[2][i]);
+                maxSensor = Math.max(maxSensor, columns[2][i]);
+            }
+            return new LogIndex.Span(StreamLogFormat.streamName(type), count, minTime, maxTime, minSensor, maxSensor);
+        }
+    }
+
+    private void emit(int type, LogIndex.Span span) {
+        record.clear();
+        record.putRecord(type, payload);
+        sink.write(record.toByteArray(), span);
+    }
+
+    public void addEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, double [][] data) {
+        emgRaw.begin(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, channels, samples);
+        for (int i = 0; i < channels; i++)
+            for (int j = 0; j < samples; j++)
+                emgRaw.data.putFloat((float) data[i][j]);
+        emgRaw.end();
+    }
+
+    public void addEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int [] data) {
+        emgPwr.begin(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, 1, data.length);
+        for (int v : data)
+            emgPwr.data.putZigZag(v);
+        emgPwr.end();
+    }
+
+    public void addAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        addImu(accel, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+    }
+
+    public void addGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        addImu(gyro, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+    }
+
+    public void addMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        addImu(mag, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+    }
+
+    private void addImu(Block block, long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {
+        int samples = data.length > 0 ? data[0].length : 0;
+        block.begin(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data.length, samples);
+        for (float [] axis : data)
+            for (int j = 0; j < samples; j++)
+                block.data.putFloat(axis[j]);
+        block.end();
+    }
+
+    public void addAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [] data) {
+        attitude.begin(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, 1, data.length);
+        for (float v : data)
+            attitude.data.putFloat(v);
+        attitude.end();
+    }
+
+    public void addBattery(long time, double voltage) {
+        payload.clear();
+        payload.putZigZag(time);
+        payload.putDouble(voltage);
+        // Low rate records have no sensor time, the wall clock stands in for it
+        emit(StreamLogFormat.RECORD_BATTERY, new LogIndex.Span(StreamLogFormat.STREAM_BATTERY, time, time));
+    }
+
+    public void addForce(long time, double [] data) {
+        payload.clear();
+        payload.putZigZag(time);
+        payload.putVarLong(data.length);
+        for (double v : data)
+            payload.putDouble(v);
+        emit(StreamLogFormat.RECORD_FORCE, new LogIndex.Span(StreamLogFormat.STREAM_FORCE, time, time));
+    }
+
+    public void addTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds) {
+        payload.clear();
+        payload.putZigZag(androidElapsedNanos);
+        payload.putZigZag(timestampSyncMilliseconds);
+        emit(StreamLogFormat.RECORD_TIMESTAMP_SYNC, null);
+    }
+
+    /** Write any partially filled blocks */
+    public void flush() {
+        for (Block block : blocks)
+            block.flush();
+    }
+}
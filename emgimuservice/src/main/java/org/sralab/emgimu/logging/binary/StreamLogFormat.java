@@ -0,0 +1,82 @@
+package org.sralab.emgimu.logging.binary;
+
+/**
+ * Binary stream log, file version 3.
+ *
+ * The file (before the gzip applied by FirebaseWriter) is:
+ *  - magic "EIML"
+ *  - varint file version
+ *  - string bluetooth MAC
+ *  - records until the end of the file, each a type byte, a varint payload length and
+ *    the payload. Readers skip record types they do not know.
+ *
+ * High rate streams are written as column blocks holding up to {@link #BLOCK_PACKETS}
+ * packets from one stream with the same shape. A block payload is:
+ *  - varint packet count
+ *  - varint shape A and shape B (channels and samples, or axes and samples)
+ *  - five columns of zigzag varints: wall clock ms, elapsed realtime ns, sensor
+ *    timestamp, raw sensor timestamp and packet counter. The first value of each
+ *    column is absolute and the rest are deltas from the previous packet.
+ *  - the data of each packet in turn, A * B values in [A][B] order. EMG power is
+ *    zigzag varints, every other stream is little endian float32.
+ *
+ * Battery, force and timestamp sync records are low rate and written individually.
+ *
+ * Strings are a varint byte length followed by UTF-8. Varints are unsigned LEB128.
+ */
+public final class StreamLogFormat {
+
+    public static final byte [] MAGIC = {'E', 'I', 'M', 'L'};
+    public static final int FILE_VERSION = 3;
+
+    /** Packets per column block before it is written */
+    public static final int BLOCK_PACKETS = 64;
+
+    public static final int RECORD_EMG_RAW = 0x10;
+    public static final int RECORD_EMG_PWR = 0x11;
+    public static final int RECORD_ACCEL = 0x12;
+    public static final int RECORD_GYRO = 0x13;
+    public static final int RECORD_MAG = 0x14;
+    public static final int RECORD_ATTITUDE = 0x15;
+
+    public static final int RECORD_BATTERY = 0x20;
+    public static final int RECORD_FORCE = 0x21;
+    public static final int RECORD_TIMESTAMP_SYNC = 0x22;
+
+    /** Stream names in the log index, the MSG of the JSON messages */
+    public static final String STREAM_EMG_RAW = "EmgRaw";
+    public static final String STREAM_EMG_PWR = "EmgPwr";
+    public static final String STREAM_ACCEL = "ImuAccel";
+    public static final String STREAM_GYRO = "ImuGyro";
+    public static final String STREAM_MAG = "ImuMag";
+    public static final String STREAM_ATTITUDE = "ImuAttitude";
+    public static final String STREAM_BATTERY = "Battery";
+    public static final String STREAM_FORCE = "DynamometerForce";
+
+    private StreamLogFormat() {}
+
+    /** Stream name of a block record type */
+    public static String streamName(int type) {
+        switch (type) {
+            case RECORD_EMG_RAW: return STREAM_EMG_RAW;
+            case RECORD_EMG_PWR: return STREAM_EMG_PWR;
+            case RECORD_ACCEL: return STREAM_ACCEL;
+            case RECORD_GYRO: return STREAM_GYRO;
+            case RECORD_MAG: return STREAM_MAG;
+            case RECORD_ATTITUDE: return STREAM_ATTITUDE;
+            default: return null;
+        }
+    }
+
+    public static boolean isBlock(int type) {
+        return type >= RECORD_EMG_RAW && type <= RECORD_ATTITUDE;
+    }
+
+    public static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    public static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,141 @@
+package org.sralab.emgimu.logging.binary;
+
+import com.google.gson.Gson;
+
+import org.sralab.emgimu.streaming.messages.BatteryMessage;
+import org.sralab.emgimu.streaming.messages.EmgPwrMessage;
+import org.sralab.emgimu.streaming.messages.EmgRawMessage;
+import org.sralab.emgimu.streaming.messages.FileVersionMessage;
+import org.sralab.emgimu.streaming.messages.ForceMessage;
+import org.sralab.emgimu.streaming.messages.ImuAccelMessage;
+import org.sralab.emgimu.streaming.messages.ImuAttitudeMessage;
+import org.sralab.emgimu.streaming.messages.ImuGyroMessage;
+import org.sralab.emgimu.streaming.messages.ImuMagMessage;
+import org.sralab.emgimu.streaming.messages.TimestampSyncMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts a version 3 binary stream log to the version 2 JSON log so existing
+ * analysis code keeps working.
+ *
+ * Every message is reproduced with the same fields and values, but packets are written
+ * in block order: each stream is in order, while packets from different streams are
+ * grouped in runs of up to {@link StreamLogFormat#BLOCK_PACKETS} rather than interleaved
+ * as they arrived. Use the timestamps to merge streams.
+ */
+public class StreamLogJsonConverter implements StreamLogReader.Visitor {
+
+    private static final String JSON_FILE_VERSION = "2.0.0";
+
+    private final Gson gson = new Gson();
+    private final Writer out;
+    private String bluetoothMac;
+    private boolean firstEntry = true;
+    private IOException error;
+
+    private StreamLogJsonConverter(Writer out) {
+        this.out = out;
+    }
+
+    /** Convert a decompressed binary log to an uncompressed JSON log */
+    public static void convert(InputStream binary, OutputStream json) throws IOException {
+        Writer writer = new OutputStreamWriter(json, StandardCharsets.UTF_8);
+        StreamLogJsonConverter converter = new StreamLogJsonConverter(writer);
+        writer.write("[");
+        new StreamLogReader(binary).read(converter);
+        if (converter.error != null)
+            throw converter.error;
+        writer.write("]");
+        writer.flush();
+    }
+
+    /** Convert a gzipped binary log file to a gzipped JSON log file */
+    public static void convert(File binary, File json) throws IOException {
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(binary)));
+             OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(json)))) {
+            convert(in, out);
+        }
+    }
+
+    private void add(Object msg) {
+        if (error != null)
+            return;
+        try {
+            if (!firstEntry)
+                out.write(",\n");
+            firstEntry = false;
+            out.write(gson.toJson(msg));
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    @Override
+    public void onHeader(int fileVersion, String bluetoothMac) {
+        this.bluetoothMac = bluetoothMac;
+        add(new FileVersionMessage(JSON_FILE_VERSION));
+    }
+
+    @Override
+    public void onEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, float[][] data) {
+        // Values were stored as the float32 the JSON encodes, so this round trips exactly
+        double [][] values = new double[channels][samples];
+        for (int i = 0; i < channels; i++)
+            for (int j = 0; j < samples; j++)
+                values[i][j] = data[i][j];
+        add(new EmgRawMessage(bluetoothMac, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, channels, samples, values));
+    }
+
+    @Override
+    public void onEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int[] data) {
+        add(new EmgPwrMessage(bluetoothMac, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data));
+    }
+
+    @Override
+    public void onAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+        add(new ImuAccelMessage(bluetoothMac, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data));
+    }
+
+    @Override
+    public void onGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+        add(new ImuGyroMessage(bluetoothMac, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data));
+    }
+
+    @Override
+    public void onMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+        add(new ImuMagMessage(bluetoothMac, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data));
+    }
+
+    @Override
+    public void onAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[] data) {
+        add(new ImuAttitudeMessage(bluetoothMac, time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data));
+    }
+
+    @Override
+    public void onBattery(long time, double voltage) {
+        add(new BatteryMessage(bluetoothMac, time, voltage));
+    }
+
+    @Override
+    public void onForce(long time, double[] data) {
+        add(new ForceMessage(bluetoothMac, time, data));
+    }
+
+    @Override
+    public void onTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds) {
+        add(new TimestampSyncMessage(bluetoothMac, androidElapsedNanos, timestampSyncMilliseconds));
+    }
+}
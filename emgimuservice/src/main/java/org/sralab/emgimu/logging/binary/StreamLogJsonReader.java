@@ -0,0 +1,212 @@
+package org.sralab.emgimu.logging.binary;
+
+import android.util.Base64;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a JSON stream log (already decompressed) and hands each message to the same
+ * {@link StreamLogReader.Visitor} the binary reader uses, so tools handle both formats.
+ *
+ * The log is parsed as a stream, one message at a time, so memory use does not depend
+ * on the log length. A log that ends part way through a message (one that was never
+ * closed) is read up to the last complete message. Header is only reported for logs
+ * that start with a FileVersion message, and without a Bluetooth address.
+ */
+public class StreamLogJsonReader {
+
+    private final JsonReader reader;
+
+    // Fields of the message being read
+    private String msg;
+    private long timestamp;
+    private long androidElapsedNanos;
+    private long sensorTimestamp;
+    private long rawSensorTimestamp;
+    private int counter;
+    private int channels;
+    private int samples;
+    private long timestampSyncMilliseconds;
+    private String version;
+
+    // The "data" field, which is a string, a number, or an array with one or two dimensions
+    private String dataString;
+    private double dataNumber;
+    private double [] values = new double[64];
+    private int valueCount;
+    private int rows;
+
+    public StreamLogJsonReader(InputStream in) {
+        reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /** Read the whole log, calling the visitor for every message */
+    public void read(StreamLogReader.Visitor visitor) throws IOException {
+        reader.beginArray();
+        try {
+            while (reader.hasNext()) {
+                readMessage();
+                dispatch(visitor);
+            }
+        } catch (EOFException e) {
+            // Log was not closed, stop at the last complete message
+        }
+    }
+
+    private void readMessage() throws IOException {
+        msg = null;
+        dataString = null;
+        valueCount = 0;
+        rows = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "MSG": msg = reader.nextString(); break;
+                case "timestamp": timestamp = reader.nextLong(); break;
+                case "android_elapsed_nanos": androidElapsedNanos = reader.nextLong(); break;
+                case "sensor_timestamp": sensorTimestamp = reader.nextLong(); break;
+                case "raw_sensor_timestamp": rawSensorTimestamp = reader.nextLong(); break;
+                case "sensor_counter": counter = reader.nextInt(); break;
+                case "channels": channels = reader.nextInt(); break;
+                case "samples": samples = reader.nextInt(); break;
+                case "timestamp_sync_milliseconds": timestampSyncMilliseconds = reader.nextLong(); break;
+                case "version": version = reader.nextString(); break;
+                case "data": readData(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readData() throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING) {
+            dataString = reader.nextString();
+        } else if (token == JsonToken.NUMBER) {
+            dataNumber = reader.nextDouble();
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                while (reader.hasNext()) {
+                    reader.beginArray();
+                    readValues();
+                    reader.endArray();
+                    rows++;
+                }
+            } else {
+                readValues();
+                rows = -1;
+            }
+            reader.endArray();
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    private void readValues() throws IOException {
+        while (reader.hasNext()) {
+            if (valueCount == values.length) {
+                double [] grown = new double[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, valueCount);
+                values = grown;
+            }
+            values[valueCount++] = reader.nextDouble();
+        }
+    }
+
+    private void dispatch(StreamLogReader.Visitor visitor) {
+        if (msg == null)
+            return;
+
+        switch (msg) {
+            case "FileVersion":
+                visitor.onHeader(majorVersion(version), null);
+                break;
+            case "EmgRaw":
+                visitor.onEmgRaw(timestamp, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, channels, samples, emgRaw());
+                break;
+            case "EmgPwr": {
+                int [] data = new int[valueCount];
+                for (int i = 0; i < valueCount; i++)
+                    data[i] = (int) values[i];
+                visitor.onEmgPwr(timestamp, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+                break;
+            }
+            case "ImuAccel":
+                visitor.onAccel(timestamp, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, floatRows());
+                break;
+            case "ImuGyro":
+                visitor.onGyro(timestamp, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, floatRows());
+                break;
+            case "ImuMag":
+                visitor.onMag(timestamp, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, floatRows());
+                break;
+            case "ImuAttitude": {
+                float [] data = new float[valueCount];
+                for (int i = 0; i < valueCount; i++)
+                    data[i] = (float) values[i];
+                visitor.onAttitude(timestamp, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+                break;
+            }
+            case "Battery":
+                visitor.onBattery(timestamp, dataNumber);
+                break;
+            case "DynamometerForce": {
+                double [] data = new double[valueCount];
+                System.arraycopy(values, 0, data, 0, valueCount);
+                visitor.onForce(timestamp, data);
+                break;
+            }
+            case "TimestampSync":
+                visitor.onTimestampSync(androidElapsedNanos, timestampSyncMilliseconds);
+                break;
+        }
+    }
+
+    private static int majorVersion(String version) {
+        if (version == null)
+            return 0;
+        int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** EMG samples are base64 encoded big endian float32, channel by channel */
+    private float [][] emgRaw() {
+        float [][] data = new float[channels][samples];
+        if (dataString != null) {
+            FloatBuffer floats = ByteBuffer.wrap(Base64.decode(dataString, Base64.DEFAULT)).asFloatBuffer();
+            for (int i = 0; i < channels && floats.remaining() >= samples; i++)
+                floats.get(data[i]);
+        } else {
+            // Older logs wrote the samples as nested arrays
+            for (int i = 0; i < channels; i++)
+                for (int j = 0; j < samples && i * samples + j < valueCount; j++)
+                    data[i][j] = (float) values[i * samples + j];
+        }
+        return data;
+    }
+
+    private float [][] floatRows() {
+        int n = rows > 0 ? rows : 1;
+        int m = valueCount / n;
+        float [][] data = new float[n][m];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < m; j++)
+                data[i][j] = (float) values[i * m + j];
+        return data;
+    }
+}
@@ -0,0 +1,207 @@
+package org.sralab.emgimu.logging.binary;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a version 3 binary stream log (already decompressed) and hands each packet to
+ * a {@link Visitor}. Column blocks are expanded back to one call per packet.
+ */
+public class StreamLogReader {
+
+    public interface Visitor {
+        void onHeader(int fileVersion, String bluetoothMac);
+        void onEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, float [][] data);
+        void onEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int [] data);
+        void onAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data);
+        void onGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data);
+        void onMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data);
+        void onAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [] data);
+        void onBattery(long time, double voltage);
+        void onForce(long time, double [] data);
+        void onTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds);
+    }
+
+    private final InputStream in;
+    private byte [] record = new byte[4096];
+    private int position;
+    private int limit;
+
+    public StreamLogReader(InputStream in) {
+        this.in = in;
+    }
+
+    /** Read the whole log, calling the visitor for every packet */
+    public void read(Visitor visitor) throws IOException {
+        String mac = readHeader();
+        visitor.onHeader(StreamLogFormat.FILE_VERSION, mac);
+        readRecords(visitor);
+    }
+
+    /**
+     * Read only the header at the start of the log, leaving the stream at the first record.
+     * @return address of the device the log was recorded from
+     */
+    public String readHeader() throws IOException {
+        byte [] magic = new byte[StreamLogFormat.MAGIC.length];
+        readFully(magic, magic.length);
+        if (!Arrays.equals(magic, StreamLogFormat.MAGIC))
+            throw new IOException("Not a binary stream log");
+
+        int version = (int) readStreamVarLong();
+        if (version != StreamLogFormat.FILE_VERSION)
+            throw new IOException("Unsupported stream log version " + version);
+        int macLength = (int) readStreamVarLong();
+        byte [] mac = new byte[macLength];
+        readFully(mac, macLength);
+        return new String(mac, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read records up to the end of the stream, with no header first. Used for blocks
+     * after the start of the log, see {@link org.sralab.emgimu.logging.LogIndex}.
+     */
+    public void readRecords(Visitor visitor) throws IOException {
+        int type;
+        while ((type = in.read()) >= 0) {
+            int length = (int) readStreamVarLong();
+            if (record.length < length)
+                record = new byte[length];
+            readFully(record, length);
+            position = 0;
+            limit = length;
+
+            if (StreamLogFormat.isBlock(type))
+                readBlock(type, visitor);
+            else if (type == StreamLogFormat.RECORD_BATTERY)
+                visitor.onBattery(getZigZag(), getDouble());
+            else if (type == StreamLogFormat.RECORD_FORCE) {
+                long time = getZigZag();
+                double [] data = new double[(int) getVarLong()];
+                for (int i = 0; i < data.length; i++)
+                    data[i] = getDouble();
+                visitor.onForce(time, data);
+            } else if (type == StreamLogFormat.RECORD_TIMESTAMP_SYNC)
+                visitor.onTimestampSync(getZigZag(), getZigZag());
+            // Unknown record types are skipped
+        }
+    }
+
+    private void readBlock(int type, Visitor visitor) throws IOException {
+        int count = (int) getVarLong();
+        int a = (int) getVarLong();
+        int b = (int) getVarLong();
+
+        long [][] columns = new long[5][count];
+        for (long [] column : columns) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value += getZigZag();
+                column[i] = value;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            long time = columns[0][i];
+            long elapsed = columns[1][i];
+            long sensorTimestamp = columns[2][i];
+            long rawSensorTimestamp = columns[3][i];
+            int counter = (int) columns[4][i];
+
+            switch (type) {
+                case StreamLogFormat.RECORD_EMG_RAW:
+                    visitor.onEmgRaw(time, elapsed, sensorTimestamp, rawSensorTimestamp, counter, a, b, getFloats(a, b));
+                    break;
+                case StreamLogFormat.RECORD_EMG_PWR:
+                    int [] pwr = new int[a * b];
+                    for (int j = 0; j < pwr.length; j++)
+                        pwr[j] = (int) getZigZag();
+                    visitor.onEmgPwr(time, elapsed, sensorTimestamp, rawSensorTimestamp, counter, pwr);
+                    break;
+                case StreamLogFormat.RECORD_ACCEL:
+                    visitor.onAccel(time, elapsed, sensorTimestamp, rawSensorTimestamp, counter, getFloats(a, b));
+                    break;
+                case StreamLogFormat.RECORD_GYRO:
+                    visitor.onGyro(time, elapsed, sensorTimestamp, rawSensorTimestamp, counter, getFloats(a, b));
+                    break;
+                case StreamLogFormat.RECORD_MAG:
+                    visitor.onMag(time, elapsed, sensorTimestamp, rawSensorTimestamp, counter, getFloats(a, b));
+                    break;
+                case StreamLogFormat.RECORD_ATTITUDE:
+                    visitor.onAttitude(time, elapsed, sensorTimestamp, rawSensorTimestamp, counter, getFloats(1, a * b)[0]);
+                    break;
+            }
+        }
+    }
+
+    private void readFully(byte [] dst, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(dst, offset, length - offset);
+            if (n < 0)
+                throw new EOFException("Truncated stream log");
+            offset += n;
+        }
+    }
+
+    private long readStreamVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Truncated stream log");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private void require(int n) throws IOException {
+        if (position + n > limit)
+            throw new IOException("Record overrun");
+    }
+
+    private long getVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            require(1);
+            int b = record[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private long getZigZag() throws IOException {
+        return StreamLogFormat.unzigzag(getVarLong());
+    }
+
+    private int getInt() throws IOException {
+        require(4);
+        int v = (record[position] & 0xFF)
+                | (record[position + 1] & 0xFF) << 8
+                | (record[position + 2] & 0xFF) << 16
+                | (record[position + 3] & 0xFF) << 24;
+        position += 4;
+        return v;
+    }
+
+    private double getDouble() throws IOException {
+        long lo = getInt() & 0xFFFFFFFFL;
+        long hi = getInt() & 0xFFFFFFFFL;
+        return Double.longBitsToDouble(lo | hi << 32);
+    }
+
+    private float [][] getFloats(int a, int b) throws IOException {
+        float [][] data = new float[a][b];
+        for (int i = 0; i < a; i++)
+            for (int j = 0; j < b; j++)
+                data[i][j] = Float.intBitsToFloat(getInt());
+        return data;
+    }
+}
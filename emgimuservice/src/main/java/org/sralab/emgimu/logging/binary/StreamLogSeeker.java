@@ -0,0 +1,165 @@
+package org.sralab.emgimu.logging.binary;
+
+import org.sralab.emgimu.logging.LogIndex;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.List;
+
+/**
+ * Reads a time window of a binary or JSON stream log. Only the blocks the log's
+ * {@link LogIndex} places in the window are decompressed, plus the unindexed tail of a
+ * log that is still open or was recovered, whose times are unknown. Packets outside the
+ * window are dropped, so the visitor only sees the window, in file order.
+ */
+public class StreamLogSeeker {
+
+    private final LogIndex index;
+
+    public StreamLogSeeker(File log) {
+        index = LogIndex.load(log);
+    }
+
+    public LogIndex getIndex() {
+        return index;
+    }
+
+    /** Visit every packet with a wall clock time in [from, to] milliseconds */
+    public void readTime(long from, long to, StreamLogReader.Visitor visitor) throws IOException {
+        read(index.findTime(from, to), new Window(visitor, null, from, to));
+    }
+
+    /**
+     * Visit the packets of one stream, named as in {@link StreamLogFormat}, with a sensor
+     * timestamp in [from, to]. Battery and force have no sensor timestamp and are
+     * matched on their wall clock time instead.
+     */
+    public void readSensorTime(String stream, long from, long to, StreamLogReader.Visitor visitor) throws IOException {
+        read(index.findSensorTime(stream, from, to), new Window(visitor, stream, from, to));
+    }
+
+    private void read(List<LogIndex.Block> blocks, StreamLogReader.Visitor visitor) throws IOException {
+        for (LogIndex.Block block : blocks) {
+            try (InputStream in = index.openBlock(block)) {
+                readBlock(in, visitor);
+            }
+        }
+
+        if (index.hasTail()) {
+            try (InputStream in = index.openTail()) {
+                readBlock(in, visitor);
+            } catch (EOFException e) {
+                // The tail of an open log ends part way through
+            }
+        }
+    }
+
+    /** Decode one block, which may start with the file header or part way through */
+    private static void readBlock(InputStream in, StreamLogReader.Visitor visitor) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 64 * 1024);
+        buffered.mark(1);
+        int first = buffered.read();
+        buffered.reset();
+
+        if (first < 0)
+            return;
+        if (first == StreamLogFormat.MAGIC[0]) {
+            new StreamLogReader(buffered).read(visitor);
+        } else if (first == '[' || first == ',') {
+            // JSON blocks start with the array or the separator before their first message
+            buffered.read();
+            InputStream array = new SequenceInputStream(new SequenceInputStream(
+                    new ByteArrayInputStream(new byte[] {'['}), buffered),
+                    new ByteArrayInputStream(new byte[] {']'}));
+            new StreamLogJsonReader(array).read(visitor);
+        } else {
+            new StreamLogReader(buffered).readRecords(visitor);
+        }
+    }
+
+    /** Passes on only the packets in the window */
+    private static class Window implements StreamLogReader.Visitor {
+        private final StreamLogReader.Visitor visitor;
+        private final String stream;
+        private final long from;
+        private final long to;
+
+        /** @param stream match this stream by sensor time, or null for all by wall clock */
+        Window(StreamLogReader.Visitor visitor, String stream, long from, long to) {
+            this.visitor = visitor;
+            this.stream = stream;
+            this.from = from;
+            this.to = to;
+        }
+
+        private boolean keep(String name, long time, long sensorTimestamp) {
+            if (stream == null)
+                return time >= from && time <= to;
+            return stream.equals(name) && sensorTimestamp >= from && sensorTimestamp <= to;
+        }
+
+        @Override
+        public void onHeader(int fileVersion, String bluetoothMac) {
+            visitor.onHeader(fileVersion, bluetoothMac);
+        }
+
+        @Override
+        public void onEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, float[][] data) {
+            if (keep(StreamLogFormat.STREAM_EMG_RAW, time, sensorTimestamp))
+                visitor.onEmgRaw(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, channels, samples, data);
+        }
+
+        @Override
+        public void onEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int[] data) {
+            if (keep(StreamLogFormat.STREAM_EMG_PWR, time, sensorTimestamp))
+                visitor.onEmgPwr(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+        }
+
+        @Override
+        public void onAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+            if (keep(StreamLogFormat.STREAM_ACCEL, time, sensorTimestamp))
+                visitor.onAccel(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+        }
+
+        @Override
+        public void onGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+            if (keep(StreamLogFormat.STREAM_GYRO, time, sensorTimestamp))
+                visitor.onGyro(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+        }
+
+        @Override
+        public void onMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[][] data) {
+            if (keep(StreamLogFormat.STREAM_MAG, time, sensorTimestamp))
+                visitor.onMag(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+        }
+
+        @Override
+        public void onAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float[] data) {
+            if (keep(StreamLogFormat.STREAM_ATTITUDE, time, sensorTimestamp))
+                visitor.onAttitude(time, androidElapsedNanos, sensorTimestamp, rawSensorTimestamp, counter, data);
+        }
+
+        @Override
+        public void onBattery(long time, double voltage) {
+            if (keep(StreamLogFormat.STREAM_BATTERY, time, time))
+                visitor.onBattery(time, voltage);
+        }
+
+        @Override
+        public void onForce(long time, double[] data) {
+            if (keep(StreamLogFormat.STREAM_FORCE, time, time))
+                visitor.onForce(time, data);
+        }
+
+        @Override
+        public void onTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds) {
+            // Needed to relate the clocks whichever window is read
+            visitor.onTimestampSync(androidElapsedNanos, timestampSyncMilliseconds);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.sralab.emgimu.logging.binary;
+
+import org.sralab.emgimu.logging.LogRecovery;
+
+/**
+ * Finds the end of the last complete record in the decompressed tail of a binary
+ * stream log, for {@link LogRecovery}.
+ */
+public class StreamLogTrimmer extends FramedLogTrimmer {
+
+    public static final LogRecovery.TrimmerFactory FACTORY = StreamLogTrimmer::new;
+
+    public StreamLogTrimmer(boolean startOfLog) {
+        super(StreamLogFormat.MAGIC.length, startOfLog);
+    }
+}
@@ -0,0 +1,41 @@
+package org.sralab.emgimu.parser;
+
+/**
+ * Multichannel sensors with an ADS1298 front end. Each sample is 3 bytes big endian
+ * and the channels are interleaved within each sample. The number of channels is
+ * encoded in the upper nibble of the format byte (e.g. 0x21 and 0x81).
+ */
+public class Ads1298Codec extends EmgPacketCodec {
+
+    private static final double ADS1298_GAIN = 8;
+    private static final double VREF_MICROVOLTS = 2.42e6;
+    private static final int SAMPLE_RATE = 2000;
+
+    private static double microvoltsPerLsb(double gain) {
+        double full_scale_range = 2 * VREF_MICROVOLTS / gain;
+        return full_scale_range / ((1<<24) - 1);
+    }
+
+    public Ads1298Codec(int format) {
+        this(format, ADS1298_GAIN);
+    }
+
+    public Ads1298Codec(int format, double gain) {
+        super(format, format >> 4, microvoltsPerLsb(gain), SAMPLE_RATE);
+    }
+
+    @Override
+    public int getSamples(int length) {
+        return (length - EmgBuffParser.HEADER_LENGTH) / 3 / getChannels();
+    }
+
+    @Override
+    public void decode(byte [] buffer, int samples, int [] counts) {
+        final int channels = getChannels();
+        for (int ch = 0; ch < channels; ch++) {
+            for (int sample = 0; sample < samples; sample++) {
+                counts[ch * samples + sample] = ByteFields.sint24BigEndian(buffer, EmgBuffParser.HEADER_LENGTH + 3 * (ch + channels * sample));
+            }
+        }
+    }
+}
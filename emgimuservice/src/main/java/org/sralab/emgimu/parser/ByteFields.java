@@ -0,0 +1,35 @@
+package org.sralab.emgimu.parser;
+
+/**
+ * Reads integer fields from raw notification bytes without wrapping them in a
+ * ByteBuffer or Data object. Multi-byte fields are little endian unless noted.
+ */
+public class ByteFields {
+
+    private ByteFields() { }
+
+    public static int uint8(final byte [] buffer, final int idx) {
+        return buffer[idx] & 0xFF;
+    }
+
+    public static int uint16(final byte [] buffer, final int idx) {
+        return (buffer[idx] & 0xFF) | ((buffer[idx + 1] & 0xFF) << 8);
+    }
+
+    public static int sint16(final byte [] buffer, final int idx) {
+        return (short) ((buffer[idx] & 0xFF) | (buffer[idx + 1] << 8));
+    }
+
+    public static long uint32(final byte [] buffer, final int idx) {
+        return ((buffer[idx] & 0xFFL) |
+                ((buffer[idx + 1] & 0xFFL) << 8) |
+                ((buffer[idx + 2] & 0xFFL) << 16) |
+                ((buffer[idx + 3] & 0xFFL) << 24));
+    }
+
+    /** Signed 24 bit big endian value, as sent by the ADS1298 */
+    public static int sint24BigEndian(final byte [] buffer, final int idx) {
+        // Place the MSB in the top byte then arithmetic shift to sign extend
+        return ((buffer[idx] << 24) | ((buffer[idx + 1] & 0xFF) << 16) | ((buffer[idx + 2] & 0xFF) << 8)) >> 8;
+    }
+}
@@ -0,0 +1,101 @@
+package org.sralab.emgimu.parser;
+
+/**
+ * Decodes the EMG buffer characteristic directly from the raw notification bytes.
+ *
+ * The message layout is:
+ *  - Byte 0: format, used to look up the {@link EmgPacketCodec}
+ *  - Byte 1: packet counter
+ *  - Byte 2-5: timestamp (UINT32, little endian)
+ *  - Byte 6-onward: samples, as described by the codec
+ *
+ * Decoded values are written into output arrays owned by the parser. These arrays are
+ * only reallocated when the packet shape changes, so steady state decoding does not
+ * allocate. The arrays are overwritten by the next call to {@link #parse(byte[], int)}
+ * and callers must copy anything they want to keep.
+ */
+public class EmgBuffParser {
+
+    public static final int HEADER_LENGTH = 6;
+
+    private final EmgPacketCodecRegistry registry;
+
+    private EmgPacketCodec codec;
+    private int counter;
+    private long rawTimestamp;
+    private int channels;
+    private int samples;
+
+    // Pooled outputs, reused between packets with the same shape
+    private int [] counts = new int[0];
+    private double [][] data = new double[0][0];
+
+    public EmgBuffParser() {
+        this(EmgPacketCodecRegistry.createDefault());
+    }
+
+    public EmgBuffParser(EmgPacketCodecRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Decode a single EMG buffer notification.
+     * @param buffer raw characteristic value
+     * @param length number of valid bytes in buffer
+     * @return false if the format is not supported or the packet is too short
+     */
+    public boolean parse(final byte [] buffer, final int length) {
+        if (length < HEADER_LENGTH)
+            return false;
+
+        final EmgPacketCodec codec = registry.get(buffer[0]);
+        if (codec == null)
+            return false;
+
+        final int packetSamples = codec.getSamples(length);
+        if (packetSamples <= 0)
+            return false;
+
+        this.codec = codec;
+        counter = ByteFields.uint8(buffer, 1);
+        rawTimestamp = ByteFields.uint32(buffer, 2);
+
+        ensureShape(codec.getChannels(), packetSamples);
+        codec.decode(buffer, samples, counts);
+
+        final double microvoltsPerLsb = codec.getMicrovoltsPerLsb();
+        for (int c = 0; c < channels; c++) {
+            final double [] row = data[c];
+            final int offset = c * samples;
+            for (int s = 0; s < samples; s++) {
+                row[s] = counts[offset + s] * microvoltsPerLsb;
+            }
+        }
+
+        return true;
+    }
+
+    private void ensureShape(int channels, int samples) {
+        if (channels != this.channels || samples != this.samples) {
+            this.channels = channels;
+            this.samples = samples;
+            counts = new int[channels * samples];
+            data = new double[channels][samples];
+        }
+    }
+
+    /** Codec used for the last successfully parsed packet */
+    public EmgPacketCodec getCodec() { return codec; }
+    public int getFormat() { return codec == null ? 0 : codec.getFormat(); }
+    public int getCounter() { return counter; }
+    public long getRawTimestamp() { return rawTimestamp; }
+    public int getChannels() { return channels; }
+    public int getSamples() { return samples; }
+    public double getMicrovoltsPerLsb() { return codec == null ? 0 : codec.getMicrovoltsPerLsb(); }
+
+    /** Raw ADC counts, packed by channel (channel * samples + sample). Reused between calls. */
+    public int [] getCounts() { return counts; }
+
+    /** Samples scaled to microvolts, indexed [channel][sample]. Reused between calls. */
+    public double [][] getData() { return data; }
+}
@@ -0,0 +1,57 @@
+package org.sralab.emgimu.parser;
+
+/**
+ * Decoder for one EMG buffer format, identified by the format byte at the start
+ * of each packet. Implementations precompute their scale factor and describe the
+ * layout of the samples in the packet so {@link EmgBuffParser} can size its outputs.
+ *
+ * Codecs are stateless and may be shared between sensors. To support a new hardware
+ * revision, implement this class and add it to {@link EmgPacketCodecRegistry}.
+ */
+public abstract class EmgPacketCodec {
+
+    private final int format;
+    private final int channels;
+    private final double microvoltsPerLsb;
+    private final int sampleRate;
+
+    protected EmgPacketCodec(int format, int channels, double microvoltsPerLsb, int sampleRate) {
+        if (format < 0 || format > 0xFF)
+            throw new IllegalArgumentException("Format must fit in one byte: " + format);
+        if (channels <= 0)
+            throw new IllegalArgumentException("Codec must have at least one channel");
+        if (sampleRate <= 0)
+            throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+        this.format = format;
+        this.channels = channels;
+        this.microvoltsPerLsb = microvoltsPerLsb;
+        this.sampleRate = sampleRate;
+    }
+
+    /** Format byte handled by this codec */
+    public final int getFormat() { return format; }
+
+    /** Number of channels in each packet */
+    public final int getChannels() { return channels; }
+
+    /** Scale from raw ADC counts to microvolts */
+    public final double getMicrovoltsPerLsb() { return microvoltsPerLsb; }
+
+    /** Samples per second on each channel */
+    public final int getSampleRate() { return sampleRate; }
+
+    /**
+     * @param length total packet length, including the header
+     * @return number of samples per channel in the packet, or a value <= 0 if the
+     *         packet is too short for this format
+     */
+    public abstract int getSamples(int length);
+
+    /**
+     * Decode the raw counts of a packet.
+     * @param buffer raw packet, including the header
+     * @param samples number of samples per channel as returned by {@link #getSamples(int)}
+     * @param counts output packed by channel (channel * samples + sample)
+     */
+    public abstract void decode(byte [] buffer, int samples, int [] counts);
+}
@@ -0,0 +1,32 @@
+package org.sralab.emgimu.parser;
+
+/**
+ * Table of {@link EmgPacketCodec}s indexed by the EMG format byte. Lookup is a
+ * single array access so dispatch does not depend on how many formats are known.
+ */
+public class EmgPacketCodecRegistry {
+
+    // Replaced on registration so readers never need to lock
+    private volatile EmgPacketCodec [] codecs = new EmgPacketCodec[256];
+
+    /** Registry with the codecs for all sensor generations in use */
+    public static EmgPacketCodecRegistry createDefault() {
+        return new EmgPacketCodecRegistry()
+                .register(new Ina333Codec())
+                .register(new Ads1298Codec(0x21))
+                .register(new Ads1298Codec(0x81));
+    }
+
+    /** Add a codec, replacing any existing codec for the same format */
+    public synchronized EmgPacketCodecRegistry register(EmgPacketCodec codec) {
+        EmgPacketCodec [] updated = codecs.clone();
+        updated[codec.getFormat()] = codec;
+        codecs = updated;
+        return this;
+    }
+
+    /** @return the codec for this format or null if it is not supported */
+    public EmgPacketCodec get(int format) {
+        return codecs[format & 0xFF];
+    }
+}
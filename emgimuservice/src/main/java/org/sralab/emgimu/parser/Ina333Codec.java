@@ -0,0 +1,43 @@
+package org.sralab.emgimu.parser;
+
+/**
+ * Single channel sensors with an INA333 front end sampled by the nRF52 ADC. Packets
+ * contain a fixed number of 16 bit little endian samples.
+ */
+public class Ina333Codec extends EmgPacketCodec {
+
+    public static final int FORMAT = 0x10;
+
+    /** Number of samples in each packet */
+    public static final int SAMPLES = 20;
+
+    public static final int SAMPLE_RATE = 2000;
+
+    private static double microvoltsPerLsb() {
+        double ina333_gain = 1+(100.0 / 10.0);   // for 10k resistor
+        double bandpass_gain = 10;  //# 1M / 100k
+        double nrf52383_gain = 1.0 / 1.0; // more easily programmable now differential
+        double analog_gain = ina333_gain * bandpass_gain;
+
+        double lsb_per_v = analog_gain * nrf52383_gain / 0.6 * (1<<13);
+        return 1.0e6 / lsb_per_v;
+    }
+
+    public Ina333Codec() {
+        super(FORMAT, 1, microvoltsPerLsb(), SAMPLE_RATE);
+    }
+
+    @Override
+    public int getSamples(int length) {
+        if (length < EmgBuffParser.HEADER_LENGTH + 2 * SAMPLES)
+            return 0;
+        return SAMPLES;
+    }
+
+    @Override
+    public void decode(byte [] buffer, int samples, int [] counts) {
+        for (int i = 0; i < samples; i++) {
+            counts[i] = ByteFields.sint16(buffer, EmgBuffParser.HEADER_LENGTH + i * 2);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.sralab.emgimu.service;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces messages for one batch callback so that a client receives a single
+ * Binder transaction per latency budget instead of one per BLE notification.
+ *
+ * The first message added to an empty batch starts the budget. The batch is sent
+ * when a message arrives after the budget expired or when {@link #poll} is called
+ * after it expired. {@link #add} and {@link #poll} must be called from the same
+ * thread (the notification thread).
+ */
+public class CallbackBatcher<C, T> {
+
+    public interface Sender<C, T> {
+        void send(C callback, List<T> batch) throws RemoteException;
+    }
+
+    /** Largest batch sent in one transaction regardless of the budget */
+    private static final int MAX_BATCH = 256;
+
+    private final C callback;
+    private final long budgetNanos;
+    private final Sender<C, T> sender;
+
+    private final ArrayList<T> pending = new ArrayList<>();
+    private long deadlineNanos;
+    private volatile boolean dead;
+
+    /**
+     * @param callback client callback that receives the batches
+     * @param budgetMillis longest a message is held before being sent
+     * @param sender converts the batch to the callback's AIDL method
+     */
+    public CallbackBatcher(C callback, long budgetMillis, Sender<C, T> sender) {
+        this.callback = callback;
+        this.budgetNanos = Math.max(0, budgetMillis) * 1_000_000L;
+        this.sender = sender;
+    }
+
+    public C getCallback() {
+        return callback;
+    }
+
+    /** True once a send failed because the client process died */
+    public boolean isDead() {
+        return dead;
+    }
+
+    public void add(T message, long nowNanos) {
+        if (pending.isEmpty())
+            deadlineNanos = nowNanos + budgetNanos;
+        pending.add(message);
+        if (nowNanos - deadlineNanos >= 0 || pending.size() >= MAX_BATCH)
+            flush();
+    }
+
+    /**
+     * Send the batch if its budget has expired.
+     * @return nanoseconds until this batch must be polled again, or Long.MAX_VALUE if empty
+     */
+    public long poll(long nowNanos) {
+        if (pending.isEmpty())
+            return Long.MAX_VALUE;
+        long remaining = deadlineNanos - nowNanos;
+        if (remaining <= 0) {
+            flush();
+            return Long.MAX_VALUE;
+        }
+        return remaining;
+    }
+
+    private void flush() {
+        try {
+            sender.send(callback, pending);
+        } catch (DeadObjectException e) {
+            dead = true;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        } finally {
+            pending.clear();
+        }
+    }
+}
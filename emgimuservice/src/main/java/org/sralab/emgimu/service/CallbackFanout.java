@@ -0,0 +1,289 @@
+package org.sralab.emgimu.service;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Delivers messages from one stream to every registered client callback without
+ * letting one client hold up the others.
+ *
+ * Each subscriber has a bounded queue. {@link #publish} only enqueues, and each
+ * queue is drained in order by a task on a shared executor, so at most one thread
+ * sends to a subscriber at a time. When a queue is full the oldest or newest message
+ * is dropped according to the policy. Subscribers whose process died are removed,
+ * either when the binder death notification arrives or when a send fails with
+ * {@link DeadObjectException}.
+ *
+ * Subscribers are matched by their binder, since Binder proxies are not reused
+ * between calls from the same client.
+ */
+public class CallbackFanout<C extends IInterface, T> {
+    private static final String TAG = CallbackFanout.class.getSimpleName();
+
+    public enum OverflowPolicy {
+        /** Discard the oldest queued message, so a slow client sees the latest data */
+        DROP_OLDEST,
+        /** Discard the message being published, so a slow client sees a contiguous prefix */
+        DROP_NEWEST
+    }
+
+    public interface Sender<C, T> {
+        void send(C callback, T message) throws RemoteException;
+    }
+
+    /** Told when a subscriber is removed because its process died */
+    public interface DeathListener {
+        void onSubscriberDied();
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /** Messages sent to one subscriber before yielding the executor thread to others */
+    private static final int MAX_DRAIN = 32;
+
+    private static final Executor SHARED_EXECUTOR = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "EmgImuFanout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String name;
+    private final Sender<C, T> sender;
+    private final Executor executor;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+    private volatile DeathListener deathListener;
+
+    public CallbackFanout(String name, Sender<C, T> sender) {
+        this(name, sender, SHARED_EXECUTOR);
+    }
+
+    public CallbackFanout(String name, Sender<C, T> sender, Executor executor) {
+        this.name = name;
+        this.sender = sender;
+        this.executor = executor;
+    }
+
+    /** Applies to subscribers added afterwards */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+
+    public void setDeathListener(DeathListener deathListener) {
+        this.deathListener = deathListener;
+    }
+
+    /** @return false if the callback was already registered */
+    public synchronized boolean add(C callback) {
+        if (contains(callback))
+            return false;
+        Subscriber s = new Subscriber(callback, queueCapacity);
+        try {
+            s.binder.linkToDeath(s, 0);
+        } catch (RemoteException e) {
+            // Already dead
+            return false;
+        }
+        subscribers.add(s);
+        return true;
+    }
+
+    /** @return false if the callback was not registered */
+    public synchronized boolean remove(C callback) {
+        Subscriber s = find(callback.asBinder());
+        if (s == null)
+            return false;
+        return remove(s);
+    }
+
+    private synchronized boolean remove(Subscriber s) {
+        if (!subscribers.remove(s))
+            return false;
+        try {
+            s.binder.unlinkToDeath(s, 0);
+        } catch (NoSuchElementException e) {
+            // Death notification already delivered
+        }
+        return true;
+    }
+
+    private void removeDead(Subscriber s) {
+        if (remove(s)) {
+            DeathListener l = deathListener;
+            if (l != null)
+                l.onSubscriberDied();
+        }
+    }
+
+    public boolean contains(C callback) {
+        return find(callback.asBinder()) != null;
+    }
+
+    private Subscriber find(IBinder binder) {
+        for (Subscriber s : subscribers) {
+            if (s.binder == binder)
+                return s;
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    /** Queue a message for every subscriber. The message must not be modified afterwards. */
+    public void publish(T message) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final OverflowPolicy policy = this.policy;
+        for (Subscriber s : subscribers) {
+            if (s.offer(message, now, policy))
+                executor.execute(s);
+        }
+    }
+
+    public List<EmgImuSubscriberMetrics> snapshot(String bluetoothMac) {
+        List<EmgImuSubscriberMetrics> metrics = new ArrayList<>();
+        for (Subscriber s : subscribers)
+            metrics.add(s.snapshot(bluetoothMac));
+        return metrics;
+    }
+
+    private class Subscriber implements Runnable, IBinder.DeathRecipient {
+        final C callback;
+        final IBinder binder;
+
+        // Ring of queued messages and the time each was published
+        private final Object [] messages;
+        private final long [] published;
+        private int head;
+        private int count;
+        private boolean scheduled;
+
+        private int maxDepth;
+        private long delivered;
+        private long dropped;
+        private long errors;
+        private long lagNanos;
+        private long maxLagNanos;
+
+        Subscriber(C callback, int capacity) {
+            this.callback = callback;
+            binder = callback.asBinder();
+            messages = new Object[Math.max(1, capacity)];
+            published = new long[messages.length];
+        }
+
+        /** @return true if a drain task needs to be scheduled */
+        synchronized boolean offer(T message, long now, OverflowPolicy policy) {
+            if (count == messages.length) {
+                dropped++;
+                if (policy == OverflowPolicy.DROP_NEWEST)
+                    return false;
+                messages[head] = null;
+                head = (head + 1) % messages.length;
+                count--;
+            }
+            int idx = (head + count) % messages.length;
+            messages[idx] = message;
+            published[idx] = now;
+            count++;
+            if (count > maxDepth)
+                maxDepth = count;
+
+            if (scheduled)
+                return false;
+            scheduled = true;
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            for (int i = 0; i < MAX_DRAIN; i++) {
+                T message;
+                long publishedNanos;
+                synchronized (this) {
+                    if (count == 0) {
+                        scheduled = false;
+                        return;
+                    }
+                    message = (T) messages[head];
+                    publishedNanos = published[head];
+                    messages[head] = null;
+                    head = (head + 1) % messages.length;
+                    count--;
+                }
+
+                try {
+                    sender.send(callback, message);
+                } catch (DeadObjectException e) {
+                    Log.d(TAG, name + " subscriber died, removing it");
+                    removeDead(this);
+                    synchronized (this) {
+                        count = 0;
+                        scheduled = false;
+                    }
+                    return;
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                    synchronized (this) {
+                        errors++;
+                    }
+                }
+
+                long lag = SystemClock.elapsedRealtimeNanos() - publishedNanos;
+                synchronized (this) {
+                    delivered++;
+                    lagNanos += lag;
+                    if (lag > maxLagNanos)
+                        maxLagNanos = lag;
+                }
+            }
+            // Let other subscribers use the thread, then continue
+            executor.execute(this);
+        }
+
+        @Override
+        public void binderDied() {
+            Log.d(TAG, name + " subscriber binder died, removing it");
+            removeDead(this);
+        }
+
+        synchronized EmgImuSubscriberMetrics snapshot(String bluetoothMac) {
+            EmgImuSubscriberMetrics m = new EmgImuSubscriberMetrics();
+            m.bluetoothMac = bluetoothMac;
+            m.stream = name;
+            m.subscriber = binder.toString();
+            m.queueDepth = count;
+            m.queueCapacity = messages.length;
+            m.maxQueueDepth = maxDepth;
+            m.delivered = delivered;
+            m.dropped = dropped;
+            m.errors = errors;
+            m.meanLagMicros = delivered == 0 ? 0 : lagNanos / 1000.0 / delivered;
+            m.maxLagMicros = maxLagNanos / 1000.0;
+            return m;
+        }
+    }
+}
@@ -34,7 +34,10 @@ import android.graphics.BitmapFactory;
 import android.nfc.Tag;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.IInterface;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Base64;
@@ -52,11 +55,20 @@ import com.google.firebase.firestore.FirebaseFirestore;
 
 import org.sralab.emgimu.logging.FirebaseEmgLogger;
 import org.sralab.emgimu.logging.FirebaseStreamLogger;
+import org.sralab.emgimu.logging.FirebaseWriter;
+import org.sralab.emgimu.logging.StreamLogReplay;
+import org.sralab.emgimu.parser.ByteFields;
+import org.sralab.emgimu.parser.EmgBuffParser;
+import org.sralab.emgimu.parser.EmgPacketCodec;
 import org.sralab.emgimu.parser.RecordAccessControlPointParser;
 import org.sralab.emgimu.service.firebase.FirebaseMagCalibration;
+import org.sralab.emgimu.sharedmemory.EmgStreamRecord;
+import org.sralab.emgimu.sharedmemory.MappedFileRegion;
+import org.sralab.emgimu.sharedmemory.SharedRingLayout;
+import org.sralab.emgimu.sharedmemory.SharedRingWriter;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.File;
+import java.io.IOException;
 import java.security.InvalidParameterException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -69,10 +81,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TimeZone;
 import java.util.UUID;
-import java.util.stream.DoubleStream;
-import java.util.stream.Stream;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import no.nordicsemi.android.ble.BleManager;
 import no.nordicsemi.android.ble.ConnectionPriorityRequest;
@@ -133,7 +145,6 @@ public class EmgImuManager extends BleManager {
 
 
     private final float EMG_FS = 2000.0f;
-    private final int EMG_BUFFER_LEN = (40 / 2); // elements in UINT16
 
     private BluetoothGattCharacteristic mEmgBuffCharacteristic, mEmgPwrCharacteristic;
     private BluetoothGattCharacteristic mImuAccelCharacteristic, mImuGyroCharacteristic, mImuMagCharacteristic, mImuAttitudeCharacteristic;
@@ -188,7 +199,8 @@ public class EmgImuManager extends BleManager {
     //private final static int RESPONSE_OPERAND_NOT_SUPPORTED = 9;
 
     private FirebaseEmgLogger fireLogger;
-    private FirebaseStreamLogger streamLogger;
+    // Read from the notification thread, so copy to a local before use
+    private volatile FirebaseStreamLogger streamLogger;
     private List<EmgLogRecord> mRecords = new ArrayList<>();
 
     private BluetoothGattCharacteristic mRecordAccessControlPointCharacteristic;
@@ -204,17 +216,31 @@ public class EmgImuManager extends BleManager {
     private int mChannels;
 
     // region Fields for Callback Section
-    private List<IEmgImuPwrDataCallback> emgPwrCbs = new ArrayList<>();
-    private List<IEmgImuSenseCallback> imuAccelCbs = new ArrayList<>();
-    private List<IEmgImuSenseCallback> imuGyroCbs = new ArrayList<>();
-    private List<IEmgImuSenseCallback> imuMagCbs = new ArrayList<>();
-    private List<IEmgImuQuatCallback> imuQuatCbs = new ArrayList<>();
-    private List<IEmgImuBatCallback> batCbs = new ArrayList<>();
-    private List<IEmgImuStreamDataCallback> emgStreamCbs = new ArrayList<>();
+    // Registered from binder threads. Each subscriber is sent its messages from its own
+    // bounded queue so a slow or dead client cannot hold up the others.
+    private final CallbackFanout<IEmgImuPwrDataCallback, EmgPwrData> emgPwrCbs =
+            new CallbackFanout<>("EmgPwr", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private final CallbackFanout<IEmgImuSenseCallback, ImuData> imuAccelCbs =
+            new CallbackFanout<>("Accel", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private final CallbackFanout<IEmgImuSenseCallback, ImuData> imuGyroCbs =
+            new CallbackFanout<>("Gyro", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private final CallbackFanout<IEmgImuSenseCallback, ImuData> imuMagCbs =
+            new CallbackFanout<>("Mag", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private final CallbackFanout<IEmgImuQuatCallback, ImuQuatData> imuQuatCbs =
+            new CallbackFanout<>("Attitude", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private final CallbackFanout<IEmgImuBatCallback, Float> batCbs =
+            new CallbackFanout<>("Battery", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private final CallbackFanout<IEmgImuStreamDataCallback, EmgStreamData> emgStreamCbs =
+            new CallbackFanout<>("EmgBuff", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private final CallbackFanout<IEmgImuStreamDataCallback, EmgStreamData> emgStreamRawCbs =
+            new CallbackFanout<>("EmgBuffRaw", (cb, msg) -> cb.handleData(getBluetoothDevice(), msg));
+    private List<CallbackBatcher<IEmgImuStreamDataBatchCallback, EmgStreamData>> emgStreamBatchers = new CopyOnWriteArrayList<>();
+    private List<CallbackBatcher<IEmgImuStreamDataBatchCallback, EmgStreamData>> emgStreamRawBatchers = new CopyOnWriteArrayList<>();
+    private List<CallbackBatcher<IEmgImuSenseBatchCallback, ImuData>> imuAccelBatchers = new CopyOnWriteArrayList<>();
+    private List<CallbackBatcher<IEmgImuSenseBatchCallback, ImuData>> imuGyroBatchers = new CopyOnWriteArrayList<>();
+    private List<CallbackBatcher<IEmgImuSenseBatchCallback, ImuData>> imuMagBatchers = new CopyOnWriteArrayList<>();
     // endregion
 
-    private int droppedSampledCounter = 0;
-
     /**
      * Stores the baseline timestamp used for synchronizing data from the remote sensor.
      */
@@ -226,126 +252,360 @@ public class EmgImuManager extends BleManager {
     private boolean mSynced;
 
     // region Register/Unregister Callbacks Section
+    /*
+     *  Each consumer of a stream holds a reference on the stream's subscription. The
+     *  notification is enabled when the first consumer registers and disabled when the
+     *  last one leaves. If the sensor is not ready yet, the notification is enabled in
+     *  onDeviceReady. There are 2 pathways to register:
+     *   (1) through the game: Bridge-->Service-->Manager (here)
+     *   (2) through the Config app: ViewModel-->Manager & Service
+     */
+    private final NotificationSubscription emgPwrSubscription = new NotificationSubscription("EmgPwr", enabled -> {
+        if (!isReady()) return;
+        if (enabled) enableEmgPwrNotifications(); else disableEmgPwrNotifications();
+    });
+    private final NotificationSubscription emgBuffSubscription = new NotificationSubscription("EmgBuff", enabled -> {
+        if (!isReady()) return;
+        if (enabled) enableEmgBuffNotifications(); else disableEmgBuffNotifications();
+    });
+    private final NotificationSubscription accelSubscription = new NotificationSubscription("Accel", enabled -> {
+        if (!isReady()) return;
+        if (enabled) enableAccelNotifications(); else disableAccelNotifications();
+    });
+    private final NotificationSubscription gyroSubscription = new NotificationSubscription("Gyro", enabled -> {
+        if (!isReady()) return;
+        if (enabled) enableGyroNotifications(); else disableGyroNotifications();
+    });
+    private final NotificationSubscription magSubscription = new NotificationSubscription("Mag", enabled -> {
+        if (!isReady()) return;
+        if (enabled) enableMagNotifications(); else disableMagNotifications();
+    });
+    private final NotificationSubscription attitudeSubscription = new NotificationSubscription("Attitude", enabled -> {
+        if (!isReady()) return;
+        if (enabled) enableAttitudeNotifications(); else disableAttitudeNotifications();
+    });
+
+    /** The IEmgImuServiceBinder NETWORK_STREAM bit of each subscription in {@link #allSubscriptions()} */
+    private static final int [] STREAM_BITS = {IEmgImuServiceBinder.NETWORK_STREAM_EMG_PWR, IEmgImuServiceBinder.NETWORK_STREAM_EMG_BUFF,
+            IEmgImuServiceBinder.NETWORK_STREAM_ACCEL, IEmgImuServiceBinder.NETWORK_STREAM_GYRO,
+            IEmgImuServiceBinder.NETWORK_STREAM_MAG, IEmgImuServiceBinder.NETWORK_STREAM_ATTITUDE};
+
+    private NotificationSubscription [] allSubscriptions() {
+        return new NotificationSubscription[] {emgPwrSubscription, emgBuffSubscription, accelSubscription,
+                gyroSubscription, magSubscription, attitudeSubscription};
+    }
+
+    /** Acquire the streams added going from {@code had} to {@code wants} and release those removed */
+    private void changeSubscriptions(int had, int wants) {
+        NotificationSubscription [] subscriptions = allSubscriptions();
+        for (int i = 0; i < STREAM_BITS.length; i++) {
+            boolean held = (had & STREAM_BITS[i]) != 0;
+            boolean wanted = (wants & STREAM_BITS[i]) != 0;
+            if (wanted && !held)
+                subscriptions[i].acquire();
+            else if (held && !wanted)
+                subscriptions[i].release();
+        }
+    }
+
+    // Release the subscription when a client dies without unregistering
+    {
+        emgPwrCbs.setDeathListener(emgPwrSubscription::release);
+        emgStreamCbs.setDeathListener(emgBuffSubscription::release);
+        emgStreamRawCbs.setDeathListener(emgBuffSubscription::release);
+        imuAccelCbs.setDeathListener(accelSubscription::release);
+        imuGyroCbs.setDeathListener(gyroSubscription::release);
+        imuMagCbs.setDeathListener(magSubscription::release);
+        imuQuatCbs.setDeathListener(attitudeSubscription::release);
+    }
+
     public void registerEmgPwrCallback(IEmgImuPwrDataCallback callback)
     {
         /* Do not duplicate the callback. */
-        if (emgPwrCbs.contains(callback)) {
-            return;
-        }
-        emgPwrCbs.add(callback);
-        /*
-        *  Wait until the sensor is ready, then enable the notification.
-        *  The notification allows the sensor to actually start streaming the data.
-        *  There are 2 pathways to enable the notifications:
-        *   (1) through the game: Bridge-->Service-->Manager (here)
-        *   (2) through the Config app: ViewModel-->Manager & Service
-        */
-        if (isReady()) {
-            enableEmgPwrNotifications();
+        if (emgPwrCbs.add(callback)) {
+            emgPwrSubscription.acquire();
         }
     }
 
     public void unregisterEmgPwrCallback(IEmgImuPwrDataCallback callback)
     {
-        /* Order here is important: disable the notification first, then remove it from the list. */
-        disableEmgPwrNotifications();
-        if (!emgPwrCbs.isEmpty()) {
-            emgPwrCbs.remove(callback);
+        if (emgPwrCbs.remove(callback)) {
+            emgPwrSubscription.release();
         }
     }
 
     public void registerEmgStreamCallback(IEmgImuStreamDataCallback callback)
     {
-        if(emgStreamCbs.contains(callback)) {
-            return;
-        }
-        emgStreamCbs.add(callback);
-        if (isReady()) {
-            enableEmgBuffNotifications(); // assuming that EmgBuff pairs with emgStreamCbs
+        if (emgStreamCbs.add(callback)) {
+            emgBuffSubscription.acquire();
         }
     }
 
     public void unregisterEmgStreamCallback(IEmgImuStreamDataCallback callback)
     {
-        disableEmgBuffNotifications(); // assuming that EmgBuff pairs with emgStreamCbs
-        if(!emgStreamCbs.isEmpty()) {
-            emgStreamCbs.remove(callback);
+        if (emgStreamCbs.remove(callback)) {
+            emgBuffSubscription.release();
         }
     }
 
-    public void registerImuAccelCallback(IEmgImuSenseCallback callback)
+    /**
+     * Register for EMG stream data sent as raw ADC counts. This avoids converting
+     * each sample to a double and reduces the size of each parcel several times.
+     */
+    public void registerEmgStreamRawCallback(IEmgImuStreamDataCallback callback)
     {
-        if(imuAccelCbs.contains(callback)) {
+        if (emgStreamRawCbs.add(callback)) {
+            emgBuffSubscription.acquire();
+        }
+    }
+
+    public void unregisterEmgStreamRawCallback(IEmgImuStreamDataCallback callback)
+    {
+        if (emgStreamRawCbs.remove(callback)) {
+            emgBuffSubscription.release();
+        }
+    }
+
+    // region Shared memory transport
+    // Raw EMG counts are published into a memory mapped ring that clients map read
+    // only, avoiding a Binder transaction and parcel copy per packet.
+    private static final int SHARED_RING_SLOTS = 256;
+
+    private File emgSharedRingFile;
+    private MappedFileRegion emgSharedRegion;
+    private SharedRingWriter emgSharedRing;
+    private volatile int emgSharedRingUsers;
+    private final Map<IBinder, SharedMemoryClient> emgSharedRingClients = new HashMap<>();
+    private final EmgStreamRecord emgSharedRecord = new EmgStreamRecord();
+    private final byte [] emgSharedRecordBuffer = new byte[EmgStreamRecord.MAX_SIZE];
+
+    /**
+     * References to the ring held by one client, matched by a binder token the client
+     * keeps, so a client can only release its own and those of a dead client are
+     * released when its process goes away.
+     */
+    private class SharedMemoryClient implements IBinder.DeathRecipient {
+        final IBinder token;
+        int references;
+
+        SharedMemoryClient(IBinder token) {
+            this.token = token;
+        }
+
+        @Override
+        public void binderDied() {
+            Log.d(TAG, "Shared memory client died: " + getAddress());
+            synchronized (EmgImuManager.this) {
+                if (emgSharedRingClients.get(token) == this)
+                    removeSharedMemoryClient(this);
+            }
+        }
+    }
+
+    /**
+     * Start publishing the raw EMG stream into shared memory.
+     * @param token binder kept by the client for as long as it reads the ring
+     * @return descriptor of the ring to map with {@link MappedFileRegion#openReadOnly}. Each
+     *         call must be matched by {@link #closeEmgStreamSharedMemory} with the same token.
+     */
+    public synchronized ParcelFileDescriptor openEmgStreamSharedMemory(IBinder token) throws IOException {
+        if (token == null)
+            throw new IllegalArgumentException("Shared memory requires a client token");
+
+        if (emgSharedRing == null) {
+            emgSharedRingFile = new File(getContext().getCacheDir(), "emg_" + getAddress().replace(":", "") + ".ring");
+            int size = SharedRingLayout.regionSize(SHARED_RING_SLOTS, EmgStreamRecord.MAX_SIZE);
+            emgSharedRegion = MappedFileRegion.create(emgSharedRingFile, size);
+            emgSharedRing = new SharedRingWriter(emgSharedRegion, SHARED_RING_SLOTS, EmgStreamRecord.MAX_SIZE);
+        }
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(emgSharedRingFile, ParcelFileDescriptor.MODE_READ_ONLY);
+
+        SharedMemoryClient client = emgSharedRingClients.get(token);
+        if (client == null) {
+            client = new SharedMemoryClient(token);
+            try {
+                token.linkToDeath(client, 0);
+            } catch (RemoteException e) {
+                // Client already died
+                pfd.close();
+                return null;
+            }
+            emgSharedRingClients.put(token, client);
+        }
+        client.references++;
+        emgSharedRingUsers++;
+        emgBuffSubscription.acquire();
+        return pfd;
+    }
+
+    public synchronized void closeEmgStreamSharedMemory(IBinder token) {
+        SharedMemoryClient client = token == null ? null : emgSharedRingClients.get(token);
+        if (client == null) {
             return;
         }
-        imuAccelCbs.add(callback);
-        if (isReady()) {
-            enableAccelNotifications();
+        if (client.references == 1) {
+            removeSharedMemoryClient(client);
+            return;
+        }
+        client.references--;
+        emgSharedRingUsers--;
+        emgBuffSubscription.release();
+    }
+
+    /** Release every reference the client holds */
+    private void removeSharedMemoryClient(SharedMemoryClient client) {
+        emgSharedRingClients.remove(client.token);
+        try {
+            client.token.unlinkToDeath(client, 0);
+        } catch (NoSuchElementException e) {
+            // Death notification already delivered
+        }
+        while (client.references > 0) {
+            client.references--;
+            emgSharedRingUsers--;
+            emgBuffSubscription.release();
+        }
+    }
+
+    /** Called on the notification thread. The ring is kept for the life of the manager. */
+    private void writeEmgSharedRecord(long ts_ms, int channels, int samples, int [] counts, double microvoltsPerLsb) {
+        emgSharedRecord.ts = ts_ms;
+        emgSharedRecord.channels = channels;
+        emgSharedRecord.samples = samples;
+        emgSharedRecord.microvoltsPerLsb = microvoltsPerLsb;
+        emgSharedRecord.counts = counts;
+        int length = emgSharedRecord.encode(emgSharedRecordBuffer);
+        emgSharedRing.write(EmgStreamRecord.TYPE, emgSharedRecordBuffer, 0, length);
+    }
+    // endregion
+
+    /**
+     * Register for EMG stream data delivered in batches. Packets are held for at most
+     * latencyBudgetMillis so a client receives one transaction per budget rather than
+     * one per notification.
+     * @param raw send raw ADC counts instead of voltages, see {@link #registerEmgStreamRawCallback}
+     */
+    public synchronized void registerEmgStreamBatchCallback(IEmgImuStreamDataBatchCallback callback, long latencyBudgetMillis, boolean raw)
+    {
+        List<CallbackBatcher<IEmgImuStreamDataBatchCallback, EmgStreamData>> batchers = raw ? emgStreamRawBatchers : emgStreamBatchers;
+        if (findBatcher(batchers, callback.asBinder()) != null) {
+            return;
+        }
+        batchers.add(new CallbackBatcher<>(callback, latencyBudgetMillis, this::sendEmgStreamBatch));
+        emgBuffSubscription.acquire();
+    }
+
+    public synchronized void unregisterEmgStreamBatchCallback(IEmgImuStreamDataBatchCallback callback)
+    {
+        if (removeBatcher(emgStreamBatchers, callback.asBinder())) {
+            emgBuffSubscription.release();
+        }
+        if (removeBatcher(emgStreamRawBatchers, callback.asBinder())) {
+            emgBuffSubscription.release();
+        }
+    }
+
+    public void registerImuAccelCallback(IEmgImuSenseCallback callback)
+    {
+        if (imuAccelCbs.add(callback)) {
+            accelSubscription.acquire();
         }
     }
 
     public void unregisterImuAccelCallback(IEmgImuSenseCallback callback)
     {
-        disableAccelNotifications();
-        if(!imuAccelCbs.isEmpty()) {
-            imuAccelCbs.remove(callback);
+        if (imuAccelCbs.remove(callback)) {
+            accelSubscription.release();
         }
     }
 
-    public void registerImuGyroCallback(IEmgImuSenseCallback callback)
+    public synchronized void registerImuAccelBatchCallback(IEmgImuSenseBatchCallback callback, long latencyBudgetMillis)
     {
-        if(imuGyroCbs.contains(callback)) {
+        if (findBatcher(imuAccelBatchers, callback.asBinder()) != null) {
             return;
         }
-        imuGyroCbs.add(callback);
-        if (isReady()) {
-            enableGyroNotifications();
+        imuAccelBatchers.add(new CallbackBatcher<>(callback, latencyBudgetMillis, this::sendImuBatch));
+        accelSubscription.acquire();
+    }
+
+    public synchronized void unregisterImuAccelBatchCallback(IEmgImuSenseBatchCallback callback)
+    {
+        if (removeBatcher(imuAccelBatchers, callback.asBinder())) {
+            accelSubscription.release();
+        }
+    }
+
+    public void registerImuGyroCallback(IEmgImuSenseCallback callback)
+    {
+        if (imuGyroCbs.add(callback)) {
+            gyroSubscription.acquire();
         }
     }
 
     public void unregisterImuGyroCallback(IEmgImuSenseCallback callback)
     {
-        disableGyroNotifications();
-        if(!imuGyroCbs.isEmpty()) {
-            imuGyroCbs.remove(callback);
+        if (imuGyroCbs.remove(callback)) {
+            gyroSubscription.release();
         }
     }
 
-    public void registerImuMagCallback(IEmgImuSenseCallback callback)
+    public synchronized void registerImuGyroBatchCallback(IEmgImuSenseBatchCallback callback, long latencyBudgetMillis)
     {
-        if(imuMagCbs.contains(callback)) {
+        if (findBatcher(imuGyroBatchers, callback.asBinder()) != null) {
             return;
         }
-        imuMagCbs.add(callback);
-        if (isReady()) {
-            enableMagNotifications();
+        imuGyroBatchers.add(new CallbackBatcher<>(callback, latencyBudgetMillis, this::sendImuBatch));
+        gyroSubscription.acquire();
+    }
+
+    public synchronized void unregisterImuGyroBatchCallback(IEmgImuSenseBatchCallback callback)
+    {
+        if (removeBatcher(imuGyroBatchers, callback.asBinder())) {
+            gyroSubscription.release();
+        }
+    }
+
+    public void registerImuMagCallback(IEmgImuSenseCallback callback)
+    {
+        if (imuMagCbs.add(callback)) {
+            magSubscription.acquire();
         }
     }
 
     public void unregisterImuMagCallback(IEmgImuSenseCallback callback)
     {
-        disableMagNotifications();
-        if(!imuMagCbs.isEmpty()) {
-            imuMagCbs.remove(callback);
+        if (imuMagCbs.remove(callback)) {
+            magSubscription.release();
         }
     }
 
-    public void registerImuQuatCallback(IEmgImuQuatCallback callback)
+    public synchronized void registerImuMagBatchCallback(IEmgImuSenseBatchCallback callback, long latencyBudgetMillis)
     {
-        if(imuQuatCbs.contains(callback)) {
+        if (findBatcher(imuMagBatchers, callback.asBinder()) != null) {
             return;
         }
-        imuQuatCbs.add(callback);
-        if (isReady()) {
-            enableAttitudeNotifications(); // assuming Quaternion pairs with Attitude
+        imuMagBatchers.add(new CallbackBatcher<>(callback, latencyBudgetMillis, this::sendImuBatch));
+        magSubscription.acquire();
+    }
+
+    public synchronized void unregisterImuMagBatchCallback(IEmgImuSenseBatchCallback callback)
+    {
+        if (removeBatcher(imuMagBatchers, callback.asBinder())) {
+            magSubscription.release();
+        }
+    }
+
+    public void registerImuQuatCallback(IEmgImuQuatCallback callback)
+    {
+        if (imuQuatCbs.add(callback)) {
+            attitudeSubscription.acquire(); // assuming Quaternion pairs with Attitude
         }
     }
 
     public void unregisterImuQuatCallback(IEmgImuQuatCallback callback)
     {
-        disableAttitudeNotifications(); // assuming Quaternion pairs with Attitude
-        if(!imuQuatCbs.isEmpty()) {
-            imuQuatCbs.remove(callback);
+        if (imuQuatCbs.remove(callback)) {
+            attitudeSubscription.release();
         }
     }
 
@@ -367,14 +627,203 @@ public class EmgImuManager extends BleManager {
             batCbs.remove(callback);
         }
     }
+
+    // The stream logger records the streams that are enabled. It holds a reference only
+    // on the streams it was asked to keep, so by default it enables nothing itself.
+    private boolean streamLoggerSubscribed;
+    private int loggedStreams;
+    private int streamLoggerStreams;
+    private volatile FirebaseWriter.Format streamLogFormat = FirebaseWriter.Format.JSON;
+
+    /**
+     * Write the stream logs created from now on in this format. JSON unless changed, the
+     * binary format has to be converted before the existing analysis tools can read it.
+     */
+    public void setStreamLogFormat(FirebaseWriter.Format format) {
+        streamLogFormat = format;
+    }
+
+    /**
+     * Keep these streams enabled for the stream log while logging, even when nothing else
+     * uses them. Other streams are only logged while they have a subscriber.
+     * @param streams bitmask of the IEmgImuServiceBinder NETWORK_STREAM constants
+     */
+    public synchronized void setLoggedStreams(int streams) {
+        loggedStreams = streams;
+        if (streamLoggerSubscribed) {
+            changeSubscriptions(streamLoggerStreams, streams);
+            streamLoggerStreams = streams;
+        }
+    }
+
+    private synchronized void subscribeStreamLogger() {
+        if (streamLoggerSubscribed)
+            return;
+        streamLoggerSubscribed = true;
+        changeSubscriptions(0, loggedStreams);
+        streamLoggerStreams = loggedStreams;
+    }
+
+    private synchronized void unsubscribeStreamLogger() {
+        if (!streamLoggerSubscribed)
+            return;
+        streamLoggerSubscribed = false;
+        changeSubscriptions(streamLoggerStreams, 0);
+        streamLoggerStreams = 0;
+    }
+
+    /**
+     * Receives the parsed streams on the notification thread, for consumers inside the
+     * service that should not cost an AIDL transaction per packet, such as network
+     * streaming. Arrays are only valid during the call, the parsers reuse some of them.
+     */
+    public interface StreamSink {
+        void onEmgPwr(BluetoothDevice device, long timestamp_ms, int [] data);
+        void onEmgBuff(BluetoothDevice device, long timestamp_ms, int channels, int samples, double [][] data);
+        void onAccel(BluetoothDevice device, long timestamp_ms, float [][] data);
+        void onGyro(BluetoothDevice device, long timestamp_ms, float [][] data);
+        void onMag(BluetoothDevice device, long timestamp_ms, float [][] data);
+        void onAttitude(BluetoothDevice device, long timestamp_ms, float [] quat);
+    }
+
+    // Read from the notification thread, so copy to a local before use
+    private volatile StreamSink streamSink;
+    private volatile int streamSinkStreams;
+
+    /**
+     * Send the selected streams to the sink, holding a reference on each so their
+     * notifications stay enabled while it is set.
+     * @param streams bitmask of the IEmgImuServiceBinder NETWORK_STREAM constants
+     */
+    public synchronized void setStreamSink(StreamSink sink, int streams) {
+        if (sink == null)
+            streams = 0;
+        changeSubscriptions(streamSinkStreams, streams);
+        streamSink = sink;
+        streamSinkStreams = streams;
+    }
+
+    /** The sink if it takes this stream, otherwise null */
+    private StreamSink sinkFor(int stream) {
+        StreamSink sink = streamSink;
+        return sink != null && (streamSinkStreams & stream) != 0 ? sink : null;
+    }
+
+    // Binder proxies are not reused between calls, so match batch callbacks by their binder
+    private static <C extends IInterface, T> CallbackBatcher<C, T> findBatcher(List<CallbackBatcher<C, T>> batchers, IBinder binder) {
+        for (CallbackBatcher<C, T> b : batchers) {
+            if (b.getCallback().asBinder() == binder)
+                return b;
+        }
+        return null;
+    }
+
+    private static <C extends IInterface, T> boolean removeBatcher(List<CallbackBatcher<C, T>> batchers, IBinder binder) {
+        CallbackBatcher<C, T> b = findBatcher(batchers, binder);
+        return b != null && batchers.remove(b);
+    }
+
+    private void sendEmgStreamBatch(IEmgImuStreamDataBatchCallback callback, List<EmgStreamData> batch) throws RemoteException {
+        callback.handleDataBatch(getBluetoothDevice(), batch.toArray(new EmgStreamData[0]));
+    }
+
+    private void sendImuBatch(IEmgImuSenseBatchCallback callback, List<ImuData> batch) throws RemoteException {
+        callback.handleDataBatch(getBluetoothDevice(), batch.toArray(new ImuData[0]));
+    }
+
+    private long pollBatchers(List<? extends CallbackBatcher<?, ?>> batchers, NotificationSubscription subscription, long nowNanos) {
+        long wait = Long.MAX_VALUE;
+        for (CallbackBatcher<?, ?> b : batchers) {
+            if (b.isDead()) {
+                synchronized (this) {
+                    if (batchers.remove(b))
+                        subscription.release();
+                }
+                continue;
+            }
+            wait = Math.min(wait, b.poll(nowNanos));
+        }
+        return wait;
+    }
+
+    /** Called on the notification thread to send any batches whose budget has expired */
+    private long flushBatches(long nowNanos) {
+        long wait = pollBatchers(emgStreamBatchers, emgBuffSubscription, nowNanos);
+        wait = Math.min(wait, pollBatchers(emgStreamRawBatchers, emgBuffSubscription, nowNanos));
+        wait = Math.min(wait, pollBatchers(imuAccelBatchers, accelSubscription, nowNanos));
+        wait = Math.min(wait, pollBatchers(imuGyroBatchers, gyroSubscription, nowNanos));
+        wait = Math.min(wait, pollBatchers(imuMagBatchers, magSubscription, nowNanos));
+        return wait;
+    }
     // endregion
 
+    // Streaming notifications are copied into this ring on the BLE thread and decoded on
+    // a dedicated thread so slow callbacks cannot stall the BLE stack.
+    private static final int TYPE_EMG_PWR = 0;
+    private static final int TYPE_EMG_BUFF = 1;
+    private static final int TYPE_ACCEL = 2;
+    private static final int TYPE_GYRO = 3;
+    private static final int TYPE_MAG = 4;
+    private static final int TYPE_ATTITUDE = 5;
+    private static final int NOTIFICATION_TYPES = 6;
+    private static final int NOTIFICATION_RING_SIZE = 512;
+
+    private final NotificationRing notificationRing = new NotificationRing(NOTIFICATION_RING_SIZE, NOTIFICATION_TYPES);
+    private final NotificationDispatcher notificationDispatcher;
+
     public EmgImuManager(final Context context) {
 		super(context);
         mSynced = false;
         mFetchRecords = false;
+
+        notificationDispatcher = new NotificationDispatcher("EmgImuNotifications", notificationRing, this::dispatchNotification);
+        notificationDispatcher.setErrorHandler((type, e) -> {
+            log(Log.ERROR, "Error parsing notification type " + type + ": " + e.getMessage());
+            e.printStackTrace();
+        });
+        notificationDispatcher.setTimer(this::flushBatches);
+        notificationDispatcher.start();
 	}
 
+    /** Select what happens when notifications arrive faster than they can be decoded */
+    public void setQueueOverflowPolicy(NotificationRing.OverflowPolicy policy) {
+        notificationRing.setOverflowPolicy(policy);
+    }
+
+    /** Called on the BLE thread. Copies the notification so the BLE stack can reuse its buffer. */
+    private void queueNotification(int type, Data data) {
+        long arrivalNanos = SystemClock.elapsedRealtimeNanos();
+        byte [] value = data.getValue();
+        if (value == null)
+            return;
+        notificationRing.offer(type, value, value.length, arrivalNanos);
+    }
+
+    /** Called on the notification thread for each queued notification */
+    private void dispatchNotification(int type, byte [] buffer, int length, long arrivalNanos) {
+        final BluetoothDevice device = getBluetoothDevice();
+        switch (type) {
+            case TYPE_EMG_PWR:
+                parseEmgPwr(device, buffer, length, arrivalNanos);
+                break;
+            case TYPE_EMG_BUFF:
+                parseEmgBuff(device, buffer, length, arrivalNanos);
+                break;
+            case TYPE_ACCEL:
+                parseImuAccel(device, buffer, length, arrivalNanos);
+                break;
+            case TYPE_GYRO:
+                parseImuGyro(device, buffer, length, arrivalNanos);
+                break;
+            case TYPE_MAG:
+                parseImuMag(device, buffer, length, arrivalNanos);
+                break;
+            case TYPE_ATTITUDE:
+                parseImuAttitude(device, buffer, length, arrivalNanos);
+                break;
+        }
+    }
+
     @NonNull
 	@Override
 	protected BleManagerGattCallback getGattCallback()
@@ -385,11 +834,31 @@ public class EmgImuManager extends BleManager {
     public void close() {
 	    super.close();
 
+        // The dispatcher writes to the shared ring, the logger and the sink, so it has to
+        // finish before they are closed
+        if (!notificationDispatcher.stop())
+            Log.w(TAG, "Notification dispatcher did not stop in time: " + getAddress());
+
+        synchronized (this) {
+            for (SharedMemoryClient client : new ArrayList<>(emgSharedRingClients.values()))
+                removeSharedMemoryClient(client);
+            if (emgSharedRegion != null) {
+                try {
+                    emgSharedRegion.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                emgSharedRingFile.delete();
+            }
+        }
+
         if (mLogging && streamLogger != null) {
             Log.d(TAG, "Closing stream logger: " + getAddress());
             streamLogger.close();
             streamLogger = null;
         }
+        unsubscribeStreamLogger();
+        setStreamSink(null, 0);
     }
 
 	/**
@@ -581,8 +1050,9 @@ public class EmgImuManager extends BleManager {
             }
 
             if (mLogging) {
-                streamLogger = new FirebaseStreamLogger(EmgImuManager.this, getContext());
+                streamLogger = new FirebaseStreamLogger(EmgImuManager.this, getContext(), streamLogFormat);
                 log(Log.INFO, "Created stream logger");
+                subscribeStreamLogger();
 
                 if (mSynced) {
                     streamLogger.addTimestampSync(SystemClock.elapsedRealtimeNanos(), timestampBaselineMilliseconds);
@@ -591,29 +1061,30 @@ public class EmgImuManager extends BleManager {
 
             connectionState.postValue(getConnectionState());
 
-            if (!emgPwrCbs.isEmpty()) {
+            // Notifications are off after connecting, so restore any streams in use
+            if (emgPwrSubscription.isActive()) {
                 enableEmgPwrNotifications();
             }
 
-            if(!emgStreamCbs.isEmpty()) {
+            if (emgBuffSubscription.isActive()) {
                 enableEmgBuffNotifications();
             }
 
-            if (!imuAccelCbs.isEmpty()) {
+            if (accelSubscription.isActive()) {
                 enableAccelNotifications();
             }
 
-            if (!imuGyroCbs.isEmpty() ) {
+            if (gyroSubscription.isActive()) {
                 enableGyroNotifications();
             }
 
-            if (!imuMagCbs.isEmpty()) {
+            if (magSubscription.isActive()) {
                 enableMagNotifications();
             }
 
-            if (!imuQuatCbs.isEmpty()) {
+            if (attitudeSubscription.isActive()) {
                 enableAttitudeNotifications();
-            } else
+            }
 
             super.onDeviceReady();
         }
@@ -653,6 +1124,7 @@ public class EmgImuManager extends BleManager {
                 streamLogger.close();
                 streamLogger = null;
             }
+            unsubscribeStreamLogger();
 		}
 
     };
@@ -660,64 +1132,23 @@ public class EmgImuManager extends BleManager {
 	public MutableLiveData<Integer> connectionState = new MutableLiveData<>(BluetoothGatt.STATE_DISCONNECTED);
 	public LiveData<Integer> getConnectionLiveState() { return connectionState; }
 
-    class TimestampResolved {
-
-        int last_counter;
-        long last_sensor_timestamp;
+    // Offset from elapsed realtime to wall clock. Fixed when the manager is created so
+    // the stream timestamps remain monotonic if the wall clock is adjusted.
+    private final long wallClockOffsetMillis = System.currentTimeMillis() - SystemClock.elapsedRealtime();
 
-        float sensor_Fs;
-        float rtc_Fs;
-
-        double delta = 0;
-        boolean updated = false;
-        int alias = 65536;
-
-        String name;
-
-        public TimestampResolved(float Fs, String name) {
-            this.sensor_Fs = Fs;
-            rtc_Fs = 8.0f;
-            updated = false;
-            this.name = name;
-        }
-
-        public TimestampResolved setAlias(int alias) {
-            this.alias = alias;
-            return this;
-        }
-
-        public long resolveTime(int counter, long timestamp, int samples) {
-
-            float counter_timestamp = counter / (sensor_Fs / samples);
-            if (!updated) {
-                updated = true;
-                this.delta = new Date().getTime() - (long) (counter_timestamp * 1000.0f);
-            }
-
-            long counter_diff = counter - last_counter;
-            if (counter_diff > 1) {
-                droppedSampledCounter++;
-                Log.d(TAG, this.name + " Missed sample " + counter + " " + last_counter + " | Victor's counter: " + droppedSampledCounter);
-            } else if (counter_diff < 0) {
-                Log.d(TAG, this.name + " Wraparound. " + this.alias + " " + counter);
-                this.delta = this.delta + this.alias / (sensor_Fs / samples) * 1000.0f;
-            }
-            last_counter = counter;
-
-            long final_timestamp = (long) (this.delta + counter_timestamp * 1000.0f);
-            long real_delta = new Date().getTime() - final_timestamp;
-            if (real_delta > 200 || real_delta < -200) {
-                Log.e(TAG, this.name + " Significant sensor drift detected. " + final_timestamp + " " + real_delta);
-                this.delta = this.delta + real_delta;
-            }
-
-            //final_timestamp = timestampToReal(timestamp);
-            return final_timestamp;
-        }
+    /**
+     * Update the clock model for a stream with a new packet.
+     * @return wall clock time in milliseconds of the last sample in the packet
+     */
+    private long resolveTime(SensorClock clock, int counter, long androidElapsedNanos, int samples) {
+        long packetNanos = clock.update(counter, androidElapsedNanos, samples);
+        return wallClockOffsetMillis + packetNanos / 1_000_000L;
     }
 
-    TimestampResolved emgPwrResolver = new TimestampResolved(EMG_FS / 20, "EmgPwr").setAlias(256);
-    TimestampResolved emgStreamResolver = new TimestampResolved(EMG_FS, "EmgStream").setAlias(256);
+    private final SensorClock emgPwrClock = new SensorClock("EmgPwr", EMG_FS / 20, 256);
+    private final SensorClock emgStreamClock = new SensorClock("EmgStream", EMG_FS, 256);
+    private final StreamMetrics emgPwrMetrics = new StreamMetrics("EmgPwr", emgPwrClock);
+    private final StreamMetrics emgStreamMetrics = new StreamMetrics("EmgBuff", emgStreamClock);
 
     /**
      * @brief   This method parses the EMG power value from a Bluetooth LE message
@@ -748,224 +1179,249 @@ public class EmgImuManager extends BleManager {
      *              - Byte 8: channel 1 LSB
      *              - Byte 9: channel 1 MSB
      * @param device            Specific sensor connected via Bluetooth LE, recognized by it's MAC address.
-     * @param characteristic    Bluetooth LE message received from the wearable sensor. See details
+     * @param buffer            Bluetooth LE message received from the wearable sensor. See details
      *                          for format.
+     * @param length            Number of valid bytes in buffer.
+     * @param androidElapsedNanos   Elapsed realtime when the notification was received.
      */
-    private void parseEmgPwr(BluetoothDevice device,  Data characteristic) {
-        int expectedNumberOfChannels = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0) >> 4;
-        int counter = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 1);
-        long raw_timestamp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 2);
+    private void parseEmgPwr(BluetoothDevice device, byte [] buffer, int length, long androidElapsedNanos) {
+        long dequeuedNanos = SystemClock.elapsedRealtimeNanos();
+
+        int expectedNumberOfChannels = ByteFields.uint8(buffer, 0) >> 4;
+        int counter = ByteFields.uint8(buffer, 1);
+        long raw_timestamp = ByteFields.uint32(buffer, 2);
         long timestamp = timestampToReal(raw_timestamp);
-        long timestamp_ms = emgPwrResolver.resolveTime(counter, timestamp, 1);
-        int[] emgPowerChannels = new int[expectedNumberOfChannels];
 
-        long androidElapsedNanos = SystemClock.elapsedRealtimeNanos();
+        long timestamp_ms = resolveTime(emgPwrClock, counter, androidElapsedNanos, 1);
+        int[] emgPowerChannels = new int[expectedNumberOfChannels];
 
         // Parses the characteristic array for the emgPwr and packs it into n-dim array.
-        for(int messageIndex=BLE_MSG_HEADER_SIZE, channelIndex=0; messageIndex<characteristic.size(); messageIndex+=2, channelIndex++) {
-            emgPowerChannels[channelIndex] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, messageIndex);
+        for(int messageIndex=BLE_MSG_HEADER_SIZE, channelIndex=0; messageIndex + 1 < length && channelIndex < expectedNumberOfChannels; messageIndex+=2, channelIndex++) {
+            emgPowerChannels[channelIndex] = ByteFields.uint16(buffer, messageIndex);
         }
 
         // Sends the data to the rest of the application.
+        long parsedNanos = SystemClock.elapsedRealtimeNanos();
         onEmgPwrReceived(device, timestamp_ms, expectedNumberOfChannels, emgPowerChannels);
+        StreamSink sink = sinkFor(IEmgImuServiceBinder.NETWORK_STREAM_EMG_PWR);
+        if (sink != null)
+            sink.onEmgPwr(device, timestamp_ms, emgPowerChannels);
+        emgPwrMetrics.recordPacket(androidElapsedNanos, dequeuedNanos, parsedNanos, SystemClock.elapsedRealtimeNanos());
 
         // Saves data to a .json log file locally on device & transmits the data to the cloud.
-        if (mLogging && streamLogger != null) {
-            streamLogger.addPwrSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, emgPowerChannels);
+        final FirebaseStreamLogger logger = streamLogger;
+        if (mLogging && logger != null) {
+            logger.addPwrSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, emgPowerChannels);
         }
     }
 
-    private void parseEmgBuff(final BluetoothDevice device, final Data characteristic) {
-        long androidElapsedNanos = SystemClock.elapsedRealtimeNanos();
+    private final EmgBuffParser emgBuffParser = new EmgBuffParser();
 
-        final byte [] buffer = characteristic.getValue();
-        int len = buffer.length;
+    private void parseEmgBuff(final BluetoothDevice device, final byte [] buffer, final int length, final long androidElapsedNanos) {
+        long dequeuedNanos = SystemClock.elapsedRealtimeNanos();
 
-        int format = buffer[0] & 0xFF;
-
-        double microvolts_per_lsb;
+        if (!emgBuffParser.parse(buffer, length)) {
+            log(Log.ERROR, "Unsupported data format");
+            return;
+        }
 
-        int counter = characteristic.getIntValue(FORMAT_UINT8, 1);
-        long raw_timestamp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 2);
+        int counter = emgBuffParser.getCounter();
+        long raw_timestamp = emgBuffParser.getRawTimestamp();
         long timestamp = timestampToReal(raw_timestamp);
 
-        long buf_ts_ms = 0;
-
-        double [][] data;
-        int channels;
-        int samples;
+        int channels = emgBuffParser.getChannels();
+        int samples = emgBuffParser.getSamples();
 
-        int HDR_LEN = 6;
-        switch(format) {
-            // Data from single channel system
-            case 16: // 1 channel of 16 bit data
-                buf_ts_ms = emgStreamResolver.resolveTime(counter, timestamp, EMG_BUFFER_LEN);
+        // Note: the parser owns this array and reuses it for the next packet
+        double [][] data = emgBuffParser.getData();
 
-                // Have to manually combine to get the endian right
+        long buf_ts_ms = resolveTime(emgStreamClock, counter, androidElapsedNanos, samples);
 
-                double ina333_gain = 1+(100.0 / 10.0);   // for 10k resistor
-                double bandpass_gain = 10;  //# 1M / 100k
-                double nrf52383_gain = 1.0 / 1.0; // more easily programmable now differential
-                double analog_gain = ina333_gain * bandpass_gain;
-
-                double lsb_per_v = analog_gain * nrf52383_gain / 0.6 * (1<<13);
-                microvolts_per_lsb = 1.0e6 / lsb_per_v;
-
-                channels = 1;
-                samples = EMG_BUFFER_LEN;
-                data = new double[channels][samples];
-
-                for (int i = 0; i < samples; i++) {
-                    byte [] array = {buffer[HDR_LEN + i*2], buffer[HDR_LEN + i*2+1]};
+        if (mChannels != channels){
+            log(Log.ERROR, "Current channel expected: " + mChannels);
+            log(Log.ERROR, "Received: " + channels);
+            throw new RuntimeException("Channel count seemed to change between calls");
+        }
 
-                    // check the sample counter and make sure no data was lost
-                    int count = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN).getShort();
-                    data[0][i] = count * microvolts_per_lsb;
-                }
+        long parsedNanos = SystemClock.elapsedRealtimeNanos();
 
-                break;
-            case 0x21:
-            case 0x81:
-
-                channels = format >> 4;
-                samples = (characteristic.getValue().length - HDR_LEN) / 3 / channels;
-
-                final double ads1298_gain = 8;
-                final double vref = 2.42e6;
-                double full_scale_range = 2 * vref / ads1298_gain;
-                microvolts_per_lsb = full_scale_range / ((1<<24) - 1);
-
-                buf_ts_ms = emgStreamResolver.resolveTime(counter, timestamp, samples);
-
-                // representation of the data is 3 bytes per sample, 8 channels, and then N samples
-                data = new double[channels][samples];
-                for (int ch = 0; ch < channels; ch++) {
-                    for (int sample = 0; sample < samples; sample++) {
-                        int idx = HDR_LEN + 3 * (ch + channels * sample);
-                        byte sign = ((buffer[idx] & 0x80) == 0x80) ? (byte) 0xff : (byte) 0x00;
-                        byte [] t_array = {sign, buffer[idx], buffer[idx+1], buffer[idx+2]};
-                        data[ch][sample] = ByteBuffer.wrap(t_array).order(ByteOrder.BIG_ENDIAN).getInt();
-                        data[ch][sample] = microvolts_per_lsb * data[ch][sample];
-                    }
-                }
+        if (!emgStreamCbs.isEmpty() || !emgStreamBatchers.isEmpty()) {
+            onEmgStreamReceived(device, buf_ts_ms, data);
+        }
 
-                break;
-            default:
-                log(Log.ERROR, "Unsupported data format");
-                return;
+        if (!emgStreamRawCbs.isEmpty() || !emgStreamRawBatchers.isEmpty()) {
+            EmgPacketCodec codec = emgBuffParser.getCodec();
+            onEmgStreamRawReceived(device, buf_ts_ms, channels, samples, emgBuffParser.getCounts(), codec.getMicrovoltsPerLsb(), codec.getSampleRate());
         }
 
-        if (mChannels != channels){
-            log(Log.ERROR, "Current channel expected: " + mChannels);
-            log(Log.ERROR, "Received: " + channels);
-            throw new RuntimeException("Channel count seemed to change between calls");
+        StreamSink sink = sinkFor(IEmgImuServiceBinder.NETWORK_STREAM_EMG_BUFF);
+        if (sink != null)
+            sink.onEmgBuff(device, buf_ts_ms, channels, samples, data);
+
+        if (emgSharedRingUsers > 0) {
+            writeEmgSharedRecord(buf_ts_ms, channels, samples, emgBuffParser.getCounts(), emgBuffParser.getMicrovoltsPerLsb());
         }
 
-        onEmgStreamReceived(device, buf_ts_ms, data);
+        emgStreamMetrics.recordPacket(androidElapsedNanos, dequeuedNanos, parsedNanos, SystemClock.elapsedRealtimeNanos());
 
-        if (mLogging && streamLogger != null) {
-            streamLogger.addStreamSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, channels, samples, data);
+        final FirebaseStreamLogger logger = streamLogger;
+        if (mLogging && logger != null) {
+            logger.addStreamSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, channels, samples, data);
         }
     }
 
     float IMU_FS = 562.5f;
-    TimestampResolved accelResolver = new TimestampResolved(IMU_FS, "Accel");
-    TimestampResolved gyroResolver = new TimestampResolved(IMU_FS, "Gyro");
-    TimestampResolved magResolver = new TimestampResolved(IMU_FS, "Mag");
-    TimestampResolved attitudeResolver = new TimestampResolved(IMU_FS / 10.0f, "Attitude");
+    private final SensorClock accelClock = new SensorClock("Accel", IMU_FS, 65536);
+    private final SensorClock gyroClock = new SensorClock("Gyro", IMU_FS, 65536);
+    private final SensorClock magClock = new SensorClock("Mag", IMU_FS, 65536);
+    private final SensorClock attitudeClock = new SensorClock("Attitude", IMU_FS / 10.0f, 65536);
+    private final StreamMetrics accelMetrics = new StreamMetrics("Accel", accelClock);
+    private final StreamMetrics gyroMetrics = new StreamMetrics("Gyro", gyroClock);
+    private final StreamMetrics magMetrics = new StreamMetrics("Mag", magClock);
+    private final StreamMetrics attitudeMetrics = new StreamMetrics("Attitude", attitudeClock);
+
+    /** Queue and lag of every client subscribed to this sensor */
+    public List<EmgImuSubscriberMetrics> getSubscriberMetrics() {
+        String mac = getAddress();
+        List<EmgImuSubscriberMetrics> metrics = new ArrayList<>();
+        for (CallbackFanout<?, ?> f : new CallbackFanout<?, ?>[] {emgPwrCbs, emgStreamCbs, emgStreamRawCbs, imuAccelCbs, imuGyroCbs, imuMagCbs, imuQuatCbs, batCbs})
+            metrics.addAll(f.snapshot(mac));
+        return metrics;
+    }
+
+    /** Snapshot of the link health of every stream from this sensor */
+    public List<EmgImuStreamMetrics> getStreamMetrics() {
+        String mac = getAddress();
+        StreamMetrics [] streams = {emgPwrMetrics, emgStreamMetrics, accelMetrics, gyroMetrics, magMetrics, attitudeMetrics};
+        int [] types = {TYPE_EMG_PWR, TYPE_EMG_BUFF, TYPE_ACCEL, TYPE_GYRO, TYPE_MAG, TYPE_ATTITUDE};
+        List<EmgImuStreamMetrics> metrics = new ArrayList<>();
+        for (int i = 0; i < streams.length; i++) {
+            EmgImuStreamMetrics m = streams[i].snapshot(mac);
+            m.queueDepth = notificationRing.getDepth();
+            m.queueCapacity = notificationRing.getCapacity();
+            m.queueHighWater = notificationRing.getHighWater();
+            m.queueDropped = notificationRing.getDropped(types[i]);
+            metrics.add(m);
+        }
+        return metrics;
+    }
 
-    private void parseImuAccel(final BluetoothDevice device, final Data characteristic) {
-        long androidElapsedNanos = SystemClock.elapsedRealtimeNanos();
+    private void parseImuAccel(final BluetoothDevice device, final byte [] buffer, final int length, final long androidElapsedNanos) {
+        long dequeuedNanos = SystemClock.elapsedRealtimeNanos();
 
-        int counter = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-        long raw_timestamp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 2);
+        int counter = ByteFields.uint16(buffer, 0);
+        long raw_timestamp = ByteFields.uint32(buffer, 2);
         long timestamp = timestampToReal(raw_timestamp);
 
-        int len = characteristic.getValue().length - 6;
+        int len = length - 6;
         int samples = len / 6; // 6 bytes per entry
 
-        accelResolver.resolveTime(counter, timestamp, samples);
+        long timestamp_ms = resolveTime(accelClock, counter, androidElapsedNanos, samples);
 
         final float ACCEL_SCALE = 9.8f * 16.0f / (float) Math.pow(2.0f, 15.0f);  // for 16G to m/s
         float accel[][] = new float[3][samples];
         for (int idx = 0; idx < samples; idx++)
             for (int chan = 0; chan < 3; chan++)
-                accel[chan][idx] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, (chan + idx * 3) * 2 + 6) * ACCEL_SCALE;
+                accel[chan][idx] = ByteFields.sint16(buffer, (chan + idx * 3) * 2 + 6) * ACCEL_SCALE;
 
+        long parsedNanos = SystemClock.elapsedRealtimeNanos();
         onImuAccelReceived(device, accel);
+        StreamSink sink = sinkFor(IEmgImuServiceBinder.NETWORK_STREAM_ACCEL);
+        if (sink != null)
+            sink.onAccel(device, timestamp_ms, accel);
+        accelMetrics.recordPacket(androidElapsedNanos, dequeuedNanos, parsedNanos, SystemClock.elapsedRealtimeNanos());
 
-        if (mLogging && streamLogger != null) {
+        final FirebaseStreamLogger logger = streamLogger;
+        if (mLogging && logger != null) {
             // long sensor_timestamp, int sensor_counter
-            streamLogger.addAccelSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, accel);
+            logger.addAccelSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, accel);
         }
     }
 
-    private void parseImuGyro(final BluetoothDevice device, final Data characteristic) {
-        long androidElapsedNanos = SystemClock.elapsedRealtimeNanos();
+    private void parseImuGyro(final BluetoothDevice device, final byte [] buffer, final int length, final long androidElapsedNanos) {
+        long dequeuedNanos = SystemClock.elapsedRealtimeNanos();
 
-        int counter = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-        long raw_timestamp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 2);
+        int counter = ByteFields.uint16(buffer, 0);
+        long raw_timestamp = ByteFields.uint32(buffer, 2);
         long timestamp = timestampToReal(raw_timestamp);
 
-        int len = characteristic.getValue().length - 6;
+        int len = length - 6;
         int samples = len / 6; // 6 bytes per entry
 
-        gyroResolver.resolveTime(counter, timestamp, samples);
+        long timestamp_ms = resolveTime(gyroClock, counter, androidElapsedNanos, samples);
 
         final float GYRO_SCALE = 2000.0f / (float) Math.pow(2.0f, 15.0f);  // at 2000 deg/s to deg/s
         float gyro[][] = new float[3][samples];
         for (int idx = 0; idx < samples; idx++)
             for (int chan = 0; chan < 3; chan++)
-                gyro[chan][idx] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, (chan + idx * 3) * 2 + 6) * GYRO_SCALE;
+                gyro[chan][idx] = ByteFields.sint16(buffer, (chan + idx * 3) * 2 + 6) * GYRO_SCALE;
 
+        long parsedNanos = SystemClock.elapsedRealtimeNanos();
         onImuGyroReceived(device, gyro);
-
-        if (mLogging && streamLogger != null) {
-            streamLogger.addGyroSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, gyro);
+        StreamSink sink = sinkFor(IEmgImuServiceBinder.NETWORK_STREAM_GYRO);
+        if (sink != null)
+            sink.onGyro(device, timestamp_ms, gyro);
+        gyroMetrics.recordPacket(androidElapsedNanos, dequeuedNanos, parsedNanos, SystemClock.elapsedRealtimeNanos());
+
+        final FirebaseStreamLogger logger = streamLogger;
+        if (mLogging && logger != null) {
+            logger.addGyroSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, gyro);
         }
     }
 
-    private void parseImuMag(final BluetoothDevice device, final Data characteristic) {
-        long androidElapsedNanos = SystemClock.elapsedRealtimeNanos();
+    private void parseImuMag(final BluetoothDevice device, final byte [] buffer, final int length, final long androidElapsedNanos) {
+        long dequeuedNanos = SystemClock.elapsedRealtimeNanos();
 
-        int counter = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-        long raw_timestamp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 2);
+        int counter = ByteFields.uint16(buffer, 0);
+        long raw_timestamp = ByteFields.uint32(buffer, 2);
         long timestamp = timestampToReal(raw_timestamp);
 
-        int len = characteristic.getValue().length - 6;
+        int len = length - 6;
         int samples = len / 6; // 6 bytes per entry
 
-        magResolver.resolveTime(counter, timestamp, samples);
+        long timestamp_ms = resolveTime(magClock, counter, androidElapsedNanos, samples);
 
         float mag[][] = new float[3][samples];
         for (int idx = 0; idx < samples; idx++)
             for (int chan = 0; chan < 3; chan++)
-                mag[chan][idx] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, (chan + idx * 3) * 2 + 6);
+                mag[chan][idx] = ByteFields.sint16(buffer, (chan + idx * 3) * 2 + 6);
 
+        long parsedNanos = SystemClock.elapsedRealtimeNanos();
         onImuMagReceived(device, mag);
-
-        if (mLogging && streamLogger != null) {
-            streamLogger.addMagSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, mag);
+        StreamSink sink = sinkFor(IEmgImuServiceBinder.NETWORK_STREAM_MAG);
+        if (sink != null)
+            sink.onMag(device, timestamp_ms, mag);
+        magMetrics.recordPacket(androidElapsedNanos, dequeuedNanos, parsedNanos, SystemClock.elapsedRealtimeNanos());
+
+        final FirebaseStreamLogger logger = streamLogger;
+        if (mLogging && logger != null) {
+            logger.addMagSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, mag);
         }
     }
 
-    private void parseImuAttitude(final BluetoothDevice device, final Data characteristic) {
-        long androidElapsedNanos = SystemClock.elapsedRealtimeNanos();
+    private void parseImuAttitude(final BluetoothDevice device, final byte [] buffer, final int length, final long androidElapsedNanos) {
+        long dequeuedNanos = SystemClock.elapsedRealtimeNanos();
 
-        int counter = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-        long raw_timestamp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 2);
+        int counter = ByteFields.uint16(buffer, 0);
+        long raw_timestamp = ByteFields.uint32(buffer, 2);
         long timestamp = timestampToReal(raw_timestamp);
 
-        attitudeResolver.resolveTime(counter, timestamp, 1);
+        long timestamp_ms = resolveTime(attitudeClock, counter, androidElapsedNanos, 1);
 
         final float scale = 1.0f / 32767f;
         float quat[] = new float[4];
         for (int i = 0; i < 4; i++)
-            quat[i] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, i * 2 + 6) * scale;
+            quat[i] = ByteFields.sint16(buffer, i * 2 + 6) * scale;
+        long parsedNanos = SystemClock.elapsedRealtimeNanos();
         onImuAttitudeReceived(device, quat);
-
-        if (mLogging && streamLogger != null) {
-            streamLogger.addAttitudeSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, quat);
+        StreamSink sink = sinkFor(IEmgImuServiceBinder.NETWORK_STREAM_ATTITUDE);
+        if (sink != null)
+            sink.onAttitude(device, timestamp_ms, quat);
+        attitudeMetrics.recordPacket(androidElapsedNanos, dequeuedNanos, parsedNanos, SystemClock.elapsedRealtimeNanos());
+
+        final FirebaseStreamLogger logger = streamLogger;
+        if (mLogging && logger != null) {
+            logger.addAttitudeSample(new Date().getTime(), androidElapsedNanos, timestamp, raw_timestamp, counter, quat);
         }
     }
 
@@ -1005,6 +1461,17 @@ public class EmgImuManager extends BleManager {
         zeroCalibration.Ainv = new ArrayList<>(Arrays.asList(1.0e-3f, 0.0f, 0.0f, 0.0f, 1.0e-3f, 0.0f, 0.0f, 0.0f, 1.0e-3f));
         zeroCalibration.b = new ArrayList<>(Arrays.asList(0f,0f,0f));
         writeImuCalibration(zeroCalibration, listener);
+
+        // The calibration is computed from the stream log, which the server reads as JSON
+        synchronized (this) {
+            if (mLogging && streamLogger != null && streamLogger.isBinary()) {
+                log(Log.INFO, "Switching to a JSON stream log for calibration");
+                streamLogger.close();
+                streamLogger = new FirebaseStreamLogger(EmgImuManager.this, getContext(), FirebaseWriter.Format.JSON);
+                if (mSynced)
+                    streamLogger.addTimestampSync(SystemClock.elapsedRealtimeNanos(), timestampBaselineMilliseconds);
+            }
+        }
     }
 
     void finishCalibration(CalibrationListener listener) {
@@ -1022,7 +1489,8 @@ public class EmgImuManager extends BleManager {
                     // We are essentially using closing and opening to flush a log to the
                     // server, so start a new one.
                     log(Log.INFO, "Streamed uploaded. Creating a new stream logger.");
-                    streamLogger = new FirebaseStreamLogger(EmgImuManager.this, getContext());
+                    // Keep calibrating from a JSON log, whatever format logging started in
+                    streamLogger = new FirebaseStreamLogger(EmgImuManager.this, getContext(), FirebaseWriter.Format.JSON);
 
                     FirebaseAuth mAuth = FirebaseAuth.getInstance();
                     FirebaseUser mUser = mAuth.getCurrentUser();
@@ -1491,7 +1959,7 @@ public class EmgImuManager extends BleManager {
     // Controls to enable what data we are receiving from the sensor
     public void enableEmgPwrNotifications() {
         enableNotifications(mEmgPwrCharacteristic)
-                .before(device -> setNotificationCallback(mEmgPwrCharacteristic).with((_device, data) -> parseEmgPwr(_device ,data)))
+                .before(device -> setNotificationCallback(mEmgPwrCharacteristic).with((_device, data) -> queueNotification(TYPE_EMG_PWR, data)))
                 .done(device -> log(Log.INFO, "EMG power notifications enabled successfully"))
                 .fail((device, status) -> log(Log.ERROR, "Unable to enable EMG power notification"))
                 .enqueue();
@@ -1503,7 +1971,7 @@ public class EmgImuManager extends BleManager {
 
     public void enableEmgBuffNotifications() {
         enableNotifications(mEmgBuffCharacteristic)
-                .before(device -> setNotificationCallback(mEmgBuffCharacteristic).with((_device, data) -> parseEmgBuff(_device ,data)))
+                .before(device -> setNotificationCallback(mEmgBuffCharacteristic).with((_device, data) -> queueNotification(TYPE_EMG_BUFF, data)))
                 .done(device -> log(Log.INFO, "EMG buffer notifications enabled successfully"))
                 .fail((device, status) -> log(Log.ERROR, "Unable to enable EMG buffer notification"))
                 .enqueue();
@@ -1515,7 +1983,7 @@ public class EmgImuManager extends BleManager {
 
     public void enableAttitudeNotifications() {
         enableNotifications(mImuAttitudeCharacteristic)
-                .before(device -> setNotificationCallback(mImuAttitudeCharacteristic).with((_device, data) -> parseImuAttitude(_device, data)))
+                .before(device -> setNotificationCallback(mImuAttitudeCharacteristic).with((_device, data) -> queueNotification(TYPE_ATTITUDE, data)))
                 .done(device -> log(Log.INFO, "Attitude notifications enabled successfully"))
                 .fail((device, status) -> log(Log.ERROR, "Unable to enable Attitude notification: " + status))
                 .enqueue();
@@ -1527,7 +1995,7 @@ public class EmgImuManager extends BleManager {
 
     public void enableAccelNotifications() {
         enableNotifications(mImuAccelCharacteristic)
-                .before(device -> setNotificationCallback(mImuAccelCharacteristic).with((_device, data) -> parseImuAccel(_device, data)))
+                .before(device -> setNotificationCallback(mImuAccelCharacteristic).with((_device, data) -> queueNotification(TYPE_ACCEL, data)))
                 .done(device -> log(Log.INFO, "Accel notifications enabled successfully"))
                 .fail((device, status) -> log(Log.ERROR, "Unable to enable Accel notification: " + status))
                 .enqueue();
@@ -1539,7 +2007,7 @@ public class EmgImuManager extends BleManager {
 
     public void enableGyroNotifications() {
         enableNotifications(mImuGyroCharacteristic)
-                .before(device -> setNotificationCallback(mImuGyroCharacteristic).with((_device, data) -> parseImuGyro(_device, data)))
+                .before(device -> setNotificationCallback(mImuGyroCharacteristic).with((_device, data) -> queueNotification(TYPE_GYRO, data)))
                 .done(device -> log(Log.INFO, "Gyro notifications enabled successfully"))
                 .fail((device, status) -> log(Log.ERROR, "Unable to enable Gyro notification: " + status))
                 .enqueue();
@@ -1551,7 +2019,7 @@ public class EmgImuManager extends BleManager {
 
     public void enableMagNotifications() {
         enableNotifications(mImuMagCharacteristic)
-                .before(device -> setNotificationCallback(mImuMagCharacteristic).with((_device, data) -> parseImuMag(_device, data)))
+                .before(device -> setNotificationCallback(mImuMagCharacteristic).with((_device, data) -> queueNotification(TYPE_MAG, data)))
                 .done(device -> log(Log.INFO, "Mag notifications enabled successfully"))
                 .fail((device, status) -> log(Log.ERROR, "Unable to enable Mag notification: " + status))
                 .enqueue();
@@ -1597,6 +2065,21 @@ public class EmgImuManager extends BleManager {
         return mEmgBuff;
     }
 
+    // Set when the manager plays back a log instead of talking to a sensor
+    private volatile BluetoothDevice replayDevice;
+
+    /** Stand in for the device a log is replayed as, see {@link StreamLogReplay} */
+    public void setReplayDevice(BluetoothDevice device) {
+        replayDevice = device;
+    }
+
+    /** The connected sensor, or the device being replayed */
+    @Override
+    public BluetoothDevice getBluetoothDevice() {
+        BluetoothDevice device = replayDevice;
+        return device != null ? device : super.getBluetoothDevice();
+    }
+
     public String getAddress() {
         if (getBluetoothDevice() == null)
             return "";
@@ -1677,13 +2160,7 @@ public class EmgImuManager extends BleManager {
     }
 
     public void onBatteryReceived(BluetoothDevice device, float battery) {
-        for (IEmgImuBatCallback cb : batCbs) {
-            try {
-                cb.handleData(device, battery);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+        batCbs.publish(battery);
     }
 
     /**
@@ -1713,13 +2190,7 @@ public class EmgImuManager extends BleManager {
             dataMessage.power[channelIndex] = emgPowerValues[channelIndex];
         }
         dataMessage.ts = timestamp_ms;
-        for (IEmgImuPwrDataCallback cb : emgPwrCbs) {
-            try {
-                cb.handleData(device, dataMessage);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+        emgPwrCbs.publish(dataMessage);
     }
 
     public void onEmgStreamReceived(BluetoothDevice device, long ts_ms, double[][] data) {
@@ -1729,12 +2200,10 @@ public class EmgImuManager extends BleManager {
         // First: send data to subscribed callbacks
         final int CHANNELS = data.length;
         final int SAMPLES = data[0].length;
-        double [] linearizedData = Stream.of(data).flatMapToDouble(DoubleStream::of).toArray();
-
-        // For reference. Might ultimately make sense to wrapper this in a utility class
-        // double [][] reconstructed = IntStream.range(0, CHANNELS)
-        //        .mapToObj(i -> Arrays.copyOfRange(linearizedData2, i * SAMPLES, (i + 1) * SAMPLES))
-        //        .toArray(double[][]::new);
+        double [] linearizedData = new double[CHANNELS * SAMPLES];
+        for (int ch = 0; ch < CHANNELS; ch++) {
+            System.arraycopy(data[ch], 0, linearizedData, ch * SAMPLES, SAMPLES);
+        }
 
         EmgStreamData dataMsg = new EmgStreamData();
         dataMsg.channels = CHANNELS;
@@ -1744,13 +2213,37 @@ public class EmgImuManager extends BleManager {
         dataMsg.ts = ts_ms;
         dataMsg.Fs = 2000; // TODO: access real data
 
-        for (IEmgImuStreamDataCallback cb : emgStreamCbs) {
-            try {
-                cb.handleData(device, dataMsg);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+        emgStreamCbs.publish(dataMsg);
+
+        long now = System.nanoTime();
+        for (CallbackBatcher<IEmgImuStreamDataBatchCallback, EmgStreamData> b : emgStreamBatchers)
+            b.add(dataMsg, now);
+    }
+
+    /**
+     * Sends the EMG stream to callbacks registered for raw counts.
+     * @param counts ADC counts packed by channel (channel * samples + sample). Copied
+     *               into the message so the caller may reuse the array.
+     * @param microvoltsPerLsb scale from counts to microvolts, the same for all channels
+     * @param sampleRate samples per second on each channel, as given by the packet codec
+     */
+    public void onEmgStreamRawReceived(BluetoothDevice device, long ts_ms, int channels, int samples, int[] counts, double microvoltsPerLsb, int sampleRate) {
+        EmgStreamData dataMsg = new EmgStreamData();
+        dataMsg.channels = channels;
+        dataMsg.samples = samples;
+        dataMsg.voltage = new double[0];
+        dataMsg.counts = Arrays.copyOf(counts, channels * samples);
+        dataMsg.microvoltsPerLsb = new double[channels];
+        Arrays.fill(dataMsg.microvoltsPerLsb, microvoltsPerLsb);
+        dataMsg.batteryVoltage = batteryVoltage.getValue();
+        dataMsg.ts = ts_ms;
+        dataMsg.Fs = sampleRate;
+
+        emgStreamRawCbs.publish(dataMsg);
+
+        long now = System.nanoTime();
+        for (CallbackBatcher<IEmgImuStreamDataBatchCallback, EmgStreamData> b : emgStreamRawBatchers)
+            b.add(dataMsg, now);
     }
 
     public void onImuAccelReceived(BluetoothDevice device, float[][] accel) {
@@ -1766,13 +2259,11 @@ public class EmgImuManager extends BleManager {
         dataMsg.y = accel[1];
         dataMsg.z = accel[2];
         dataMsg.ts = new Date().getTime();
-        for (IEmgImuSenseCallback cb : imuAccelCbs) {
-            try {
-                cb.handleData(device, dataMsg);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+        imuAccelCbs.publish(dataMsg);
+
+        long now = System.nanoTime();
+        for (CallbackBatcher<IEmgImuSenseBatchCallback, ImuData> b : imuAccelBatchers)
+            b.add(dataMsg, now);
     }
 
     public void onImuGyroReceived(BluetoothDevice device, float[][] gyro) {
@@ -1788,13 +2279,11 @@ public class EmgImuManager extends BleManager {
         dataMsg.y = gyro[1];
         dataMsg.z = gyro[2];
         dataMsg.ts = new Date().getTime();
-        for (IEmgImuSenseCallback cb : imuGyroCbs) {
-            try {
-                cb.handleData(device, dataMsg);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+        imuGyroCbs.publish(dataMsg);
+
+        long now = System.nanoTime();
+        for (CallbackBatcher<IEmgImuSenseBatchCallback, ImuData> b : imuGyroBatchers)
+            b.add(dataMsg, now);
     }
 
     public void onImuMagReceived(BluetoothDevice device, float[][] mag) {
@@ -1811,13 +2300,11 @@ public class EmgImuManager extends BleManager {
         dataMsg.y = mag[1];
         dataMsg.z = mag[2];
         dataMsg.ts = new Date().getTime();
-        for (IEmgImuSenseCallback cb : imuMagCbs) {
-            try {
-                cb.handleData(device, dataMsg);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+        imuMagCbs.publish(dataMsg);
+
+        long now = System.nanoTime();
+        for (CallbackBatcher<IEmgImuSenseBatchCallback, ImuData> b : imuMagBatchers)
+            b.add(dataMsg, now);
     }
 
     public void onImuAttitudeReceived(BluetoothDevice device, float[] quaternion) {
@@ -1828,12 +2315,6 @@ public class EmgImuManager extends BleManager {
         dataMsg.q2 = quaternion[2];
         dataMsg.q3 = quaternion[3];
         dataMsg.ts = new Date().getTime();
-        for (IEmgImuQuatCallback cb : imuQuatCbs) {
-            try {
-                cb.handleData(device, dataMsg);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+        imuQuatCbs.publish(dataMsg);
     }
 }
\ No newline at end of file
@@ -40,6 +40,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
@@ -78,14 +79,25 @@ import org.json.JSONException;
 import org.sralab.emgimu.controller.IEmgDecoderProvider;
 import org.sralab.emgimu.logging.FirebaseGameLogger;
 import org.sralab.emgimu.logging.GamePlayRecord;
+import org.sralab.emgimu.logging.LogRecovery;
+import org.sralab.emgimu.logging.StreamLogReplay;
+import org.sralab.emgimu.logging.binary.StreamLogTrimmer;
+import org.sralab.emgimu.logging.upload.UploadQueue;
+import org.sralab.emgimu.streaming.NetworkFrameFormat;
+import org.sralab.emgimu.streaming.NetworkStreaming;
 import org.sralab.emgimu.unity_bindings.Bridge;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.stream.DoubleStream;
 import java.util.stream.Stream;
 
@@ -125,6 +137,44 @@ public class EmgImuService extends Service implements ConnectionObserver {
 
     Handler getHandler() { return handler; }
 
+    /**
+     * The managers and the device list are only changed on the main thread. Runs there
+     * straight away when already on it, and is dropped once the service is destroyed.
+     */
+    private void runOnMainThread(Runnable r) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            r.run();
+            return;
+        }
+        Handler h = handler;
+        if (h != null)
+            h.post(r);
+    }
+
+    /**
+     * Like {@link #runOnMainThread} but waits for the result, which is null if the service
+     * was destroyed. Must not be called holding a lock the main thread may take.
+     */
+    private <T> T callOnMainThread(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            future.run();
+        } else {
+            Handler h = handler;
+            if (h == null || !h.post(future))
+                return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed on the main thread", e.getCause());
+            return null;
+        }
+    }
+
     private List<IEmgImuDevicesUpdatedCallback> deviceUpdateCbs = new ArrayList<>();
 
     /**
@@ -381,6 +431,224 @@ public class EmgImuService extends Service implements ConnectionObserver {
                 }
             }
         }
+
+        @Override
+        public void registerEmgStreamRawObserver(BluetoothDevice regDevice, IEmgImuStreamDataCallback callback) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.registerEmgStreamRawCallback(callback);
+                } else if (device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.registerEmgStreamRawCallback(callback);
+                }
+            }
+        }
+
+        @Override
+        public void unregisterEmgStreamRawObserver(BluetoothDevice unregDevice, IEmgImuStreamDataCallback callback) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if(unregDevice == null) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.unregisterEmgStreamRawCallback(callback);
+                } else if(device.getAddress().equals(unregDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.unregisterEmgStreamRawCallback(callback);
+                }
+            }
+        }
+        // endregion
+
+        @Override
+        public List<EmgImuStreamMetrics> getStreamMetrics(BluetoothDevice regDevice) {
+            List<EmgImuStreamMetrics> metrics = new ArrayList<>();
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    metrics.addAll(manager.getStreamMetrics());
+                }
+            }
+            return metrics;
+        }
+
+        @Override
+        public List<EmgImuSubscriberMetrics> getSubscriberMetrics(BluetoothDevice regDevice) {
+            List<EmgImuSubscriberMetrics> metrics = new ArrayList<>();
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    metrics.addAll(manager.getSubscriberMetrics());
+                }
+            }
+            return metrics;
+        }
+
+        // region Batched Observers
+        @Override
+        public void registerEmgStreamBatchObserver(BluetoothDevice regDevice, IEmgImuStreamDataBatchCallback callback, long latencyBudgetMillis, boolean raw) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.registerEmgStreamBatchCallback(callback, latencyBudgetMillis, raw);
+                }
+            }
+        }
+
+        @Override
+        public void unregisterEmgStreamBatchObserver(BluetoothDevice regDevice, IEmgImuStreamDataBatchCallback callback) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.unregisterEmgStreamBatchCallback(callback);
+                }
+            }
+        }
+
+        @Override
+        public void registerImuAccelBatchObserver(BluetoothDevice regDevice, IEmgImuSenseBatchCallback callback, long latencyBudgetMillis) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.registerImuAccelBatchCallback(callback, latencyBudgetMillis);
+                }
+            }
+        }
+
+        @Override
+        public void unregisterImuAccelBatchObserver(BluetoothDevice regDevice, IEmgImuSenseBatchCallback callback) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.unregisterImuAccelBatchCallback(callback);
+                }
+            }
+        }
+
+        @Override
+        public void registerImuGyroBatchObserver(BluetoothDevice regDevice, IEmgImuSenseBatchCallback callback, long latencyBudgetMillis) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.registerImuGyroBatchCallback(callback, latencyBudgetMillis);
+                }
+            }
+        }
+
+        @Override
+        public void unregisterImuGyroBatchObserver(BluetoothDevice regDevice, IEmgImuSenseBatchCallback callback) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.unregisterImuGyroBatchCallback(callback);
+                }
+            }
+        }
+
+        @Override
+        public void registerImuMagBatchObserver(BluetoothDevice regDevice, IEmgImuSenseBatchCallback callback, long latencyBudgetMillis) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.registerImuMagBatchCallback(callback, latencyBudgetMillis);
+                }
+            }
+        }
+
+        @Override
+        public void unregisterImuMagBatchObserver(BluetoothDevice regDevice, IEmgImuSenseBatchCallback callback) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (regDevice == null || device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.unregisterImuMagBatchCallback(callback);
+                }
+            }
+        }
+        // endregion
+
+        @Override
+        public ParcelFileDescriptor openEmgStreamSharedMemory(BluetoothDevice regDevice, IBinder token) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    try {
+                        return manager.openEmgStreamSharedMemory(token);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to create shared memory ring", e);
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void closeEmgStreamSharedMemory(BluetoothDevice regDevice, IBinder token) {
+            for (final BluetoothDevice device : getManagedDevices()) {
+                if (device.getAddress().equals(regDevice.getAddress())) {
+                    final EmgImuManager manager = (EmgImuManager) getBleManager(device);
+                    manager.closeEmgStreamSharedMemory(token);
+                }
+            }
+        }
+
+        // region Network Streaming
+        @Override
+        public void startNetworkStreaming(String host, int port, int streams) {
+            serviceStartNetworkStreaming(host, port, streams);
+        }
+
+        @Override
+        public void stopNetworkStreaming() {
+            serviceStopNetworkStreaming();
+        }
+
+        @Override
+        public boolean isNetworkStreamingConnected() {
+            return networkStreaming.isConnected();
+        }
+
+        @Override
+        public long getNetworkStreamingDroppedFrames() {
+            return networkStreaming.getDroppedFrames();
+        }
+
+        @Override
+        public int getNetworkStreamingState() {
+            return networkState(networkStreaming.getState());
+        }
+
+        @Override
+        public long getNetworkStreamingBufferedBytes() {
+            return networkStreaming.getBufferedBytes();
+        }
+
+        @Override
+        public long getNetworkStreamingBufferCapacity() {
+            return networkStreaming.getBufferCapacity();
+        }
+
+        /** One of the NETWORK_STATE constants, updated as streaming connects and reconnects */
+        public LiveData<Integer> getNetworkStreamingLiveState() {
+            return networkLiveState;
+        }
+        // endregion
+
+        // region Replay
+        @Override
+        public boolean startReplay(String logPath, String bluetoothMac, double speed) {
+            return serviceStartReplay(new File(logPath), bluetoothMac, speed);
+        }
+
+        @Override
+        public void stopReplay() {
+            serviceStopReplay();
+        }
+
+        @Override
+        public boolean isReplaying() {
+            StreamLogReplay r = replay;
+            return r != null && r.isRunning();
+        }
         // endregion
 
         @Override
@@ -453,15 +721,195 @@ public class EmgImuService extends Service implements ConnectionObserver {
 
 	protected EmgImuManager initializeManager() {
         EmgImuManager manager = new EmgImuManager(this);
+        // Not under the networkStreaming lock, which is held while the stream stops and starts
+        int streams = networkStreams;
+        if (streams != 0)
+            manager.setStreamSink(networkSink, streams);
 		return manager;
 	}
 
+    /** Network streaming of every managed device, fed by the managers without AIDL **/
+    private final NetworkStreaming networkStreaming = new NetworkStreaming();
+    // Written under networkStreaming, zero when not streaming
+    private volatile int networkStreams;
+    private final MutableLiveData<Integer> networkLiveState = new MutableLiveData<>(IEmgImuServiceBinder.NETWORK_STATE_STOPPED);
+
+    private static int networkState(NetworkStreaming.State state) {
+        switch (state) {
+            case CONNECTING:
+                return IEmgImuServiceBinder.NETWORK_STATE_CONNECTING;
+            case CONNECTED:
+                return IEmgImuServiceBinder.NETWORK_STATE_CONNECTED;
+            case BACKING_OFF:
+                return IEmgImuServiceBinder.NETWORK_STATE_BACKING_OFF;
+            default:
+                return IEmgImuServiceBinder.NETWORK_STATE_STOPPED;
+        }
+    }
+
+    private final EmgImuManager.StreamSink networkSink = new EmgImuManager.StreamSink() {
+        @Override
+        public void onEmgPwr(BluetoothDevice device, long timestamp_ms, int[] data) {
+            networkStreaming.streamEmgPwr(device, timestamp_ms, data);
+        }
+
+        @Override
+        public void onEmgBuff(BluetoothDevice device, long timestamp_ms, int channels, int samples, double[][] data) {
+            networkStreaming.streamEmgBuffer(device, timestamp_ms, samples, channels, data);
+        }
+
+        @Override
+        public void onAccel(BluetoothDevice device, long timestamp_ms, float[][] data) {
+            networkStreaming.streamImu(device, NetworkFrameFormat.FRAME_ACCEL, timestamp_ms, data);
+        }
+
+        @Override
+        public void onGyro(BluetoothDevice device, long timestamp_ms, float[][] data) {
+            networkStreaming.streamImu(device, NetworkFrameFormat.FRAME_GYRO, timestamp_ms, data);
+        }
+
+        @Override
+        public void onMag(BluetoothDevice device, long timestamp_ms, float[][] data) {
+            networkStreaming.streamImu(device, NetworkFrameFormat.FRAME_MAG, timestamp_ms, data);
+        }
+
+        @Override
+        public void onAttitude(BluetoothDevice device, long timestamp_ms, float[] quat) {
+            networkStreaming.streamAttitude(device, timestamp_ms, quat);
+        }
+    };
+
+    private void serviceStartNetworkStreaming(String host, int port, int streams) {
+        synchronized (networkStreaming) {
+            Log.d(TAG, "Network streaming " + streams + " to " + host + ":" + port);
+            networkStreaming.stop();
+            networkStreams = streams;
+            networkStreaming.start(host, port);
+        }
+        runOnMainThread(this::updateStreamSinks);
+    }
+
+    private void serviceStopNetworkStreaming() {
+        synchronized (networkStreaming) {
+            if (networkStreams == 0)
+                return;
+            Log.d(TAG, "Stopping network streaming");
+            networkStreams = 0;
+            // Anything the managers send until their sinks are cleared is dropped once stopped
+            networkStreaming.stop();
+        }
+        runOnMainThread(this::updateStreamSinks);
+    }
+
+    /** Main thread only, points every manager at the streams currently asked for */
+    private void updateStreamSinks() {
+        if (bleManagers == null)
+            return;
+        int streams = networkStreams;
+        for (EmgImuManager manager : bleManagers.values())
+            manager.setStreamSink(streams == 0 ? null : networkSink, streams);
+    }
+
+    /** Log replay, which stands in for a sensor with a manager that is never connected **/
+    private final Object replayLock = new Object();
+    // Written under replayLock, the device is also read when saving the managed devices
+    private volatile StreamLogReplay replay;
+    private volatile BluetoothDevice replayDevice;
+
+    /**
+     * Starts replaying the log. The manager is added on the main thread, like any other
+     * device, and this waits for it without holding replayLock, which the main thread
+     * takes when stopping the replay.
+     */
+    private boolean serviceStartReplay(File log, String bluetoothMac, double speed) {
+        serviceStopReplay();
+
+        String mac = bluetoothMac;
+        if (mac == null) {
+            try {
+                mac = StreamLogReplay.readBluetoothMac(log);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read " + log, e);
+                return false;
+            }
+        }
+        if (mac == null || !BluetoothAdapter.checkBluetoothAddress(mac)) {
+            Log.e(TAG, "No device to replay " + log.getName() + " as: " + mac);
+            return false;
+        }
+
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mac);
+        EmgImuManager manager = callOnMainThread(() -> addReplayManager(device));
+        if (manager == null) {
+            Log.e(TAG, "Not replaying " + log.getName() + ", " + mac + " is already managed");
+            return false;
+        }
+
+        synchronized (replayLock) {
+            if (replay != null) {
+                // Another replay started while the manager was added
+                Log.e(TAG, "Not replaying " + log.getName() + ", another replay started");
+                runOnMainThread(() -> removeReplayManager(device));
+                return false;
+            }
+            replayDevice = device;
+            replay = new StreamLogReplay(manager, device, log, speed, null);
+            replay.start();
+            return true;
+        }
+    }
+
+    private void serviceStopReplay() {
+        BluetoothDevice device;
+        synchronized (replayLock) {
+            if (replay == null)
+                return;
+            if (!replay.stop())
+                Log.w(TAG, "Replay did not stop in time");
+            replay = null;
+            device = replayDevice;
+        }
+        runOnMainThread(() -> removeReplayManager(device));
+    }
+
+    /** Main thread only, returns null if the device is already managed or the service destroyed */
+    private EmgImuManager addReplayManager(BluetoothDevice device) {
+        if (managedDevices == null || managedDevices.contains(device))
+            return null;
+
+        EmgImuManager manager = initializeManager();
+        manager.setReplayDevice(device);
+        bleManagers.put(device, manager);
+        managedDevices.add(device);
+        onDeviceListUpdated();
+        return manager;
+    }
+
+    /** Main thread only */
+    private void removeReplayManager(BluetoothDevice device) {
+        if (managedDevices == null)
+            return;
+
+        // Not saved, so only the lists need updating
+        managedDevices.remove(device);
+        EmgImuManager manager = bleManagers.remove(device);
+        if (manager != null)
+            manager.close();
+        if (device.equals(replayDevice))
+            replayDevice = null;
+        onDeviceListUpdated();
+    }
+
     @Override
     public void onCreate() {
         Log.d(TAG, "onCreate()");
 
         handler = new Handler(Looper.getMainLooper());
 
+        // Frames buffered while the network is down spill over to the cache
+        networkStreaming.setSpoolDirectory(getCacheDir());
+        networkStreaming.setStateListener(state -> networkLiveState.postValue(networkState(state)));
+
         // Initialize the map of BLE managers
         bleManagers = new HashMap<>();
         managedDevices = new ArrayList<>();
@@ -478,6 +926,18 @@ public class EmgImuService extends Service implements ConnectionObserver {
         FirebaseCrashlytics crashlytics = FirebaseCrashlytics.getInstance();
         crashlytics.setCrashlyticsCollectionEnabled(!BuildConfig.DEBUG);
 
+        // Resume uploading log segments left over from earlier sessions
+        UploadQueue uploadQueue = UploadQueue.getInstance(this);
+
+        // Repair logs left open by a crash. Find them now, before any new log is opened.
+        File [] openLogs = LogRecovery.findOpenLogs(getExternalFilesDir("stream_logs"));
+        if (openLogs.length > 0) {
+            new Thread(() -> {
+                int recovered = LogRecovery.recoverAll(openLogs, uploadQueue, StreamLogTrimmer.FACTORY);
+                Log.i(TAG, "Recovered " + recovered + " of " + openLogs.length + " unclosed logs");
+            }, "LogRecovery").start();
+        }
+
         Log.d(TAG, "onServiceCreated");
 
         mAuth = FirebaseAuth.getInstance();
@@ -647,6 +1107,9 @@ public class EmgImuService extends Service implements ConnectionObserver {
 
 		cancelNotifications();
 
+        serviceStopNetworkStreaming();
+        serviceStopReplay();
+
         // Unregister broadcast receivers
         unregisterReceiver(bluetoothStateBroadcastReceiver);
 
@@ -790,6 +1253,9 @@ public class EmgImuService extends Service implements ConnectionObserver {
         SharedPreferences.Editor editor = sharedPref.edit();
         JSONArray names = new JSONArray();
 		for (BluetoothDevice device : getManagedDevices()) {
+            // A replayed device is not a sensor to reconnect to
+            if (device.equals(replayDevice))
+                continue;
             names.put(device.getAddress());
         }
 
@@ -0,0 +1,128 @@
+package org.sralab.emgimu.service;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated thread that drains a {@link NotificationRing}, so that decoding and
+ * invoking client callbacks does not hold up the BLE callback thread.
+ */
+public class NotificationDispatcher {
+
+    /** Longest the thread sleeps without being woken by the producer */
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    /** Longest {@link #stop()} waits for the queued notifications to be handled */
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+
+    public interface ErrorHandler {
+        void onError(int type, RuntimeException e);
+    }
+
+    /** Work that must run on the dispatcher thread at a deadline, such as flushing batches */
+    public interface Timer {
+        /**
+         * @param nowNanos current {@link System#nanoTime()}
+         * @return nanoseconds until the timer should run again, or Long.MAX_VALUE for none
+         */
+        long onTimer(long nowNanos);
+    }
+
+    private final NotificationRing ring;
+    private final NotificationRing.PacketHandler handler;
+    private final String name;
+    private ErrorHandler errorHandler;
+    private Timer timer;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public NotificationDispatcher(String name, NotificationRing ring, NotificationRing.PacketHandler handler) {
+        this.name = name;
+        this.ring = ring;
+        this.handler = handler;
+    }
+
+    /** Called when decoding a packet throws, instead of killing the thread */
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /** Set before {@link #start()}. Runs after each batch of notifications and at its deadlines. */
+    public void setTimer(Timer timer) {
+        this.timer = timer;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        ring.setConsumer(thread);
+        thread.start();
+    }
+
+    /**
+     * Stop the thread once the notifications already queued have been handled, and wait
+     * for it, so what the handler writes to can be closed when this returns.
+     * @return false if the thread was still running after the timeout, or this was called
+     * from the handler itself, which still drains the queue after returning
+     */
+    public boolean stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            if (t == null)
+                return true;
+            running = false;
+            thread = null;
+        }
+        if (t == Thread.currentThread())
+            return false;
+        LockSupport.unpark(t);
+        try {
+            t.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !t.isAlive();
+    }
+
+    private final NotificationRing.PacketHandler guardedHandler = new NotificationRing.PacketHandler() {
+        @Override
+        public void onPacket(int type, byte[] buffer, int length, long arrivalNanos) {
+            try {
+                handler.onPacket(type, buffer, length, arrivalNanos);
+            } catch (RuntimeException e) {
+                ErrorHandler h = errorHandler;
+                if (h != null)
+                    h.onError(type, e);
+            }
+        }
+    };
+
+    private void run() {
+        while (running) {
+            int handled = ring.drain(guardedHandler);
+            long wait = runTimer();
+            if (handled == 0)
+                LockSupport.parkNanos(Math.min(IDLE_PARK_NANOS, wait));
+        }
+        ring.drain(guardedHandler);
+        ring.setConsumer(null);
+    }
+
+    private long runTimer() {
+        Timer t = timer;
+        if (t == null)
+            return Long.MAX_VALUE;
+        try {
+            return t.onTimer(System.nanoTime());
+        } catch (RuntimeException e) {
+            ErrorHandler h = errorHandler;
+            if (h != null)
+                h.onError(-1, e);
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.sralab.emgimu.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer ring of BLE notifications.
+ *
+ * The BLE callback thread copies each notification into a preallocated slot and a
+ * consumer thread decodes and dispatches them. Neither side allocates or locks in
+ * steady state. Only one thread may call {@link #offer} and only one thread may call
+ * {@link #drain}.
+ */
+public class NotificationRing {
+
+    /** Largest notification with the 517 byte MTU requested by the manager */
+    public static final int MAX_PACKET_LENGTH = 514;
+
+    public enum OverflowPolicy {
+        /** Discard the notification being offered. The BLE thread never waits. */
+        DROP_NEWEST,
+        /** Wait for the consumer to free a slot. Nothing is lost but the BLE thread can stall. */
+        BLOCK
+    }
+
+    public interface PacketHandler {
+        /**
+         * @param buffer slot contents, only valid for the duration of the call
+         */
+        void onPacket(int type, byte [] buffer, int length, long arrivalNanos);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final byte [][] slots;
+    private final int [] lengths;
+    private final int [] types;
+    private final long [] arrivals;
+
+    // Next slot to write and to read. Only the owning side writes each counter.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile OverflowPolicy policy = OverflowPolicy.DROP_NEWEST;
+    private volatile Thread consumer;
+
+    private volatile int highWater;
+    private final long [] dropped;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     * @param types number of distinct packet types, used for per-type drop counts
+     */
+    public NotificationRing(int capacity, int types) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        this.capacity = size;
+        mask = size - 1;
+        slots = new byte[size][MAX_PACKET_LENGTH];
+        lengths = new int[size];
+        this.types = new int[size];
+        arrivals = new long[size];
+        dropped = new long[types];
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    /** Register the thread that drains the ring so it is woken when data arrives */
+    void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Copy a notification into the ring. Called from the producer thread only.
+     * @return false if the notification was dropped
+     */
+    public boolean offer(int type, byte [] data, int length, long arrivalNanos) {
+        if (length > MAX_PACKET_LENGTH) {
+            dropped[type]++;
+            return false;
+        }
+
+        final long h = head.get();
+        while (h - tail.get() >= capacity) {
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                dropped[type]++;
+                return false;
+            }
+            wakeConsumer();
+            LockSupport.parkNanos(50_000);
+        }
+
+        final int idx = (int) (h & mask);
+        System.arraycopy(data, 0, slots[idx], 0, length);
+        lengths[idx] = length;
+        types[idx] = type;
+        arrivals[idx] = arrivalNanos;
+        head.lazySet(h + 1);
+
+        int depth = (int) (h + 1 - tail.get());
+        if (depth > highWater)
+            highWater = depth;
+
+        wakeConsumer();
+        return true;
+    }
+
+    private void wakeConsumer() {
+        Thread t = consumer;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    /**
+     * Hand every available notification to the handler. Called from the consumer thread only.
+     * @return number of notifications handled
+     */
+    public int drain(PacketHandler handler) {
+        long t = tail.get();
+        final long h = head.get();
+        int n = 0;
+        while (t < h) {
+            final int idx = (int) (t & mask);
+            try {
+                handler.onPacket(types[idx], slots[idx], lengths[idx], arrivals[idx]);
+            } finally {
+                t++;
+                tail.lazySet(t);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int getCapacity() { return capacity; }
+
+    /** Number of notifications waiting to be decoded */
+    public int getDepth() { return (int) (head.get() - tail.get()); }
+
+    /** Largest depth seen since creation */
+    public int getHighWater() { return highWater; }
+
+    /** Number of notifications of this type discarded because the ring was full */
+    public long getDropped(int type) { return dropped[type]; }
+}
@@ -0,0 +1,53 @@
+package org.sralab.emgimu.service;
+
+import android.util.Log;
+
+/**
+ * Reference count of everything consuming one characteristic's notifications:
+ * client callbacks, batch callbacks, shared memory readers and the stream logger.
+ *
+ * Notifications are enabled when the count goes from zero to one and disabled when it
+ * returns to zero, so the radio only carries streams that someone is using.
+ */
+public class NotificationSubscription {
+    private static final String TAG = NotificationSubscription.class.getSimpleName();
+
+    public interface Switch {
+        void setEnabled(boolean enabled);
+    }
+
+    private final String name;
+    private final Switch notifications;
+    private int count;
+
+    public NotificationSubscription(String name, Switch notifications) {
+        this.name = name;
+        this.notifications = notifications;
+    }
+
+    public synchronized void acquire() {
+        if (count++ == 0) {
+            Log.d(TAG, "First subscriber to " + name + ", enabling notifications");
+            notifications.setEnabled(true);
+        }
+    }
+
+    public synchronized void release() {
+        if (count == 0) {
+            Log.w(TAG, "Unbalanced release of " + name);
+            return;
+        }
+        if (--count == 0) {
+            Log.d(TAG, "No subscribers to " + name + ", disabling notifications");
+            notifications.setEnabled(false);
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized boolean isActive() {
+        return count > 0;
+    }
+}
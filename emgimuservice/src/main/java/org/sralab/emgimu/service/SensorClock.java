@@ -0,0 +1,287 @@
+package org.sralab.emgimu.service;
+
+/**
+ * Estimates when packets from a sensor stream were sampled, on the phone's elapsed
+ * realtime clock.
+ *
+ * Each packet carries a counter that increments once per packet and wraps at
+ * {@code counterModulus}. The counter is unwrapped and a line is fit between the
+ * unwrapped counter and the elapsed realtime when each packet arrived, using the
+ * most recent {@code windowSize} packets. The fit absorbs the constant BLE latency
+ * and the drift between the sensor and phone oscillators, while averaging out the
+ * connection interval jitter.
+ *
+ * Until enough packets have been seen the nominal packet period is used for the
+ * slope. If a packet arrives far from the model (e.g. the sensor rebooted) the model
+ * is reset.
+ *
+ * A counter that repeats is a duplicate and one up to {@link #REORDER_WINDOW} packets
+ * behind is a late packet, neither moves the model. A counter further behind than that
+ * but less than half the modulus is the sensor counting again from the start (it
+ * restarted or reconnected), which resets the model without counting a loss, unless
+ * it arrived when the model expects the counter a forward gap across the wrap would
+ * give. A step back of half the modulus or more is always a wrap.
+ *
+ * Timestamps handed out are strictly increasing for every sample in the stream.
+ * This class does not allocate after construction and has no Android dependencies,
+ * so recorded counter traces can be replayed through it on a plain JVM.
+ */
+public class SensorClock {
+
+    public static final int DEFAULT_WINDOW = 256;
+
+    /** Minimum points before the fitted slope is trusted over the nominal period */
+    private static final int MIN_FIT_POINTS = 16;
+
+    /** Deviation from the model that is treated as a discontinuity rather than jitter */
+    private static final long RESET_THRESHOLD_NANOS = 1_000_000_000L;
+
+    /** Largest step back in the counter taken as a late packet rather than a restart */
+    static final int REORDER_WINDOW = 8;
+
+    private final String name;
+    private final double sampleRate;
+    private final int counterModulus;
+
+    // Ring of the most recent (unwrapped counter, arrival time) pairs
+    private final long [] windowCounter;
+    private final long [] windowNanos;
+    private int windowStart;
+    private int windowCount;
+
+    private boolean started;
+    private int lastCounter;
+    private long unwrappedCounter;
+    /** Bit i set when the packet i behind the newest has arrived */
+    private long seen;
+    /** Bit i set when the packet i behind the newest was counted as lost */
+    private long missing;
+
+    // Current model: nanos = interceptNanos + slopeNanos * (counter - interceptCounter)
+    private long interceptCounter;
+    private double interceptNanos;
+    private double slopeNanos;
+
+    private int samples;
+    private double samplePeriodNanos;
+    private long packetNanos;
+    private long firstSampleNanos;
+    private long lastSampleNanos;
+
+    private int lastGap;
+    private long totalGaps;
+    private long totalLost;
+    private long wraparounds;
+    private long duplicates;
+    private long reordered;
+    private long restarts;
+    private long resets;
+
+    /**
+     * @param name used to identify the stream in logs
+     * @param sampleRate samples per second within each packet
+     * @param counterModulus value at which the packet counter wraps (e.g. 256 for a UINT8)
+     */
+    public SensorClock(String name, double sampleRate, int counterModulus) {
+        this(name, sampleRate, counterModulus, DEFAULT_WINDOW);
+    }
+
+    public SensorClock(String name, double sampleRate, int counterModulus, int windowSize) {
+        this.name = name;
+        this.sampleRate = sampleRate;
+        this.counterModulus = counterModulus;
+        windowCounter = new long[windowSize];
+        windowNanos = new long[windowSize];
+    }
+
+    /**
+     * Add a packet to the model.
+     * @param counter packet counter as reported by the sensor
+     * @param arrivalNanos elapsed realtime when the packet was received
+     * @param samples number of samples per channel in the packet
+     * @return estimated elapsed realtime of the last sample in the packet
+     */
+    public long update(int counter, long arrivalNanos, int samples) {
+        final double nominalSlope = samples * 1.0e9 / sampleRate;
+
+        lastGap = 0;
+        // Unwrapped counter of this packet, behind the newest for a late one
+        long position;
+        if (!started) {
+            started = true;
+            unwrappedCounter = 0;
+            lastCounter = counter;
+            position = advance(0, arrivalNanos, nominalSlope);
+        } else {
+            int diff = Math.floorMod(counter - lastCounter, counterModulus);
+            int behind = counterModulus - diff;
+            if (diff == 0) {
+                duplicates++;
+                position = unwrappedCounter;
+            } else if (behind <= REORDER_WINDOW) {
+                position = unwrappedCounter - behind;
+                long bit = 1L << behind;
+                if ((seen & bit) != 0) {
+                    duplicates++;
+                } else {
+                    reordered++;
+                    seen |= bit;
+                    if ((missing & bit) != 0) {
+                        // Counted as lost when the packets after it arrived
+                        missing &= ~bit;
+                        totalLost--;
+                    }
+                }
+            } else if (counter < lastCounter && lastCounter - counter < counterModulus / 2
+                    && !(windowCount > 0 && fitsModel(unwrappedCounter + diff, arrivalNanos, nominalSlope))) {
+                restarts++;
+                reset();
+                lastCounter = counter;
+                position = advance(1, arrivalNanos, nominalSlope);
+            } else {
+                boolean wrapped = counter < lastCounter;
+                if (windowCount > 0 && !fitsModel(unwrappedCounter + diff, arrivalNanos, nominalSlope)) {
+                    // Too far from the model for the counter to say how many were lost
+                    reset();
+                } else {
+                    if (wrapped)
+                        wraparounds++;
+                    if (diff > 1) {
+                        lastGap = diff - 1;
+                        totalGaps++;
+                        totalLost += lastGap;
+                    }
+                }
+                lastCounter = counter;
+                position = advance(diff, arrivalNanos, nominalSlope);
+            }
+        }
+
+        this.samples = samples;
+        samplePeriodNanos = slopeNanos / samples;
+        long estimate = Math.round(predict(position, nominalSlope));
+
+        // Keep every sample strictly after the last sample of the prior packet
+        long first = estimate - Math.round((samples - 1) * samplePeriodNanos);
+        if (first <= lastSampleNanos && packetNanos != 0) {
+            long shift = lastSampleNanos + 1 - first;
+            first += shift;
+            estimate += shift;
+        }
+        firstSampleNanos = first;
+        packetNanos = estimate;
+        lastSampleNanos = estimate;
+        return estimate;
+    }
+
+    /** Move the newest packet forward by {@code diff} and fit it into the model */
+    private long advance(int diff, long arrivalNanos, double nominalSlope) {
+        unwrappedCounter += diff;
+        seen = diff >= 64 ? 1 : seen << diff | 1;
+        missing = diff >= 64 ? 0 : missing << diff;
+        if (lastGap > 0)
+            missing |= lastGap >= 63 ? ~1L : ((1L << lastGap) - 1) << 1;
+        addPoint(unwrappedCounter, arrivalNanos);
+        fit(nominalSlope);
+        return unwrappedCounter;
+    }
+
+    private void reset() {
+        resets++;
+        windowCount = 0;
+        windowStart = 0;
+        seen = 0;
+        missing = 0;
+    }
+
+    /** Whether a packet with this unwrapped counter arriving then is jitter rather than a discontinuity */
+    private boolean fitsModel(long counter, long arrivalNanos, double nominalSlope) {
+        return Math.abs(arrivalNanos - predict(counter, nominalSlope)) <= RESET_THRESHOLD_NANOS;
+    }
+
+    private double predict(long counter, double nominalSlope) {
+        double slope = windowCount >= MIN_FIT_POINTS ? slopeNanos : nominalSlope;
+        return interceptNanos + slope * (counter - interceptCounter);
+    }
+
+    private void addPoint(long counter, long nanos) {
+        final int capacity = windowCounter.length;
+        int idx;
+        if (windowCount < capacity) {
+            idx = (windowStart + windowCount) % capacity;
+            windowCount++;
+        } else {
+            idx = windowStart;
+            windowStart = (windowStart + 1) % capacity;
+        }
+        windowCounter[idx] = counter;
+        windowNanos[idx] = nanos;
+    }
+
+    /** Least squares fit over the window, relative to the oldest point for precision */
+    private void fit(double nominalSlope) {
+        final int capacity = windowCounter.length;
+        final long x0 = windowCounter[windowStart];
+        final long y0 = windowNanos[windowStart];
+
+        double sx = 0, sy = 0;
+        for (int i = 0; i < windowCount; i++) {
+            int idx = (windowStart + i) % capacity;
+            sx += windowCounter[idx] - x0;
+            sy += windowNanos[idx] - y0;
+        }
+        final double mx = sx / windowCount;
+        final double my = sy / windowCount;
+
+        double sxx = 0, sxy = 0;
+        for (int i = 0; i < windowCount; i++) {
+            int idx = (windowStart + i) % capacity;
+            double dx = windowCounter[idx] - x0 - mx;
+            double dy = windowNanos[idx] - y0 - my;
+            sxx += dx * dx;
+            sxy += dx * dy;
+        }
+
+        if (windowCount >= MIN_FIT_POINTS && sxx > 0)
+            slopeNanos = sxy / sxx;
+        else
+            slopeNanos = nominalSlope;
+
+        // The line passes through the mean of the window
+        interceptCounter = x0;
+        interceptNanos = y0 + my - slopeNanos * mx;
+    }
+
+    /** Estimated elapsed realtime of sample {@code i} in the last packet */
+    public long getSampleNanos(int i) {
+        return firstSampleNanos + Math.round(i * samplePeriodNanos);
+    }
+
+    public String getName() { return name; }
+
+    /** Estimated elapsed realtime of the last sample in the last packet */
+    public long getPacketNanos() { return packetNanos; }
+
+    /** Current estimate of the sample period, including drift */
+    public double getSamplePeriodNanos() { return samplePeriodNanos; }
+
+    /** Ratio of the nominal to estimated sensor clock rate */
+    public double getDriftRatio() {
+        if (samples == 0)
+            return 1.0;
+        return (samples * 1.0e9 / sampleRate) / slopeNanos;
+    }
+
+    /** Number of packets missing immediately before the last packet */
+    public int getLastGap() { return lastGap; }
+    public long getTotalGaps() { return totalGaps; }
+    public long getTotalLost() { return totalLost; }
+    public long getWraparounds() { return wraparounds; }
+    /** Packets whose counter had already been seen */
+    public long getDuplicates() { return duplicates; }
+    /** Packets that arrived after a later one, and so are not lost */
+    public long getReordered() { return reordered; }
+    /** Times the sensor counter started again from a lower value */
+    public long getRestarts() { return restarts; }
+    public long getResets() { return resets; }
+}
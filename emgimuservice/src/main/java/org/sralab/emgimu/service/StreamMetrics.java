@@ -0,0 +1,112 @@
+package org.sralab.emgimu.service;
+
+/**
+ * Link health for one characteristic of one sensor.
+ *
+ * Packets are recorded from the thread that parses the notifications and snapshots
+ * may be taken from any thread. Snapshots are not atomic across fields, which is
+ * acceptable for monitoring. Recording does not allocate.
+ */
+public class StreamMetrics {
+
+    /** Upper bounds of the latency histogram buckets in microseconds */
+    private static final long [] LATENCY_BOUNDS_MICROS = {
+            100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000
+    };
+
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    private final String name;
+    private final SensorClock clock;
+
+    private volatile long packets;
+
+    private long rateWindowStart;
+    private long rateWindowPackets;
+    private volatile double packetsPerSecond;
+
+    private volatile long queueNanos;
+    private volatile long maxQueueNanos;
+    private volatile long parseNanos;
+    private volatile long maxParseNanos;
+    private volatile long dispatchNanos;
+    private volatile long maxDispatchNanos;
+
+    private final long [] latencyHistogram = new long[LATENCY_BOUNDS_MICROS.length + 1];
+
+    /**
+     * @param name stream name reported to clients
+     * @param clock clock model for this stream, used for the counter statistics
+     */
+    public StreamMetrics(String name, SensorClock clock) {
+        this.name = name;
+        this.clock = clock;
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Record one packet. All times are elapsed realtime in nanoseconds.
+     * @param arrivalNanos when the notification was received
+     * @param dequeuedNanos when the notification was taken off the queue for parsing
+     * @param parsedNanos when parsing finished and dispatch to callbacks started
+     * @param dispatchedNanos when all callbacks had been invoked
+     */
+    public void recordPacket(long arrivalNanos, long dequeuedNanos, long parsedNanos, long dispatchedNanos) {
+        packets++;
+
+        if (rateWindowPackets == 0) {
+            rateWindowStart = arrivalNanos;
+        } else if (arrivalNanos - rateWindowStart >= RATE_WINDOW_NANOS) {
+            packetsPerSecond = rateWindowPackets * 1.0e9 / (arrivalNanos - rateWindowStart);
+            rateWindowStart = arrivalNanos;
+            rateWindowPackets = 0;
+        }
+        rateWindowPackets++;
+
+        long queued = dequeuedNanos - arrivalNanos;
+        queueNanos += queued;
+        if (queued > maxQueueNanos)
+            maxQueueNanos = queued;
+
+        long parse = parsedNanos - dequeuedNanos;
+        parseNanos += parse;
+        if (parse > maxParseNanos)
+            maxParseNanos = parse;
+
+        long dispatch = dispatchedNanos - parsedNanos;
+        dispatchNanos += dispatch;
+        if (dispatch > maxDispatchNanos)
+            maxDispatchNanos = dispatch;
+
+        long latencyMicros = (parsedNanos - arrivalNanos) / 1000;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MICROS.length && latencyMicros >= LATENCY_BOUNDS_MICROS[bucket])
+            bucket++;
+        latencyHistogram[bucket]++;
+    }
+
+    public EmgImuStreamMetrics snapshot(String bluetoothMac) {
+        EmgImuStreamMetrics m = new EmgImuStreamMetrics();
+        long n = packets;
+        m.bluetoothMac = bluetoothMac;
+        m.stream = name;
+        m.packets = n;
+        m.packetsPerSecond = packetsPerSecond;
+        m.gaps = clock.getTotalGaps();
+        m.lostPackets = clock.getTotalLost();
+        m.wraparounds = clock.getWraparounds();
+        m.duplicates = clock.getDuplicates();
+        m.reordered = clock.getReordered();
+        m.restarts = clock.getRestarts();
+        m.meanQueueMicros = n == 0 ? 0 : queueNanos / 1000.0 / n;
+        m.maxQueueMicros = maxQueueNanos / 1000.0;
+        m.meanParseMicros = n == 0 ? 0 : parseNanos / 1000.0 / n;
+        m.maxParseMicros = maxParseNanos / 1000.0;
+        m.meanDispatchMicros = n == 0 ? 0 : dispatchNanos / 1000.0 / n;
+        m.maxDispatchMicros = maxDispatchNanos / 1000.0;
+        m.latencyBoundsMicros = LATENCY_BOUNDS_MICROS.clone();
+        m.latencyHistogram = latencyHistogram.clone();
+        return m;
+    }
+}
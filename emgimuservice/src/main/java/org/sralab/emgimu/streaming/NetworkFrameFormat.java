@@ -0,0 +1,84 @@
+package org.sralab.emgimu.streaming;
+
+/**
+ * Binary frames sent by {@link NetworkStreaming}, version 1.
+ *
+ * Every message on the connection, JSON or binary, is a 4 byte length followed by that
+ * many bytes, as before. A binary frame is:
+ *  - u8 frame type
+ *  - u8 flags, zero for now
+ *  - u16 device id, numbering the devices from 0, or {@link #NO_DEVICE}
+ *  - u32 sequence number, counting the data frames from 0
+ *  - i64 timestamp, wall clock ms
+ *  - u16 channels and u16 samples
+ *  - the values: EMG is float32 [channels][samples], EMG power int32 [channels],
+ *    accelerometer, gyroscope and magnetometer float32 [3][samples], attitude the
+ *    float32 quaternion [4] and tracking six float32 (goal, decoded and position x and
+ *    y) then the mode string
+ *
+ * A device frame, holding the Bluetooth address as a string, announces each device id
+ * before the first frame on the connection that uses it, and has the sequence number and
+ * time of that frame. Everything is big endian and strings are a u16 byte length
+ * followed by UTF-8.
+ *
+ * Reconnecting: device ids and sequence numbers run on from one connection to the next
+ * until streaming is stopped. The frames produced while disconnected are sent first, in
+ * order, so a gap in the sequence numbers is exactly the frames lost, either on the wire
+ * when the connection dropped or because the client's buffer filled.
+ *
+ * Negotiation: a client that offers binary frames first sends a JSON StreamingHello
+ * message listing {@link #PROTOCOL_BINARY} and {@link #PROTOCOL_JSON}. A server that
+ * understands frames replies with {"MSG": "StreamingHello", "protocol": "binary/1"} and
+ * binary frames follow. A server that picks JSON, or does not reply within the timeout
+ * (any server that predates this), gets the JSON messages of the stored logs.
+ *
+ * UDP: there is no negotiation, every datagram holds binary frames. A datagram is
+ *  - u32 datagram sequence number, counting every datagram sent from 0
+ *  - i64 sender time, wall clock us from {@link #clockMicros()} when it was sent
+ *  - u16 frame count
+ *  - that many frames, each with its length as on TCP
+ * Frames queued together are packed into one datagram up to {@link #MAX_DATAGRAM_BYTES},
+ * a frame too large for that is sent alone. Lost datagrams are not resent, so device
+ * frames are repeated every {@link #ANNOUNCE_INTERVAL_MILLIS} for receivers that missed
+ * them. See {@link UdpStreamReceiver}.
+ */
+public final class NetworkFrameFormat {
+
+    public static final String PROTOCOL_BINARY = "binary/1";
+    public static final String PROTOCOL_JSON = "json";
+    public static final String MSG_HELLO = "StreamingHello";
+
+    /** Bytes before the values of a frame, after the length */
+    public static final int HEADER_BYTES = 20;
+
+    public static final int FRAME_DEVICE = 0x01;
+    public static final int FRAME_EMG_RAW = 0x10;
+    public static final int FRAME_EMG_PWR = 0x11;
+    public static final int FRAME_TRACKING_XY = 0x20;
+    public static final int FRAME_ACCEL = 0x30;
+    public static final int FRAME_GYRO = 0x31;
+    public static final int FRAME_MAG = 0x32;
+    public static final int FRAME_ATTITUDE = 0x33;
+
+    public static final int NO_DEVICE = 0xFFFF;
+
+    /** Bytes before the frames of a UDP datagram */
+    public static final int DATAGRAM_HEADER_BYTES = 14;
+    /** Datagrams are filled up to this size, which stays clear of IP fragmentation */
+    public static final int MAX_DATAGRAM_BYTES = 1400;
+    public static final long ANNOUNCE_INTERVAL_MILLIS = 1000;
+
+    private static final long CLOCK_ANCHOR_MICROS = System.currentTimeMillis() * 1000;
+    private static final long CLOCK_ANCHOR_NANOS = System.nanoTime();
+
+    private NetworkFrameFormat() {}
+
+    /**
+     * Wall clock in microseconds, read from the monotonic clock so it has microsecond
+     * resolution and does not step. One-way latency between hosts is only as good as the
+     * agreement of their wall clocks, the spread of latency above its minimum is not.
+     */
+    public static long clockMicros() {
+        return CLOCK_ANCHOR_MICROS + (System.nanoTime() - CLOCK_ANCHOR_NANOS) / 1000;
+    }
+}
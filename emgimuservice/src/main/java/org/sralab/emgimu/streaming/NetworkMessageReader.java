@@ -0,0 +1,167 @@
+package org.sralab.emgimu.streaming;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Parses the length prefixed messages a server sends back over a non-blocking channel.
+ * Each call to {@link #read} takes whatever bytes have arrived and carries any partial
+ * length or body over to the next call, so the reader never waits on the network.
+ *
+ * Messages of at least the spool size are written to a temporary file as they arrive
+ * instead of being held in memory, which keeps multi megabyte payloads such as models
+ * off the heap.
+ */
+class NetworkMessageReader {
+
+    /** Largest message accepted, anything longer means the stream is out of step */
+    static final int MAX_MESSAGE_BYTES = 256 * 1024 * 1024;
+
+    /** A complete message, held in memory or spooled to a file */
+    static class Message {
+        final byte [] bytes;
+        final File file;
+
+        Message(byte [] bytes, File file) {
+            this.bytes = bytes;
+            this.file = file;
+        }
+
+        void discard() {
+            if (file != null)
+                file.delete();
+        }
+    }
+
+    private final int spoolBytes;
+    private final File spoolDirectory;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    private final ArrayDeque<Message> complete = new ArrayDeque<>();
+
+    /** Bytes of the current message still to come, or -1 while reading a length */
+    private int remaining = -1;
+    private byte [] body;
+    private File file;
+    private FileChannel out;
+
+    /**
+     * @param spoolBytes messages of this size or more are written to a file
+     * @param spoolDirectory where those files go, or null for the default temporary directory
+     */
+    NetworkMessageReader(int spoolBytes, File spoolDirectory) {
+        this.spoolBytes = spoolBytes;
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * Read everything available without blocking and parse it.
+     * @return bytes read
+     * @throws EOFException when the other end has closed the connection
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        int total = 0;
+        int n;
+        while ((n = channel.read(buffer)) > 0) {
+            total += n;
+            buffer.flip();
+            parse();
+            buffer.compact();
+        }
+        if (n < 0)
+            throw new EOFException("Server closed the connection");
+        return total;
+    }
+
+    /** The oldest complete message without removing it, or null */
+    Message peek() {
+        return complete.peek();
+    }
+
+    /** Remove and return the oldest complete message, or null */
+    Message poll() {
+        return complete.poll();
+    }
+
+    /** Drop any partial and undelivered messages, deleting their files */
+    void close() {
+        Message m;
+        while ((m = complete.poll()) != null)
+            m.discard();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file.delete();
+        }
+        out = null;
+        file = null;
+        body = null;
+        remaining = -1;
+    }
+
+    private void parse() throws IOException {
+        while (buffer.hasRemaining()) {
+            if (remaining < 0) {
+                while (lengthBuffer.hasRemaining() && buffer.hasRemaining())
+                    lengthBuffer.put(buffer.get());
+                if (lengthBuffer.hasRemaining())
+                    return;
+                lengthBuffer.flip();
+                int length = lengthBuffer.getInt();
+                lengthBuffer.clear();
+                begin(length);
+            } else {
+                int n = Math.min(remaining, buffer.remaining());
+                if (out != null) {
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + n);
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                    buffer.limit(limit);
+                } else {
+                    buffer.get(body, body.length - remaining, n);
+                }
+                remaining -= n;
+            }
+
+            if (remaining == 0)
+                finish();
+        }
+    }
+
+    private void begin(int length) throws IOException {
+        if (length < 0 || length > MAX_MESSAGE_BYTES)
+            throw new IOException("Invalid message length " + length);
+
+        remaining = length;
+        if (length >= spoolBytes) {
+            file = File.createTempFile("network_message", ".tmp", spoolDirectory);
+            out = new FileOutputStream(file).getChannel();
+        } else {
+            body = new byte[length];
+        }
+    }
+
+    private void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            complete.add(new Message(null, file));
+        } else {
+            complete.add(new Message(body, null));
+        }
+        out = null;
+        file = null;
+        body = null;
+        remaining = -1;
+    }
+}
@@ -1,25 +1,49 @@
 package org.sralab.emgimu.streaming;
 
 import android.bluetooth.BluetoothDevice;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 import org.sralab.emgimu.streaming.messages.EmgPwrMessage;
 import org.sralab.emgimu.streaming.messages.EmgRawMessage;
+import org.sralab.emgimu.streaming.messages.ImuAccelMessage;
+import org.sralab.emgimu.streaming.messages.ImuAttitudeMessage;
+import org.sralab.emgimu.streaming.messages.ImuGyroMessage;
+import org.sralab.emgimu.streaming.messages.ImuMagMessage;
+import org.sralab.emgimu.streaming.messages.StreamingHelloMessage;
 import org.sralab.emgimu.streaming.messages.TrackingXYCoordinate;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class NetworkStreaming {
 
@@ -32,150 +56,1127 @@ public class NetworkStreaming {
      * data and does not alter the behavior of the sensors (at least
      * for now).
      *
-     * Sends data as simple JSON messages compatible with how it is
-     * stored in the server logs.
+     * Sends binary frames (see {@link NetworkFrameFormat}) when the
+     * server accepts them, otherwise simple JSON messages compatible
+     * with how it is stored in the server logs.
+     *
+     * Frames are encoded on the caller's thread into a fixed pool of
+     * reusable direct buffers and sent by one thread over a
+     * SocketChannel, coalescing whatever is queued into a single
+     * gathering write. When the pool is used up (the network is not
+     * keeping up) new frames are dropped and counted rather than
+     * blocking the sensor callbacks.
+     *
+     * Messages from the server are read by a second thread woken by
+     * a Selector as data arrives and handed to the registered
+     * {@link MessageReceiver}s on that thread.
+     *
+     * For closed loop use on lossy links the frames can go over UDP
+     * instead, where a lost datagram does not hold up the ones after
+     * it. See {@link NetworkFrameFormat} and {@link UdpStreamReceiver}.
+     *
+     * When the server cannot be reached or the connection drops it is
+     * tried again, waiting twice as long after each failure (see
+     * {@link State}). Frames produced meanwhile go to a
+     * {@link ReplayBuffer}, which spills to the spool directory, and
+     * are sent in order ahead of new ones once connected, so a Wi-Fi
+     * dropout only costs the frames that were on the wire unless it
+     * outlasts the buffer.
+     */
+
+    public enum Protocol {
+        JSON,
+        BINARY,
+        /** Offer binary frames and fall back to JSON if the server does not take them */
+        NEGOTIATE,
+        /** Binary frames in datagrams, nothing is received from the server */
+        UDP
+    }
+
+    public enum State {
+        STOPPED,
+        CONNECTING,
+        /** Sending, the frames buffered while disconnected first */
+        CONNECTED,
+        /** Waiting to connect again after a failure, frames are buffered */
+        BACKING_OFF
+    }
+
+    public interface StateListener {
+        /** Called on the streaming thread, {@link State#STOPPED} last as it ends */
+        void onStateChanged(State state);
+    }
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long HELLO_TIMEOUT_MILLIS = 1000;
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+    /** Wait before connecting again, doubled after each failure up to the maximum */
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    /** Frames that can be waiting to be sent */
+    private static final int FRAMES = 256;
+    /** Most frames sent with one gathering write */
+    private static final int WRITE_FRAMES = 32;
+    private static final int FRAME_CAPACITY = 4096;
+    /** Frames buffered in memory while disconnected, the rest go to the spool directory */
+    private static final long REPLAY_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long REPLAY_FILE_BYTES = 64 * 1024 * 1024;
+    /** Buffered frames sent with one write, also the largest frame that is buffered */
+    private static final int REPLAY_WRITE_BYTES = 64 * 1024;
+    /** Messages from the server of this size or more are spooled to a file */
+    private static final int SPOOL_BYTES = 256 * 1024;
+    /** Messages held while no receiver is registered */
+    private static final int PENDING_MESSAGES = 4;
+
+    private final Gson gson = new Gson();
+
+    private Thread thread;
+    /** The streaming thread once it has released everything and is ending */
+    private volatile Thread ended;
+    /** A start waiting for a streaming thread that did not stop in time, run by it as it ends */
+    private final AtomicReference<Runnable> deferredStart = new AtomicReference<>();
+    // Guarded by this, counts the stops so a deferred start that a stop overtook is dropped
+    private int stops;
+    private volatile boolean running;
+    private volatile Channel channel;
+    /** Protocol in use, null while not connected */
+    private volatile Protocol protocol;
+    /**
+     * How frames are encoded: as the last connection agreed, or before the first as
+     * requested. Null when stopped.
      */
+    private volatile Protocol encoding;
+    private volatile State state = State.STOPPED;
+    private volatile StateListener stateListener;
+
+    /** A reusable frame, the length and header in one buffer and the values in another */
+    private static class Frame {
+        final ByteBuffer header = ByteBuffer.allocateDirect(4 + NetworkFrameFormat.HEADER_BYTES);
+        ByteBuffer body = ByteBuffer.allocateDirect(FRAME_CAPACITY);
+        boolean json;
+
+        /** Clear the body for {@code length} bytes of values */
+        ByteBuffer body(int length) {
+            if (body.capacity() < length)
+                body = ByteBuffer.allocateDirect(Math.max(length, body.capacity() * 2));
+            body.clear();
+            return body;
+        }
+    }
+
+    private final ArrayBlockingQueue<Frame> free = new ArrayBlockingQueue<>(FRAMES);
+    private final ArrayBlockingQueue<Frame> queued = new ArrayBlockingQueue<>(FRAMES);
+
+    // Guarded by queued, assigned in the order frames are queued and kept across reconnects
+    private int sequence;
+    private final Map<String, Integer> deviceIds = new HashMap<>();
+    private final List<String> deviceAddresses = new ArrayList<>();
+    /** Frames go to the replay buffer instead of the queue until it has been sent */
+    private boolean buffering;
 
-    private HandlerThread handlerThread;
-    private Handler handler;
+    /** Created by start, offered to holding queued and polled by the streaming thread */
+    private volatile ReplayBuffer replay;
 
-    private Socket socket;
-    private OutputStream outputStream;
-    private DataInputStream inputStream;
+    // Used by the streaming thread only
+    /** Devices announced on the current connection */
+    private final Set<Integer> announced = new HashSet<>();
+    private int datagram;
+    private boolean connectedBefore;
+
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong sentDatagrams = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private final List<MessageReceiver> receivers = new CopyOnWriteArrayList<>();
+    // Guarded by receivers
+    private final ArrayDeque<NetworkMessageReader.Message> pending = new ArrayDeque<>();
+    private volatile File spoolDirectory;
 
     public NetworkStreaming() {
+        for (int i = 0; i < FRAMES; i++)
+            free.add(new Frame());
         Log.d(TAG, "Streaming initialized.");
     }
 
     public void start(String ip_address, int port) {
-        handlerThread = new HandlerThread("NetworkStreaming Thread");
-        handlerThread.start();
-        Looper looper = handlerThread.getLooper();
-        handler = new Handler(looper);
+        start(ip_address, port, Protocol.NEGOTIATE);
+    }
 
-        handler.post(() -> {
-            InetAddress serverAddr = null;
-            try {
-                serverAddr = InetAddress.getByName(ip_address);
-            } catch (UnknownHostException e) {
-                Log.e(TAG, "Unknown host. Unable to connect to server.");
+    /**
+     * Start streaming. If the last stop timed out with the streaming thread still blocked
+     * (resolving the host, say) this returns at once and streaming starts as that thread
+     * ends, rather than holding up the caller for as long as it stays blocked.
+     */
+    public synchronized void start(String ip_address, int port, Protocol requested) {
+        if (running)
+            stop();
+
+        if (thread != null && ended != thread) {
+            Log.w(TAG, "Previous stream has not stopped, starting once it has");
+            int stop = stops;
+            Runnable deferred = () -> startDeferred(stop, ip_address, port, requested);
+            deferredStart.set(deferred);
+            // Unless it ended in the meantime without seeing the deferred start
+            if (ended != thread || !deferredStart.compareAndSet(deferred, null))
                 return;
+        }
+        begin(ip_address, port, requested);
+    }
 
+    private synchronized void startDeferred(int stop, String ip_address, int port, Protocol requested) {
+        if (stop == stops)
+            begin(ip_address, port, requested);
+    }
 
-            }
+    private void begin(String ip_address, int port, Protocol requested) {
+        synchronized (queued) {
+            // Sequence numbers and device ids run on across reconnects, so buffered frames still fit
+            sequence = 0;
+            deviceIds.clear();
+            deviceAddresses.clear();
+            buffering = true;
+            if (replay != null)
+                replay.close();
+            replay = new ReplayBuffer(REPLAY_MEMORY_BYTES, spoolDirectory, REPLAY_FILE_BYTES, REPLAY_WRITE_BYTES);
+            // Frames are buffered as expected until a server says otherwise
+            encoding = requested == Protocol.JSON ? Protocol.JSON : requested == Protocol.UDP ? Protocol.UDP : Protocol.BINARY;
+        }
+        datagram = 0;
+        connectedBefore = false;
+        reconnects.set(0);
 
-            try {
-                socket = new Socket(serverAddr, port);
-                socket.setSoTimeout(10);
-                outputStream = socket.getOutputStream();
-                inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e(TAG, "Unable to open network socket");
-            }
-        });
+        running = true;
+        thread = new Thread(() -> run(ip_address, port, requested), "NetworkStreaming Thread");
+        thread.start();
     }
 
-    public void stop() {
+    /**
+     * Stop streaming and wait for the streaming thread to finish. The thread releases the
+     * buffered frames and reports {@link State#STOPPED} as it ends, so if it is still
+     * blocked (resolving the host, say) when the wait times out it does so later.
+     */
+    public synchronized void stop() {
+        stops++;
+        deferredStart.set(null);
+        running = false;
+        protocol = null;
+        synchronized (queued) {
+            encoding = null;
+        }
         try {
-            socket.close();
-            socket = null;
+            Channel c = channel;
+            if (c != null)
+                c.close();
         } catch (IOException e) {
             Log.e(TAG, "Unable to close socket");
         }
 
-        handlerThread.interrupt();
-        handlerThread = null;
-        handler = null;
+        // Stopped from a state listener the thread ends once the listener returns
+        if (thread == null || thread == Thread.currentThread())
+            return;
+        // Wakes the thread from the backoff or a blocking channel operation
+        thread.interrupt();
+        try {
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive())
+            Log.w(TAG, "Streaming thread has not stopped yet");
+        else
+            thread = null;
     }
 
     public boolean isConnected() {
-        if (socket == null)
-            return false;
-        return socket.isConnected();
+        return state == State.CONNECTED;
     }
 
-    public interface MessageReceiver {
-        void receiveMessage(byte [] msg);
-    };
+    public State getState() {
+        return state;
+    }
+
+    public void setStateListener(StateListener listener) {
+        stateListener = listener;
+    }
+
+    private void setState(State s) {
+        if (state == s)
+            return;
+        state = s;
+        StateListener l = stateListener;
+        if (l != null)
+            l.onStateChanged(s);
+    }
+
+    /** Protocol agreed with the server, or null if not connected */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    /** Datagrams sent in UDP mode */
+    public long getSentDatagrams() {
+        return sentDatagrams.get();
+    }
+
+    /** Frames dropped because the network was not keeping up or the buffer was full */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /** Times the connection was made again since start */
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    /** Frames waiting in the replay buffer to be sent once connected */
+    public int getBufferedFrames() {
+        ReplayBuffer r = replay;
+        return r == null ? 0 : r.getFrames();
+    }
+
+    public long getBufferedBytes() {
+        ReplayBuffer r = replay;
+        return r == null ? 0 : r.getBytes();
+    }
+
+    /** Bytes the replay buffer holds before frames are dropped, less without a spool directory */
+    public long getBufferCapacity() {
+        ReplayBuffer r = replay;
+        return r == null ? 0 : r.getCapacity();
+    }
+
+    // region Connection
+
+    /** Connect, and again whenever the connection fails, until stopped */
+    private void run(String host, int port, Protocol requested) {
+        try {
+            connect(host, port, requested);
+        } finally {
+            // Only this thread uses the buffer and the connection state, so it is the one to release them
+            channel = null;
+            synchronized (queued) {
+                replay.close();
+            }
+            recycleQueued();
+            setState(State.STOPPED);
+
+            ended = Thread.currentThread();
+            Runnable next = deferredStart.getAndSet(null);
+            if (next != null)
+                next.run();
+        }
+    }
+
+    private void connect(String host, int port, Protocol requested) {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        while (running) {
+            setState(State.CONNECTING);
+
+            // Resolved on every attempt as the network may have changed
+            InetSocketAddress serverAddr = new InetSocketAddress(host, port);
+            boolean connected = false;
+            if (serverAddr.isUnresolved())
+                Log.e(TAG, "Unknown host. Unable to connect to server.");
+            else if (requested == Protocol.UDP)
+                connected = runUdp(serverAddr);
+            else
+                connected = runTcp(serverAddr, requested);
+            if (!running)
+                break;
 
-    int lastMessageSize = 0;
+            if (connected)
+                backoff = INITIAL_BACKOFF_MILLIS;
+            setState(State.BACKING_OFF);
+            // Spread out so clients that lost the same access point do not return together
+            long wait = backoff / 2 + (long) (Math.random() * backoff / 2);
+            Log.d(TAG, "Connecting again in " + wait + " ms with " + getBufferedFrames() + " frames buffered");
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+        }
+    }
 
-    public void checkForMessage(MessageReceiver receiver) {
-        if (handler != null && isConnected()) {
-            handler.post(() -> {
+    /** @return whether the connection was made, even if it was lost later */
+    private boolean runTcp(InetSocketAddress serverAddr, Protocol requested) {
+        SocketChannel c = null;
+        Thread receiveThread = null;
+        boolean connected = false;
+        NetworkMessageReader reader = new NetworkMessageReader(SPOOL_BYTES, spoolDirectory);
+        try (Selector writable = Selector.open()) {
+            c = SocketChannel.open();
+            channel = c;
+            c.socket().connect(serverAddr, CONNECT_TIMEOUT_MILLIS);
+            c.socket().setTcpNoDelay(true);
+            c.configureBlocking(false);
+            c.register(writable, SelectionKey.OP_WRITE);
+
+            Protocol p = handshake(c, writable, reader, requested);
+            Log.d(TAG, "Connected to " + serverAddr + " using " + p);
+            connected = true;
+
+            final SocketChannel open = c;
+            receiveThread = new Thread(() -> receive(open, reader), "NetworkStreaming Receive Thread");
+            receiveThread.start();
+
+            resume(p);
+            sendBuffered(c, writable, p != Protocol.JSON);
+            send(c, writable, p != Protocol.JSON);
+        } catch (IOException e) {
+            if (running)
+                Log.w(TAG, "Network stream failed: " + e.getMessage());
+        } finally {
+            suspend();
+            if (c != null) {
                 try {
+                    c.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close socket");
+                }
+            }
+            if (receiveThread != null) {
+                receiveThread.interrupt();
+                try {
+                    receiveThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            reader.close();
+        }
+        return connected;
+    }
 
-                    // First see if a message size is available, if needed
-                    if (lastMessageSize == 0) {
-                        if (inputStream.available() >= 4) {
-                            lastMessageSize = inputStream.readInt();
-                        }
+    /** Start using a new connection, which must be sent the buffered frames before any others */
+    private void resume(Protocol p) {
+        synchronized (queued) {
+            if (encoding == null)
+                return;
+            if ((p == Protocol.JSON) != (encoding == Protocol.JSON)) {
+                // The server took the other format, what was buffered is no use to it
+                int frames = replay.getFrames();
+                if (frames > 0)
+                    Log.w(TAG, "Dropping " + frames + " frames buffered as " + encoding + " for a " + p + " server");
+                droppedFrames.addAndGet(frames);
+                replay.clear();
+            }
+            encoding = p;
+        }
+        announced.clear();
+        if (connectedBefore)
+            reconnects.incrementAndGet();
+        connectedBefore = true;
+        protocol = p;
+        setState(State.CONNECTED);
+    }
+
+    /** Go back to buffering once the connection is lost, keeping the frames not yet sent */
+    private void suspend() {
+        protocol = null;
+        synchronized (queued) {
+            buffering = true;
+            if (!running)
+                return;
+            // Frames are only queued once the buffer is empty, so these go back in order
+            Frame f;
+            while ((f = queued.poll()) != null) {
+                if (!replay.offer(f.header, f.body))
+                    droppedFrames.incrementAndGet();
+                free.offer(f);
+            }
+        }
+    }
+
+    private Protocol handshake(SocketChannel c, Selector writable, NetworkMessageReader reader, Protocol requested) throws IOException {
+        if (requested == Protocol.JSON)
+            return Protocol.JSON;
+
+        String [] offered = requested == Protocol.BINARY ?
+                new String[] {NetworkFrameFormat.PROTOCOL_BINARY} :
+                new String[] {NetworkFrameFormat.PROTOCOL_BINARY, NetworkFrameFormat.PROTOCOL_JSON};
+        byte [] hello = gson.toJson(new StreamingHelloMessage(offered)).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer [] buffers = {ByteBuffer.allocate(4).putInt(hello.length), ByteBuffer.wrap(hello)};
+        buffers[0].flip();
+        writeFully(c, writable, buffers, buffers.length);
+
+        if (requested == Protocol.BINARY)
+            return Protocol.BINARY;
+
+        // Wait for the reply, servers that predate frames never send one
+        try (Selector readable = Selector.open()) {
+            c.register(readable, SelectionKey.OP_READ);
+            long deadline = System.currentTimeMillis() + HELLO_TIMEOUT_MILLIS;
+            long wait;
+            while ((wait = deadline - System.currentTimeMillis()) > 0) {
+                readable.select(wait);
+                readable.selectedKeys().clear();
+                reader.read(c);
+                NetworkMessageReader.Message reply = reader.peek();
+                if (reply == null)
+                    continue;
+                if (reply.bytes == null || !isHelloReply(reply.bytes)) {
+                    // Something else came first, leave it for the receivers
+                    return Protocol.JSON;
+                }
+                reader.poll();
+                return NetworkFrameFormat.PROTOCOL_BINARY.equals(helloProtocol(reply.bytes)) ? Protocol.BINARY : Protocol.JSON;
+            }
+        }
+        Log.d(TAG, "No reply to hello, using JSON");
+        return Protocol.JSON;
+    }
+
+    private static boolean isHelloReply(byte [] msg) {
+        return msg.length > 0 && msg[0] == '{' && helloProtocol(msg) != null;
+    }
+
+    /** Protocol named by a StreamingHello reply, or null if it is not one */
+    private static String helloProtocol(byte [] msg) {
+        try {
+            JsonElement json = JsonParser.parseString(new String(msg, StandardCharsets.UTF_8));
+            if (!json.isJsonObject())
+                return null;
+            JsonObject obj = json.getAsJsonObject();
+            if (!obj.has("MSG") || !NetworkFrameFormat.MSG_HELLO.equals(obj.get("MSG").getAsString()) || !obj.has("protocol"))
+                return null;
+            return obj.get("protocol").getAsString();
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    // endregion
+
+    // region Sending
+
+    /** Send the frames buffered while disconnected, then have new frames queued */
+    private void sendBuffered(SocketChannel c, Selector writable, boolean binary) throws IOException {
+        ByteBuffer buffered = ByteBuffer.allocateDirect(REPLAY_WRITE_BYTES);
+        List<ByteBuffer> parts = new ArrayList<>();
+        ByteBuffer [] buffers = new ByteBuffer[0];
+
+        while (running && c.isOpen()) {
+            buffered.clear();
+            if (replay.poll(buffered, REPLAY_WRITE_BYTES) == 0) {
+                synchronized (queued) {
+                    if (replay.isEmpty()) {
+                        buffering = false;
+                        return;
                     }
+                }
+                continue;
+            }
+            buffered.flip();
+            int frames = addBuffered(buffered, parts, binary);
+            buffers = parts.toArray(buffers);
+            try {
+                writeFully(c, writable, buffers, parts.size());
+                sentFrames.addAndGet(frames);
+            } finally {
+                parts.clear();
+            }
+        }
+    }
 
-                    // Then see if entire message has already arrived
-                    if (lastMessageSize > 0 && inputStream.available() >= lastMessageSize) {
+    /** Send queued frames until stopped, coalescing them into gathering writes */
+    private void send(SocketChannel c, Selector writable, boolean binary) throws IOException {
+        List<Frame> batch = new ArrayList<>(WRITE_FRAMES);
+        List<ByteBuffer> parts = new ArrayList<>(3 * WRITE_FRAMES);
+        ByteBuffer [] buffers = new ByteBuffer[3 * WRITE_FRAMES];
 
-                        Log.d(TAG, "Data avilable on stream: " + lastMessageSize);
-                        byte[] msg = new byte[lastMessageSize];
-                        int data = inputStream.read(msg);
-                        if (data != lastMessageSize) {
-                            Log.e(TAG, "Did not receive expected size");
-                            return;
-                        }
-                        if (receiver != null) {
-                            lastMessageSize = 0; // Wait for next one
-                            receiver.receiveMessage(msg);
+        while (running && c.isOpen()) {
+            Frame first;
+            try {
+                first = queued.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Keep the interrupt for the backoff
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (first == null)
+                continue;
+
+            batch.add(first);
+            queued.drainTo(batch, WRITE_FRAMES - 1);
+            int frames = 0;
+            for (Frame f : batch)
+                frames += addFrame(f, parts, binary);
+            buffers = parts.toArray(buffers);
+            try {
+                writeFully(c, writable, buffers, parts.size());
+                sentFrames.addAndGet(frames);
+            } finally {
+                free.addAll(batch);
+                batch.clear();
+                parts.clear();
+            }
+        }
+    }
+
+    private void writeFully(SocketChannel c, Selector writable, ByteBuffer [] buffers, int count) throws IOException {
+        int first = 0;
+        while (first < count) {
+            if (c.write(buffers, first, count - first) == 0) {
+                // Socket buffer is full, wait until the network drains it
+                writable.select(1000);
+                writable.selectedKeys().clear();
+            }
+            while (first < count && !buffers[first].hasRemaining())
+                first++;
+        }
+    }
+
+    /** @return whether the channel was set up, datagrams are sent whether or not anyone listens */
+    private boolean runUdp(InetSocketAddress serverAddr) {
+        boolean connected = false;
+        try (DatagramChannel c = DatagramChannel.open()) {
+            channel = c;
+            c.connect(serverAddr);
+            Log.d(TAG, "Sending datagrams to " + serverAddr);
+            connected = true;
+
+            resume(Protocol.UDP);
+            sendDatagrams(c);
+        } catch (IOException e) {
+            if (running)
+                Log.w(TAG, "Network stream failed: " + e.getMessage());
+        } finally {
+            suspend();
+        }
+        return connected;
+    }
+
+    /**
+     * Send the buffered frames and then the queued ones until stopped, packing those
+     * waiting together into one datagram.
+     */
+    private void sendDatagrams(DatagramChannel c) throws IOException {
+        ByteBuffer header = ByteBuffer.allocateDirect(NetworkFrameFormat.DATAGRAM_HEADER_BYTES);
+        ByteBuffer buffered = ByteBuffer.allocateDirect(REPLAY_WRITE_BYTES);
+        List<Frame> batch = new ArrayList<>(WRITE_FRAMES);
+        List<ByteBuffer> parts = new ArrayList<>(1 + 3 * WRITE_FRAMES);
+        ByteBuffer [] buffers = new ByteBuffer[1 + 3 * WRITE_FRAMES];
+        long announcedMillis = System.currentTimeMillis();
+        boolean replaying = true;
+        boolean unreachable = false;
+
+        while (running && c.isOpen()) {
+            long now = System.currentTimeMillis();
+            if (now - announcedMillis >= NetworkFrameFormat.ANNOUNCE_INTERVAL_MILLIS) {
+                // Datagrams can be lost, so devices are announced again from time to time
+                announced.clear();
+                announcedMillis = now;
+            }
+
+            parts.add(header);
+            int frames = 0;
+            if (replaying) {
+                buffered.clear();
+                // Leave room for the device frames addBuffered may put in front of them
+                int room = NetworkFrameFormat.MAX_DATAGRAM_BYTES - NetworkFrameFormat.DATAGRAM_HEADER_BYTES - unannouncedBytes();
+                if (replay.poll(buffered, room) == 0) {
+                    synchronized (queued) {
+                        if (replay.isEmpty()) {
+                            buffering = false;
+                            replaying = false;
                         }
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "Could not read message from network stream", e);
+                    parts.clear();
+                    continue;
+                }
+                buffered.flip();
+                frames = addBuffered(buffered, parts, true);
+            } else {
+                Frame next;
+                try {
+                    next = queued.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (next == null) {
+                    parts.clear();
+                    continue;
+                }
+
+                // Only this thread takes frames, so the one peeked at is the one polled
+                int bytes = NetworkFrameFormat.DATAGRAM_HEADER_BYTES;
+                do {
+                    ByteBuffer device = announcement(next.header, 0);
+                    int size = size(next) + (device == null ? 0 : device.remaining());
+                    if (!batch.isEmpty() && bytes + size > NetworkFrameFormat.MAX_DATAGRAM_BYTES)
+                        break;
+                    if (!batch.isEmpty())
+                        queued.poll();
+                    batch.add(next);
+                    frames += addFrame(next, device, parts);
+                    bytes += size;
+                } while (batch.size() < WRITE_FRAMES && (next = queued.peek()) != null);
+            }
+
+            header.clear();
+            header.putInt(datagram++);
+            header.putLong(NetworkFrameFormat.clockMicros());
+            header.putShort((short) frames);
+            header.flip();
+            buffers = parts.toArray(buffers);
+            try {
+                // A gathering write on a datagram channel sends a single datagram
+                c.write(buffers, 0, parts.size());
+                sentFrames.addAndGet(frames);
+                sentDatagrams.incrementAndGet();
+                unreachable = false;
+            } catch (PortUnreachableException e) {
+                // Nothing listening yet, keep sending in case the receiver starts
+                if (!unreachable)
+                    Log.w(TAG, "Nobody is receiving the datagrams");
+                unreachable = true;
+            } finally {
+                free.addAll(batch);
+                batch.clear();
+                parts.clear();
+            }
+        }
+    }
+
+    /**
+     * Add a queued frame to a write, after a device frame if its device has not been
+     * announced on this connection.
+     * @return frames added
+     */
+    private int addFrame(Frame f, List<ByteBuffer> parts, boolean binary) {
+        return addFrame(f, binary ? announcement(f.header, 0) : null, parts);
+    }
+
+    private int addFrame(Frame f, ByteBuffer device, List<ByteBuffer> parts) {
+        int frames = 1;
+        if (device != null) {
+            parts.add(device);
+            announced.add(deviceOf(f.header, 0));
+            frames++;
+        }
+        parts.add(f.header);
+        parts.add(f.body);
+        return frames;
+    }
+
+    /**
+     * Add frames read back from the replay buffer to a write, with device frames before
+     * those whose device has not been announced on this connection.
+     * @return frames added
+     */
+    private int addBuffered(ByteBuffer buffered, List<ByteBuffer> parts, boolean binary) {
+        int frames = 0;
+        int start = buffered.position();
+        for (int at = start; at < buffered.limit(); at += 4 + buffered.getInt(at)) {
+            frames++;
+            ByteBuffer device = binary ? announcement(buffered, at) : null;
+            if (device == null)
+                continue;
+            parts.add(slice(buffered, start, at));
+            parts.add(device);
+            announced.add(deviceOf(buffered, at));
+            frames++;
+            start = at;
+        }
+        parts.add(slice(buffered, start, buffered.limit()));
+        return frames;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice;
+    }
+
+    private static int deviceOf(ByteBuffer frame, int at) {
+        return frame.getShort(at + 6) & 0xFFFF;
+    }
+
+    /**
+     * The device frame to send before the binary frame starting at {@code at}, or null if
+     * its device has been announced on this connection. A device frame takes the sequence
+     * number and time of the frame it comes before.
+     */
+    private ByteBuffer announcement(ByteBuffer frame, int at) {
+        int device = deviceOf(frame, at);
+        if (device == NetworkFrameFormat.NO_DEVICE || announced.contains(device))
+            return null;
+        String mac;
+        synchronized (queued) {
+            mac = device < deviceAddresses.size() ? deviceAddresses.get(device) : null;
+        }
+        if (mac == null)
+            return null;
+
+        byte [] address = mac.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(4 + NetworkFrameFormat.HEADER_BYTES + 2 + address.length);
+        b.putInt(NetworkFrameFormat.HEADER_BYTES + 2 + address.length);
+        b.put((byte) NetworkFrameFormat.FRAME_DEVICE);
+        b.put((byte) 0);
+        b.putShort((short) device);
+        b.putInt(frame.getInt(at + 8));
+        b.putLong(frame.getLong(at + 12));
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putShort((short) address.length);
+        b.put(address);
+        b.flip();
+        return b;
+    }
+
+    /** Bytes of the device frames for every device not announced on this connection */
+    private int unannouncedBytes() {
+        int bytes = 0;
+        synchronized (queued) {
+            for (int device = 0; device < deviceAddresses.size(); device++)
+                if (!announced.contains(device))
+                    bytes += 4 + NetworkFrameFormat.HEADER_BYTES + 2 + deviceAddresses.get(device).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return bytes;
+    }
+
+    private static int size(Frame f) {
+        return f.header.remaining() + f.body.remaining();
+    }
+
+    /** Return frames that will not be sent to the pool */
+    private void recycleQueued() {
+        Frame f;
+        while ((f = queued.poll()) != null)
+            free.offer(f);
+    }
+
+    /** A free frame, or null (and the frame counted as dropped) if none is left */
+    private Frame obtain() {
+        Frame f = free.poll();
+        if (f == null)
+            droppedFrames.incrementAndGet();
+        return f;
+    }
+
+    /**
+     * A free frame for a binary frame, or null if none is left. A dropped frame still
+     * takes its sequence number, so the gap tells the server how many were lost.
+     */
+    private Frame obtainBinary() {
+        Frame f = obtain();
+        if (f == null) {
+            synchronized (queued) {
+                sequence++;
+            }
+        }
+        return f;
+    }
+
+    /** Queue a binary frame whose values have been written to its body */
+    private void queueFrame(Frame f, int type, String mac, long time, int channels, int samples) {
+        synchronized (queued) {
+            int device = NetworkFrameFormat.NO_DEVICE;
+            if (mac != null) {
+                Integer id = deviceIds.get(mac);
+                if (id == null) {
+                    id = deviceAddresses.size();
+                    deviceIds.put(mac, id);
+                    deviceAddresses.add(mac);
                 }
-            });
+                device = id;
+            }
+
+            f.json = false;
+            f.body.flip();
+            f.header.clear();
+            f.header.putInt(NetworkFrameFormat.HEADER_BYTES + f.body.remaining());
+            f.header.put((byte) type);
+            f.header.put((byte) 0);
+            f.header.putShort((short) device);
+            f.header.putInt(sequence++);
+            f.header.putLong(time);
+            f.header.putShort((short) channels);
+            f.header.putShort((short) samples);
+            f.header.flip();
+            submit(f);
         }
     }
 
-    private void write(byte[] b) {
-        if (handler != null) {
-            handler.post(() -> {
-                //Log.d(TAG, "Writing " + b.length + " bytes and " + ByteBuffer.allocate(4).putInt(b.length).array().length);
+    private void queueJson(Object msg) {
+        byte [] json = gson.toJson(msg).getBytes(StandardCharsets.UTF_8);
+        Frame f = obtain();
+        if (f == null)
+            return;
+        f.json = true;
+        f.body(json.length).put(json).flip();
+        f.header.clear();
+        f.header.putInt(json.length);
+        f.header.flip();
+        synchronized (queued) {
+            submit(f);
+        }
+    }
+
+    /** Pass on an encoded frame to be sent, or to the replay buffer while disconnected. Holding queued. */
+    private void submit(Frame f) {
+        if (encoding == null || f.json != (encoding == Protocol.JSON)) {
+            // Encoded just before a connection changed the format, or after stopping
+            droppedFrames.incrementAndGet();
+            free.offer(f);
+        } else if (buffering) {
+            if (!replay.offer(f.header, f.body))
+                droppedFrames.incrementAndGet();
+            free.offer(f);
+        } else {
+            queued.offer(f);
+        }
+    }
+
+    // endregion
+
+    // region Receiving
+
+    public interface MessageReceiver {
+        void receiveMessage(byte [] msg);
+
+        /**
+         * A message too large to hold in memory, spooled to a temporary file. The file is
+         * deleted once every receiver has returned, so rename it to keep it. By default it
+         * is read into memory and passed to {@link #receiveMessage}.
+         */
+        default void receiveLargeMessage(File file) throws IOException {
+            receiveMessage(Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    /**
+     * Register a receiver for messages from the server, called on the receive thread.
+     * Messages that arrived while no receiver was registered are passed to the first one.
+     */
+    public void addMessageReceiver(MessageReceiver receiver) {
+        synchronized (receivers) {
+            receivers.add(receiver);
+            NetworkMessageReader.Message m;
+            while ((m = pending.poll()) != null)
+                deliver(m);
+        }
+    }
+
+    public void removeMessageReceiver(MessageReceiver receiver) {
+        receivers.remove(receiver);
+    }
+
+    /**
+     * Directory for spooling large messages from the server, such as the app's cache
+     * directory. Defaults to the platform temporary directory. Used from the next connection.
+     */
+    public void setSpoolDirectory(File directory) {
+        spoolDirectory = directory;
+    }
+
+    /** Wait for messages from the server and pass them on until the connection closes */
+    private void receive(SocketChannel c, NetworkMessageReader reader) {
+        try (Selector readable = Selector.open()) {
+            c.register(readable, SelectionKey.OP_READ);
+            deliverAll(reader);
+            while (running && c.isOpen()) {
+                if (readable.select(1000) == 0)
+                    continue;
+                readable.selectedKeys().clear();
+                reader.read(c);
+                deliverAll(reader);
+            }
+        } catch (EOFException e) {
+            Log.d(TAG, "Server closed the connection");
+        } catch (IOException e) {
+            if (running && c.isOpen())
+                Log.e(TAG, "Could not read from network stream", e);
+        } finally {
+            // The sending thread sees the closed channel and ends the connection
+            try {
+                c.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close socket");
+            }
+        }
+    }
+
+    private void deliverAll(NetworkMessageReader reader) {
+        NetworkMessageReader.Message m;
+        while ((m = reader.poll()) != null) {
+            synchronized (receivers) {
+                if (receivers.isEmpty()) {
+                    if (pending.size() == PENDING_MESSAGES)
+                        pending.poll().discard();
+                    pending.add(m);
+                    continue;
+                }
+            }
+            deliver(m);
+        }
+    }
+
+    private void deliver(NetworkMessageReader.Message m) {
+        Log.d(TAG, "Received message: " + (m.file != null ? m.file.length() : m.bytes.length));
+        try {
+            for (MessageReceiver receiver : receivers) {
                 try {
-                    outputStream.write(ByteBuffer.allocate(4).putInt(b.length).array());
-                    outputStream.write(b);
+                    if (m.file != null)
+                        receiver.receiveLargeMessage(m.file);
+                    else
+                        receiver.receiveMessage(m.bytes);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.e(TAG, "Receiver could not handle message", e);
                 }
-            });
+            }
+        } finally {
+            m.discard();
         }
     }
 
+    // endregion
+
     public void streamEmgBuffer(BluetoothDevice dev,
                                 long time,
                                 int samples,
                                 int channels,
                                 double[][] data) {
+        streamEmgBuffer(dev.getAddress(), time, samples, channels, data);
+    }
 
-        Gson gson = new Gson();
-        EmgRawMessage msg = new EmgRawMessage(dev.getAddress(), time, 0, 0, 0, 0, channels, samples, data);
-        String json = gson.toJson(msg);
-        write(json.getBytes());
+    /**
+     * The stream methods also take the device address directly, so they can be driven
+     * without a BluetoothDevice, as the loopback benchmark does on the JVM.
+     */
+    void streamEmgBuffer(String mac,
+                         long time,
+                         int samples,
+                         int channels,
+                         double[][] data) {
+
+        Protocol p = encoding;
+        if (p == null)
+            return;
+        if (p == Protocol.JSON) {
+            queueJson(new EmgRawMessage(mac, time, 0, 0, 0, 0, channels, samples, data));
+            return;
+        }
+
+        Frame f = obtainBinary();
+        if (f == null)
+            return;
+        ByteBuffer body = f.body(4 * channels * samples);
+        for (int i = 0; i < channels; i++)
+            for (int j = 0; j < samples; j++)
+                body.putFloat((float) data[i][j]);
+        queueFrame(f, NetworkFrameFormat.FRAME_EMG_RAW, mac, time, channels, samples);
     }
 
     public void streamEmgPwr(BluetoothDevice dev,
                                 long time,
                                 int [] data) {
+        streamEmgPwr(dev.getAddress(), time, data);
+    }
+
+    void streamEmgPwr(String mac, long time, int [] data) {
+
+        Protocol p = encoding;
+        if (p == null)
+            return;
+        if (p == Protocol.JSON) {
+            queueJson(new EmgPwrMessage(mac, time,  0, 0, 0, 0, data));
+            return;
+        }
 
-        Gson gson = new Gson();
-        EmgPwrMessage msg = new EmgPwrMessage(dev.getAddress(), time,  0, 0, 0, 0, data);
-        String json = gson.toJson(msg);
-        write(json.getBytes());
+        Frame f = obtainBinary();
+        if (f == null)
+            return;
+        ByteBuffer body = f.body(4 * data.length);
+        for (int v : data)
+            body.putInt(v);
+        queueFrame(f, NetworkFrameFormat.FRAME_EMG_PWR, mac, time, data.length, 1);
+    }
+
+    /**
+     * @param type {@link NetworkFrameFormat#FRAME_ACCEL}, {@link NetworkFrameFormat#FRAME_GYRO}
+     *             or {@link NetworkFrameFormat#FRAME_MAG}
+     * @param data [3][samples]
+     */
+    public void streamImu(BluetoothDevice dev, int type, long time, float [][] data) {
+        streamImu(dev.getAddress(), type, time, data);
+    }
+
+    void streamImu(String mac, int type, long time, float [][] data) {
+        Protocol p = encoding;
+        if (p == null)
+            return;
+        if (p == Protocol.JSON) {
+            if (type == NetworkFrameFormat.FRAME_ACCEL)
+                queueJson(new ImuAccelMessage(mac, time, 0, 0, 0, 0, data));
+            else if (type == NetworkFrameFormat.FRAME_GYRO)
+                queueJson(new ImuGyroMessage(mac, time, 0, 0, 0, 0, data));
+            else
+                queueJson(new ImuMagMessage(mac, time, 0, 0, 0, 0, data));
+            return;
+        }
+
+        int samples = data[0].length;
+        Frame f = obtainBinary();
+        if (f == null)
+            return;
+        ByteBuffer body = f.body(4 * data.length * samples);
+        for (float [] channel : data)
+            for (float v : channel)
+                body.putFloat(v);
+        queueFrame(f, type, mac, time, data.length, samples);
+    }
+
+    public void streamAttitude(BluetoothDevice dev, long time, float [] quat) {
+        streamAttitude(dev.getAddress(), time, quat);
+    }
+
+    void streamAttitude(String mac, long time, float [] quat) {
+        Protocol p = encoding;
+        if (p == null)
+            return;
+        if (p == Protocol.JSON) {
+            queueJson(new ImuAttitudeMessage(mac, time, 0, 0, 0, 0, quat));
+            return;
+        }
+
+        Frame f = obtainBinary();
+        if (f == null)
+            return;
+        ByteBuffer body = f.body(4 * quat.length);
+        for (float v : quat)
+            body.putFloat(v);
+        queueFrame(f, NetworkFrameFormat.FRAME_ATTITUDE, mac, time, quat.length, 1);
     }
 
     public void streamTrackingXY(float goal_x, float goal_y, float decoded_x, float decoded_y, float position_x, float position_y, String mode) {
-        Gson gson = new Gson();
-        TrackingXYCoordinate xy = new TrackingXYCoordinate(goal_x, goal_y, decoded_x, decoded_y, position_x, position_y, mode);
-        String json = gson.toJson(xy);
-        write(json.getBytes());
+        Protocol p = encoding;
+        if (p == null)
+            return;
+        if (p == Protocol.JSON) {
+            queueJson(new TrackingXYCoordinate(goal_x, goal_y, decoded_x, decoded_y, position_x, position_y, mode));
+            return;
+        }
+
+        Frame f = obtainBinary();
+        if (f == null)
+            return;
+        byte [] modeBytes = mode == null ? new byte[0] : mode.getBytes(StandardCharsets.UTF_8);
+        f.body(6 * 4 + 2 + modeBytes.length)
+                .putFloat(goal_x).putFloat(goal_y)
+                .putFloat(decoded_x).putFloat(decoded_y)
+                .putFloat(position_x).putFloat(position_y)
+                .putShort((short) modeBytes.length).put(modeBytes);
+        queueFrame(f, NetworkFrameFormat.FRAME_TRACKING_XY, null, new Date().getTime(), 6, 1);
     }
 
 }
@@ -0,0 +1,187 @@
+package org.sralab.emgimu.streaming;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Holds the frames produced while {@link NetworkStreaming} is not connected, so they can
+ * be sent in order once it is again. Each frame is stored as sent, its length first.
+ *
+ * Frames are kept in memory up to a limit and then appended to a file in the spool
+ * directory, if there is one, up to a second limit. While any frames are in the file new
+ * ones go there too, so reading memory first and then the file keeps them in order. Once
+ * both are full new frames are refused, keeping the start of the outage intact.
+ */
+class ReplayBuffer {
+    private static final String TAG = ReplayBuffer.class.getSimpleName();
+
+    private final long memoryCapacity;
+    private final long fileCapacity;
+    private final int maxFrameBytes;
+    private final File directory;
+
+    // Guarded by this
+    private final ArrayDeque<byte []> memory = new ArrayDeque<>();
+    private long memoryBytes;
+    private File file;
+    private FileChannel channel;
+    private long readPosition;
+    private long writePosition;
+    private int fileFrames;
+    private final ByteBuffer length = ByteBuffer.allocate(4);
+    private boolean closed;
+
+    /**
+     * @param directory where frames beyond memoryCapacity go, or null to keep only memory
+     * @param maxFrameBytes larger frames are refused, so a poll into a buffer this size always moves one
+     */
+    ReplayBuffer(long memoryCapacity, File directory, long fileCapacity, int maxFrameBytes) {
+        this.memoryCapacity = memoryCapacity;
+        this.directory = directory;
+        this.fileCapacity = directory == null ? 0 : fileCapacity;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Append a frame, reading header then body from their positions without moving them.
+     * @return false if the buffer is full and the frame was not kept
+     */
+    synchronized boolean offer(ByteBuffer header, ByteBuffer body) {
+        if (closed)
+            return false;
+        int size = header.remaining() + body.remaining();
+        if (size > maxFrameBytes)
+            return false;
+
+        if (fileFrames == 0 && memoryBytes + size <= memoryCapacity) {
+            byte [] frame = new byte[size];
+            header.duplicate().get(frame, 0, header.remaining());
+            body.duplicate().get(frame, header.remaining(), body.remaining());
+            memory.add(frame);
+            memoryBytes += size;
+            return true;
+        }
+
+        if (writePosition - readPosition + size > fileCapacity)
+            return false;
+        try {
+            if (channel == null) {
+                file = File.createTempFile("network_replay", ".buf", directory);
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            ByteBuffer [] buffers = {header.duplicate(), body.duplicate()};
+            long position = writePosition;
+            while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+                channel.position(position);
+                position += channel.write(buffers);
+            }
+            writePosition = position;
+            fileFrames++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to spool replay frames", e);
+            return false;
+        }
+    }
+
+    /**
+     * Move whole frames, oldest first, into {@code into} while they fit, and at least one
+     * if any is held and {@code into} has room for it.
+     * @return frames moved
+     */
+    synchronized int poll(ByteBuffer into, int maxBytes) throws IOException {
+        int frames = 0;
+        int room = Math.min(maxBytes, into.remaining());
+        while (true) {
+            byte [] frame = memory.peek();
+            if (frame != null) {
+                if (frame.length > room && (frames > 0 || frame.length > into.remaining()))
+                    break;
+                memory.poll();
+                memoryBytes -= frame.length;
+                into.put(frame);
+                room -= frame.length;
+                frames++;
+                continue;
+            }
+
+            if (fileFrames == 0)
+                break;
+            length.clear();
+            channel.read(length, readPosition);
+            int size = 4 + length.getInt(0);
+            if (size > room && (frames > 0 || size > into.remaining()))
+                break;
+            ByteBuffer target = into.duplicate();
+            target.limit(target.position() + size);
+            long position = readPosition;
+            while (target.hasRemaining()) {
+                int n = channel.read(target, position);
+                if (n < 0)
+                    throw new IOException("Replay file ended early");
+                position += n;
+            }
+            into.position(into.position() + size);
+            readPosition += size;
+            room -= size;
+            frames++;
+            if (--fileFrames == 0) {
+                // Empty, so start the file again rather than letting it grow
+                readPosition = writePosition = 0;
+                channel.truncate(0);
+            }
+        }
+        return frames;
+    }
+
+    synchronized boolean isEmpty() {
+        return memory.isEmpty() && fileFrames == 0;
+    }
+
+    synchronized int getFrames() {
+        return memory.size() + fileFrames;
+    }
+
+    synchronized long getBytes() {
+        return memoryBytes + writePosition - readPosition;
+    }
+
+    long getCapacity() {
+        return memoryCapacity + fileCapacity;
+    }
+
+    /** Drop everything held */
+    synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0;
+        fileFrames = 0;
+        readPosition = writePosition = 0;
+        if (channel != null) {
+            try {
+                channel.truncate(0);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    synchronized void close() {
+        clear();
+        closed = true;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file.delete();
+            channel = null;
+        }
+    }
+}
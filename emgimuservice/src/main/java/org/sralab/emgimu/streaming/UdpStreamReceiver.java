@@ -0,0 +1,304 @@
+package org.sralab.emgimu.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+/**
+ * Receives the datagrams {@link NetworkStreaming} sends in UDP mode and keeps track of
+ * how the link is doing: datagrams lost, arriving out of order or twice, and the one-way
+ * latency from the sender's timestamp. It stands in for the lab server when testing on
+ * loopback or on the phone, and documents what a server should measure.
+ *
+ * Latency is the receive time less the sender time, both {@link NetworkFrameFormat#clockMicros()}.
+ * On one host this is the true latency. Between hosts it also holds the offset of their
+ * clocks, but latency above the minimum seen (queueing and Wi-Fi retries, which is what
+ * hurts closed loop control) is still right, as is the jitter.
+ */
+public class UdpStreamReceiver {
+    private static final String TAG = UdpStreamReceiver.class.getSimpleName();
+
+    /** Datagrams behind the newest one that can still be told apart from duplicates */
+    private static final int WINDOW = 1024;
+    /** Latency histogram bins, 100 us each up to 500 ms, so percentiles are upper bounds to 100 us */
+    private static final int BIN_MICROS = 100;
+    private static final int BINS = 5000;
+    private static final int RECEIVE_BUFFER_BYTES = 1024 * 1024;
+
+    public interface FrameListener {
+        /**
+         * Called on the receive thread for each frame, with the buffer positioned at the
+         * frame type and limited to the end of the frame.
+         */
+        void onFrame(ByteBuffer frame, long senderMicros);
+    }
+
+    /** Counts since the receiver started or was last reset */
+    public static class Stats {
+        public long received;
+        public long lost;
+        public long reordered;
+        public long duplicates;
+        public long malformed;
+        public long frames;
+        public long minLatencyMicros;
+        public long maxLatencyMicros;
+        public double meanLatencyMicros;
+        /** Smoothed variation of the latency between datagrams, as RFC 3550 */
+        public double jitterMicros;
+        public long p50LatencyMicros;
+        public long p99LatencyMicros;
+
+        /** Fraction of the datagrams sent that did not arrive */
+        public double lossRate() {
+            long expected = received - duplicates + lost;
+            return expected == 0 ? 0 : lost / (double) expected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("received %d lost %d (%.2f%%) reordered %d duplicates %d frames %d latency min %d p50 %d p99 %d max %d mean %.0f jitter %.0f us",
+                    received, lost, 100 * lossRate(), reordered, duplicates, frames,
+                    minLatencyMicros, p50LatencyMicros, p99LatencyMicros, maxLatencyMicros, meanLatencyMicros, jitterMicros);
+        }
+    }
+
+    private final DatagramChannel channel;
+    private volatile FrameListener listener;
+    private Thread thread;
+
+    // Guarded by this
+    private boolean started;
+    private long first;
+    private long highest;
+    /** Bit i set when datagram highest - i has arrived */
+    private final long [] seen = new long[WINDOW / 64];
+    private long received;
+    private long unique;
+    private long reordered;
+    private long duplicates;
+    private long malformed;
+    private long frames;
+    private long minLatency = Long.MAX_VALUE;
+    private long maxLatency = Long.MIN_VALUE;
+    private long sumLatency;
+    private long lastLatency;
+    private double jitter;
+    private final long [] histogram = new long[BINS + 1];
+
+    /** @param port port to listen on, or 0 to pick a free one, see {@link #getPort()} */
+    public UdpStreamReceiver(int port) throws IOException {
+        channel = DatagramChannel.open();
+        // Room for bursts while the receive thread is not scheduled
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        thread = new Thread(this::run, "UdpStreamReceiver Thread");
+        thread.start();
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close socket");
+        }
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (channel.isOpen()) {
+                buffer.clear();
+                channel.receive(buffer);
+                long now = NetworkFrameFormat.clockMicros();
+                buffer.flip();
+                onDatagram(buffer, now);
+            }
+        } catch (ClosedChannelException e) {
+            // Closed by close()
+        } catch (IOException e) {
+            Log.e(TAG, "Receiving datagrams failed", e);
+        }
+    }
+
+    /** Account for one datagram and pass on its frames */
+    void onDatagram(ByteBuffer datagram, long nowMicros) {
+        if (datagram.remaining() < NetworkFrameFormat.DATAGRAM_HEADER_BYTES) {
+            synchronized (this) {
+                malformed++;
+            }
+            return;
+        }
+        long sequence = datagram.getInt() & 0xFFFFFFFFL;
+        long sent = datagram.getLong();
+        int count = datagram.getShort() & 0xFFFF;
+
+        boolean duplicate;
+        synchronized (this) {
+            duplicate = !track(sequence, nowMicros - sent);
+        }
+        if (duplicate)
+            return;
+
+        FrameListener l = listener;
+        int parsed = 0;
+        while (parsed < count && datagram.remaining() >= 4) {
+            int length = datagram.getInt();
+            if (length < 0 || length > datagram.remaining())
+                break;
+            int end = datagram.position() + length;
+            if (l != null) {
+                ByteBuffer frame = datagram.duplicate();
+                frame.limit(end);
+                l.onFrame(frame, sent);
+            }
+            datagram.position(end);
+            parsed++;
+        }
+
+        synchronized (this) {
+            frames += parsed;
+            if (parsed != count)
+                malformed++;
+        }
+    }
+
+    /** @return false if the datagram is a duplicate */
+    private boolean track(long sequence, long latency) {
+        received++;
+        if (!started) {
+            started = true;
+            first = sequence;
+            highest = sequence;
+            setSeen(0);
+        } else if (sequence > highest) {
+            shift(sequence - highest);
+            highest = sequence;
+            setSeen(0);
+        } else {
+            long behind = highest - sequence;
+            if (behind < WINDOW && isSeen((int) behind)) {
+                duplicates++;
+                return false;
+            }
+            reordered++;
+            first = Math.min(first, sequence);
+            if (behind < WINDOW)
+                setSeen((int) behind);
+        }
+        unique++;
+
+        minLatency = Math.min(minLatency, latency);
+        maxLatency = Math.max(maxLatency, latency);
+        sumLatency += latency;
+        if (unique > 1)
+            jitter += (Math.abs(latency - lastLatency) - jitter) / 16.0;
+        lastLatency = latency;
+        histogram[(int) Math.min(BINS, Math.max(0, latency) / BIN_MICROS)]++;
+        return true;
+    }
+
+    private void shift(long by) {
+        if (by >= WINDOW) {
+            Arrays.fill(seen, 0);
+            return;
+        }
+        int words = (int) (by / 64);
+        int bits = (int) (by % 64);
+        for (int i = seen.length - 1; i >= 0; i--) {
+            long v = i - words >= 0 ? seen[i - words] << bits : 0;
+            if (bits != 0 && i - words - 1 >= 0)
+                v |= seen[i - words - 1] >>> (64 - bits);
+            seen[i] = v;
+        }
+    }
+
+    private void setSeen(int behind) {
+        seen[behind / 64] |= 1L << (behind % 64);
+    }
+
+    private boolean isSeen(int behind) {
+        return (seen[behind / 64] & (1L << (behind % 64))) != 0;
+    }
+
+    public synchronized Stats getStats() {
+        Stats s = new Stats();
+        s.received = received;
+        s.reordered = reordered;
+        s.duplicates = duplicates;
+        s.malformed = malformed;
+        s.frames = frames;
+        if (started) {
+            // Datagrams still on their way out of order count as lost until they arrive
+            s.lost = Math.max(0, highest + 1 - first - unique);
+        }
+        if (unique > 0) {
+            s.minLatencyMicros = minLatency;
+            s.maxLatencyMicros = maxLatency;
+            s.meanLatencyMicros = sumLatency / (double) unique;
+            s.jitterMicros = jitter;
+            s.p50LatencyMicros = percentile(0.5);
+            s.p99LatencyMicros = percentile(0.99);
+        }
+        return s;
+    }
+
+    private long percentile(double p) {
+        long target = (long) Math.ceil(p * unique);
+        long count = 0;
+        for (int i = 0; i <= BINS; i++) {
+            count += histogram[i];
+            if (count >= target)
+                return Math.min((long) (i + 1) * BIN_MICROS, maxLatency);
+        }
+        return maxLatency;
+    }
+
+    /** Start counting again, for example after the sender restarts */
+    public synchronized void reset() {
+        started = false;
+        Arrays.fill(seen, 0);
+        Arrays.fill(histogram, 0);
+        received = unique = reordered = duplicates = malformed = frames = 0;
+        minLatency = Long.MAX_VALUE;
+        maxLatency = Long.MIN_VALUE;
+        sumLatency = 0;
+        lastLatency = 0;
+        jitter = 0;
+    }
+}
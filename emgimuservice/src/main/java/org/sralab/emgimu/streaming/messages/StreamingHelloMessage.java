@@ -0,0 +1,16 @@
+package org.sralab.emgimu.streaming.messages;
+
+/**
+ * First message sent on a streaming connection that offers the binary frame format.
+ * A server that understands it replies with a StreamingHello naming the protocol
+ * chosen, see {@link org.sralab.emgimu.streaming.NetworkFrameFormat}.
+ */
+public class StreamingHelloMessage {
+
+    public final String MSG = "StreamingHello";
+    public String [] protocols;
+
+    public StreamingHelloMessage(String [] protocols) {
+        this.protocols = protocols;
+    }
+}
@@ -0,0 +1,29 @@
+package org.sralab.emgimu.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread, from the HotSpot thread MXBean the JVM unit
+ * tests run on. Benchmarks read it before and after a loop to show what it allocates.
+ */
+public final class Allocations {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Allocations() {}
+
+    public static long bytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Average bytes allocated per call of {@code task}, after running it to warm up the JIT */
+    public static double perCall(int calls, Runnable task) {
+        for (int i = 0; i < calls; i++)
+            task.run();
+        long before = bytes();
+        for (int i = 0; i < calls; i++)
+            task.run();
+        return (bytes() - before) / (double) calls;
+    }
+}
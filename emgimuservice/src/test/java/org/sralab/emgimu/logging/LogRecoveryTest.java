@@ -0,0 +1,252 @@
+package org.sralab.emgimu.logging;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sralab.emgimu.logging.binary.StreamLogEncoder;
+import org.sralab.emgimu.logging.binary.StreamLogReader;
+import org.sralab.emgimu.logging.binary.StreamLogTrimmer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes logs the way FirebaseWriter does, gzip members that are sync flushed as they
+ * grow and finished every few flushes, then cuts copies of them short at offsets around
+ * every flush and recovers each copy. A recovered log has to gunzip in full and hold an
+ * unbroken run of the messages written, at least up to the last flush before the cut.
+ */
+public class LogRecoveryTest {
+
+    private static final int FLUSHES = 24;
+    private static final int MESSAGES_PER_FLUSH = 40;
+    private static final int FLUSHES_PER_BLOCK = 5;
+
+    private File dir;
+
+    /** A log, with where each sync flush and gzip member ended in the compressed file */
+    private static class Written {
+        final File file;
+        final List<Long> flushEnds = new ArrayList<>();
+        final List<Integer> flushMessages = new ArrayList<>();
+        final List<Long> blockStarts = new ArrayList<>(Arrays.asList(0L));
+
+        Written(File file) {
+            this.file = file;
+        }
+
+        /** Where the member holding the byte at offset started, as the open marker says */
+        long blockStart(long offset) {
+            long start = 0;
+            for (long s : blockStarts)
+                if (s <= offset)
+                    start = s;
+            return start;
+        }
+    }
+
+    private interface Content {
+        /** Write messages [first, first + count) */
+        void write(int first, int count) throws IOException;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("recovery").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File [] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    /** Holds the current gzip member, replaced when a block is finished */
+    private static class Member {
+        GZIPOutputStream gzip;
+    }
+
+    private Written write(File file, Member member, FileOutputStream out, Content content) throws IOException {
+        Written w = new Written(file);
+        int written = 0;
+        for (int flush = 1; flush <= FLUSHES; flush++) {
+            content.write(written, MESSAGES_PER_FLUSH);
+            written += MESSAGES_PER_FLUSH;
+            member.gzip.flush();
+            out.getFD().sync();
+            w.flushEnds.add(out.getChannel().position());
+            w.flushMessages.add(written);
+
+            if (flush % FLUSHES_PER_BLOCK == 0 && flush < FLUSHES) {
+                member.gzip.finish();
+                w.blockStarts.add(out.getChannel().position());
+                member.gzip = new GZIPOutputStream(out, 8192, true);
+            }
+        }
+        // Never closed, as if the process died after the last flush
+        return w;
+    }
+
+    private Written writeJson() throws IOException {
+        File file = new File(dir, "log.json.gz");
+        FileOutputStream out = new FileOutputStream(file);
+        Member member = new Member();
+        member.gzip = new GZIPOutputStream(out, 8192, true);
+        member.gzip.write("[".getBytes(StandardCharsets.UTF_8));
+        Written w = write(file, member, out, (first, count) -> {
+            for (int i = first; i < first + count; i++) {
+                String msg = (i == 0 ? "" : ",\n") + "{\"MSG\":\"EmgPwr\",\"sensor_counter\":" + i + ",\"data\":[" + i * 7 + "]}";
+                member.gzip.write(msg.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        out.close();
+        return w;
+    }
+
+    private Written writeBinary() throws IOException {
+        File file = new File(dir, "log.bin.gz");
+        FileOutputStream out = new FileOutputStream(file);
+        Member member = new Member();
+        member.gzip = new GZIPOutputStream(out, 8192, true);
+        StreamLogEncoder encoder = new StreamLogEncoder("F0:1A:00:00:00:00", (bytes, span) -> {
+            try {
+                member.gzip.write(bytes);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Written w = write(file, member, out, (first, count) -> {
+            for (int i = first; i < first + count; i++)
+                encoder.addEmgPwr(1_600_000_000_000L + i, 1_000_000L * i, 10L * i, 10L * i, i & 0xFF, new int[] {i * 7});
+            encoder.flush();
+        });
+        out.close();
+        return w;
+    }
+
+    /** Copy the first length bytes of the log, with the marker it had then, and recover it */
+    private File recoverCut(Written w, FirebaseWriter.Format format, long length) throws IOException {
+        File cut = new File(dir, "cut-" + w.file.getName());
+        byte [] bytes = Files.readAllBytes(w.file.toPath());
+        try (FileOutputStream out = new FileOutputStream(cut)) {
+            out.write(bytes, 0, (int) length);
+        }
+        LogRecovery.writeMarker(cut, format, 0, 0, w.blockStart(length), "u/" + w.file.getName());
+
+        int recovered = LogRecovery.recoverAll(LogRecovery.findOpenLogs(dir), null, StreamLogTrimmer.FACTORY);
+        assertEquals("recovered at " + length, 1, recovered);
+        assertEquals(0, LogRecovery.findOpenLogs(dir).length);
+        return cut;
+    }
+
+    private static byte [] gunzip(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            byte [] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /** Offsets just at, after and between each flush */
+    private static List<Long> cuts(Written w) {
+        List<Long> cuts = new ArrayList<>();
+        for (int i = 0; i < w.flushEnds.size(); i++) {
+            long end = w.flushEnds.get(i);
+            long next = i + 1 < w.flushEnds.size() ? w.flushEnds.get(i + 1) : end;
+            cuts.add(end);
+            if (next > end) {
+                cuts.add(end + 1);
+                cuts.add(end + 5);
+                cuts.add((end + next) / 2);
+                cuts.add(next - 1);
+            }
+        }
+        return cuts;
+    }
+
+    /** Messages the log is known to hold when cut at length */
+    private static int flushedBefore(Written w, long length) {
+        int messages = 0;
+        for (int i = 0; i < w.flushEnds.size(); i++)
+            if (w.flushEnds.get(i) <= length)
+                messages = w.flushMessages.get(i);
+        return messages;
+    }
+
+    @Test
+    public void truncatedJsonLogRecoversToTheLastFlush() throws IOException {
+        Written w = writeJson();
+        for (long length : cuts(w)) {
+            File cut = recoverCut(w, FirebaseWriter.Format.JSON, length);
+            JsonArray messages = JsonParser.parseString(new String(gunzip(cut), StandardCharsets.UTF_8)).getAsJsonArray();
+
+            assertTrue("cut at " + length + " kept " + messages.size(), messages.size() >= flushedBefore(w, length));
+            for (int i = 0; i < messages.size(); i++) {
+                assertEquals(i, messages.get(i).getAsJsonObject().get("sensor_counter").getAsInt());
+                assertEquals(i * 7, messages.get(i).getAsJsonObject().get("data").getAsJsonArray().get(0).getAsInt());
+            }
+            cut.delete();
+        }
+    }
+
+    @Test
+    public void truncatedBinaryLogRecoversToTheLastFlush() throws IOException {
+        Written w = writeBinary();
+        for (long length : cuts(w)) {
+            File cut = recoverCut(w, FirebaseWriter.Format.BINARY, length);
+            List<int []> power = new ArrayList<>();
+            new StreamLogReader(new ByteArrayInputStream(gunzip(cut))).read(new PowerVisitor(power));
+
+            assertTrue("cut at " + length + " kept " + power.size(), power.size() >= flushedBefore(w, length));
+            for (int i = 0; i < power.size(); i++)
+                assertEquals(i * 7, power.get(i)[0]);
+            cut.delete();
+        }
+    }
+
+    /** Collects the EMG power packets, the only records the binary log holds */
+    private static class PowerVisitor implements StreamLogReader.Visitor {
+        private final List<int []> power;
+
+        PowerVisitor(List<int []> power) {
+            this.power = power;
+        }
+
+        @Override public void onHeader(int fileVersion, String bluetoothMac) {}
+        @Override public void onEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, float [][] data) {}
+        @Override public void onEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int [] data) {
+            power.add(data.clone());
+        }
+        @Override public void onAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {}
+        @Override public void onGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {}
+        @Override public void onMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {}
+        @Override public void onAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [] data) {}
+        @Override public void onBattery(long time, double voltage) {}
+        @Override public void onForce(long time, double [] data) {}
+        @Override public void onTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds) {}
+    }
+}
@@ -0,0 +1,193 @@
+package org.sralab.emgimu.logging;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+import org.sralab.emgimu.benchmark.Allocations;
+import org.sralab.emgimu.streaming.messages.BatteryMessage;
+import org.sralab.emgimu.streaming.messages.EmgPwrMessage;
+import org.sralab.emgimu.streaming.messages.EmgRawMessage;
+import org.sralab.emgimu.streaming.messages.FileVersionMessage;
+import org.sralab.emgimu.streaming.messages.ForceMessage;
+import org.sralab.emgimu.streaming.messages.ImuAccelMessage;
+import org.sralab.emgimu.streaming.messages.ImuAttitudeMessage;
+import org.sralab.emgimu.streaming.messages.ImuGyroMessage;
+import org.sralab.emgimu.streaming.messages.ImuMagMessage;
+import org.sralab.emgimu.streaming.messages.TimestampSyncMessage;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The JSON stream log used to build a message object and a String with a new Gson for
+ * every sample. StreamJsonWriter must produce the same bytes, so existing readers of
+ * version 2 logs are unaffected, while allocating only the finished message. Prints
+ * the throughput of both for an 8 channel, 20 sample EMG buffer.
+ */
+public class StreamJsonWriterBenchmark {
+
+    private static final String MAC = "F0:1A:00:00:00:00";
+    private static final int MESSAGES = 20_000;
+
+    /** Collects each message written, as the Firebase writer would */
+    private static class Collect implements StreamJsonWriter.Sink {
+        final List<byte []> messages = new ArrayList<>();
+
+        @Override
+        public void write(byte [] json, LogIndex.Span span) {
+            messages.add(json);
+        }
+    }
+
+    /** Counts the bytes written without keeping them */
+    private static class Count implements StreamJsonWriter.Sink {
+        long bytes;
+
+        @Override
+        public void write(byte [] json, LogIndex.Span span) {
+            bytes += json.length;
+        }
+    }
+
+    /**
+     * EmgRawMessage encodes its data with android.util.Base64, which the JVM tests only
+     * have as a stub, so fill it in with the JDK encoder the same way.
+     */
+    private static EmgRawMessage emgRaw(String mac, long t, long el, long st, long rs, int c, int channels, int samples, double [][] data) {
+        EmgRawMessage msg = new EmgRawMessage(mac, t, el, st, rs, c, channels, samples, data);
+        ByteBuffer buf = ByteBuffer.allocate(4 * channels * samples);
+        for (int i = 0; i < channels; i++)
+            for (int j = 0; j < samples; j++)
+                buf.putFloat((float) data[i][j]);
+        try {
+            Field f = EmgRawMessage.class.getDeclaredField("data");
+            f.setAccessible(true);
+            f.set(msg, Base64.getEncoder().encodeToString(buf.array()));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+        return msg;
+    }
+
+    private static void assertSame(Object expected, byte [] actual) {
+        assertEquals(new Gson().toJson(expected), new String(actual, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void matchesGsonByteForByte() {
+        // Characters Gson escapes in the device name
+        String mac = "F0:1A:<&=>'\"\\";
+        Collect out = new Collect();
+        StreamJsonWriter w = new StreamJsonWriter(mac, out);
+        Random r = new Random(2);
+
+        for (int k = 0; k < 2_000; k++) {
+            int channels = 1 + r.nextInt(8);
+            int samples = 1 + r.nextInt(20);
+            double [][] emg = new double[channels][samples];
+            for (double [] ch : emg)
+                for (int j = 0; j < samples; j++)
+                    ch[j] = r.nextGaussian() * 1e-3;
+            float [][] imu = new float[3][1 + r.nextInt(6)];
+            for (float [] axis : imu)
+                for (int j = 0; j < axis.length; j++)
+                    axis[j] = (float) r.nextGaussian() * (r.nextBoolean() ? 1e-9f : 1e7f);
+            float [] quat = {r.nextFloat(), -r.nextFloat(), 0f, -0f};
+            int [] pwr = {r.nextInt(), -5, 0};
+            double voltage = r.nextDouble() * 4;
+            double [] force = {r.nextGaussian(), 1e300, 1e-7};
+            long t = r.nextLong(), el = r.nextLong(), st = r.nextInt(), rs = -r.nextInt();
+            int c = r.nextInt();
+
+            out.messages.clear();
+            w.addEmgRaw(t, el, st, rs, c, channels, samples, emg);
+            w.addEmgPwr(t, el, st, rs, c, pwr);
+            w.addAccel(t, el, st, rs, c, imu);
+            w.addGyro(t, el, st, rs, c, imu);
+            w.addMag(t, el, st, rs, c, imu);
+            w.addAttitude(t, el, st, rs, c, quat);
+            w.addBattery(t, voltage);
+            w.addForce(t, force);
+            w.addTimestampSync(el, t);
+            w.addFileVersion("2.0.0");
+
+            int i = 0;
+            assertSame(emgRaw(mac, t, el, st, rs, c, channels, samples, emg), out.messages.get(i++));
+            assertSame(new EmgPwrMessage(mac, t, el, st, rs, c, pwr), out.messages.get(i++));
+            assertSame(new ImuAccelMessage(mac, t, el, st, rs, c, imu), out.messages.get(i++));
+            assertSame(new ImuGyroMessage(mac, t, el, st, rs, c, imu), out.messages.get(i++));
+            assertSame(new ImuMagMessage(mac, t, el, st, rs, c, imu), out.messages.get(i++));
+            assertSame(new ImuAttitudeMessage(mac, t, el, st, rs, c, quat), out.messages.get(i++));
+            assertSame(new BatteryMessage(mac, t, voltage), out.messages.get(i++));
+            assertSame(new ForceMessage(mac, t, force), out.messages.get(i++));
+            assertSame(new TimestampSyncMessage(mac, el, t), out.messages.get(i++));
+            assertSame(new FileVersionMessage("2.0.0"), out.messages.get(i));
+        }
+    }
+
+    @Test
+    public void omitsAMissingDeviceLikeGson() {
+        Collect out = new Collect();
+        StreamJsonWriter w = new StreamJsonWriter(null, out);
+        w.addForce(5, new double[] {1e-7, 2});
+        w.addBattery(5, 3.14159);
+        assertSame(new ForceMessage(null, 5, new double[] {1e-7, 2}), out.messages.get(0));
+        assertSame(new BatteryMessage(null, 5, 3.14159), out.messages.get(1));
+    }
+
+    @Test
+    public void emgRawThroughputAndAllocations() {
+        Random r = new Random(3);
+        double [][] data = new double[8][20];
+        for (double [] ch : data)
+            for (int j = 0; j < ch.length; j++)
+                ch[j] = r.nextGaussian();
+
+        Count count = new Count();
+        StreamJsonWriter w = new StreamJsonWriter(MAC, count);
+        long [] i = {0};
+        double writerBytes = Allocations.perCall(MESSAGES, () -> {
+            w.addEmgRaw(i[0], i[0], i[0], i[0], (int) i[0], 8, 20, data);
+            i[0]++;
+        });
+        long [] gsonOut = {0};
+        double gsonBytes = Allocations.perCall(MESSAGES, () -> {
+            // What FirebaseStreamLogger did per sample before StreamJsonWriter
+            Gson gson = new Gson();
+            EmgRawMessage msg = emgRaw(MAC, i[0], i[0], i[0], i[0], (int) i[0], 8, 20, data);
+            gsonOut[0] += gson.toJson(msg).getBytes(StandardCharsets.UTF_8).length;
+            i[0]++;
+        });
+
+        count.bytes = 0;
+        long start = System.nanoTime();
+        for (int k = 0; k < MESSAGES; k++)
+            w.addEmgRaw(k, k, k, k, k, 8, 20, data);
+        double writerSeconds = (System.nanoTime() - start) / 1e9;
+
+        gsonOut[0] = 0;
+        start = System.nanoTime();
+        for (int k = 0; k < MESSAGES; k++) {
+            Gson gson = new Gson();
+            gsonOut[0] += gson.toJson(emgRaw(MAC, k, k, k, k, k, 8, 20, data)).getBytes(StandardCharsets.UTF_8).length;
+        }
+        double gsonSeconds = (System.nanoTime() - start) / 1e9;
+
+        long messageBytes = count.bytes / MESSAGES;
+        System.out.printf("EmgRaw 8x20 JSON (%d bytes): StreamJsonWriter %.1f MB/s, %.0f bytes allocated per message; Gson %.1f MB/s, %.0f bytes allocated per message%n",
+                messageBytes, count.bytes / writerSeconds / 1e6, writerBytes, gsonOut[0] / gsonSeconds / 1e6, gsonBytes);
+
+        // The copy handed to the sink and its index span are all the writer allocates
+        assertTrue("writer allocates " + writerBytes + " bytes per " + messageBytes + " byte message",
+                writerBytes < messageBytes + 128);
+        assertTrue("writer allocates " + writerBytes + " bytes, Gson " + gsonBytes, writerBytes * 4 < gsonBytes);
+    }
+}
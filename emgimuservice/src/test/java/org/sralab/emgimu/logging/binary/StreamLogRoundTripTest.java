@@ -0,0 +1,198 @@
+package org.sralab.emgimu.logging.binary;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.sralab.emgimu.streaming.messages.BatteryMessage;
+import org.sralab.emgimu.streaming.messages.EmgPwrMessage;
+import org.sralab.emgimu.streaming.messages.EmgRawMessage;
+import org.sralab.emgimu.streaming.messages.ForceMessage;
+import org.sralab.emgimu.streaming.messages.ImuAccelMessage;
+import org.sralab.emgimu.streaming.messages.ImuAttitudeMessage;
+import org.sralab.emgimu.streaming.messages.ImuGyroMessage;
+import org.sralab.emgimu.streaming.messages.ImuMagMessage;
+import org.sralab.emgimu.streaming.messages.TimestampSyncMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encodes a log of every record type, reads it back and converts it to the version 2
+ * JSON log. The converter writes streams in block order, so the messages are compared
+ * stream by stream rather than in the order they were added.
+ */
+public class StreamLogRoundTripTest {
+
+    private static final String MAC = "F0:1A:00:00:00:00";
+    private static final int PACKETS = 1_000;
+
+    private final Gson gson = new Gson();
+    private final Random r = new Random(11);
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final StreamLogEncoder encoder = new StreamLogEncoder(MAC, (bytes, span) -> log.write(bytes, 0, bytes.length));
+
+    /** The JSON message expected for each packet added, by message type */
+    private final Map<String, List<JsonElement>> expected = new LinkedHashMap<>();
+    /** The raw EMG values added, as the float32 they are stored as */
+    private final List<float [][]> emgRaw = new ArrayList<>();
+
+    private void expect(Object msg) {
+        JsonElement json = JsonParser.parseString(gson.toJson(msg));
+        String type = json.getAsJsonObject().get("MSG").getAsString();
+        List<JsonElement> messages = expected.get(type);
+        if (messages == null)
+            expected.put(type, messages = new ArrayList<>());
+        messages.add(json);
+    }
+
+    private float [][] floats(int rows, int columns) {
+        float [][] data = new float[rows][columns];
+        for (float [] row : data)
+            for (int j = 0; j < columns; j++)
+                row[j] = (float) r.nextGaussian() * (r.nextBoolean() ? 1e-3f : 1e3f);
+        return data;
+    }
+
+    /** Add one packet of each stream, with shapes that change now and then to split blocks */
+    private void addPackets() {
+        for (int k = 0; k < PACKETS; k++) {
+            long time = 1_600_000_000_000L + 10L * k + r.nextInt(3);
+            long elapsed = 5_000_000_000L + 10_000_000L * k + r.nextInt(1_000_000);
+            long sensor = 100L * k;
+            long raw = sensor & 0xFFFFFF;
+            int counter = k & 0xFF;
+
+            int channels = k % 300 < 150 ? 8 : 2;
+            int samples = k % 97 == 0 ? 10 : 20;
+            double [][] emg = new double[channels][samples];
+            float [][] stored = new float[channels][samples];
+            for (int i = 0; i < channels; i++) {
+                for (int j = 0; j < samples; j++) {
+                    emg[i][j] = r.nextGaussian() * 1e-4;
+                    stored[i][j] = (float) emg[i][j];
+                }
+            }
+            encoder.addEmgRaw(time, elapsed, sensor, raw, counter, channels, samples, emg);
+            double [][] values = new double[channels][samples];
+            for (int i = 0; i < channels; i++)
+                for (int j = 0; j < samples; j++)
+                    values[i][j] = stored[i][j];
+            expect(new EmgRawMessage(MAC, time, elapsed, sensor, raw, counter, channels, samples, values));
+            emgRaw.add(stored);
+
+            int [] pwr = {r.nextInt(1 << 20), -r.nextInt(100), 0};
+            encoder.addEmgPwr(time, elapsed, sensor, raw, counter, pwr);
+            expect(new EmgPwrMessage(MAC, time, elapsed, sensor, raw, counter, pwr));
+
+            float [][] accel = floats(3, 3);
+            encoder.addAccel(time, elapsed, sensor, raw, counter, accel);
+            expect(new ImuAccelMessage(MAC, time, elapsed, sensor, raw, counter, accel));
+            float [][] gyro = floats(3, 3);
+            encoder.addGyro(time, elapsed, sensor, raw, counter, gyro);
+            expect(new ImuGyroMessage(MAC, time, elapsed, sensor, raw, counter, gyro));
+            float [][] mag = floats(3, 1);
+            encoder.addMag(time, elapsed, sensor, raw, counter, mag);
+            expect(new ImuMagMessage(MAC, time, elapsed, sensor, raw, counter, mag));
+            float [] quat = floats(1, 4)[0];
+            encoder.addAttitude(time, elapsed, sensor, raw, counter, quat);
+            expect(new ImuAttitudeMessage(MAC, time, elapsed, sensor, raw, counter, quat));
+
+            if (k % 50 == 0) {
+                double voltage = 3 + r.nextDouble();
+                encoder.addBattery(time, voltage);
+                expect(new BatteryMessage(MAC, time, voltage));
+                double [] force = {r.nextGaussian(), 1e300, -1e-7};
+                encoder.addForce(time, force);
+                expect(new ForceMessage(MAC, time, force));
+                encoder.addTimestampSync(elapsed, time);
+                expect(new TimestampSyncMessage(MAC, elapsed, time));
+            }
+        }
+        encoder.flush();
+    }
+
+    @Test
+    public void readerReturnsTheStoredValues() throws IOException {
+        addPackets();
+        List<float [][]> read = new ArrayList<>();
+        String [] mac = new String[1];
+        new StreamLogReader(new ByteArrayInputStream(log.toByteArray())).read(new IgnoringVisitor() {
+            @Override
+            public void onHeader(int fileVersion, String bluetoothMac) {
+                assertEquals(StreamLogFormat.FILE_VERSION, fileVersion);
+                mac[0] = bluetoothMac;
+            }
+
+            @Override
+            public void onEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, float [][] data) {
+                float [][] copy = new float[channels][];
+                for (int i = 0; i < channels; i++)
+                    copy[i] = data[i].clone();
+                read.add(copy);
+            }
+        });
+
+        assertEquals(MAC, mac[0]);
+        assertEquals(emgRaw.size(), read.size());
+        for (int k = 0; k < read.size(); k++)
+            for (int i = 0; i < read.get(k).length; i++)
+                assertArrayEquals("packet " + k + " channel " + i, emgRaw.get(k)[i], read.get(k)[i], 0f);
+    }
+
+    @Test
+    public void convertsToTheVersion2JsonMessages() throws IOException {
+        addPackets();
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        StreamLogJsonConverter.convert(new ByteArrayInputStream(log.toByteArray()), json);
+
+        JsonArray messages = JsonParser.parseString(new String(json.toByteArray(), StandardCharsets.UTF_8)).getAsJsonArray();
+        assertEquals("FileVersion", messages.get(0).getAsJsonObject().get("MSG").getAsString());
+        assertEquals("2.0.0", messages.get(0).getAsJsonObject().get("version").getAsString());
+
+        Map<String, List<JsonElement>> converted = new LinkedHashMap<>();
+        for (int i = 1; i < messages.size(); i++) {
+            JsonElement msg = messages.get(i);
+            String type = msg.getAsJsonObject().get("MSG").getAsString();
+            List<JsonElement> list = converted.get(type);
+            if (list == null)
+                converted.put(type, list = new ArrayList<>());
+            list.add(msg);
+        }
+
+        assertEquals(expected.keySet(), converted.keySet());
+        for (String type : expected.keySet()) {
+            List<JsonElement> want = expected.get(type);
+            List<JsonElement> got = converted.get(type);
+            assertEquals(type + " messages", want.size(), got.size());
+            for (int i = 0; i < want.size(); i++)
+                assertEquals(type + " message " + i, want.get(i), got.get(i));
+        }
+    }
+
+    /** Ignores everything, so a test only overrides what it checks */
+    private static class IgnoringVisitor implements StreamLogReader.Visitor {
+        @Override public void onHeader(int fileVersion, String bluetoothMac) {}
+        @Override public void onEmgRaw(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int channels, int samples, float [][] data) {}
+        @Override public void onEmgPwr(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, int [] data) {}
+        @Override public void onAccel(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {}
+        @Override public void onGyro(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {}
+        @Override public void onMag(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [][] data) {}
+        @Override public void onAttitude(long time, long androidElapsedNanos, long sensorTimestamp, long rawSensorTimestamp, int counter, float [] data) {}
+        @Override public void onBattery(long time, double voltage) {}
+        @Override public void onForce(long time, double [] data) {}
+        @Override public void onTimestampSync(long androidElapsedNanos, long timestampSyncMilliseconds) {}
+    }
+}
@@ -0,0 +1,84 @@
+package org.sralab.emgimu.parser;
+
+import org.junit.Test;
+import org.sralab.emgimu.benchmark.Allocations;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decoding the EMG buffer packets must not allocate once the parser has seen the packet
+ * shape, since at 2 kHz and 8 channels every per-sample object adds up to thousands per
+ * second per sensor. Also checks the counts against a ByteBuffer decode, as
+ * parseEmgBuff used to do it, and prints the packet rate.
+ */
+public class EmgBuffParserBenchmark {
+
+    private static final int PACKETS = 100_000;
+
+    private static byte [] packet(int format, int length, long seed) {
+        byte [] b = new byte[length];
+        new Random(seed).nextBytes(b);
+        b[0] = (byte) format;
+        return b;
+    }
+
+    private static int [] reference(byte [] b, int channels, int samples, boolean ads1298) {
+        int [] counts = new int[channels * samples];
+        for (int ch = 0; ch < channels; ch++) {
+            for (int s = 0; s < samples; s++) {
+                if (ads1298) {
+                    int i = EmgBuffParser.HEADER_LENGTH + 3 * (ch + channels * s);
+                    byte sign = (b[i] & 0x80) != 0 ? (byte) 0xFF : 0;
+                    counts[ch * samples + s] = ByteBuffer.wrap(new byte[] {sign, b[i], b[i + 1], b[i + 2]}).getInt();
+                } else {
+                    int i = EmgBuffParser.HEADER_LENGTH + 2 * s;
+                    counts[s] = ByteBuffer.wrap(new byte[] {b[i], b[i + 1]}).order(ByteOrder.LITTLE_ENDIAN).getShort();
+                }
+            }
+        }
+        return counts;
+    }
+
+    private void check(int format, int length, int channels, int samples) {
+        byte [] packet = packet(format, length, format);
+        EmgBuffParser parser = new EmgBuffParser();
+
+        assertTrue(parser.parse(packet, packet.length));
+        assertEquals(channels, parser.getChannels());
+        assertEquals(samples, parser.getSamples());
+        assertArrayEquals(reference(packet, channels, samples, format != Ina333Codec.FORMAT), parser.getCounts());
+
+        double bytesPerPacket = Allocations.perCall(PACKETS, () -> parser.parse(packet, packet.length));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < PACKETS; i++)
+            parser.parse(packet, packet.length);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("format 0x%02x %dx%d: %.0f packets/s, %.2f bytes allocated per packet%n",
+                format, channels, samples, PACKETS / seconds, bytesPerPacket);
+
+        // Anything allocated per packet would be at least an object header
+        assertTrue("format " + format + " allocates " + bytesPerPacket + " bytes per packet", bytesPerPacket < 1);
+    }
+
+    @Test
+    public void ina333SingleChannelDoesNotAllocate() {
+        check(0x10, EmgBuffParser.HEADER_LENGTH + 2 * Ina333Codec.SAMPLES, 1, Ina333Codec.SAMPLES);
+    }
+
+    @Test
+    public void ads1298TwoChannelDoesNotAllocate() {
+        check(0x21, EmgBuffParser.HEADER_LENGTH + 3 * 2 * 20, 2, 20);
+    }
+
+    @Test
+    public void ads1298EightChannelDoesNotAllocate() {
+        check(0x81, EmgBuffParser.HEADER_LENGTH + 3 * 8 * 9, 8, 9);
+    }
+}
@@ -0,0 +1,218 @@
+package org.sralab.emgimu.service;
+
+import org.junit.Test;
+import org.sralab.emgimu.benchmark.Allocations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays counter traces through the clock model. The traces follow what the sensors
+ * send: a packet every {@code samples / sampleRate} on a sensor clock that drifts from
+ * the phone's, delivered at the next BLE connection event, with packets dropped,
+ * repeated, swapped or the counter restarted where a test needs it.
+ */
+public class SensorClockTest {
+
+    private static final double EMG_FS = 2000;
+    private static final int EMG_SAMPLES = 20;
+    private static final double IMU_FS = 562.5;
+    private static final int IMU_SAMPLES = 3;
+    private static final long CONNECTION_INTERVAL_NANOS = 7_500_000L;
+    /** Sensor clock 40 ppm fast */
+    private static final double DRIFT = 1 + 40e-6;
+
+    /** One notification, the counter as sent, when its last sample was taken and when the phone got it */
+    private static class Packet {
+        final int counter;
+        final long sentNanos;
+        final long arrivalNanos;
+
+        Packet(int counter, long sentNanos, long arrivalNanos) {
+            this.counter = counter;
+            this.sentNanos = sentNanos;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    /** Packets {@code first} to {@code last - 1} of a stream starting at {@code startNanos}, counters from {@code counterStart} */
+    private static List<Packet> trace(double sampleRate, int samples, int modulus, int counterStart, int first, int last, long startNanos) {
+        List<Packet> packets = new ArrayList<>();
+        double periodNanos = samples * 1e9 / sampleRate / DRIFT;
+        for (int i = first; i < last; i++) {
+            long sent = startNanos + Math.round((i - first + 1) * periodNanos);
+            // Held until the next connection event, then a little radio and stack latency
+            long event = (sent / CONNECTION_INTERVAL_NANOS + 1) * CONNECTION_INTERVAL_NANOS;
+            long arrival = event + 300_000 + (i * 7919 % 200_000);
+            packets.add(new Packet((counterStart + i) % modulus, sent, arrival));
+        }
+        return packets;
+    }
+
+    private static List<Packet> emgTrace(int packets) {
+        return trace(EMG_FS, EMG_SAMPLES, 256, 0, 0, packets, 1_000_000_000L);
+    }
+
+    /** Feed a trace, checking every sample is after the last one */
+    private static void replay(SensorClock clock, List<Packet> packets, int samples) {
+        long last = Long.MIN_VALUE;
+        for (Packet p : packets) {
+            clock.update(p.counter, p.arrivalNanos, samples);
+            for (int i = 0; i < samples; i++) {
+                long t = clock.getSampleNanos(i);
+                assertTrue("sample time went back at counter " + p.counter, t > last);
+                last = t;
+            }
+        }
+    }
+
+    @Test
+    public void steadyStreamHasNoLossAndSmoothsTheConnectionInterval() {
+        SensorClock clock = new SensorClock("EmgStream", EMG_FS, 256);
+        List<Packet> packets = emgTrace(20_000);
+        replay(clock, packets, EMG_SAMPLES);
+
+        // Once the window is full the estimates follow the sensor clock, offset by the
+        // mean latency, much more closely than the arrivals do
+        SensorClock again = new SensorClock("EmgStream", EMG_FS, 256);
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        long minArrival = Long.MAX_VALUE, maxArrival = Long.MIN_VALUE;
+        for (int i = 0; i < packets.size(); i++) {
+            Packet p = packets.get(i);
+            long error = again.update(p.counter, p.arrivalNanos, EMG_SAMPLES) - p.sentNanos;
+            if (i >= SensorClock.DEFAULT_WINDOW) {
+                min = Math.min(min, error);
+                max = Math.max(max, error);
+                minArrival = Math.min(minArrival, p.arrivalNanos - p.sentNanos);
+                maxArrival = Math.max(maxArrival, p.arrivalNanos - p.sentNanos);
+            }
+        }
+        assertTrue("estimates spread over " + (max - min) + " ns, arrivals over " + (maxArrival - minArrival),
+                max - min < (maxArrival - minArrival) / 2);
+
+        assertEquals(0, clock.getTotalGaps());
+        assertEquals(0, clock.getTotalLost());
+        assertEquals(0, clock.getDuplicates());
+        assertEquals(0, clock.getReordered());
+        assertEquals(0, clock.getRestarts());
+        assertEquals(0, clock.getResets());
+        assertEquals((20_000 - 1) / 256, clock.getWraparounds());
+    }
+
+    @Test
+    public void droppedPacketsAreCountedOnceIncludingAcrossTheWrap() {
+        SensorClock clock = new SensorClock("EmgStream", EMG_FS, 256);
+        List<Packet> packets = emgTrace(2_000);
+        // One packet, then five spanning the wrap at 512
+        packets.remove(300);
+        packets.subList(508, 513).clear();
+        replay(clock, packets, EMG_SAMPLES);
+
+        assertEquals(2, clock.getTotalGaps());
+        assertEquals(6, clock.getTotalLost());
+        assertEquals((2_000 - 1) / 256, clock.getWraparounds());
+        assertEquals(0, clock.getResets());
+    }
+
+    @Test
+    public void longGapAcrossTheWrapIsLossNotARestart() {
+        SensorClock clock = new SensorClock("EmgStream", EMG_FS, 256);
+        List<Packet> packets = emgTrace(2_000);
+        // Counter 143 is followed by 88, a step back that only the arrival time tells from a restart
+        packets.subList(400, 600).clear();
+        replay(clock, packets, EMG_SAMPLES);
+
+        assertEquals(0, clock.getRestarts());
+        assertEquals(0, clock.getResets());
+        assertEquals(1, clock.getTotalGaps());
+        assertEquals(200, clock.getTotalLost());
+        assertEquals((2_000 - 1) / 256, clock.getWraparounds());
+    }
+
+    @Test
+    public void duplicateIsNotAWrap() {
+        SensorClock clock = new SensorClock("EmgStream", EMG_FS, 256);
+        List<Packet> packets = emgTrace(1_000);
+        Packet p = packets.get(400);
+        packets.add(401, new Packet(p.counter, p.sentNanos, p.arrivalNanos + 50_000));
+        replay(clock, packets, EMG_SAMPLES);
+
+        assertEquals(1, clock.getDuplicates());
+        assertEquals(0, clock.getTotalLost());
+        assertEquals(0, clock.getTotalGaps());
+        assertEquals((1_000 - 1) / 256, clock.getWraparounds());
+        assertEquals(0, clock.getResets());
+    }
+
+    @Test
+    public void latePacketIsNotLost() {
+        SensorClock clock = new SensorClock("EmgStream", EMG_FS, 256);
+        List<Packet> packets = emgTrace(1_000);
+        // Swap two packets in the middle and two either side of the wrap at 256
+        swap(packets, 100);
+        swap(packets, 255);
+        replay(clock, packets, EMG_SAMPLES);
+
+        assertEquals(2, clock.getReordered());
+        assertEquals(0, clock.getTotalLost());
+        assertEquals(0, clock.getDuplicates());
+        assertEquals((1_000 - 1) / 256, clock.getWraparounds());
+        assertEquals(0, clock.getResets());
+    }
+
+    private static void swap(List<Packet> packets, int i) {
+        Packet a = packets.get(i);
+        Packet b = packets.get(i + 1);
+        packets.set(i, new Packet(b.counter, b.sentNanos, a.arrivalNanos));
+        packets.set(i + 1, new Packet(a.counter, a.sentNanos, b.arrivalNanos));
+    }
+
+    @Test
+    public void counterRestartResetsWithoutLoss() {
+        SensorClock clock = new SensorClock("Accel", IMU_FS, 65536);
+        List<Packet> packets = trace(IMU_FS, IMU_SAMPLES, 65536, 0, 0, 5_000, 1_000_000_000L);
+        // Reconnects two seconds later counting from zero again
+        long restart = packets.get(packets.size() - 1).arrivalNanos + 2_000_000_000L;
+        packets.addAll(trace(IMU_FS, IMU_SAMPLES, 65536, 0, 0, 1_000, restart));
+        replay(clock, packets, IMU_SAMPLES);
+
+        assertEquals(1, clock.getRestarts());
+        assertEquals(1, clock.getResets());
+        assertEquals(0, clock.getTotalLost());
+        assertEquals(0, clock.getWraparounds());
+    }
+
+    @Test
+    public void quickRestartOfAShortCounterIsNotAWrap() {
+        SensorClock clock = new SensorClock("EmgStream", EMG_FS, 256);
+        List<Packet> packets = emgTrace(100);
+        long restart = packets.get(packets.size() - 1).arrivalNanos;
+        packets.addAll(trace(EMG_FS, EMG_SAMPLES, 256, 0, 0, 100, restart));
+        replay(clock, packets, EMG_SAMPLES);
+
+        assertEquals(1, clock.getRestarts());
+        assertEquals(0, clock.getTotalLost());
+        assertEquals(0, clock.getWraparounds());
+    }
+
+    @Test
+    public void updateDoesNotAllocate() {
+        SensorClock clock = new SensorClock("EmgStream", EMG_FS, 256);
+        List<Packet> packets = emgTrace(50_000);
+        int [] counters = new int[packets.size()];
+        long [] arrivals = new long[packets.size()];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = packets.get(i).counter;
+            arrivals[i] = packets.get(i).arrivalNanos;
+        }
+        int [] next = {0};
+        double bytes = Allocations.perCall(counters.length / 2, () -> {
+            clock.update(counters[next[0]], arrivals[next[0]], EMG_SAMPLES);
+            next[0]++;
+        });
+        assertTrue(bytes + " bytes per packet", bytes < 1);
+    }
+}
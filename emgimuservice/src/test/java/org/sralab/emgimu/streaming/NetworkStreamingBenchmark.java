@@ -0,0 +1,230 @@
+package org.sralab.emgimu.streaming;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams to a server on loopback, as the JSON and negotiated binary protocols, and
+ * prints the frames per second the server receives and the latency from queueing a
+ * frame to the server reading it. Every tenth frame is an EMG power frame whose
+ * timestamp is the System.nanoTime() it was queued at; the rest are 3x20 accelerometer
+ * frames for bulk. Accelerometer rather than raw EMG frames, since EmgRawMessage
+ * encodes with android.util.Base64, which is only a stub in the JVM tests.
+ */
+public class NetworkStreamingBenchmark {
+
+    private static final String MAC = "F0:1A:00:00:00:00";
+    private static final int POWER_EVERY = 10;
+    private static final long IDLE_MILLIS = 1000;
+
+    /** Reads length prefixed frames until the stream has been idle for IDLE_MILLIS */
+    private static class Server implements Runnable {
+        final ServerSocket socket = new ServerSocket(0);
+        final boolean binary;
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long frames;
+        volatile long bytes;
+        volatile long firstNanos;
+        volatile long lastNanos;
+        volatile long lastSequence = -1;
+        /** Sequence numbers skipped, the frames the server knows it missed */
+        volatile long missing;
+        volatile IOException failure;
+
+        Server(boolean binary) throws IOException {
+            this.binary = binary;
+            new Thread(this, "loopback server").start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try (Socket s = socket.accept()) {
+                s.setSoTimeout((int) IDLE_MILLIS);
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                while (true) {
+                    byte [] frame = new byte[in.readInt()];
+                    in.readFully(frame);
+                    long now = System.nanoTime();
+                    if (frames == 0)
+                        firstNanos = now;
+                    bytes += 4 + frame.length;
+
+                    if (frame.length > 0 && frame[0] == '{') {
+                        JsonObject msg = JsonParser.parseString(new String(frame, StandardCharsets.UTF_8)).getAsJsonObject();
+                        String type = msg.get("MSG").getAsString();
+                        if (type.equals(NetworkFrameFormat.MSG_HELLO)) {
+                            if (binary) {
+                                byte [] reply = ("{\"MSG\":\"" + NetworkFrameFormat.MSG_HELLO + "\",\"protocol\":\""
+                                        + NetworkFrameFormat.PROTOCOL_BINARY + "\"}").getBytes(StandardCharsets.UTF_8);
+                                out.writeInt(reply.length);
+                                out.write(reply);
+                                out.flush();
+                            }
+                            continue;
+                        }
+                        if (type.equals("EmgPwr"))
+                            latencies.add(now - msg.get("timestamp").getAsLong());
+                    } else {
+                        ByteBuffer b = ByteBuffer.wrap(frame);
+                        int type = b.get() & 0xff;
+                        b.get();
+                        b.getShort();
+                        long sequence = b.getInt() & 0xffffffffL;
+                        long time = b.getLong();
+                        // A device frame shares the sequence number of the frame after it
+                        if (type == NetworkFrameFormat.FRAME_DEVICE)
+                            continue;
+                        if (lastSequence >= 0)
+                            missing += sequence - lastSequence - 1;
+                        lastSequence = sequence;
+                        if (type == NetworkFrameFormat.FRAME_EMG_PWR)
+                            latencies.add(now - time);
+                    }
+                    frames++;
+                    lastNanos = now;
+                }
+            } catch (SocketTimeoutException | EOFException e) {
+                // The sender is done
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static class Result {
+        long sent;
+        long received;
+        long dropped;
+        double producerRate;
+        double deliveredRate;
+        double megabytes;
+        double p50Micros;
+        double p99Micros;
+        double maxMicros;
+        long missing;
+    }
+
+    /**
+     * Queue {@code frames} frames, paced at {@code rate} frames per second, and wait for
+     * the server to go idle. The last frame is queued once the others have gone, so any
+     * dropped frames come before it.
+     */
+    private static Result run(boolean binary, int frames, int rate) throws Exception {
+        Server server = new Server(binary);
+        NetworkStreaming streaming = new NetworkStreaming();
+        // A JSON server is one that never answers the hello, skip waiting for it
+        streaming.start("127.0.0.1", server.getPort(), binary ? NetworkStreaming.Protocol.NEGOTIATE : NetworkStreaming.Protocol.JSON);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!streaming.isConnected() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue("connected", streaming.isConnected());
+        // Let the negotiation finish so the frames all go out in the final protocol
+        Thread.sleep(200);
+
+        float [][] accel = new float[3][20];
+        for (int i = 0; i < 3; i++)
+            for (int j = 0; j < 20; j++)
+                accel[i][j] = (float) Math.sin(i * 20 + j);
+        int [] power = new int[8];
+
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            if (i == frames - 1)
+                Thread.sleep(100);
+            long due = start + i * period;
+            while (System.nanoTime() < due)
+                Thread.yield();
+            if (i % POWER_EVERY == 0)
+                streaming.streamEmgPwr(MAC, System.nanoTime(), power);
+            else
+                streaming.streamImu(MAC, NetworkFrameFormat.FRAME_ACCEL, System.currentTimeMillis(), accel);
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        assertTrue("server finished", server.done.await(60, TimeUnit.SECONDS));
+        streaming.stop();
+        server.socket.close();
+        if (server.failure != null)
+            throw server.failure;
+
+        Result r = new Result();
+        r.sent = frames;
+        r.received = server.frames;
+        r.dropped = streaming.getDroppedFrames();
+        r.producerRate = frames * 1e9 / sendNanos;
+        r.deliveredRate = r.received * 1e9 / Math.max(1, server.lastNanos - server.firstNanos);
+        r.megabytes = server.bytes / 1e6;
+        r.missing = server.missing;
+        List<Long> l = new ArrayList<>(server.latencies);
+        Collections.sort(l);
+        if (!l.isEmpty()) {
+            r.p50Micros = l.get(l.size() / 2) / 1e3;
+            r.p99Micros = l.get(l.size() * 99 / 100) / 1e3;
+            r.maxMicros = l.get(l.size() - 1) / 1e3;
+        }
+        System.out.printf("%-6s %-9s sent %d received %d dropped %d: queued %.0f frames/s, delivered %.0f frames/s, %.1f MB, latency p50 %.0f us p99 %.0f us max %.0f us%n",
+                binary ? "binary" : "JSON", rate + "/s", r.sent, r.received, r.dropped,
+                r.producerRate, r.deliveredRate, r.megabytes, r.p50Micros, r.p99Micros, r.maxMicros);
+        return r;
+    }
+
+    @Test
+    public void jsonDeliversEveryFrameAtSensorRate() throws Exception {
+        Result r = run(false, 4_000, 2_000);
+        assertEquals(0, r.dropped);
+        assertEquals(r.sent, r.received);
+    }
+
+    @Test
+    public void binaryDeliversEveryFrameAtSensorRate() throws Exception {
+        Result r = run(true, 4_000, 2_000);
+        assertEquals(0, r.dropped);
+        assertEquals(r.sent, r.received);
+        assertEquals(0, r.missing);
+    }
+
+    /** Well past what JSON keeps up with, so the rate delivered is the most each manages */
+    @Test
+    public void throughputAtHighRate() throws Exception {
+        Result json = run(false, 100_000, 50_000);
+        Result binary = run(true, 100_000, 50_000);
+        // Frames the buffer could not hold are dropped and counted, never lost silently
+        assertEquals(json.sent, json.received + json.dropped);
+        assertEquals(binary.sent, binary.received + binary.dropped);
+        // A dropped binary frame still takes its sequence number
+        assertEquals(binary.dropped, binary.missing);
+        assertTrue("binary delivered " + binary.deliveredRate + " frames/s, JSON " + json.deliveredRate,
+                binary.deliveredRate > json.deliveredRate);
+    }
+}
@@ -0,0 +1,95 @@
+package org.sralab.emgimu.streaming;
+
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkStreamingTest {
+
+    /** A port nothing listens on, so every attempt to connect fails and is backed off */
+    private static int closedPort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    @Test
+    public void stopEndsTheBackoffAndReportsStoppedLast() throws Exception {
+        NetworkStreaming streaming = new NetworkStreaming();
+        List<NetworkStreaming.State> states = new CopyOnWriteArrayList<>();
+        streaming.setStateListener(states::add);
+
+        for (int i = 0; i < 20; i++) {
+            states.clear();
+            streaming.start("127.0.0.1", closedPort(), NetworkStreaming.Protocol.BINARY);
+            while (!states.contains(NetworkStreaming.State.BACKING_OFF))
+                Thread.sleep(1);
+            streaming.streamEmgPwr("F0:1A:00:00:00:00", i, new int[] {1, 2});
+
+            long start = System.nanoTime();
+            streaming.stop();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            assertTrue("stop took " + millis + " ms", millis < 500);
+            assertEquals(NetworkStreaming.State.STOPPED, streaming.getState());
+            assertEquals(NetworkStreaming.State.STOPPED, states.get(states.size() - 1));
+            assertEquals(0, streaming.getBufferedFrames());
+        }
+    }
+
+    @Test
+    public void startDoesNotWaitForAStreamThatDidNotStop() throws Exception {
+        UdpStreamReceiver receiver = new UdpStreamReceiver(0);
+        receiver.start();
+        NetworkStreaming streaming = new NetworkStreaming();
+        List<NetworkStreaming.State> states = new CopyOnWriteArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blocked = new AtomicBoolean();
+        streaming.setStateListener(state -> {
+            states.add(state);
+            // The first attempt hangs, ignoring interrupts, like a slow host lookup
+            if (state == NetworkStreaming.State.CONNECTING && blocked.compareAndSet(false, true)) {
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // Keep blocking
+                    }
+                }
+            }
+        });
+
+        streaming.start("127.0.0.1", receiver.getPort(), NetworkStreaming.Protocol.UDP);
+        while (!blocked.get())
+            Thread.sleep(1);
+        streaming.stop();
+
+        long start = System.nanoTime();
+        streaming.start("127.0.0.1", receiver.getPort(), NetworkStreaming.Protocol.UDP);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("start took " + millis + " ms", millis < 500);
+        assertEquals(NetworkStreaming.State.CONNECTING, streaming.getState());
+
+        // Once the old thread ends the new stream starts and sends
+        states.clear();
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (receiver.getStats().frames == 0) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            streaming.streamEmgPwr("F0:1A:00:00:00:00", 0, new int[] {1});
+            Thread.sleep(10);
+        }
+        assertEquals(NetworkStreaming.State.STOPPED, states.get(0));
+        assertEquals(NetworkStreaming.State.CONNECTED, streaming.getState());
+
+        streaming.stop();
+        receiver.close();
+    }
+}
@@ -0,0 +1,164 @@
+package org.sralab.emgimu.streaming;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames are numbered in their header, so what comes back from a poll shows which frames
+ * were kept and in what order, whether they were held in memory or in the spool file.
+ */
+public class ReplayBufferTest {
+
+    private static final int FRAME_BYTES = 32;
+    private static final int MAX_FRAME_BYTES = 1024;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("replay").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File [] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    /** A frame of {@code size} bytes, its length then its number, as NetworkStreaming stores them */
+    private static boolean offer(ReplayBuffer buffer, int number, int size) {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(size - 4);
+        header.putInt(number);
+        header.flip();
+        return buffer.offer(header, ByteBuffer.allocate(size - 8));
+    }
+
+    private static boolean offer(ReplayBuffer buffer, int number) {
+        return offer(buffer, number, FRAME_BYTES);
+    }
+
+    /** Poll everything held, one buffer of maxBytes at a time */
+    private static List<Integer> pollAll(ReplayBuffer buffer, int maxBytes) throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        ByteBuffer into = ByteBuffer.allocate(MAX_FRAME_BYTES);
+        while (true) {
+            into.clear();
+            int frames = buffer.poll(into, maxBytes);
+            if (frames == 0)
+                return numbers;
+            into.flip();
+            for (int i = 0; i < frames; i++) {
+                int length = into.getInt();
+                numbers.add(into.getInt());
+                into.position(into.position() + length - 4);
+            }
+            assertFalse(into.hasRemaining());
+        }
+    }
+
+    private File spoolFile() {
+        File [] files = dir.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    @Test
+    public void framesSpilledToTheFileComeBackAfterThoseInMemory() throws IOException {
+        ReplayBuffer buffer = new ReplayBuffer(4 * FRAME_BYTES, dir, 100 * FRAME_BYTES, MAX_FRAME_BYTES);
+        for (int i = 0; i < 10; i++)
+            assertTrue(offer(buffer, i));
+        assertEquals(10, buffer.getFrames());
+        assertEquals(6 * FRAME_BYTES, spoolFile().length());
+
+        // Room frees up in memory, but while the file holds frames new ones go after them
+        List<Integer> numbers = new ArrayList<>();
+        ByteBuffer into = ByteBuffer.allocate(MAX_FRAME_BYTES);
+        assertEquals(2, buffer.poll(into, 2 * FRAME_BYTES));
+        numbers.add(into.getInt(4));
+        numbers.add(into.getInt(FRAME_BYTES + 4));
+        for (int i = 10; i < 13; i++)
+            assertTrue(offer(buffer, i));
+
+        // Polls across the end of memory and into the file
+        numbers.addAll(pollAll(buffer, 3 * FRAME_BYTES));
+        assertEquals(13, numbers.size());
+        for (int i = 0; i < numbers.size(); i++)
+            assertEquals(i, (int) numbers.get(i));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getBytes());
+    }
+
+    @Test
+    public void fileIsTruncatedOnceEmptied() throws IOException {
+        ReplayBuffer buffer = new ReplayBuffer(FRAME_BYTES, dir, 100 * FRAME_BYTES, MAX_FRAME_BYTES);
+        for (int i = 0; i < 20; i++)
+            assertTrue(offer(buffer, i));
+        assertEquals(19 * FRAME_BYTES, spoolFile().length());
+
+        assertEquals(20, pollAll(buffer, MAX_FRAME_BYTES).size());
+        assertEquals(0, spoolFile().length());
+
+        // Memory takes new frames again, then the file from its start
+        for (int i = 0; i < 3; i++)
+            assertTrue(offer(buffer, i));
+        assertEquals(2 * FRAME_BYTES, spoolFile().length());
+        List<Integer> numbers = pollAll(buffer, MAX_FRAME_BYTES);
+        assertEquals(3, numbers.size());
+        for (int i = 0; i < numbers.size(); i++)
+            assertEquals(i, (int) numbers.get(i));
+    }
+
+    @Test
+    public void refusesFramesOnceFullKeepingTheOldest() throws IOException {
+        ReplayBuffer buffer = new ReplayBuffer(4 * FRAME_BYTES, dir, 4 * FRAME_BYTES, MAX_FRAME_BYTES);
+        assertEquals(8 * FRAME_BYTES, buffer.getCapacity());
+        for (int i = 0; i < 8; i++)
+            assertTrue(offer(buffer, i));
+        for (int i = 8; i < 12; i++)
+            assertFalse(offer(buffer, i));
+        assertFalse("larger than a frame can be", offer(buffer, 12, MAX_FRAME_BYTES + 1));
+
+        List<Integer> numbers = pollAll(buffer, MAX_FRAME_BYTES);
+        assertEquals(8, numbers.size());
+        for (int i = 0; i < numbers.size(); i++)
+            assertEquals(i, (int) numbers.get(i));
+    }
+
+    @Test
+    public void withoutADirectoryOnlyMemoryIsUsed() throws IOException {
+        ReplayBuffer buffer = new ReplayBuffer(4 * FRAME_BYTES, null, 100 * FRAME_BYTES, MAX_FRAME_BYTES);
+        assertEquals(4 * FRAME_BYTES, buffer.getCapacity());
+        for (int i = 0; i < 4; i++)
+            assertTrue(offer(buffer, i));
+        assertFalse(offer(buffer, 4));
+        assertEquals(4, pollAll(buffer, MAX_FRAME_BYTES).size());
+    }
+
+    @Test
+    public void closedBufferDeletesItsFileAndRefusesFrames() throws IOException {
+        ReplayBuffer buffer = new ReplayBuffer(FRAME_BYTES, dir, 100 * FRAME_BYTES, MAX_FRAME_BYTES);
+        for (int i = 0; i < 5; i++)
+            assertTrue(offer(buffer, i));
+        buffer.close();
+
+        assertEquals(0, dir.listFiles().length);
+        assertTrue(buffer.isEmpty());
+        assertFalse(offer(buffer, 5));
+    }
+}
@@ -0,0 +1,179 @@
+package org.sralab.emgimu.streaming;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams over UDP on loopback into {@link UdpStreamReceiver}, and feeds the receiver
+ * datagrams built by hand to check how it counts those lost, reordered or repeated.
+ */
+public class UdpStreamingTest {
+
+    private static final int DEVICES = 8;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static String mac(int device) {
+        return String.format("F0:1A:00:00:00:%02X", device);
+    }
+
+    private static void awaitState(List<NetworkStreaming.State> states, NetworkStreaming.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!states.contains(state)) {
+            assertTrue("timed out waiting for " + state, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void loopbackDeliversEveryFrameInOrder() throws Exception {
+        UdpStreamReceiver receiver = new UdpStreamReceiver(0);
+        List<Long> sequences = new CopyOnWriteArrayList<>();
+        receiver.setFrameListener((frame, senderMicros) -> {
+            if ((frame.get(frame.position()) & 0xFF) != NetworkFrameFormat.FRAME_DEVICE)
+                sequences.add(frame.getInt(frame.position() + 4) & 0xFFFFFFFFL);
+        });
+        receiver.start();
+
+        NetworkStreaming streaming = new NetworkStreaming();
+        List<NetworkStreaming.State> states = new CopyOnWriteArrayList<>();
+        streaming.setStateListener(states::add);
+        streaming.start("127.0.0.1", receiver.getPort(), NetworkStreaming.Protocol.UDP);
+        awaitState(states, NetworkStreaming.State.CONNECTED);
+
+        int frames = 2000;
+        for (int i = 0; i < frames; i++) {
+            streaming.streamEmgPwr(mac(i % DEVICES), i, new int[] {i, -i});
+            // Paced so the frame pool never runs out
+            if (i % 50 == 49)
+                Thread.sleep(2);
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sequences.size() < frames) {
+            assertTrue("received " + sequences.size() + " frames", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        streaming.stop();
+        receiver.close();
+
+        UdpStreamReceiver.Stats stats = receiver.getStats();
+        assertEquals(0, streaming.getDroppedFrames());
+        assertEquals(streaming.getSentDatagrams(), stats.received);
+        assertEquals(streaming.getSentFrames(), stats.frames);
+        assertEquals(0, stats.lost);
+        assertEquals(0, stats.reordered);
+        assertEquals(0, stats.duplicates);
+        assertEquals(0, stats.malformed);
+        assertTrue(stats.minLatencyMicros >= 0);
+        assertTrue(stats.p50LatencyMicros <= stats.p99LatencyMicros);
+        assertTrue(stats.p99LatencyMicros <= stats.maxLatencyMicros);
+        for (int i = 0; i < frames; i++)
+            assertEquals(i, (long) sequences.get(i));
+    }
+
+    @Test
+    public void bufferedFramesAndTheirDeviceFramesFitInADatagram() throws Exception {
+        // Read the raw datagrams, to see their size, and pass them on to the receiver
+        UdpStreamReceiver receiver = new UdpStreamReceiver(0);
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        channel.configureBlocking(false);
+        int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+
+        NetworkStreaming streaming = new NetworkStreaming();
+        int frames = 400;
+        streaming.setStateListener(state -> {
+            // Called on the streaming thread before it connects, so these are all buffered
+            // and sent with every device frame ahead of the first datagram's worth
+            if (state == NetworkStreaming.State.CONNECTING && streaming.getSentDatagrams() == 0) {
+                for (int i = 0; i < frames; i++)
+                    streaming.streamEmgPwr(mac(i % DEVICES), i, new int[] {i, -i});
+            }
+        });
+        streaming.start("127.0.0.1", port, NetworkStreaming.Protocol.UDP);
+
+        ByteBuffer datagram = ByteBuffer.allocate(64 * 1024);
+        List<Integer> sizes = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (receiver.getStats().frames < frames + DEVICES) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            datagram.clear();
+            if (channel.receive(datagram) == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            datagram.flip();
+            sizes.add(datagram.remaining());
+            receiver.onDatagram(datagram, NetworkFrameFormat.clockMicros());
+        }
+        streaming.stop();
+        channel.close();
+        receiver.close();
+
+        for (int size : sizes)
+            assertTrue("datagram of " + size + " bytes", size <= NetworkFrameFormat.MAX_DATAGRAM_BYTES);
+        UdpStreamReceiver.Stats stats = receiver.getStats();
+        assertEquals(0, stats.lost);
+        assertEquals(0, stats.malformed);
+        assertEquals(frames + DEVICES, stats.frames);
+    }
+
+    /** A datagram claiming {@code count} frames but holding {@code present} EMG power frames */
+    private static ByteBuffer datagram(long sequence, long sentMicros, int count, int present) {
+        ByteBuffer b = ByteBuffer.allocate(NetworkFrameFormat.DATAGRAM_HEADER_BYTES + present * (4 + NetworkFrameFormat.HEADER_BYTES + 4));
+        b.putInt((int) sequence);
+        b.putLong(sentMicros);
+        b.putShort((short) count);
+        for (int i = 0; i < present; i++) {
+            b.putInt(NetworkFrameFormat.HEADER_BYTES + 4);
+            b.put((byte) NetworkFrameFormat.FRAME_EMG_PWR);
+            b.put((byte) 0);
+            b.putShort((short) 0);
+            b.putInt((int) sequence);
+            b.putLong(0);
+            b.putShort((short) 1);
+            b.putShort((short) 1);
+            b.putInt(i);
+        }
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void countsReorderedDuplicateLostAndMalformedDatagrams() throws Exception {
+        UdpStreamReceiver receiver = new UdpStreamReceiver(0);
+        List<Long> delivered = new ArrayList<>();
+        receiver.setFrameListener((frame, senderMicros) -> delivered.add(senderMicros));
+
+        // 4 is never sent, 2 arrives after 3 and again after that
+        long [] order = {0, 1, 3, 2, 2, 5};
+        for (int i = 0; i < order.length; i++)
+            receiver.onDatagram(datagram(order[i], 1000 * order[i], 2, 2), 1000 * order[i] + 100 * (i + 1));
+        // Claims three frames but holds two, and one too short for the header
+        receiver.onDatagram(datagram(6, 6000, 3, 2), 6700);
+        receiver.onDatagram(ByteBuffer.allocate(NetworkFrameFormat.DATAGRAM_HEADER_BYTES - 1), 7000);
+        receiver.close();
+
+        UdpStreamReceiver.Stats stats = receiver.getStats();
+        assertEquals(7, stats.received);
+        assertEquals(1, stats.duplicates);
+        assertEquals(1, stats.reordered);
+        assertEquals(1, stats.lost);
+        assertEquals(2, stats.malformed);
+        // The duplicate's frames are not passed on
+        assertEquals(12, stats.frames);
+        assertEquals(12, delivered.size());
+        assertEquals(1.0 / 7, stats.lossRate(), 1e-9);
+        assertEquals(100, stats.minLatencyMicros);
+        assertEquals(700, stats.maxLatencyMicros);
+    }
+}
@@ -41,6 +41,10 @@ import org.sralab.emgimu.gaitvideoimu.stream_visualization.DeviceViewModel;
 import org.sralab.emgimu.gaitvideoimu.stream_visualization.StreamingAdapter;
 import org.sralab.emgimu.logging.FirebaseGameLogger;
 import org.sralab.emgimu.camera.Camera;
+import org.sralab.emgimu.logging.LogRecovery;
+import org.sralab.emgimu.logging.session.SessionFormat;
+import org.sralab.emgimu.logging.session.SessionWriter;
+import org.sralab.emgimu.logging.upload.UploadQueue;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -71,6 +75,8 @@ public class GaitVideoActivity extends AppCompatActivity implements CameraCallba
     private DeviceViewModel dvm;
     private StreamingAdapter streamingAdapter;
     private PhoneSensors phoneSensors;
+    // Phone sensors and frame times of the trial being recorded, on one clock
+    private SessionWriter session;
 
     //Firebase Fields & Nested Class
     class GaitTrial {
@@ -83,6 +89,7 @@ public class GaitVideoActivity extends AppCompatActivity implements CameraCallba
         public Long depthStartTime;
         public String depthTimestampsRef;
         public String phoneSensorLog;
+        public String sessionLog;
     }
     ArrayList<GaitTrial> trials = new ArrayList<>();
     private GaitTrial curTrial;
@@ -157,6 +164,7 @@ public class GaitVideoActivity extends AppCompatActivity implements CameraCallba
         Toast.makeText(GaitVideoActivity.this, "Connecting to emg-imu sensors!", Toast.LENGTH_SHORT).show();
 
         enableFirebase();
+        recoverSessions();
 
         // Sound effects
         ding = MediaPlayer.create(GaitVideoActivity.this, R.raw.ding);
@@ -170,11 +178,16 @@ public class GaitVideoActivity extends AppCompatActivity implements CameraCallba
                     ding.start();
                     curTrial = new GaitTrial();
 
+                    session = new SessionWriter(this, "_gait_session", "gait_sessions", null);
+
                     camera.startVideoRecording();
-                    if (depthCamera != null)
+                    camera.setSession(session);
+                    if (depthCamera != null) {
                         depthCamera.startVideoRecording();
+                        depthCamera.setSession(session);
+                    }
                     if (phoneSensors != null)
-                        phoneSensors.startRecording();
+                        phoneSensors.startRecording(session);
 
                     startVideoRecordingButton.setEnabled(false);
                     stopVideoRecordingButton.setEnabled(true);
@@ -185,13 +198,20 @@ public class GaitVideoActivity extends AppCompatActivity implements CameraCallba
                 v -> {
                     punch.start();
 
+                    // Set before the video callbacks store the trial
+                    curTrial.sessionLog = session.getReference();
                     if (phoneSensors != null) {
                         curTrial.phoneSensorLog = phoneSensors.getFirebasePath();
                         phoneSensors.stopRecording();
                     }
-                    if (depthCamera != null)
+                    if (depthCamera != null) {
                         depthCamera.stopVideoRecording();
+                        depthCamera.setSession(null);
+                    }
                     camera.stopVideoRecording();
+                    camera.setSession(null);
+                    session.close();
+                    session = null;
                     stopVideoRecordingButton.setEnabled(false);
                     running = false;
                     seconds = 0;
@@ -224,6 +244,18 @@ public class GaitVideoActivity extends AppCompatActivity implements CameraCallba
         });
     }
 
+    /** Repair and upload sessions left open when the app was killed while recording */
+    private void recoverSessions() {
+        File [] openLogs = LogRecovery.findOpenLogs(getExternalFilesDir("stream_logs"));
+        if (openLogs.length == 0)
+            return;
+        UploadQueue uploadQueue = UploadQueue.getInstance(this);
+        new Thread(() -> {
+            int recovered = LogRecovery.recoverAll(openLogs, uploadQueue, SessionFormat.TRIMMER);
+            Log.i(TAG, "Recovered " + recovered + " of " + openLogs.length + " open sessions");
+        }, "LogRecovery").start();
+    }
+
     protected void firebaseActivated() {
 
         dvm.getServiceLiveData().observe(this, binder -> {